@@ -0,0 +1,147 @@
+package pt.arquivo.imagesearch.indexing.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import pt.arquivo.imagesearch.indexing.LocalFullImageIndexer;
+import pt.arquivo.imagesearch.indexing.data.FullImageMetadata;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the FullImageMetadata binary encoding with the Java serialization it replaced, over the records
+ * that are shuffled by both jobs (map outputs, and the records split by digest) for a list of (W)ARCs.
+ * <p>
+ * The encoded sizes of both formats are printed during the setup. Run with:
+ * <pre>
+ * mvn -P benchmarks clean package
+ * java -cp target/image-search-indexing.jar org.openjdk.jmh.Main FullImageMetadataEncodingBenchmark -p warcList=src/test/resources/FullOfflinePipelineTestWARCS.txt
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FullImageMetadataEncodingBenchmark {
+
+    /**
+     * File with one (W)ARC path per line, relative to the directory of the file
+     */
+    @Param("src/test/resources/FullOfflinePipelineTestWARCS.txt")
+    public String warcList;
+
+    private List<FullImageMetadata> records;
+
+    private List<byte[]> javaEncoded;
+
+    private List<byte[]> binaryEncoded;
+
+    @Setup
+    public void setup() throws IOException {
+        File listFile = new File(warcList);
+        LocalFullImageIndexer.Map map = new LocalFullImageIndexer.Map("Benchmark");
+        for (String line : FileUtils.readLines(listFile, StandardCharsets.UTF_8))
+            if (!line.trim().isEmpty())
+                map.map(new File(listFile.getParentFile(), line.trim()).toURI().toString());
+
+        records = new ArrayList<>();
+        LocalFullImageIndexer.Reduce reduce = new LocalFullImageIndexer.Reduce();
+        for (java.util.Map.Entry<String, List<Object>> entry : map.cleanup().entrySet()) {
+            for (Object value : entry.getValue())
+                records.add((FullImageMetadata) value);
+            FullImageMetadata result = reduce.reduce(entry.getKey(), entry.getValue());
+            if (result != null) {
+                HashMap<String, ImageData> digests = new HashMap<>();
+                for (ImageData imageData : result.getImageDatasValues())
+                    digests.putIfAbsent(imageData.getContentHash(), imageData);
+                for (ImageData imageData : digests.values())
+                    records.add(new FullImageMetadata(result, imageData));
+            }
+        }
+
+        javaEncoded = new ArrayList<>();
+        binaryEncoded = new ArrayList<>();
+        long javaBytes = 0;
+        long binaryBytes = 0;
+        for (FullImageMetadata record : records) {
+            byte[] java = writeJava(record);
+            byte[] binary = writeBinary(record);
+            javaEncoded.add(java);
+            binaryEncoded.add(binary);
+            javaBytes += java.length;
+            binaryBytes += binary.length;
+        }
+        System.out.printf("%n%d records: Java serialization %d bytes, binary encoding %d bytes (%.1f%%)%n",
+                records.size(), javaBytes, binaryBytes, 100.0 * binaryBytes / Math.max(javaBytes, 1));
+    }
+
+    @Benchmark
+    public long writeJavaSerialization() throws IOException {
+        long bytes = 0;
+        for (FullImageMetadata record : records)
+            bytes += writeJava(record).length;
+        return bytes;
+    }
+
+    @Benchmark
+    public long writeBinaryEncoding() throws IOException {
+        long bytes = 0;
+        for (FullImageMetadata record : records)
+            bytes += writeBinary(record).length;
+        return bytes;
+    }
+
+    @Benchmark
+    public int readJavaSerialization() throws IOException, ClassNotFoundException {
+        int images = 0;
+        for (byte[] data : javaEncoded) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            byte[] object = new byte[in.readInt()];
+            in.readFully(object);
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(object));
+            images += ((FullImageMetadata) ois.readObject()).getImageDatas().size();
+        }
+        return images;
+    }
+
+    @Benchmark
+    public int readBinaryEncoding() throws IOException {
+        int images = 0;
+        for (byte[] data : binaryEncoded) {
+            FullImageMetadata metadata = new FullImageMetadata();
+            metadata.readFields(new DataInputStream(new ByteArrayInputStream(data)));
+            images += metadata.getImageDatas().size();
+        }
+        return images;
+    }
+
+    /**
+     * Previous FullImageMetadata.write: the whole object through an ObjectOutputStream, prefixed by its size
+     */
+    private static byte[] writeJava(FullImageMetadata metadata) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(metadata);
+        oos.flush();
+        byte[] data = baos.toByteArray();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 4);
+        DataOutputStream dataOutput = new DataOutputStream(out);
+        dataOutput.writeInt(data.length);
+        dataOutput.write(data);
+        return out.toByteArray();
+    }
+
+    private static byte[] writeBinary(FullImageMetadata metadata) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        metadata.write(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+}
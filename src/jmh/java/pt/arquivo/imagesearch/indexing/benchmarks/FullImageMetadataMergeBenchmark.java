@@ -0,0 +1,299 @@
+package pt.arquivo.imagesearch.indexing.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pt.arquivo.imagesearch.indexing.data.FullImageMetadata;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+import pt.arquivo.imagesearch.indexing.data.MultiPageImageData;
+import pt.arquivo.imagesearch.indexing.data.PageImageData;
+import pt.arquivo.imagesearch.indexing.data.hadoop.DigestWritable;
+import pt.arquivo.imagesearch.indexing.data.serializers.ImageDataSerializer;
+import pt.arquivo.imagesearch.indexing.data.serializers.MultiPageImageDataSerializer;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationMerger;
+import pt.arquivo.imagesearch.indexing.utils.ImageParse;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+import pt.arquivo.imagesearch.indexing.utils.WARCInformationParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the reduce side of both jobs over synthetic records of a single image url: ImageInformationMerger.merge,
+ * FullImageMetadata.addImageData/addPageImageData, assignImagesToPages, the split by digest
+ * (FullImageMetadata(result, imageData)), write/readFields of the split records, and the JSON export with the Gson
+ * serializers of DupDigestMergerJob.
+ * <p>
+ * Each capture of the url is a map output record with one ImageData and one PageImageData. The shapes are:
+ * <ul>
+ *     <li>HOT_URL: a single digest, with few distinct captions and page titles</li>
+ *     <li>MANY_DIGESTS: a new digest and caption every 10 captures</li>
+ *     <li>SATURATED: a new digest and caption on every capture, past FullImageMetadata.MAXIMUM_META</li>
+ * </ul>
+ * Merging changes the merged records, so the benchmarks that merge get new records on each invocation (not measured).
+ * The FULL JSON export serializes PageImageData by reflection, which on Java 9+ needs
+ * {@code -jvmArgsAppend --add-opens=java.base/java.time=ALL-UNNAMED}, as the pipeline does. Run with:
+ * <pre>
+ * mvn -P benchmarks clean package
+ * java -cp target/image-search-indexing.jar pt.arquivo.imagesearch.indexing.benchmarks.FullImageMetadataMergeBenchmark
+ * java -cp target/image-search-indexing.jar org.openjdk.jmh.Main FullImageMetadataMergeBenchmark -prof gc -p shape=HOT_URL -p captures=10000
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FullImageMetadataMergeBenchmark {
+
+    /**
+     * Shapes of the synthetic records
+     * <p>
+     * DIGESTS_EVERY: captures with the same digest in a row, 0 for a single digest
+     * CAPTIONS_EVERY: captures with the same caption (and page title) in a row, 0 for a few alternating ones
+     */
+    public enum SHAPE {
+        HOT_URL(0, 0),
+        MANY_DIGESTS(10, 10),
+        SATURATED(1, 1);
+
+        private final int digestsEvery;
+        private final int captionsEvery;
+
+        SHAPE(int digestsEvery, int captionsEvery) {
+            this.digestsEvery = digestsEvery;
+            this.captionsEvery = captionsEvery;
+        }
+    }
+
+    /**
+     * Number of distinct captions of HOT_URL records
+     */
+    public static final int HOT_URL_CAPTIONS = 5;
+
+    /**
+     * Thumbnail size of the synthetic images, in bytes
+     */
+    public static final int THUMBNAIL_SIZE = 8 * 1024;
+
+    @Param({"HOT_URL", "MANY_DIGESTS", "SATURATED"})
+    public SHAPE shape;
+
+    /**
+     * Number of captures of the url
+     */
+    @Param("2000")
+    public int captures;
+
+    private byte[] thumbnail;
+
+    private Gson gson;
+
+    /**
+     * Records split by digest from the merged records, as shuffled to DupDigestMergerJob
+     */
+    private List<FullImageMetadata> splitRecords;
+
+    private List<byte[]> encodedRecords;
+
+    @Setup
+    public void setup() throws IOException {
+        thumbnail = new byte[THUMBNAIL_SIZE];
+        new Random(0).nextBytes(thumbnail);
+        gson = new GsonBuilder()
+                .registerTypeAdapter(MultiPageImageData.class, new MultiPageImageDataSerializer())
+                .registerTypeAdapter(ImageData.class, new ImageDataSerializer())
+                .create();
+
+        ImageInformationMerger merger = new ImageInformationMerger();
+        merger.mergeAll(generate());
+        splitRecords = split(merger.getBestMatch());
+        encodedRecords = new ArrayList<>();
+        long bytes = 0;
+        for (FullImageMetadata record : splitRecords) {
+            // as exported by DupDigestMergerJob, with the images assigned to their pages
+            record.assignImagesToPages();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            record.write(new DataOutputStream(out));
+            encodedRecords.add(out.toByteArray());
+            bytes += out.size();
+        }
+        FullImageMetadata merged = merger.getBestMatch();
+        System.out.printf("%n%s, %d captures: %d images, %d pages, %d split records (%d bytes)%n", shape, captures,
+                merged.getImageDatas().size(), merged.getPageImageDatas().size(), splitRecords.size(), bytes);
+    }
+
+    /**
+     * New map output records for each invocation, as merging changes them
+     */
+    @State(Scope.Thread)
+    public static class Records {
+
+        private List<FullImageMetadata> records;
+
+        /**
+         * Records merged into a single one, before the images are assigned to their pages
+         */
+        private FullImageMetadata merged;
+
+        @Setup(Level.Invocation)
+        public void setup(FullImageMetadataMergeBenchmark benchmark) {
+            records = benchmark.generate();
+            merged = new FullImageMetadata();
+            for (FullImageMetadata record : benchmark.generate())
+                merged.merge(record);
+        }
+    }
+
+    @Benchmark
+    public ImageInformationMerger merge(Records records) {
+        ImageInformationMerger merger = new ImageInformationMerger();
+        merger.mergeAll(records.records);
+        return merger;
+    }
+
+    @Benchmark
+    public FullImageMetadata addImageData(Records records) {
+        FullImageMetadata metadata = new FullImageMetadata();
+        for (FullImageMetadata record : records.records)
+            for (ImageData imageData : record.getImageDatasValues())
+                metadata.addImageData(imageData);
+        return metadata;
+    }
+
+    @Benchmark
+    public FullImageMetadata addPageImageData(Records records) {
+        FullImageMetadata metadata = new FullImageMetadata();
+        for (FullImageMetadata record : records.records)
+            for (PageImageData pageImageData : record.getPageImageDatasValues())
+                metadata.addPageImageData(pageImageData);
+        return metadata;
+    }
+
+    @Benchmark
+    public FullImageMetadata assignImagesToPages(Records records) {
+        records.merged.assignImagesToPages();
+        return records.merged;
+    }
+
+    @Benchmark
+    public List<FullImageMetadata> splitByDigest(Records records) {
+        records.merged.assignImagesToPages();
+        return split(records.merged);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        long bytes = 0;
+        for (FullImageMetadata record : splitRecords) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            record.write(new DataOutputStream(out));
+            bytes += out.size();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int readFields() throws IOException {
+        int pages = 0;
+        for (byte[] data : encodedRecords) {
+            FullImageMetadata metadata = new FullImageMetadata();
+            metadata.readFields(new DataInputStream(new ByteArrayInputStream(data)));
+            pages += metadata.getPageImageDatas().size();
+        }
+        return pages;
+    }
+
+    @Benchmark
+    public long toJsonCompact() {
+        long chars = 0;
+        for (FullImageMetadata record : splitRecords) {
+            chars += gson.toJson(record.getImageDatas().firstKey()).length();
+            chars += gson.toJson(new MultiPageImageData(record)).length();
+        }
+        return chars;
+    }
+
+    @Benchmark
+    public long toJsonFull() {
+        long chars = 0;
+        for (FullImageMetadata record : splitRecords) {
+            for (ImageData imageData : record.getImageDatasValues())
+                chars += gson.toJson(imageData).length();
+            for (PageImageData pageImageData : record.getPageImageDatasValues())
+                chars += gson.toJson(pageImageData).length();
+        }
+        return chars;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FullImageMetadataMergeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    /**
+     * Splits a merged record by digest, as ImageIndexerWithDupsJob.Reduce
+     */
+    private static List<FullImageMetadata> split(FullImageMetadata merged) {
+        List<FullImageMetadata> records = new ArrayList<>();
+        for (ImageData imageData : merged.getImageDatasValues())
+            records.add(new FullImageMetadata(merged, imageData));
+        return records;
+    }
+
+    /**
+     * Map output records for the captures of the url, one ImageData and one PageImageData each
+     */
+    private List<FullImageMetadata> generate() {
+        String url = "https://example.com/images/hot.jpg";
+        String surt = WARCInformationParser.toSURT(url);
+        String pageURL = "https://example.com/index.html";
+        LocalDateTime start = LocalDateTime.of(2005, 1, 1, 0, 0);
+
+        List<FullImageMetadata> records = new ArrayList<>(captures);
+        for (int i = 0; i < captures; i++) {
+            String timestamp = WARCInformationParser.getLocalDateTimeToTimestamp(start.plusHours(7L * i));
+            String warc = "BENCHMARK-" + (i / 100) + ".warc.gz";
+            int digest = shape.digestsEvery == 0 ? 0 : i / shape.digestsEvery;
+            int caption = shape.captionsEvery == 0 ? i % HOT_URL_CAPTIONS : i / shape.captionsEvery;
+
+            ImageData imageData = new ImageData(ImageSearchIndexingUtil.md5ofString(url), timestamp, url, surt, "image/jpeg", "image/jpeg", "Benchmark", thumbnail, warc, i * 1000L);
+            imageData.setContentHash(digest(digest));
+            imageData.setWidth(400);
+            imageData.setHeight(300);
+
+            PageImageData pageImageData = new PageImageData("page", "Image title", "Image alt " + caption, "images hot jpg",
+                    "Caption of the image, version " + caption, "Page title " + caption, "example com index html", url, surt,
+                    10, timestamp, pageURL, "example.com", "https", "img", warc, i * 1000L + 500, "Benchmark");
+
+            FullImageMetadata record = new FullImageMetadata();
+            record.addImageData(imageData);
+            record.addPageImageData(pageImageData);
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static String digest(int index) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(ImageParse.DIGEST_ALGORITHM);
+            return DigestWritable.toHex(digest.digest(("image " + index).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package pt.arquivo.imagesearch.indexing.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+import pt.arquivo.imagesearch.indexing.utils.HtmlImagePrefilter;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the page path of ImageInformationExtractor: the byte prefilter, decoding, the whole parseHTMLPage, and
+ * the image url and caption extraction of each img tag, over the test pages plus the HTML records of a list of (W)ARCs.
+ * <p>
+ * Each operation processes all pages, so ops/s are full passes over the input. Allocation rates are reported by
+ * the JMH gc profiler, enabled by main. Run with:
+ * <pre>
+ * mvn -P benchmarks clean package
+ * java -cp target/image-search-indexing.jar pt.arquivo.imagesearch.indexing.benchmarks.HtmlExtractionBenchmark
+ * java -cp target/image-search-indexing.jar org.openjdk.jmh.Main HtmlExtractionBenchmark -prof gc -p warcList=src/test/resources/FullOfflinePipelineTestWARCS.txt
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlExtractionBenchmark {
+
+    /**
+     * Directory with HTML pages, parsed with a fixed page url
+     */
+    @Param("src/test/resources/pages")
+    public String pagesDir;
+
+    /**
+     * File with one (W)ARC path per line, relative to the directory of the file, from which HTML records are taken
+     */
+    @Param("src/test/resources/FullOfflinePipelineTestWARCS.txt")
+    public String warcList;
+
+    private static final HtmlImagePrefilter PREFILTER = new HtmlImagePrefilter(Arrays.asList("jpg", "jpeg", "png", "tif", "tiff", "gif", "svg", "webp", "bmp", "ico"));
+
+    private List<HtmlPage> pages;
+
+    @Setup
+    public void setup() throws IOException {
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Benchmark");
+        pages = new ArrayList<>();
+
+        File[] pageFiles = new File(pagesDir).listFiles((dir, name) -> name.endsWith(".html"));
+        if (pageFiles != null) {
+            for (File pageFile : pageFiles)
+                pages.add(new HtmlPage("https://example.com/pages/" + pageFile.getName(), "20200101000000", FileUtils.readFileToByteArray(pageFile), extractor));
+        }
+        int testPages = pages.size();
+
+        File listFile = new File(warcList);
+        if (listFile.exists()) {
+            for (String line : FileUtils.readLines(listFile, StandardCharsets.UTF_8)) {
+                if (line.trim().isEmpty())
+                    continue;
+                String arcURL = new File(listFile.getParentFile(), line.trim()).toURI().toString();
+                if (arcURL.endsWith("warc.gz") || arcURL.endsWith("warc")) {
+                    ImageSearchIndexingUtil.readWarcRecords(arcURL, extractor, record -> {
+                        String mimetype = record.getContentMimetype();
+                        if (mimetype != null && mimetype.contains("html"))
+                            pages.add(new HtmlPage(record.getWARCRecord().getHeader().getUrl(), record.getTs(), record.getContentBytes(), extractor));
+                    });
+                } else {
+                    ImageSearchIndexingUtil.readArcRecords(arcURL, extractor, record -> {
+                        if (record.getMetaData().getMimetype().contains("html")) {
+                            try {
+                                byte[] content = ImageSearchIndexingUtil.getRecordContentBytes(record);
+                                pages.add(new HtmlPage(record.getHeader().getUrl(), record.getMetaData().getDate(), content, extractor));
+                            } catch (IOException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+
+        long bytes = 0;
+        long images = 0;
+        for (HtmlPage page : pages) {
+            bytes += page.content.length;
+            images += page.images.size();
+        }
+        System.out.printf("%n%d pages (%d test pages, %d from (W)ARCs): %d bytes, %d img tags%n",
+                pages.size(), testPages, pages.size() - testPages, bytes, images);
+    }
+
+    @Benchmark
+    public int prefilter() {
+        int accepted = 0;
+        for (HtmlPage page : pages)
+            if (PREFILTER.mayContainImages(page.content))
+                accepted++;
+        return accepted;
+    }
+
+    @Benchmark
+    public long decode() throws IOException {
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Benchmark");
+        long chars = 0;
+        for (HtmlPage page : pages)
+            chars += ImageSearchIndexingUtil.decode(page.content, extractor).length();
+        return chars;
+    }
+
+    @Benchmark
+    public int parseHTMLPage() throws IOException {
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Benchmark");
+        for (HtmlPage page : pages)
+            extractor.parseHTMLPage(page.url, page.timestamp, "benchmark.warc.gz", 0, page.html);
+        return extractor.getEntries().size();
+    }
+
+    @Benchmark
+    public int getImgURLToParse() {
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Benchmark");
+        int urls = 0;
+        for (HtmlPage page : pages)
+            for (Element image : page.images)
+                urls += extractor.getImgURLToParse(page.url, image).size();
+        return urls;
+    }
+
+    @Benchmark
+    public long extractCaptionFromParent() {
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Benchmark");
+        long chars = 0;
+        for (HtmlPage page : pages) {
+            // the text of each page is indexed on its first image
+            for (Element image : page.images) {
+                String caption = extractor.extractCaptionFromParent(image);
+                if (caption != null)
+                    chars += caption.length();
+            }
+        }
+        return chars;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HtmlExtractionBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    /**
+     * HTML page, with its decoded content and parsed img tags for the per-tag benchmarks
+     */
+    private static class HtmlPage {
+        private final String url;
+        private final String timestamp;
+        private final byte[] content;
+        private final String html;
+        private final List<Element> images;
+
+        HtmlPage(String url, String timestamp, byte[] content, ImageInformationExtractor extractor) {
+            this.url = url.startsWith("http") ? url : "http://" + url;
+            this.timestamp = timestamp;
+            this.content = content;
+            try {
+                this.html = ImageSearchIndexingUtil.decode(content, extractor);
+            } catch (IOException e) {
+                throw new IllegalStateException("Error decoding page: " + url, e);
+            }
+            Document document = Jsoup.parse(html, this.url);
+            this.images = document.getElementsByTag("img");
+        }
+    }
+}
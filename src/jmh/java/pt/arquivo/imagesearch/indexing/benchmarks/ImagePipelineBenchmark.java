@@ -0,0 +1,282 @@
+package pt.arquivo.imagesearch.indexing.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.imgscalr.Scalr;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+import pt.arquivo.imagesearch.indexing.utils.ImageParse;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+import pt.arquivo.imagesearch.indexing.utils.WARCInformationParser;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks each stage of ImageParse.getPropImage (and the whole of it), per image format and size class, over the
+ * image records of a list of (W)ARCs: mime type sniffing (simplemagic), ImageIO reader lookup, dimension probing,
+ * full decoding, Scalr resizing, thumbnail encoding (ImageIO.write) and SHA-256 hashing.
+ * <p>
+ * Size classes follow the pipeline: small images fit in the thumbnail and are not resized, medium ones have up to
+ * MEDIUM_MAX_PIXELS and large ones more. Images are only kept if the pipeline can read their dimensions, and the
+ * number of images of each format and size class is printed during the setup. Each operation processes all the images
+ * of the chosen format and size class, so ops/s are full passes over them. Run with:
+ * <pre>
+ * mvn -P benchmarks clean package
+ * java -cp target/image-search-indexing.jar pt.arquivo.imagesearch.indexing.benchmarks.ImagePipelineBenchmark
+ * java -cp target/image-search-indexing.jar org.openjdk.jmh.Main ImagePipelineBenchmark -prof gc -p format=jpeg,png -p sizeClass=large
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImagePipelineBenchmark {
+
+    /**
+     * Largest number of pixels of a medium image
+     */
+    public static final int MEDIUM_MAX_PIXELS = 1000 * 1000;
+
+    /**
+     * File with one (W)ARC path per line, relative to the directory of the file, from which image records are taken
+     */
+    @Param("src/test/resources/FullOfflinePipelineTestWARCS.txt")
+    public String warcList;
+
+    /**
+     * Image format, from the detected mime type
+     */
+    @Param({"jpeg", "png", "gif", "bmp", "svg", "ico"})
+    public String format;
+
+    /**
+     * Image size class: small, medium or large
+     */
+    @Param({"small", "medium", "large"})
+    public String sizeClass;
+
+    private List<ImageData> images;
+
+    /**
+     * Decoded images, for the resize benchmark
+     */
+    private List<BufferedImage> decoded;
+
+    /**
+     * Thumbnails, as created by the pipeline, for the write benchmark
+     */
+    private List<BufferedImage> thumbnails;
+
+    @Setup
+    public void setup() throws IOException {
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Benchmark");
+        List<ImageData> records = new ArrayList<>();
+
+        File listFile = new File(warcList);
+        for (String line : FileUtils.readLines(listFile, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty())
+                continue;
+            String arcURL = new File(listFile.getParentFile(), line.trim()).toURI().toString();
+            if (arcURL.endsWith("warc.gz") || arcURL.endsWith("warc")) {
+                ImageSearchIndexingUtil.readWarcRecords(arcURL, extractor, record -> {
+                    String mimetype = record.getContentMimetype();
+                    if (mimetype != null && mimetype.startsWith("image"))
+                        records.add(newImageData(record.getWARCRecord().getHeader().getUrl(), record.getTs(), mimetype, record.getContentBytes()));
+                });
+            } else {
+                ImageSearchIndexingUtil.readArcRecords(arcURL, extractor, record -> {
+                    String mimetype = record.getMetaData().getMimetype();
+                    if (mimetype.startsWith("image")) {
+                        try {
+                            byte[] content = ImageSearchIndexingUtil.getRecordContentBytes(record);
+                            records.add(newImageData(record.getHeader().getUrl(), record.getMetaData().getDate(), mimetype, content));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                });
+            }
+        }
+
+        images = new ArrayList<>();
+        decoded = new ArrayList<>();
+        thumbnails = new ArrayList<>();
+        Map<String, Integer> counts = new TreeMap<>();
+        for (ImageData imageData : records) {
+            Map.Entry<ImageReader, Dimension> data = WARCInformationParser.getImageDimensions(imageData);
+            if (data == null)
+                continue;
+            data.getKey().dispose();
+            String imageFormat = getFormat(imageData.getMimeDetected());
+            String imageSizeClass = getSizeClass(data.getValue());
+            counts.merge(imageFormat + " " + imageSizeClass, 1, Integer::sum);
+            if (!format.equals(imageFormat) || !sizeClass.equals(imageSizeClass))
+                continue;
+
+            BufferedImage image = decode(imageData);
+            images.add(imageData);
+            decoded.add(image);
+            thumbnails.add(resize(image));
+        }
+        System.out.printf("%n%d image records, readable images by format and size class: %s%n", records.size(), counts);
+        System.out.printf("%d %s %s images%n", images.size(), sizeClass, format);
+    }
+
+    @Benchmark
+    public int getMimeType() {
+        int found = 0;
+        for (ImageData imageData : images)
+            if (WARCInformationParser.getMimeType(imageData.getBytes()) != null)
+                found++;
+        return found;
+    }
+
+    @Benchmark
+    public int readerLookup() {
+        int found = 0;
+        for (ImageData imageData : images) {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByMIMEType(imageData.getMimeDetected());
+            if (readers.hasNext()) {
+                readers.next().dispose();
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public long getImageDimensions() {
+        long pixels = 0;
+        for (ImageData imageData : images) {
+            Map.Entry<ImageReader, Dimension> data = WARCInformationParser.getImageDimensions(imageData);
+            data.getKey().dispose();
+            pixels += (long) data.getValue().width * data.getValue().height;
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public long decode() throws IOException {
+        long pixels = 0;
+        for (ImageData imageData : images) {
+            BufferedImage image = decode(imageData);
+            pixels += (long) image.getWidth() * image.getHeight();
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public long resize() {
+        long pixels = 0;
+        for (BufferedImage image : decoded) {
+            BufferedImage thumbnail = resize(image);
+            pixels += (long) thumbnail.getWidth() * thumbnail.getHeight();
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        long bytes = 0;
+        for (int i = 0; i < images.size(); i++) {
+            ByteArrayOutputStream bao = new ByteArrayOutputStream();
+            ImageIO.write(thumbnails.get(i), images.get(i).getMimeDetected().substring(6), bao);
+            bytes += bao.size();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int sha256() throws NoSuchAlgorithmException {
+        int hash = 0;
+        for (ImageData imageData : images)
+            hash += MessageDigest.getInstance(ImageParse.DIGEST_ALGORITHM).digest(imageData.getBytes())[0];
+        return hash;
+    }
+
+    @Benchmark
+    public long getPropImage() {
+        long bytes = 0;
+        for (ImageData imageData : images) {
+            // getPropImage replaces the bytes with the thumbnail, so each operation needs new objects
+            ImageData parsed = ImageParse.getPropImage(newImageData(imageData.getUrl(), WARCInformationParser.getLocalDateTimeToTimestamp(imageData.getOldestTimestamp()), imageData.getMimeReported(), imageData.getBytes()));
+            if (parsed != null && parsed.getBytes() != null)
+                bytes += parsed.getBytes().length;
+        }
+        return bytes;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ImagePipelineBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    /**
+     * Creates an ImageData record as ImageInformationExtractor.saveImageMetadata, with the detected mime type
+     */
+    private static ImageData newImageData(String url, String timestamp, String mimeReported, byte[] bytes) {
+        String mimeDetected = WARCInformationParser.getMimeType(bytes);
+        return new ImageData("", timestamp, url, url, mimeReported, mimeDetected == null ? "" : mimeDetected, "Benchmark", bytes, "benchmark.warc.gz", 0);
+    }
+
+    /**
+     * Decodes an image, as ImageParse.getPropImage
+     */
+    private static BufferedImage decode(ImageData imageData) throws IOException {
+        ImageReader reader = WARCInformationParser.getImageDimensions(imageData).getKey();
+        try {
+            return reader.read(reader.getMinIndex(), reader.getDefaultReadParam());
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Creates a thumbnail, as ImageParse.getPropImage: images smaller than the thumbnail are kept as they are
+     */
+    private static BufferedImage resize(BufferedImage image) {
+        if (image.getWidth() < ImageParse.THUMB_WIDTH || image.getHeight() < ImageParse.THUMB_HEIGHT)
+            return image;
+        Dimension thumbDimensions = ImageParse.getThumbnailDimensions(image.getWidth(), image.getHeight());
+        return Scalr.resize(image, Scalr.Method.AUTOMATIC, Scalr.Mode.AUTOMATIC, thumbDimensions.width, thumbDimensions.height, Scalr.OP_ANTIALIAS);
+    }
+
+    private static String getFormat(String mimeType) {
+        if (mimeType.contains("svg"))
+            return "svg";
+        if (mimeType.contains("icon"))
+            return "ico";
+        return mimeType.substring(mimeType.indexOf('/') + 1);
+    }
+
+    private static String getSizeClass(Dimension dimension) {
+        if (dimension.width < ImageParse.THUMB_WIDTH || dimension.height < ImageParse.THUMB_HEIGHT)
+            return "small";
+        if ((long) dimension.width * dimension.height <= MEDIUM_MAX_PIXELS)
+            return "medium";
+        return "large";
+    }
+}
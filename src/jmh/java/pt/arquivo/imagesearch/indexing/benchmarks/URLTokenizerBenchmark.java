@@ -0,0 +1,132 @@
+package pt.arquivo.imagesearch.indexing.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+import pt.arquivo.imagesearch.indexing.utils.URLTokenizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares URLTokenizer with the String.split and URLDecoder tokenization it replaced, over the record urls and the
+ * src/href links of the HTML records of a list of (W)ARCs.
+ * <p>
+ * Each operation tokenizes all urls, so ops/s are full passes over the input. Run with:
+ * <pre>
+ * mvn -P benchmarks clean package
+ * java -cp target/image-search-indexing.jar org.openjdk.jmh.Main URLTokenizerBenchmark -prof gc -p warcList=src/test/resources/FullOfflinePipelineTestWARCS.txt
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class URLTokenizerBenchmark {
+
+    /**
+     * File with one (W)ARC path per line, relative to the directory of the file, from which urls are taken
+     */
+    @Param("src/test/resources/FullOfflinePipelineTestWARCS.txt")
+    public String warcList;
+
+    private List<String> urls;
+
+    private URLTokenizer tokenizer;
+
+    @Setup
+    public void setup() throws IOException {
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Benchmark");
+        tokenizer = new URLTokenizer();
+        urls = new ArrayList<>();
+
+        File listFile = new File(warcList);
+        for (String line : FileUtils.readLines(listFile, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty())
+                continue;
+            String arcURL = new File(listFile.getParentFile(), line.trim()).toURI().toString();
+            if (arcURL.endsWith("warc.gz") || arcURL.endsWith("warc")) {
+                ImageSearchIndexingUtil.readWarcRecords(arcURL, extractor, record -> {
+                    String url = record.getWARCRecord().getHeader().getUrl();
+                    urls.add(url);
+                    String mimetype = record.getContentMimetype();
+                    if (mimetype != null && mimetype.contains("html")) {
+                        try {
+                            String html = ImageSearchIndexingUtil.decode(record.getContentBytes(), extractor);
+                            for (Element el : Jsoup.parse(html, url).select("[src], [href]"))
+                                urls.add(el.hasAttr("src") ? el.absUrl("src") : el.absUrl("href"));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                });
+            } else {
+                ImageSearchIndexingUtil.readArcRecords(arcURL, extractor, record -> urls.add(record.getHeader().getUrl()));
+            }
+        }
+
+        long chars = 0;
+        for (String url : urls)
+            chars += url.length();
+        System.out.printf("%n%d urls: %d chars%n", urls.size(), chars);
+    }
+
+    @Benchmark
+    public long urlTokensSplit() {
+        long chars = 0;
+        for (String url : urls) {
+            String decoded = url;
+            try {
+                decoded = URLDecoder.decode(url, "UTF-8");
+            } catch (Exception ignored) {
+            }
+            chars += decoded.startsWith("hash:") ? 0 : String.join(" ", decoded.split("[\\p{Punct}\b]+")).length();
+        }
+        return chars;
+    }
+
+    @Benchmark
+    public long urlTokensTokenizer() {
+        long chars = 0;
+        for (String url : urls)
+            chars += tokenizer.tokenizeURL(url).length();
+        return chars;
+    }
+
+    @Benchmark
+    public long cleanPunctuationSplit() {
+        long chars = 0;
+        for (String url : urls)
+            chars += String.join(" ", url.split("[\\p{Punct}\b]+")).length();
+        return chars;
+    }
+
+    @Benchmark
+    public long cleanPunctuationTokenizer() {
+        long chars = 0;
+        for (String url : urls)
+            chars += tokenizer.cleanPunctuation(url).length();
+        return chars;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(URLTokenizerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
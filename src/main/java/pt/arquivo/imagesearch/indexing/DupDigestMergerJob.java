@@ -20,10 +20,14 @@ import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.log4j.Logger;
 import pt.arquivo.imagesearch.indexing.data.ImageData;
 import pt.arquivo.imagesearch.indexing.data.MultiPageImageData;
+import pt.arquivo.imagesearch.indexing.data.hadoop.DigestPartitioner;
+import pt.arquivo.imagesearch.indexing.data.hadoop.DigestWritable;
 import pt.arquivo.imagesearch.indexing.data.PageImageData;
 import pt.arquivo.imagesearch.indexing.data.serializers.ImageDataSerializer;
 import pt.arquivo.imagesearch.indexing.data.serializers.MultiPageImageDataSerializer;
 import pt.arquivo.imagesearch.indexing.processors.ImageInformationMerger;
+import pt.arquivo.imagesearch.indexing.utils.LazyThumbnailGenerator;
+import pt.arquivo.imagesearch.indexing.utils.ThumbnailStore;
 
 import java.io.IOException;
 
@@ -63,6 +67,9 @@ public class DupDigestMergerJob extends Configured implements Tool {
      * URL_IMAGES_PAGESALL: Number of pages referencing images (without deduplication)
      * URL_IMAGESALL_PAGES: Number of images referenced by pages (without deduplication)
      * URL_IMAGES_PAGES: Number of images processed (with deduplication)
+     * THUMBNAILS_LOADED: Number of image bytes read back from the thumbnail store for the exported images
+     * THUMBNAILS_GENERATED: Number of thumbnails created from the (W)ARC records of the exported images (lazy thumbnails)
+     * THUMBNAILS_FAILED: Number of exported images whose bytes could not be loaded or created, which were left out
      */
     public enum COUNTERS {
         RECORDS_MAP_IN,
@@ -72,7 +79,10 @@ public class DupDigestMergerJob extends Configured implements Tool {
         RECORDS_WITHOUT_METADATA,
         URL_IMAGES_PAGESALL,
         URL_IMAGESALL_PAGES,
-        URL_IMAGES_PAGES
+        URL_IMAGES_PAGES,
+        THUMBNAILS_LOADED,
+        THUMBNAILS_GENERATED,
+        THUMBNAILS_FAILED
 
     }
 
@@ -89,7 +99,7 @@ public class DupDigestMergerJob extends Configured implements Tool {
         URL_IMAGES_PAGES
     }
 
-    public static class Map extends Mapper<Text, Writable, Text, Writable> {
+    public static class Map extends Mapper<DigestWritable, Writable, DigestWritable, Writable> {
 
         private final Logger logger = Logger.getLogger(Map.class);
 
@@ -109,7 +119,7 @@ public class DupDigestMergerJob extends Configured implements Tool {
          * @param value   single FullImageMetadata object to be deduplicated
          * @param context Hadoop context
          */
-        public void map(Text key, Writable value, Context context) {
+        public void map(DigestWritable key, Writable value, Context context) {
             try {
                 context.getCounter(COUNTERS.RECORDS_MAP_IN).increment(1);
                 context.write(key, value);
@@ -119,15 +129,25 @@ public class DupDigestMergerJob extends Configured implements Tool {
         }
     }
 
-    public static class Reduce extends Reducer<Text, Writable, NullWritable, Text> {
+    public static class Reduce extends Reducer<DigestWritable, Writable, NullWritable, Text> {
 
         private final Logger logger = Logger.getLogger(Reduce.class);
         public String collection;
         private ImageInformationMerger merger;
         OUTPUT_MODE outputMode;
 
+        /**
+         * Store with the image bytes left out by the first stage, or null if they were kept in the records
+         */
+        private ThumbnailStore thumbnailStore;
+
+        /**
+         * Creates the thumbnails skipped by the first stage, or null if they were created there
+         */
+        private LazyThumbnailGenerator thumbnailGenerator;
+
         @Override
-        public void setup(Reducer.Context context) {
+        public void setup(Context context) throws IOException {
             String logLevel = System.getenv("INDEXING_LOG_LEVEL");
             if (logLevel != null) {
                 org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.toLevel(logLevel));
@@ -138,6 +158,22 @@ public class DupDigestMergerJob extends Configured implements Tool {
             Configuration config = context.getConfiguration();
             String legacyOutput = config.get(OUTPUT_MODE_NAME);
             outputMode = OUTPUT_MODE.valueOf(legacyOutput);
+            String thumbnailStoreDir = config.get(ImageIndexerWithDupsJob.THUMBNAIL_STORE_DIR_NAME);
+            if (thumbnailStoreDir != null && !thumbnailStoreDir.isEmpty())
+                thumbnailStore = new ThumbnailStore(config, new Path(thumbnailStoreDir));
+            if (config.getBoolean(ImageIndexerWithDupsJob.LAZY_THUMBNAILS_NAME, false)) {
+                String warcs = config.get(ImageIndexerWithDupsJob.LAZY_THUMBNAILS_WARCS_NAME);
+                if (warcs == null || warcs.isEmpty())
+                    throw new IllegalStateException(ImageIndexerWithDupsJob.LAZY_THUMBNAILS_WARCS_NAME + " must be set with " + ImageIndexerWithDupsJob.LAZY_THUMBNAILS_NAME);
+                thumbnailGenerator = new LazyThumbnailGenerator(config, new Path(warcs), config.get("collection"));
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            super.cleanup(context);
+            if (thumbnailStore != null)
+                thumbnailStore.close();
         }
 
 
@@ -148,7 +184,7 @@ public class DupDigestMergerJob extends Configured implements Tool {
          * @param values  set of FullImageMetadata object to be deduplicated
          * @param context Hadoop context
          */
-        public void reduce(Text key, Iterable<Writable> values, Context context) {
+        public void reduce(DigestWritable key, Iterable<Writable> values, Context context) {
             logger.debug("Reducing: " + key);
 
             merger.reset();
@@ -179,7 +215,7 @@ public class DupDigestMergerJob extends Configured implements Tool {
          * @param context Hadoop context
          * @param result FullImageMetadata to be outputted
          */
-        private void exportToJson(Reducer<Text, Writable, NullWritable, Text>.Context context, FullImageMetadata result) {
+        private void exportToJson(Reducer<DigestWritable, Writable, NullWritable, Text>.Context context, FullImageMetadata result) {
             Gson gson = new GsonBuilder()
                     .registerTypeAdapter(MultiPageImageData.class, new MultiPageImageDataSerializer())
                     .registerTypeAdapter(ImageData.class, new ImageDataSerializer())
@@ -188,14 +224,19 @@ public class DupDigestMergerJob extends Configured implements Tool {
             try {
                 // If output mode is FULL, "deduplication" only removes FullImageMetadata if they are exactly the same. There may be multiple image and page records for each unique (by digest) image
                 if (outputMode == OUTPUT_MODE.FULL) {
-                    for (ImageData data : result.getImageDatasValues())
-                        context.write(NullWritable.get(), new Text(gson.toJson(data)));
+                    for (ImageData data : result.getImageDatasValues()) {
+                        if (loadThumbnail(data))
+                            context.write(NullWritable.get(), new Text(gson.toJson(data)));
+                    }
                     for (PageImageData data : result.getPageImageDatasValues())
                         context.write(NullWritable.get(), new Text(gson.toJson(data)));
                 // If output mode is COMPACT, "deduplication" will make that there will only be a single image data line and a single image metadata line
                 } else if (outputMode == OUTPUT_MODE.COMPACT) {
                     if (!result.getPageImageDatas().isEmpty() && !result.getImageDatas().isEmpty()) {
                         ImageData id = result.getImageDatas().firstKey();
+                        // without its bytes, the image can be neither classified nor shown, so the digest is skipped
+                        if (!loadThumbnail(id))
+                            return;
                         MultiPageImageData pid = new MultiPageImageData(result);
                         // ImageData and MultiPageImageData are written separately to simplify the next processing stage
                         // The ImageData JSON contains a base64 version of the iamge and will be used for NSFW classification
@@ -209,6 +250,36 @@ public class DupDigestMergerJob extends Configured implements Tool {
                 logger.error(e.getMessage());
             }
         }
+
+        /**
+         * Adds the image bytes left out by the first stage to an exported ImageData: they are either read back from
+         * the thumbnail store, or created from the image (W)ARC record (lazy thumbnails)
+         *
+         * @param imageData ImageData to be exported
+         * @return false if the image bytes could not be loaded, in which case the image must not be exported
+         */
+        private boolean loadThumbnail(ImageData imageData) {
+            if (imageData.getBytes() != null)
+                return true;
+            try {
+                if (imageData.getThumbnailLocation() != null) {
+                    if (thumbnailStore == null)
+                        throw new IllegalStateException("Image bytes are in a thumbnail store, but " + ImageIndexerWithDupsJob.THUMBNAIL_STORE_DIR_NAME + " is not set");
+                    imageData.setBytes(thumbnailStore.get(imageData.getContentHash(), imageData.getThumbnailLocation()));
+                    merger.getCounter(COUNTERS.THUMBNAILS_LOADED).increment(1);
+                } else {
+                    if (thumbnailGenerator == null)
+                        throw new IllegalStateException("Image without thumbnail, but " + ImageIndexerWithDupsJob.LAZY_THUMBNAILS_NAME + " is not set");
+                    thumbnailGenerator.createThumbnail(imageData);
+                    merger.getCounter(COUNTERS.THUMBNAILS_GENERATED).increment(1);
+                }
+                return true;
+            } catch (IOException e) {
+                merger.getCounter(COUNTERS.THUMBNAILS_FAILED).increment(1);
+                logger.error("Error loading thumbnail of " + imageData.getContentHash() + " from " + imageData.getWarc() + ":" + imageData.getWarcOffset(), e);
+                return false;
+            }
+        }
     }
 
     /**
@@ -240,7 +311,8 @@ public class DupDigestMergerJob extends Configured implements Tool {
         String inputDir;
         String outputDirDigest;
 
-        Configuration conf = new Configuration();
+        // start from the Tool config so that generic options (-D) reach the job
+        Configuration conf = getConf() != null ? new Configuration(getConf()) : new Configuration();
         conf.set("collection", collection);
         conf.set(OUTPUT_MODE_NAME, outputModeString);
         FileSystem hdfs = FileSystem.get(conf);
@@ -278,8 +350,11 @@ public class DupDigestMergerJob extends Configured implements Tool {
         jobDigest.setInputFormatClass(SequenceFileInputFormat.class);
 
         jobDigest.setMapperClass(DupDigestMergerJob.Map.class);
-        jobDigest.setMapOutputKeyClass(Text.class);
+        jobDigest.setMapOutputKeyClass(DigestWritable.class);
         jobDigest.setMapOutputValueClass(FullImageMetadata.class);
+        // digests are sorted by their raw bytes and partitioned by their first bytes, without being deserialized
+        jobDigest.setSortComparatorClass(DigestWritable.Comparator.class);
+        jobDigest.setPartitionerClass(DigestPartitioner.class);
 
         jobDigest.setReducerClass(DupDigestMergerJob.Reduce.class);
         jobDigest.setOutputKeyClass(NullWritable.class);
@@ -3,6 +3,7 @@ package pt.arquivo.imagesearch.indexing;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.ToolRunner;
 
 
@@ -22,7 +23,11 @@ public class FullImageIndexerJob {
         } else {
             org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.ERROR);
         }
-        
+
+        // generic options (e.g. -D pipeline_html_threads=8) are passed on to both jobs
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+
         assert args.length >= 1 : "Missing hdfs file with all arcs path argument";
         String hdfsArcsPath = args[0];
 
@@ -46,24 +51,38 @@ public class FullImageIndexerJob {
         String outputDirJob1 = "/image-search-indexing/output/" + collection + "/" + currentTime + "_dups";
         String outputDirJob2 = "/image-search-indexing/output/" + collection + "/" + currentTime + "_nodups";
 
+        // each run gets its own thumbnail store, only needed until the second job has exported the images
+        String thumbnailStoreDir = conf.get(ImageIndexerWithDupsJob.THUMBNAIL_STORE_DIR_NAME);
+        if (thumbnailStoreDir != null && !thumbnailStoreDir.isEmpty()) {
+            thumbnailStoreDir = thumbnailStoreDir + "/" + collection + "/" + currentTime;
+            conf.set(ImageIndexerWithDupsJob.THUMBNAIL_STORE_DIR_NAME, thumbnailStoreDir);
+        }
+
+        // lazy thumbnails are created by the second job from the same (W)ARCs
+        if (conf.getBoolean(ImageIndexerWithDupsJob.LAZY_THUMBNAILS_NAME, false) && conf.get(ImageIndexerWithDupsJob.LAZY_THUMBNAILS_WARCS_NAME) == null)
+            conf.set(ImageIndexerWithDupsJob.LAZY_THUMBNAILS_WARCS_NAME, hdfsArcsPath);
+
         String[] argsJob1 = new String[]{args[0], args[1], args[2], args[3], args[4], outputDirJob1, args[6]};
 
-        int exitCode = ToolRunner.run(new ImageIndexerWithDupsJob(), argsJob1);
+        int exitCode = ToolRunner.run(conf, new ImageIndexerWithDupsJob(), argsJob1);
 
-        Configuration conf = new Configuration();
         FileSystem hdfs = FileSystem.get(conf);
 
         if (exitCode != 0){
             // delete intermediate results, as the second job failed and they will not be used further
             hdfs.delete(new Path(outputDirJob1), true);
+            if (thumbnailStoreDir != null && !thumbnailStoreDir.isEmpty())
+                hdfs.delete(new Path(thumbnailStoreDir), true);
             System.exit(exitCode);
         }
 
         String[] argsJob2 = new String[]{args[1], args[3], args[5], outputDirJob1, outputDirJob2};
-        exitCode = ToolRunner.run(new DupDigestMergerJob(), argsJob2);
+        exitCode = ToolRunner.run(conf, new DupDigestMergerJob(), argsJob2);
 
         // delete intermediate results from job1, as only the output of the final job is needed
         hdfs.delete(new Path(outputDirJob1), true);
+        if (thumbnailStoreDir != null && !thumbnailStoreDir.isEmpty())
+            hdfs.delete(new Path(thumbnailStoreDir), true);
 
 
         System.exit(exitCode);
@@ -7,7 +7,6 @@ import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.log4j.Logger;
 import org.archive.io.ArchiveRecord;
-import pt.arquivo.imagesearch.indexing.data.FullImageMetadata;
 import pt.arquivo.imagesearch.indexing.data.hadoop.WritableArchiveRecord;
 import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
 
@@ -33,7 +32,7 @@ public class HDFSImageIndexerWithDupsJob {
             collection = config.get("collection");
             logger.debug(collection + "_Images/img/");
             this.collection = config.get("collection");
-            indexer = new ImageInformationExtractor(collection, context);
+            indexer = ImageIndexerWithDupsJob.createExtractor(config, collection, context);
         }
 
 
@@ -64,10 +63,7 @@ public class HDFSImageIndexerWithDupsJob {
         protected void cleanup(Context context) throws IOException, InterruptedException {
             logger.info("Cleanup");
             super.cleanup(context);
-            for (java.util.Map.Entry<String, FullImageMetadata> entry : indexer.getEntries().entrySet()) {
-                String surt = entry.getKey();
-                context.write(new Text(surt), entry.getValue());
-            }
+            indexer.writeEntries();
         }
     }
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -21,18 +22,28 @@ import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.log4j.Logger;
 import pt.arquivo.imagesearch.indexing.data.hadoop.ArchiveFileInputFormat;
+import pt.arquivo.imagesearch.indexing.data.hadoop.DigestWritable;
+import pt.arquivo.imagesearch.indexing.processors.DeferredImageInformationExtractor;
 import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
 import pt.arquivo.imagesearch.indexing.processors.ImageInformationMerger;
-import pt.arquivo.imagesearch.indexing.utils.AlternativeFileUtils;
+import pt.arquivo.imagesearch.indexing.processors.PipelinedImageInformationExtractor;
 import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+import pt.arquivo.imagesearch.indexing.utils.ThumbnailStore;
+import pt.arquivo.imagesearch.indexing.utils.WarcPrefetcher;
 import pt.arquivo.imagesearch.indexing.utils.WarcPathFilter;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Hadoop process responsible for the 1nd stage of the pipeline.
@@ -41,6 +52,103 @@ import java.util.Set;
  */
 public class ImageIndexerWithDupsJob extends Configured implements Tool {
 
+    /**
+     * Hadoop config key for the number of HTML worker threads per map.
+     * When set above 0, records are parsed by the PipelinedImageInformationExtractor instead of the map thread
+     */
+    public static final String PIPELINE_HTML_THREADS_NAME = "pipeline_html_threads";
+
+    /**
+     * Hadoop config key for the number of image worker threads per map (defaults to the number of HTML threads)
+     */
+    public static final String PIPELINE_IMAGE_THREADS_NAME = "pipeline_image_threads";
+
+    /**
+     * Hadoop config key for the maximum number of records waiting in each worker queue
+     */
+    public static final String PIPELINE_QUEUE_SIZE_NAME = "pipeline_queue_size";
+
+    /**
+     * Default maximum number of records waiting in each worker queue
+     */
+    public static final int PIPELINE_QUEUE_SIZE_DEFAULT = 64;
+
+    /**
+     * Hadoop config key for the number of (W)ARCs downloaded ahead of the one being parsed (0 disables prefetching)
+     */
+    public static final String PREFETCH_WARCS_NAME = "prefetch_warcs";
+
+    /**
+     * Hadoop config key for the number of prefetched (W)ARCs parsed at the same time
+     */
+    public static final String PREFETCH_PARSE_THREADS_NAME = "prefetch_parse_threads";
+
+    /**
+     * Hadoop config key for the maximum disk space, in MB, taken by downloaded (W)ARCs when prefetching
+     */
+    public static final String PREFETCH_MAX_DISK_MB_NAME = "prefetch_max_disk_mb";
+
+    /**
+     * Default maximum disk space, in MB, taken by downloaded (W)ARCs when prefetching
+     */
+    public static final long PREFETCH_MAX_DISK_MB_DEFAULT = 10 * 1024;
+
+    /**
+     * Hadoop config key for the maximum approximate memory, in MB, taken by the map entries before the least recently
+     * updated ones are written out (0, the default, keeps all entries until the end of the map)
+     */
+    public static final String ENTRY_BUFFER_MB_NAME = "entry_buffer_mb";
+
+    /**
+     * Hadoop config key to enable (default) or disable the map-side Combine, merging map outputs of the same SURT
+     */
+    public static final String COMBINER_NAME = "map_combiner";
+
+    /**
+     * Hadoop config key for the directory of the thumbnail store. When set, the image bytes are written there by the
+     * maps, once per digest, instead of being shuffled with the metadata, and DupDigestMergerJob reads back only the
+     * ones it exports
+     */
+    public static final String THUMBNAIL_STORE_DIR_NAME = "thumbnail_store_dir";
+
+    /**
+     * Hadoop config key to skip the thumbnails of images from image records in the maps (default false).
+     * Their thumbnails are then created by DupDigestMergerJob, only for the exported images, from their (W)ARC records
+     */
+    public static final String LAZY_THUMBNAILS_NAME = "lazy_thumbnails";
+
+    /**
+     * Hadoop config key for the (W)ARC list, or HDFS (W)ARC directory, given to this job, used by DupDigestMergerJob
+     * to find the (W)ARC records of the lazy thumbnails (set by FullImageIndexerJob)
+     */
+    public static final String LAZY_THUMBNAILS_WARCS_NAME = "lazy_thumbnails_warcs";
+
+    /**
+     * Hadoop config key for the page size, in MB, over which pages are parsed by streaming their tags instead of
+     * building a DOM (0, the default, parses all pages into a DOM)
+     */
+    public static final String STREAMING_HTML_MB_NAME = "streaming_html_mb";
+
+    /**
+     * Hadoop config key for the number of tags from which pages are parsed by streaming their tags instead of building
+     * a DOM (0, the default, does not count them)
+     */
+    public static final String STREAMING_HTML_ELEMENTS_NAME = "streaming_html_elements";
+
+    /**
+     * Hadoop config key for the maximum approximate memory, in MB, taken by the image references of the parsed pages,
+     * replayed for later captures of the same url with the same payload, including revisit records (0, the default,
+     * parses every capture and leaves page revisits unresolved)
+     */
+    public static final String PAGE_CACHE_MB_NAME = "page_cache_mb";
+
+    /**
+     * Hadoop config key for the maximum approximate memory, in MB, taken by the dimensions, digest and thumbnail of
+     * the parsed image records, reused for later records with the same payload, including revisit records (0, the
+     * default, parses every record and leaves image revisits unresolved)
+     */
+    public static final String IMAGE_MEMO_MB_NAME = "image_memo_mb";
+
     /**
      * Counters for the first Hadoop process that are related to images
      * <p>
@@ -66,6 +174,9 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
      * <p>
      * IMAGES_IN_WARC_PARSED: number of images that were effectively parsed
      * IMAGES_IN_WARC_PARSED_DUP: number of images that were parsed (with duplicates from the same WARC removed)
+     * <p>
+     * IMAGES_IN_WARC_MEMO_HIT: image records whose bytes were already parsed from another record with the same payload
+     * IMAGES_IN_WARC_MEMO_MISS: image records looked up in the image memo and parsed
      */
     public enum IMAGE_COUNTERS {
         WARCS,
@@ -90,7 +201,10 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
 
 
         IMAGES_IN_WARC_PARSED,
-        IMAGES_IN_WARC_PARSED_DUP
+        IMAGES_IN_WARC_PARSED_DUP,
+
+        IMAGES_IN_WARC_MEMO_HIT,
+        IMAGES_IN_WARC_MEMO_MISS
 
     }
 
@@ -110,6 +224,10 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
      * IMAGES_IN_HTML_BASE64: images represented in base64
      * PAGES: total number of pages parser
      * PAGES_WITH_IMAGES: total number of pages with images
+     * PAGES_SKIPPED_PREFILTER: pages without any image reference in their bytes, counted in PAGES but neither decoded nor parsed
+     * PAGES_STREAMED: pages over the streaming thresholds, counted in PAGES and parsed without a DOM
+     * PAGES_CACHE_HIT: pages (or page revisits) whose image references were replayed from an earlier capture with the same payload
+     * PAGES_CACHE_MISS: pages looked up in the page cache and not found
      * <p>
      * PAGE_UTF8_MISMATCH: images that are UTF_8 but encoded in ISO_8859_1
      * PAGE_UTF8_MISMATCH_DOUBLE: images with mixed encoding both UTF_8 and ISO_8859_1 that cannot be fixed
@@ -130,6 +248,10 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
         IMAGES_IN_HTML_BASE64,
         PAGES,
         PAGES_WITH_IMAGES,
+        PAGES_SKIPPED_PREFILTER,
+        PAGES_STREAMED,
+        PAGES_CACHE_HIT,
+        PAGES_CACHE_MISS,
 
         PAGE_UTF8_MISMATCH,
         PAGE_UTF8_MISMATCH_DOUBLE,
@@ -138,6 +260,80 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
         IMAGES_IN_HTML_SENT_DUP,
     }
 
+    /**
+     * Counters for the charset resolution of the decoded pages (see CharsetResolver), one per page
+     * <p>
+     * PAGES_CHARSET_BOM: pages with a UTF-8 or UTF-16 byte order mark
+     * PAGES_CHARSET_HTTP_HEADER: pages with a supported charset in the HTTP Content-Type header
+     * PAGES_CHARSET_META: pages with a supported charset in a meta tag near the start of the page
+     * PAGES_CHARSET_DETECTOR: pages whose charset was detected by juniversalchardet
+     * PAGES_CHARSET_HOST_HINT: pages that used the last charset declared by another page of the same host
+     * PAGES_CHARSET_DEFAULT: pages decoded as UTF-8 because nothing else resolved them
+     */
+    public enum CHARSET_COUNTERS {
+        PAGES_CHARSET_BOM,
+        PAGES_CHARSET_HTTP_HEADER,
+        PAGES_CHARSET_META,
+        PAGES_CHARSET_DETECTOR,
+        PAGES_CHARSET_HOST_HINT,
+        PAGES_CHARSET_DEFAULT
+    }
+
+    /**
+     * Counters for the map entry buffer (see ENTRY_BUFFER_MB_NAME)
+     * <p>
+     * BUFFER_FLUSHES: number of times the entries went over the budget and the coldest ones were written out
+     * BUFFER_FLUSHED_SURTS: number of SURT entries written out before the end of the map
+     * BUFFER_FLUSHED_BYTES: approximate in-memory size of the entries written out before the end of the map
+     * BUFFER_PEAK_BYTES: largest approximate in-memory size of the entries in a map (summed over all maps in the job totals)
+     */
+    public enum BUFFER_COUNTERS {
+        BUFFER_FLUSHES,
+        BUFFER_FLUSHED_SURTS,
+        BUFFER_FLUSHED_BYTES,
+        BUFFER_PEAK_BYTES
+    }
+
+    /**
+     * Counters for the map-side Combine
+     * <p>
+     * COMBINED_SURTS: number of times consecutive map output records of the same SURT were merged into a single one
+     * COMBINED_RECORDS_SAVED: number of map output records that were not shuffled thanks to the Combine
+     * COMBINED_BYTES_SAVED: number of serialized map output bytes (keys and values) that were not shuffled thanks to the Combine
+     */
+    public enum COMBINE_COUNTERS {
+        COMBINED_SURTS,
+        COMBINED_RECORDS_SAVED,
+        COMBINED_BYTES_SAVED
+    }
+
+    /**
+     * Counters for the thumbnail store (see THUMBNAIL_STORE_DIR_NAME)
+     * <p>
+     * THUMBNAILS_STORED: number of image bytes written to the thumbnail store
+     * THUMBNAILS_STORED_BYTES: number of image bytes written to the thumbnail store, in bytes
+     * THUMBNAILS_SHARED: number of images whose bytes were already in the store, written by the same map for another image with the same digest
+     */
+    public enum THUMBNAIL_COUNTERS {
+        THUMBNAILS_STORED,
+        THUMBNAILS_STORED_BYTES,
+        THUMBNAILS_SHARED
+    }
+
+    /**
+     * Counters for the identical payload digest revisit records, resolved against the page cache and image memo
+     * (see PAGE_CACHE_MB_NAME and IMAGE_MEMO_MB_NAME)
+     * <p>
+     * REVISITS: number of revisit records of pages or images
+     * REVISITS_RESOLVED: revisits whose capture was added to the image or page found for their payload digest
+     * REVISITS_UNRESOLVED: revisits whose payload digest was not parsed earlier in the map (or no longer remembered)
+     */
+    public enum REVISIT_COUNTERS {
+        REVISITS,
+        REVISITS_RESOLVED,
+        REVISITS_UNRESOLVED
+    }
+
     public enum REDUCE_COUNTERS {
         URL_IMAGES_PAGES,
         URL_IMAGES_PAGESALL,
@@ -156,6 +352,9 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
         public String collection;
         ImageInformationExtractor indexer;
         private String warcFileTempBaseDir;
+        private int prefetchWarcs;
+        private int prefetchParseThreads;
+        private long prefetchMaxDiskBytes;
 
         @Override
         public void setup(Context context) {
@@ -171,7 +370,39 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
             logger.debug(collection + "_Images/img/");
             this.collection = config.get("collection");
             this.warcFileTempBaseDir = config.get("warcFileTempBaseDir");
-            indexer = new ImageInformationExtractor(collection, context);
+            this.prefetchWarcs = config.getInt(PREFETCH_WARCS_NAME, 0);
+            this.prefetchParseThreads = Math.max(1, config.getInt(PREFETCH_PARSE_THREADS_NAME, 1));
+            this.prefetchMaxDiskBytes = config.getLong(PREFETCH_MAX_DISK_MB_NAME, PREFETCH_MAX_DISK_MB_DEFAULT) * 1024 * 1024;
+            indexer = createExtractor(config, collection, context);
+        }
+
+        /**
+         * Runs the map over the whole split.
+         * When prefetching is enabled, all (W)ARC urls of the split are read first so that the next ones can be
+         * downloaded while the current one is parsed
+         *
+         * @param context Hadoop context
+         * @throws IOException          unrecoverable errors processing (W)ARCs
+         * @throws InterruptedException interrupted reading the split
+         */
+        @Override
+        public void run(Context context) throws IOException, InterruptedException {
+            if (context.getConfiguration().getInt(PREFETCH_WARCS_NAME, 0) <= 0) {
+                super.run(context);
+                return;
+            }
+            setup(context);
+            try {
+                List<String> arcURLs = new ArrayList<>();
+                while (context.nextKeyValue()) {
+                    String arcURL = context.getCurrentValue().toString();
+                    if (!arcURL.isEmpty())
+                        arcURLs.add(arcURL);
+                }
+                mapPrefetched(arcURLs, context);
+            } finally {
+                cleanup(context);
+            }
         }
 
         /**
@@ -200,28 +431,17 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
                 String[] surl = url.getPath().split("/");
                 String arcName = surl[surl.length - 1];
                 String filename = warcFileTempBaseDir + "/" + System.currentTimeMillis() + "_" + arcName;
+                File dest = new File(filename);
 
                 try {
                     long fileSize = ImageSearchIndexingUtil.getFileSize(url);
-                    //ImageSearchIndexingUtil.saveFile(url, filename);
-                    File dest = new File(filename);
-
-                    // download and parse WARC locally to avoid problems when streaming from remote server
-                    AlternativeFileUtils.copyURLToFile(url, dest, 1000 * 60, 1000 * 30);
-                    dest = new File(filename);
-                    if (fileSize != dest.length()) {
-                        long localFileSize = dest.length();
-                        FileUtils.deleteQuietly(dest);
-                        throw new IOException("Incomplete file: Local file and remote file have different sizes. Remote URL: " + url + " Remote file size: " + fileSize + " Local file name: " + filename + " Local file size: " + localFileSize);
-                    }
+                    ImageSearchIndexingUtil.downloadWarc(url, dest, fileSize);
                 } catch (IOException e) {
                     logger.error("Error downloading WARC: " + arcURL + " " + e.getMessage());
                     context.getCounter(IMAGE_COUNTERS.WARCS_DOWNLOAD_ERROR).increment(1);
-                    File dest = new File(filename);
                     FileUtils.deleteQuietly(dest);
                     throw e;
                 }
-                File dest = new File(filename);
                 logger.info("(W)ARC downloaded: " + dest.getAbsolutePath());
 
                 indexer.parseRecord(arcName, dest.getPath());
@@ -231,6 +451,92 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
         }
 
 
+        /**
+         * Processes a list of (W)ARCs while the next ones are downloaded in the background.
+         * With more than one parse thread, several (W)ARCs are parsed at the same time, each into its own
+         * DeferredImageInformationExtractor, and their results are added to the indexer in (W)ARC order,
+         * so that the output is the same as parsing them one after the other
+         *
+         * @param arcURLs (W)ARC urls
+         * @param context Hadoop context
+         * @throws IOException          unrecoverable errors processing (W)ARCs are thrown so that Hadoop retries it
+         * @throws InterruptedException interrupted waiting for a download or parse
+         */
+        private void mapPrefetched(List<String> arcURLs, Context context) throws IOException, InterruptedException {
+            ExecutorService parsers = prefetchParseThreads > 1 ? Executors.newFixedThreadPool(prefetchParseThreads) : null;
+            try (WarcPrefetcher prefetcher = new WarcPrefetcher(arcURLs, warcFileTempBaseDir, prefetchWarcs, prefetchParseThreads, prefetchMaxDiskBytes)) {
+                if (parsers == null) {
+                    for (int i = 0; i < arcURLs.size(); i++) {
+                        WarcPrefetcher.PrefetchedWarc warc = getPrefetched(prefetcher, i, context);
+                        try {
+                            indexer.parseRecord(warc.getArcName(), warc.getFile().getPath());
+                        } finally {
+                            prefetcher.release(warc);
+                        }
+                        context.progress();
+                    }
+                    return;
+                }
+
+                // one parse per (W)ARC; a (W)ARC keeps its prefetcher slot until its results are added,
+                // which also bounds the number of parsed results waiting in memory
+                List<Future<List<Object>>> parsed = new ArrayList<>();
+                for (int i = 0; i < arcURLs.size(); i++) {
+                    int index = i;
+                    parsed.add(parsers.submit(() -> {
+                        WarcPrefetcher.PrefetchedWarc warc = getPrefetched(prefetcher, index, context);
+                        DeferredImageInformationExtractor deferred = new DeferredImageInformationExtractor(indexer);
+                        try {
+                            deferred.parseRecord(warc.getArcName(), warc.getFile().getPath());
+                        } finally {
+                            FileUtils.deleteQuietly(warc.getFile());
+                        }
+                        return deferred.takeResults();
+                    }));
+                }
+                for (int i = 0; i < parsed.size(); i++) {
+                    try {
+                        indexer.indexAll(parsed.get(i).get());
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException)
+                            throw (IOException) e.getCause();
+                        if (e.getCause() instanceof RuntimeException)
+                            throw (RuntimeException) e.getCause();
+                        throw new IOException(e.getCause());
+                    }
+                    prefetcher.release(prefetcher.get(i));
+                    context.progress();
+                }
+            } finally {
+                if (parsers != null)
+                    parsers.shutdownNow();
+            }
+        }
+
+        /**
+         * Waits for a prefetched (W)ARC, counting it as in map
+         *
+         * @param prefetcher (W)ARC prefetcher
+         * @param index      position of the (W)ARC in the split
+         * @param context    Hadoop context
+         * @return the downloaded (W)ARC
+         * @throws IOException          error downloading the (W)ARC
+         * @throws InterruptedException interrupted waiting for the download
+         */
+        private WarcPrefetcher.PrefetchedWarc getPrefetched(WarcPrefetcher prefetcher, int index, Context context) throws IOException, InterruptedException {
+            WarcPrefetcher.PrefetchedWarc warc = prefetcher.get(index);
+            logger.info("(W)ARCNAME: " + warc.getArcURL());
+            context.getCounter(IMAGE_COUNTERS.WARCS).increment(1);
+            if (warc.getError() != null) {
+                logger.error("Error downloading WARC: " + warc.getArcURL() + " " + warc.getError().getMessage());
+                context.getCounter(IMAGE_COUNTERS.WARCS_DOWNLOAD_ERROR).increment(1);
+                prefetcher.release(warc);
+                throw warc.getError();
+            }
+            logger.info("(W)ARC downloaded: " + warc.getFile().getAbsolutePath());
+            return warc;
+        }
+
         /**
          * So, results are only written at Hadoop cleanup stage (after all maps are finished) so that fewer duplicates are sent to the next stage
          *
@@ -242,14 +548,127 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
         protected void cleanup(Context context) throws IOException, InterruptedException {
             logger.info("Cleanup");
             super.cleanup(context);
-            for (java.util.Map.Entry<String, FullImageMetadata> entry : indexer.getEntries().entrySet()) {
-                String surt = entry.getKey();
-                context.write(new Text(surt), entry.getValue());
+            indexer.writeEntries();
+        }
+    }
+
+    /**
+     * Creates the extractor for a map task, according to the pipeline, entry buffer and thumbnail settings in the Hadoop config
+     *
+     * @param config     Hadoop config
+     * @param collection collection name
+     * @param context    Hadoop context
+     * @return a serial extractor, or a pipelined one if worker threads are configured
+     */
+    static ImageInformationExtractor createExtractor(Configuration config, String collection, Mapper<LongWritable, ?, Text, Writable>.Context context) {
+        ImageInformationExtractor extractor;
+        int htmlThreads = config.getInt(PIPELINE_HTML_THREADS_NAME, 0);
+        if (htmlThreads <= 0) {
+            extractor = new ImageInformationExtractor(collection, context);
+        } else {
+            int imageThreads = config.getInt(PIPELINE_IMAGE_THREADS_NAME, htmlThreads);
+            int queueSize = config.getInt(PIPELINE_QUEUE_SIZE_NAME, PIPELINE_QUEUE_SIZE_DEFAULT);
+            extractor = new PipelinedImageInformationExtractor(collection, context, htmlThreads, imageThreads, queueSize);
+        }
+        extractor.setEntryBudget(config.getLong(ENTRY_BUFFER_MB_NAME, 0) * 1024 * 1024);
+        extractor.setLazyThumbnails(config.getBoolean(LAZY_THUMBNAILS_NAME, false));
+        extractor.setStreamingThresholds(config.getLong(STREAMING_HTML_MB_NAME, 0) * 1024 * 1024, config.getInt(STREAMING_HTML_ELEMENTS_NAME, 0));
+        extractor.setPageCacheSize(config.getLong(PAGE_CACHE_MB_NAME, 0) * 1024 * 1024);
+        extractor.setImageMemoSize(config.getLong(IMAGE_MEMO_MB_NAME, 0) * 1024 * 1024);
+        String thumbnailStoreDir = config.get(THUMBNAIL_STORE_DIR_NAME);
+        if (thumbnailStoreDir != null && !thumbnailStoreDir.isEmpty())
+            extractor.setThumbnailStore(new ThumbnailStore(config, new Path(thumbnailStoreDir), context.getTaskAttemptID().toString()));
+        return extractor;
+    }
+
+    /**
+     * Map-side merge of the records of the same SURT, run by Hadoop zero, one or more times on the map output.
+     * <p>
+     * Records are merged with FullImageMetadata.merge, as in the Reduce, so the number of kept image and page
+     * records is still limited by FullImageMetadata.MAXIMUM_META and matchingImages/matchingPages are added up,
+     * keeping the same totals whether the Combine runs or not.
+     * pageMetadataChanges is counted by comparing each page record with the one already merged for the same image
+     * metadata, in merge order, so consecutive records are only merged while their page records do not share image
+     * metadata: the Reduce then finds the same differences as with the records it replaces.
+     * Images are only assigned to pages in the Reduce, once all records of the SURT are merged.
+     */
+    public static class Combine extends Reducer<Text, Writable, Text, Writable> {
+
+        /**
+         * Reusable buffer, to measure the serialized size of the records
+         */
+        private final DataOutputBuffer buffer = new DataOutputBuffer();
+
+        /**
+         * Merges the consecutive records of a SURT that can be merged before the Reduce
+         *
+         * @param key     SURT for that specific entry
+         * @param values  map output records for that SURT
+         * @param context Hadoop context
+         * @throws IOException          error writing to Hadoop context
+         * @throws InterruptedException error writing to Hadoop context
+         */
+        @Override
+        public void reduce(Text key, Iterable<Writable> values, Context context) throws IOException, InterruptedException {
+            FullImageMetadata combined = null;
+            int records = 0;
+            long bytesIn = 0;
+            for (Writable value : values) {
+                FullImageMetadata metadata = (FullImageMetadata) value;
+                if (combined != null && sharesPageRecords(combined, metadata)) {
+                    write(key, combined, records, bytesIn, context);
+                    combined = null;
+                }
+                if (combined == null) {
+                    // values are reused by Hadoop, so keep a copy of the first one
+                    combined = new FullImageMetadata(metadata);
+                    records = 0;
+                    bytesIn = 0;
+                } else {
+                    // sizes are only measured for records that are actually combined
+                    if (records == 1)
+                        bytesIn += serializedSize(key, combined);
+                    bytesIn += serializedSize(key, metadata);
+                    combined.merge(metadata);
+                }
+                records++;
+            }
+            if (combined != null)
+                write(key, combined, records, bytesIn, context);
+        }
+
+        /**
+         * Checks whether a record has page records with the same image metadata as the combined ones
+         *
+         * @param combined records merged so far
+         * @param metadata next record
+         * @return true if the record must not be merged into the combined ones
+         */
+        private static boolean sharesPageRecords(FullImageMetadata combined, FullImageMetadata metadata) {
+            for (PageImageData pageImageData : metadata.getPageImageDatasValues())
+                if (combined.getPageImageDatas().containsKey(pageImageData))
+                    return true;
+            return false;
+        }
+
+        private void write(Text key, FullImageMetadata combined, int records, long bytesIn, Context context) throws IOException, InterruptedException {
+            if (records > 1) {
+                context.getCounter(COMBINE_COUNTERS.COMBINED_SURTS).increment(1);
+                context.getCounter(COMBINE_COUNTERS.COMBINED_RECORDS_SAVED).increment(records - 1);
+                context.getCounter(COMBINE_COUNTERS.COMBINED_BYTES_SAVED).increment(bytesIn - serializedSize(key, combined));
             }
+            context.write(key, combined);
+        }
+
+        private long serializedSize(Text key, FullImageMetadata metadata) throws IOException {
+            buffer.reset();
+            key.write(buffer);
+            metadata.write(buffer);
+            return buffer.getLength();
         }
     }
 
-    public static class Reduce extends Reducer<Text, Writable, Text, Writable> {
+    public static class Reduce extends Reducer<Text, Writable, DigestWritable, Writable> {
 
         private final Logger logger = Logger.getLogger(Reduce.class);
         public String collection;
@@ -296,7 +715,7 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
                         merger.getCounter(REDUCE_COUNTERS.URL_IMAGES_PAGES_DIGESTALL).increment(1);
                         if (!digests.contains(imageData.getContentHash())) {
                             FullImageMetadata resultDigest = new FullImageMetadata(result, imageData);
-                            context.write(new Text(digest), resultDigest);
+                            context.write(new DigestWritable(digest), resultDigest);
                             digests.add(digest);
                             merger.getCounter(REDUCE_COUNTERS.URL_IMAGES_PAGES_MULIPLE_DIGEST).increment(1);
                         }
@@ -352,7 +771,8 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
         assert args.length >= 7 : "Missing warcFileTempBaseDir";
         String warcFileTempBaseDir = args[6];
 
-        Configuration conf = new Configuration();
+        // start from the Tool config so that generic options (-D) reach the job
+        Configuration conf = getConf() != null ? new Configuration(getConf()) : new Configuration();
         conf.set("collection", collection);
         conf.set("warcFileTempBaseDir", warcFileTempBaseDir);
 
@@ -389,8 +809,12 @@ public class ImageIndexerWithDupsJob extends Configured implements Tool {
         job.setMapOutputKeyClass(Text.class);
         job.setMapOutputValueClass(FullImageMetadata.class);
 
+        if (conf.getBoolean(COMBINER_NAME, true))
+            job.setCombinerClass(ImageIndexerWithDupsJob.Combine.class);
+
         job.setReducerClass(ImageIndexerWithDupsJob.Reduce.class);
-        job.setOutputKeyClass(Text.class);
+        // records are written by digest, in binary form, for DupDigestMergerJob
+        job.setOutputKeyClass(DigestWritable.class);
         job.setOutputValueClass(FullImageMetadata.class);
         job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
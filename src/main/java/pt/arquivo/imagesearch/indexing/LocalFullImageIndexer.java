@@ -14,6 +14,7 @@ import org.apache.hadoop.mapreduce.*;
 import org.apache.log4j.Logger;
 import pt.arquivo.imagesearch.indexing.data.serializers.ImageDataSerializer;
 import pt.arquivo.imagesearch.indexing.data.serializers.MultiPageImageDataSerializer;
+import pt.arquivo.imagesearch.indexing.processors.DeferredImageInformationExtractor;
 import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
 import pt.arquivo.imagesearch.indexing.processors.ImageInformationMerger;
 
@@ -39,12 +40,48 @@ public class LocalFullImageIndexer {
         public ImageInformationExtractor indexer;
 
         public Map(String collection) {
+            this(collection, new ImageInformationExtractor(collection));
+        }
+
+        /**
+         * Creates the map stage with a pre-built extractor (e.g. a PipelinedImageInformationExtractor)
+         *
+         * @param collection collection name
+         * @param indexer extractor used to parse the (W)ARCs
+         */
+        public Map(String collection, ImageInformationExtractor indexer) {
             this.collection = collection;
             logger.debug(collection + "_Images/img/");
-            indexer = new ImageInformationExtractor(collection);
+            this.indexer = indexer;
         }
 
         public void map(String arcURL) {
+            parse(arcURL, indexer);
+        }
+
+        /**
+         * Parses a (W)ARC without adding its records to the indexer, so that several (W)ARCs can be parsed at the
+         * same time. The returned records are added later with index
+         *
+         * @param arcURL (W)ARC url
+         * @return ImageData and PageImageData objects, in the order they were parsed
+         */
+        public List<Object> mapDeferred(String arcURL) {
+            DeferredImageInformationExtractor deferred = new DeferredImageInformationExtractor(indexer);
+            parse(arcURL, deferred);
+            return deferred.takeResults();
+        }
+
+        /**
+         * Adds the records returned by mapDeferred to the indexer
+         *
+         * @param records ImageData and PageImageData objects
+         */
+        public void index(List<Object> records) {
+            indexer.indexAll(records);
+        }
+
+        private void parse(String arcURL, ImageInformationExtractor extractor) {
             logger.info("(W)ARCNAME: " + arcURL);
             indexer.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.WARCS).increment(1);
 
@@ -57,12 +94,12 @@ public class LocalFullImageIndexer {
 
             String[] surl = url.getPath().split("/");
             String arcName = surl[surl.length - 1];
-            String filename = System.currentTimeMillis() + "_" + arcName;
+            String filename = System.currentTimeMillis() + "_" + Thread.currentThread().getId() + "_" + arcName;
             File dest = new File("/tmp/" + filename);
 
             try {
                 FileUtils.copyURLToFile(url, dest);
-                indexer.parseRecord(arcName, dest.getPath());
+                extractor.parseRecord(arcName, dest.getPath());
             } catch (IOException e) {
                 logger.error("Error processing: " + arcURL, e);
             }
@@ -159,10 +196,37 @@ public class LocalFullImageIndexer {
         }
     }
 
+    /**
+     * Writes a merged digest entry as JSON lines, if it has both images and pages
+     *
+     * @param out        output writer
+     * @param gson       JSON serializer
+     * @param result     merged entry from ReduceDigest
+     * @param outputMode output mode for the JSON format (FULL, COMPACT)
+     */
+    public static void writeResult(PrintWriter out, Gson gson, FullImageMetadata result, DupDigestMergerJob.OUTPUT_MODE outputMode) {
+        if (result != null && !result.getPageImageDatas().isEmpty() && !result.getImageDatas().isEmpty()) {
+            if (outputMode == DupDigestMergerJob.OUTPUT_MODE.FULL) {
+                for (ImageData data : result.getImageDatasValues())
+                    out.println(gson.toJson(data));
+                for (PageImageData data : result.getPageImageDatasValues())
+                    out.println(gson.toJson(data));
+            } else { // if (outputMode == OUTPUT_MODE.COMPACT) {
+                if (!result.getPageImageDatas().isEmpty() && !result.getImageDatas().isEmpty()){
+                    ImageData id = result.getImageDatas().firstKey();
+                    MultiPageImageData pid = new MultiPageImageData(result);
+                    out.println(gson.toJson(id));
+                    out.println(gson.toJson(pid));
+                }
+
+            }
+        }
+    }
+
     /**
      * Runs the full indexing process locally for the desired input
      *
-     * @param args args[0]: file with (W)ARC file list, args[1]: collection name, args[2]: output path, args[3]: output mode for the JSON format (FULL, COMPACT)
+     * @param args args[0]: file with (W)ARC file list, args[1]: collection name, args[2]: output path, args[3]: output mode for the JSON format (FULL, COMPACT), (optional) args[4]: number of threads (default: 1)
      */
     public static void main(String[] args) {
 
@@ -191,11 +255,34 @@ public class LocalFullImageIndexer {
 
         DupDigestMergerJob.OUTPUT_MODE outputMode = DupDigestMergerJob.OUTPUT_MODE.valueOf(outputModeString);
 
+        int threads = args.length >= 5 ? Integer.parseInt(args[4]) : 1;
+
         Gson gson = new GsonBuilder()
                 .registerTypeAdapter(MultiPageImageData.class, new MultiPageImageDataSerializer())
                 .registerTypeAdapter(ImageData.class, new ImageDataSerializer())
                 .create();
 
+        if (threads > 1) {
+            ParallelLocalFullImageIndexer parallel = new ParallelLocalFullImageIndexer(collection, threads);
+            List<String> arcURLs = new ArrayList<>();
+            try (BufferedReader br = new BufferedReader(new FileReader(hdfsArcsPath))) {
+                for (String line; (line = br.readLine()) != null; ) {
+                    if (!line.trim().isEmpty())
+                        arcURLs.add(line);
+                }
+            } catch (IOException e) {
+                logger.error("Error reading file: " + hdfsArcsPath, e);
+            }
+
+            try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)))) {
+                parallel.run(arcURLs, out, gson, outputMode);
+            } catch (IOException e) {
+                logger.error("Error writing to file: " + outputFile, e);
+            }
+            printCounters(parallel.map, parallel.reduce, parallel.reduceDigest);
+            return;
+        }
+
         LocalFullImageIndexer.Map map = new Map(collection);
 
         try (BufferedReader br = new BufferedReader(new FileReader(hdfsArcsPath))) {
@@ -236,28 +323,24 @@ public class LocalFullImageIndexer {
             for (java.util.Map.Entry<String, List<FullImageMetadata>> entry : reduceResults.entrySet()) {
 
                 FullImageMetadata result = reduceDigest.reduce(new Text(entry.getKey()), entry.getValue());
-                if (result != null && !result.getPageImageDatas().isEmpty() && !result.getImageDatas().isEmpty()) {
-                    if (outputMode == DupDigestMergerJob.OUTPUT_MODE.FULL) {
-                        for (ImageData data : result.getImageDatasValues())
-                            out.println(gson.toJson(data));
-                        for (PageImageData data : result.getPageImageDatasValues())
-                            out.println(gson.toJson(data));
-                    } else { // if (outputMode == OUTPUT_MODE.COMPACT) {
-                        if (!result.getPageImageDatas().isEmpty() && !result.getImageDatas().isEmpty()){
-                            ImageData id = result.getImageDatas().firstKey();
-                            MultiPageImageData pid = new MultiPageImageData(result);
-                            out.println(gson.toJson(id));
-                            out.println(gson.toJson(pid));
-                        }
-
-                    }
-                }
+                writeResult(out, gson, result, outputMode);
             }
         } catch (IOException e) {
             logger.error("Error writing to file: " + outputFile, e);
         }
 
 
+        printCounters(map, reduce, reduceDigest);
+    }
+
+    /**
+     * Prints the counters of all stages to the standard output
+     *
+     * @param map          map stage
+     * @param reduce       reduce stage
+     * @param reduceDigest digest reduce stage
+     */
+    private static void printCounters(Map map, Reduce reduce, ReduceDigest reduceDigest) {
         System.out.println("FullImageIndexer$IMAGE_COUNTERS");
 
         for (ImageIndexerWithDupsJob.IMAGE_COUNTERS counter : ImageIndexerWithDupsJob.IMAGE_COUNTERS.values()) {
@@ -288,6 +371,5 @@ public class LocalFullImageIndexer {
             Counter c = reduceDigest.merger.getCounter(counter);
             System.out.println("\t" + c.getName() + ": " + c.getValue());
         }
-
     }
 }
@@ -0,0 +1,260 @@
+package pt.arquivo.imagesearch.indexing;
+
+import com.google.gson.Gson;
+import org.apache.hadoop.io.Text;
+import pt.arquivo.imagesearch.indexing.data.FullImageMetadata;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationMerger;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Multi-threaded version of the LocalFullImageIndexer, producing exactly the same output.
+ * <p>
+ * (W)ARCs are parsed concurrently, each one on its own, and their records are added to the map results in list order.
+ * The SURT entries, and then the digest entries, are split by hash into partitions that are reduced on a fork-join
+ * pool. The digest entries are grouped and written (by a dedicated writer thread) in the same order as in the
+ * single threaded indexer.
+ */
+public class ParallelLocalFullImageIndexer {
+
+    /**
+     * Number of hash partitions per thread, so that uneven partitions still keep all threads busy
+     */
+    public static final int PARTITIONS_PER_THREAD = 4;
+
+    /**
+     * Number of (W)ARCs parsed ahead of the oldest one still being parsed, per thread
+     */
+    public static final int WARCS_AHEAD_PER_THREAD = 2;
+
+    /**
+     * Number of worker threads
+     */
+    private final int threads;
+
+    /**
+     * Map stage, holding the parsed entries and the map counters
+     */
+    public LocalFullImageIndexer.Map map;
+
+    /**
+     * Reduce stage counters, summed over all partitions
+     */
+    public LocalFullImageIndexer.Reduce reduce;
+
+    /**
+     * ReduceDigest stage counters, summed over all partitions
+     */
+    public LocalFullImageIndexer.ReduceDigest reduceDigest;
+
+    /**
+     * Creates the indexer
+     *
+     * @param collection collection name
+     * @param threads    number of worker threads
+     */
+    public ParallelLocalFullImageIndexer(String collection, int threads) {
+        this.threads = Math.max(1, threads);
+        this.map = new LocalFullImageIndexer.Map(collection);
+        this.reduce = new LocalFullImageIndexer.Reduce();
+        this.reduceDigest = new LocalFullImageIndexer.ReduceDigest();
+    }
+
+    /**
+     * Runs the full indexing process for a list of (W)ARCs
+     *
+     * @param arcURLs    (W)ARC urls
+     * @param out        output for the JSON lines
+     * @param gson       JSON serializer
+     * @param outputMode output mode for the JSON format (FULL, COMPACT)
+     * @throws IOException error in one of the stages
+     */
+    public void run(List<String> arcURLs, PrintWriter out, Gson gson, DupDigestMergerJob.OUTPUT_MODE outputMode) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "jsonl-writer"));
+        try {
+            mapAll(arcURLs, pool);
+            List<List<DigestRecord>> digestRecords = reduceAll(map.cleanup(), pool);
+
+            // grouped serially, so that both the digest order and the order of the records in each digest match the
+            // single threaded indexer
+            HashMap<String, List<FullImageMetadata>> reduceResults = new HashMap<>();
+            for (List<DigestRecord> records : digestRecords) {
+                for (DigestRecord record : records) {
+                    reduce.getCounter(DupDigestMergerJob.COUNTERS.RECORDS_MAP_IN).increment(1);
+                    // putIfAbsent, not computeIfAbsent: they place colliding keys differently, changing the iteration order
+                    reduceResults.putIfAbsent(record.digest, new LinkedList<>());
+                    reduceResults.get(record.digest).add(record.metadata);
+                }
+            }
+
+            reduceDigestAll(reduceResults, pool, writer, out, gson, outputMode);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            writer.shutdownNow();
+        }
+    }
+
+    /**
+     * Parses all (W)ARCs, adding their records to the map stage in list order
+     *
+     * @param arcURLs (W)ARC urls
+     * @param pool    worker pool
+     */
+    private void mapAll(List<String> arcURLs, ForkJoinPool pool) throws InterruptedException, ExecutionException {
+        int window = threads * WARCS_AHEAD_PER_THREAD;
+        ArrayDeque<Future<List<Object>>> parsing = new ArrayDeque<>();
+        for (String arcURL : arcURLs) {
+            parsing.add(pool.submit(() -> map.mapDeferred(arcURL)));
+            // bounds the number of parsed (W)ARCs waiting for an older one
+            if (parsing.size() >= window)
+                map.index(parsing.poll().get());
+        }
+        while (!parsing.isEmpty())
+            map.index(parsing.poll().get());
+    }
+
+    /**
+     * Runs the Reduce stage over all SURT entries, partitioned by SURT hash
+     *
+     * @param mapResults map stage results, by SURT
+     * @param pool       worker pool
+     * @return for each SURT entry, in iteration order, the records to send to each digest
+     */
+    private List<List<DigestRecord>> reduceAll(HashMap<String, List<Object>> mapResults, ForkJoinPool pool) throws InterruptedException, ExecutionException {
+        List<java.util.Map.Entry<String, List<Object>>> entries = new ArrayList<>(mapResults.entrySet());
+        List<List<DigestRecord>> digestRecords = new ArrayList<>(Collections.nCopies(entries.size(), Collections.emptyList()));
+
+        List<Callable<LocalFullImageIndexer.Reduce>> tasks = new ArrayList<>();
+        for (List<Integer> partition : partition(entries)) {
+            tasks.add(() -> {
+                LocalFullImageIndexer.Reduce partitionReduce = new LocalFullImageIndexer.Reduce();
+                for (int i : partition) {
+                    java.util.Map.Entry<String, List<Object>> entry = entries.get(i);
+                    FullImageMetadata result = partitionReduce.reduce(entry.getKey(), entry.getValue());
+                    if (result != null) {
+                        List<DigestRecord> records = new ArrayList<>();
+                        Set<String> digests = new HashSet<>();
+                        for (ImageData imageData : result.getImageDatasValues()) {
+                            String digest = imageData.getContentHash();
+                            if (digests.add(digest))
+                                records.add(new DigestRecord(digest, new FullImageMetadata(result, imageData)));
+                        }
+                        digestRecords.set(i, records);
+                    }
+                }
+                return partitionReduce;
+            });
+        }
+        for (Future<LocalFullImageIndexer.Reduce> done : pool.invokeAll(tasks)) {
+            ImageInformationMerger merger = done.get().merger;
+            addCounters(merger, reduce.merger, ImageIndexerWithDupsJob.REDUCE_COUNTERS.values());
+            addCounters(merger, reduce.merger, DupDigestMergerJob.COUNTERS.values());
+        }
+        return digestRecords;
+    }
+
+    /**
+     * Runs the ReduceDigest stage over all digest entries, partitioned by digest hash, while the writer thread
+     * writes the results in the digest iteration order
+     *
+     * @param reduceResults Reduce stage results, by digest
+     * @param pool          worker pool
+     * @param writer        writer thread
+     * @param out           output for the JSON lines
+     * @param gson          JSON serializer
+     * @param outputMode    output mode for the JSON format (FULL, COMPACT)
+     */
+    private void reduceDigestAll(HashMap<String, List<FullImageMetadata>> reduceResults, ForkJoinPool pool, ExecutorService writer,
+                                 PrintWriter out, Gson gson, DupDigestMergerJob.OUTPUT_MODE outputMode) throws InterruptedException, ExecutionException {
+        List<java.util.Map.Entry<String, List<FullImageMetadata>>> entries = new ArrayList<>(reduceResults.entrySet());
+        List<CompletableFuture<String>> lines = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++)
+            lines.add(new CompletableFuture<>());
+
+        Future<?> written = writer.submit(() -> {
+            for (CompletableFuture<String> line : lines)
+                out.print(line.join());
+            out.flush();
+        });
+
+        List<Callable<LocalFullImageIndexer.ReduceDigest>> tasks = new ArrayList<>();
+        for (List<Integer> partition : partition(entries)) {
+            tasks.add(() -> {
+                LocalFullImageIndexer.ReduceDigest partitionReduceDigest = new LocalFullImageIndexer.ReduceDigest();
+                try {
+                    for (int i : partition) {
+                        java.util.Map.Entry<String, List<FullImageMetadata>> entry = entries.get(i);
+                        FullImageMetadata result = partitionReduceDigest.reduce(new Text(entry.getKey()), entry.getValue());
+                        StringWriter json = new StringWriter();
+                        LocalFullImageIndexer.writeResult(new PrintWriter(json), gson, result, outputMode);
+                        lines.get(i).complete(json.toString());
+                    }
+                } catch (RuntimeException e) {
+                    // do not leave the writer waiting
+                    for (int i : partition)
+                        lines.get(i).completeExceptionally(e);
+                    throw e;
+                }
+                return partitionReduceDigest;
+            });
+        }
+        for (Future<LocalFullImageIndexer.ReduceDigest> done : pool.invokeAll(tasks)) {
+            ImageInformationMerger merger = done.get().merger;
+            addCounters(merger, reduceDigest.merger, DupDigestMergerJob.COUNTERS.values());
+            addCounters(merger, reduceDigest.merger, DupDigestMergerJob.REDUCE_COUNTERS.values());
+        }
+        written.get();
+    }
+
+    /**
+     * Splits entry positions into hash partitions, keeping their order inside each partition
+     *
+     * @param entries entries to partition
+     * @return positions of the entries in each partition
+     */
+    private List<List<Integer>> partition(List<? extends java.util.Map.Entry<String, ?>> entries) {
+        int partitionCount = threads * PARTITIONS_PER_THREAD;
+        List<List<Integer>> partitions = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++)
+            partitions.add(new ArrayList<>());
+        for (int i = 0; i < entries.size(); i++)
+            partitions.get((entries.get(i).getKey().hashCode() & Integer.MAX_VALUE) % partitionCount).add(i);
+        return partitions;
+    }
+
+    /**
+     * Adds the counters of a partition merger to the stage totals
+     */
+    private static void addCounters(ImageInformationMerger from, ImageInformationMerger to, Enum<?>[] counters) {
+        for (Enum<?> counter : counters)
+            to.getCounter(counter).increment(from.getCounter(counter).getValue());
+    }
+
+    /**
+     * A Reduce stage result for a single image digest
+     */
+    private static class DigestRecord {
+        private final String digest;
+        private final FullImageMetadata metadata;
+
+        DigestRecord(String digest, FullImageMetadata metadata) {
+            this.digest = digest;
+            this.metadata = metadata;
+        }
+    }
+}
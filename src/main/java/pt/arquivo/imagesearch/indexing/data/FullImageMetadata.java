@@ -2,11 +2,14 @@ package pt.arquivo.imagesearch.indexing.data;
 
 import org.apache.hadoop.io.Writable;
 
+import org.apache.hadoop.io.WritableUtils;
 import pt.arquivo.imagesearch.indexing.data.comparators.ImageDataComparator;
 import pt.arquivo.imagesearch.indexing.data.comparators.PageImageDataComparator;
+import pt.arquivo.imagesearch.indexing.data.hadoop.CompactEncoding;
 
 import java.io.*;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
 
 /**
@@ -21,6 +24,16 @@ public class FullImageMetadata implements Writable, Serializable {
      */
     public static final int MAXIMUM_META = 500;
 
+    /**
+     * Version of the binary format written by write, increase it whenever the format changes
+     */
+    public static final int FORMAT_VERSION = 3;
+
+    /**
+     * Approximate in-memory size of an object with a few fields, or of a map entry, in bytes
+     */
+    public static final int OBJECT_SIZE_APPROXIMATION = 64;
+
     /**
      * ImageData (image metadata) objects for this image. It is organized as a TreeMap with the same object as the key and value to simplify comparisons.
      * This guarantees that the objects are ordered and can be added and removed during the deduplication process.
@@ -122,7 +135,7 @@ public class FullImageMetadata implements Writable, Serializable {
 
         // get all objects that are a part of the new incomming object
         for (PageImageData pageImageData : metadata.pageImageDatas.values()) {
-            if (imageData.getTimestamp().contains(pageImageData.getImgTimestamp())) {
+            if (imageData.hasTimestamp(pageImageData.getImgTimestamp())) {
                 pageImageDatas.put(pageImageData, pageImageData);
             }
         }
@@ -197,12 +210,12 @@ public class FullImageMetadata implements Writable, Serializable {
 
         if (oldestSurtDate == null) {
             oldestSurt = imageData.getSurt();
-            oldestSurtDate = imageData.getTimestamp().get(0);
+            oldestSurtDate = imageData.getOldestTimestamp();
         } else {
-            int comparator = imageData.getTimestamp().get(0).compareTo(oldestSurtDate);
+            int comparator = imageData.getOldestTimestamp().compareTo(oldestSurtDate);
             if (comparator < 0 || (comparator == 0 && oldestSurt.length() < imageData.getSurt().length()) || (comparator == 0 && oldestSurt.length() == imageData.getSurt().length() && imageData.getSurt().compareTo(oldestSurt) < 0)) {
                 oldestSurt = imageData.getSurt();
-                oldestSurtDate = imageData.getTimestamp().get(0);
+                oldestSurtDate = imageData.getOldestTimestamp();
             }
         }
 
@@ -296,24 +309,28 @@ public class FullImageMetadata implements Writable, Serializable {
         if (imageDatas.isEmpty())
             return;
 
-        TreeMap<LocalDateTime, ImageData> map = new TreeMap<>();
+        // keyed by (UTC) epoch seconds, as stored by ImageData
+        TreeMap<Long, ImageData> map = new TreeMap<>();
         for (ImageData data : this.getImageDatasValues()) {
             data.assignMetadataToImage(this);
-            for (LocalDateTime timestamp : data.getTimestamp())
+            for (long timestamp : data.getTimestamps())
                 map.put(timestamp, data);
         }
 
         for (PageImageData data : this.getPageImageDatasValues()) {
             LocalDateTime timestamp = data.getPageTimestamp();
+            long epochSecond = timestamp.toEpochSecond(ZoneOffset.UTC);
 
-            LocalDateTime before = map.floorKey(timestamp);
-            LocalDateTime after = map.ceilingKey(timestamp);
+            Long beforeKey = map.floorKey(epochSecond);
+            Long afterKey = map.ceilingKey(epochSecond);
+            LocalDateTime before = beforeKey == null ? null : ImageData.toLocalDateTime(beforeKey);
+            LocalDateTime after = afterKey == null ? null : ImageData.toLocalDateTime(afterKey);
             LocalDateTime correct;
             if (before == null) correct = after;
             else if (after == null) correct = before;
             else if ((after.compareTo(timestamp)) < (timestamp.compareTo(before))) correct = after;
             else correct = before;
-            ImageData id = map.get(correct);
+            ImageData id = map.get(correct.toEpochSecond(ZoneOffset.UTC));
             data.assignImageToPage(id, correct);
             data.assignMetadataToPage(this);
         }
@@ -345,44 +362,95 @@ public class FullImageMetadata implements Writable, Serializable {
     }
 
 
+    /**
+     * Writes this object in a compact binary format: a format version followed by the fields, with variable length
+     * integers, timestamps as epoch seconds and length-prefixed UTF-8 strings
+     *
+     * @param dataOutput output to write to
+     * @throws IOException error writing to the output
+     */
     @Override
     public void write(DataOutput dataOutput) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(this);
-        byte[] data = baos.toByteArray();
-        int size = data.length;
-        dataOutput.writeInt(size);
-        dataOutput.write(data);
+        dataOutput.writeByte(FORMAT_VERSION);
+
+        WritableUtils.writeVInt(dataOutput, imageDatas.size());
+        for (ImageData imageData : imageDatas.values())
+            imageData.write(dataOutput);
+
+        WritableUtils.writeVInt(dataOutput, pageImageDatas.size());
+        for (PageImageData pageImageData : pageImageDatas.values())
+            pageImageData.write(dataOutput);
+
+        WritableUtils.writeVInt(dataOutput, matchingImages);
+        WritableUtils.writeVInt(dataOutput, matchingPages);
+        WritableUtils.writeVInt(dataOutput, imageMetadataChanges);
+        WritableUtils.writeVInt(dataOutput, pageMetadataChanges);
+        WritableUtils.writeVInt(dataOutput, uniqueDigestsOnURL);
+
+        CompactEncoding.writeString(dataOutput, oldestSurt);
+        CompactEncoding.writeTimestamp(dataOutput, oldestSurtDate);
     }
 
+    /**
+     * Reads an object written by write
+     *
+     * @param dataInput input to read from
+     * @throws IOException error reading from the input, or unknown format version
+     */
     @Override
     public void readFields(DataInput dataInput) throws IOException {
-        int size = dataInput.readInt();
-        byte[] data = new byte[size];
-        dataInput.readFully(data);
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        ObjectInputStream ois = new ObjectInputStream(bais);
-        try {
-            FullImageMetadata other = (FullImageMetadata) ois.readObject();
+        int version = dataInput.readByte();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unknown FullImageMetadata format version: " + version);
 
-            this.imageDatas = other.getImageDatas();
-            this.pageImageDatas = other.getPageImageDatas();
+        this.imageDatas = new TreeMap<>(new ImageDataComparator());
+        for (int i = WritableUtils.readVInt(dataInput); i > 0; i--) {
+            ImageData imageData = ImageData.read(dataInput);
+            this.imageDatas.put(imageData, imageData);
+        }
 
-            this.matchingImages = other.getMatchingImages();
-            this.matchingPages = other.getMatchingPages();
-            this.imageMetadataChanges = other.getImageMetadataChanges();
-            this.pageMetadataChanges = other.getPageMetadataChanges();
+        this.pageImageDatas = new TreeMap<>(new PageImageDataComparator());
+        for (int i = WritableUtils.readVInt(dataInput); i > 0; i--) {
+            PageImageData pageImageData = PageImageData.read(dataInput);
+            this.pageImageDatas.put(pageImageData, pageImageData);
+        }
 
-            this.uniqueDigestsOnURL = other.getUniqueDigestsOnURL();
+        this.matchingImages = WritableUtils.readVInt(dataInput);
+        this.matchingPages = WritableUtils.readVInt(dataInput);
+        this.imageMetadataChanges = WritableUtils.readVInt(dataInput);
+        this.pageMetadataChanges = WritableUtils.readVInt(dataInput);
+        this.uniqueDigestsOnURL = WritableUtils.readVInt(dataInput);
 
-            this.oldestSurt = other.getOldestSurt();
-            this.oldestSurtDate = other.getOldestSurtDate();
+        this.oldestSurt = CompactEncoding.readString(dataInput);
+        this.oldestSurtDate = CompactEncoding.readTimestamp(dataInput);
+    }
 
-        } catch (ClassNotFoundException e) {
-            System.err.println("Error reading FullImageMetadata from DataInput " +  e);
-        }
+    /**
+     * Approximate number of bytes retained in memory by this object, used to bound the map entry buffers
+     *
+     * @return approximate size in bytes
+     */
+    public long getApproximateSize() {
+        long size = OBJECT_SIZE_APPROXIMATION + approximateSize(oldestSurt);
+        for (ImageData imageData : imageDatas.values())
+            size += OBJECT_SIZE_APPROXIMATION + imageData.getApproximateSize();
+        for (PageImageData pageImageData : pageImageDatas.values())
+            size += OBJECT_SIZE_APPROXIMATION + pageImageData.getApproximateSize();
+        return size;
+    }
 
+    /**
+     * Approximate number of bytes retained in memory by a few strings (UTF-16 chars plus the String overhead)
+     *
+     * @param strings strings to measure, can be null
+     * @return approximate size in bytes
+     */
+    static long approximateSize(String... strings) {
+        long size = 0;
+        for (String string : strings)
+            if (string != null)
+                size += OBJECT_SIZE_APPROXIMATION + 2L * string.length();
+        return size;
     }
 
     public String getOldestSurt() {
@@ -1,13 +1,17 @@
 package pt.arquivo.imagesearch.indexing.data;
 
+import pt.arquivo.imagesearch.indexing.data.hadoop.CompactEncoding;
 import pt.arquivo.imagesearch.indexing.utils.WARCInformationParser;
 
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
-import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.time.ZoneOffset;
+import java.util.Arrays;
 
 import static pt.arquivo.imagesearch.indexing.utils.WARCInformationParser.getLocalDateTimeToTimestamp;
 
@@ -38,14 +42,16 @@ public class ImageData implements Serializable {
     private String contentHash;
 
     /**
-     * Timestamp of records where this image was found
+     * Timestamps of records where this image was found, as (UTC) epoch seconds, sorted and without duplicates.
+     * LocalDateTime and archive string views are only created when exported
      */
-    private List<LocalDateTime> timestamp;
+    private long[] timestamps;
 
     /**
-     * Timestamp of records where this image was found in archive string format
+     * Timestamp this object was created with, as found in the (W)ARC, when it is not in the PATTERN format (12 or 16
+     * digit ARC dates). The ids have it while it is the oldest timestamp, as when all the timestamps were kept as strings
      */
-    private List<String> timestampOriginalFormat;
+    private String timestampOriginalFormat;
 
     /**
      * Image url
@@ -77,6 +83,11 @@ public class ImageData implements Serializable {
      */
     private byte[] bytes;
 
+    /**
+     * Location of the image bytes in the thumbnail store, when they are not kept in this object (see ThumbnailStore)
+     */
+    private String thumbnailLocation;
+
     /**
      * Image width in pixels
      */
@@ -102,6 +113,12 @@ public class ImageData implements Serializable {
      */
     private LocalDateTime oldestSurtDate;
 
+    /**
+     * Empty object, to be filled by read
+     */
+    private ImageData() {
+    }
+
     /**
      * Base constructor
      *
@@ -126,11 +143,9 @@ public class ImageData implements Serializable {
         this.bytes = bytes;
         this.size = bytes.length;
 
-        this.timestampOriginalFormat = new LinkedList<>();
-        this.timestamp = new LinkedList<>();
-
-        this.timestampOriginalFormat.add(timestamp);
-        this.timestamp.add(WARCInformationParser.parseLocalDateTime(timestamp));
+        this.timestamps = new long[]{WARCInformationParser.parseLocalDateTime(timestamp).toEpochSecond(ZoneOffset.UTC)};
+        if (timestamp.length() != WARCInformationParser.PATTERN.length())
+            this.timestampOriginalFormat = timestamp;
         this.contentHash = "";
 
         this.warc = warc;
@@ -138,6 +153,35 @@ public class ImageData implements Serializable {
 
     }
 
+    /**
+     * Constructor for an image whose bytes were already parsed from another record, taking the values derived from
+     * the bytes from that record instead of the bytes themselves
+     *
+     * @param imageURLHash MD5 hash of the image URL
+     * @param timestamp image capture timestamp
+     * @param url image url
+     * @param surt image SURT
+     * @param mimeReported image MIME type as recorded by the (W)ARC
+     * @param mimeDetected image MIME type as detected by ImageIO
+     * @param collection collection to which this image belongs
+     * @param bytes thumbnail bytes (may be null)
+     * @param size size of the original image bytes
+     * @param width image width
+     * @param height image height
+     * @param contentHash digest of the original image bytes
+     * @param warc (W)ARC name
+     * @param warcOffset (W)ARC offset in bytes
+     */
+    public ImageData(String imageURLHash, String timestamp, String url, String surt, String mimeReported, String mimeDetected, String collection, byte[] bytes, int size,
+                     int width, int height, String contentHash, String warc, long warcOffset) {
+        this(imageURLHash, timestamp, url, surt, mimeReported, mimeDetected, collection, new byte[0], warc, warcOffset);
+        this.bytes = bytes;
+        this.size = size;
+        this.width = width;
+        this.height = height;
+        this.contentHash = contentHash;
+    }
+
     @Override
     public String toString() {
         return String.format("\"%s\": %s", mimeReported, url);
@@ -151,12 +195,55 @@ public class ImageData implements Serializable {
         this.imageURLHash = imageURLHash;
     }
 
-    public List<LocalDateTime> getTimestamp() {
-        return timestamp;
+    /**
+     * Gets the capture timestamps of this image
+     *
+     * @return sorted (UTC) epoch seconds, which must not be changed
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Gets the oldest capture timestamp of this image
+     *
+     * @return oldest capture timestamp
+     */
+    public LocalDateTime getOldestTimestamp() {
+        return toLocalDateTime(timestamps[0]);
+    }
+
+    /**
+     * Gets the newest capture timestamp of this image
+     *
+     * @return newest capture timestamp
+     */
+    public LocalDateTime getNewestTimestamp() {
+        return toLocalDateTime(timestamps[timestamps.length - 1]);
+    }
+
+    /**
+     * Checks whether this image was captured at the given timestamp
+     *
+     * @param localDT timestamp to look for
+     * @return true if it is one of the capture timestamps
+     */
+    public boolean hasTimestamp(LocalDateTime localDT) {
+        return localDT != null && localDT.getNano() == 0 && Arrays.binarySearch(timestamps, localDT.toEpochSecond(ZoneOffset.UTC)) >= 0;
+    }
+
+    /**
+     * Converts a stored timestamp into a LocalDateTime
+     *
+     * @param epochSecond (UTC) epoch seconds
+     * @return timestamp
+     */
+    public static LocalDateTime toLocalDateTime(long epochSecond) {
+        return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
     }
 
     public long getTimespan() {
-        return Duration.between(timestamp.get(0), timestamp.get(timestamp.size()-1)).getSeconds();
+        return timestamps[timestamps.length - 1] - timestamps[0];
     }
 
 
@@ -228,8 +315,16 @@ public class ImageData implements Serializable {
         this.bytes = bytes;
     }
 
+    public String getThumbnailLocation() {
+        return thumbnailLocation;
+    }
+
+    public void setThumbnailLocation(String thumbnailLocation) {
+        this.thumbnailLocation = thumbnailLocation;
+    }
+
     public String getURLWithTimestamp() {
-        return timestampOriginalFormat.get(0) + "/" + this.url;
+        return getOldestTimestampOriginalFormat() + "/" + this.url;
     }
 
     public int getSize() {
@@ -237,7 +332,7 @@ public class ImageData implements Serializable {
     }
 
     public int getMatchingImages() {
-        return this.timestamp.size();
+        return this.timestamps.length;
     }
 
     public String setContentHash(String contentHash) {
@@ -253,36 +348,80 @@ public class ImageData implements Serializable {
      * @param imageData imageData to add
      */
     public void addTimestamp(ImageData imageData) {
-        for (LocalDateTime localDT : imageData.timestamp) {
-            int compare = localDT.compareTo(timestamp.get(0));
-            if (compare < 0 || (compare == 0 && imageData.getUrl().length() < this.getUrl().length()) || (compare == 0 && imageData.getUrl().length() == this.getUrl().length() && imageData.getImageURLHash().compareTo(this.getImageURLHash()) < 0)) {
-                imageURLHash = imageData.getImageURLHash();
-                contentHash = imageData.getContentHash();
-                bytes = imageData.getBytes();
-                url = imageData.getUrl();
-                surt = imageData.getSurt();
-                mimeReported = imageData.getMimeReported();
-                mimeDetected = imageData.getMimeDetected();
-                collection = imageData.getCollection();
-                width = imageData.getWidth();
-                height = imageData.getHeight();
-                size = imageData.getSize();
-                warc = imageData.getWarc();
-                warcOffset = imageData.getWarcOffset();
-            }
-            if (!timestamp.contains(localDT)) {
-                this.timestamp.add(localDT);
-                this.timestampOriginalFormat.add(getLocalDateTimeToTimestamp(localDT));
-                Collections.sort(timestamp);
-                Collections.sort(timestampOriginalFormat);
+        // only the oldest incoming timestamp can be older than (or as old as) the oldest one of this object
+        int compare = Long.compare(imageData.timestamps[0], timestamps[0]);
+        if (compare < 0 || (compare == 0 && imageData.getUrl().length() < this.getUrl().length()) || (compare == 0 && imageData.getUrl().length() == this.getUrl().length() && imageData.getImageURLHash().compareTo(this.getImageURLHash()) < 0)) {
+            imageURLHash = imageData.getImageURLHash();
+            contentHash = imageData.getContentHash();
+            bytes = imageData.getBytes();
+            thumbnailLocation = imageData.getThumbnailLocation();
+            url = imageData.getUrl();
+            surt = imageData.getSurt();
+            mimeReported = imageData.getMimeReported();
+            mimeDetected = imageData.getMimeDetected();
+            collection = imageData.getCollection();
+            width = imageData.getWidth();
+            height = imageData.getHeight();
+            size = imageData.getSize();
+            warc = imageData.getWarc();
+            warcOffset = imageData.getWarcOffset();
+        }
+        timestamps = mergeTimestamps(timestamps, imageData.timestamps);
+    }
+
+    /**
+     * Merges two sorted timestamp arrays, dropping duplicates
+     *
+     * @param first sorted timestamps without duplicates
+     * @param second sorted timestamps without duplicates
+     * @return sorted union of both arrays (one of them if the other adds nothing)
+     */
+    private static long[] mergeTimestamps(long[] first, long[] second) {
+        if (second.length == 1) {
+            int position = Arrays.binarySearch(first, second[0]);
+            if (position >= 0)
+                return first;
+            position = -position - 1;
+            long[] merged = new long[first.length + 1];
+            System.arraycopy(first, 0, merged, 0, position);
+            merged[position] = second[0];
+            System.arraycopy(first, position, merged, position + 1, first.length - position);
+            return merged;
+        }
+        long[] merged = new long[first.length + second.length];
+        int i = 0, j = 0, k = 0;
+        while (i < first.length && j < second.length) {
+            if (first[i] < second[j]) {
+                merged[k++] = first[i++];
+            } else if (first[i] > second[j]) {
+                merged[k++] = second[j++];
+            } else {
+                merged[k++] = first[i++];
+                j++;
             }
         }
-        Collections.sort(timestamp);
-        Collections.sort(timestampOriginalFormat);
+        while (i < first.length)
+            merged[k++] = first[i++];
+        while (j < second.length)
+            merged[k++] = second[j++];
+        if (k == first.length)
+            return first;
+        return k == merged.length ? merged : Arrays.copyOf(merged, k);
     }
 
     public String getId() {
-        return timestampOriginalFormat.get(0) + "/" + imageURLHash;
+        return getOldestTimestampOriginalFormat() + "/" + imageURLHash;
+    }
+
+    /**
+     * Gets the oldest capture timestamp in archive string format, as found in the (W)ARC if this object was created with it
+     *
+     * @return oldest capture timestamp
+     */
+    private String getOldestTimestampOriginalFormat() {
+        if (timestampOriginalFormat != null && WARCInformationParser.parseLocalDateTime(timestampOriginalFormat).toEpochSecond(ZoneOffset.UTC) == timestamps[0])
+            return timestampOriginalFormat;
+        return getLocalDateTimeToTimestamp(getOldestTimestamp());
     }
 
     public String getWarc() {
@@ -319,4 +458,82 @@ public class ImageData implements Serializable {
     public String getOldestSurt() {
         return oldestSurt;
     }
+
+    /**
+     * Approximate number of bytes retained in memory by this object, used to bound the map entry buffers
+     *
+     * @return approximate size in bytes
+     */
+    public long getApproximateSize() {
+        long size = FullImageMetadata.OBJECT_SIZE_APPROXIMATION + (bytes == null ? 0 : bytes.length)
+                + 16 + 8L * timestamps.length;
+        return size + FullImageMetadata.approximateSize(warc, imageURLHash, contentHash, url, surt, mimeReported, mimeDetected, collection, oldestSurt, thumbnailLocation,
+                timestampOriginalFormat);
+    }
+
+    /**
+     * Writes this object in the compact binary format of FullImageMetadata
+     *
+     * @param out output to write to
+     * @throws IOException error writing to the output
+     */
+    public void write(DataOutput out) throws IOException {
+        CompactEncoding.writeString(out, warc);
+        WritableUtils.writeVLong(out, warcOffset);
+        CompactEncoding.writeString(out, imageURLHash);
+        CompactEncoding.writeString(out, contentHash);
+        // sorted timestamps are written as the first one followed by the (positive) differences to the previous one
+        WritableUtils.writeVInt(out, timestamps.length);
+        long previous = 0;
+        for (long epochSecond : timestamps) {
+            WritableUtils.writeVLong(out, epochSecond - previous);
+            previous = epochSecond;
+        }
+        CompactEncoding.writeString(out, timestampOriginalFormat);
+        CompactEncoding.writeString(out, url);
+        CompactEncoding.writeString(out, surt);
+        CompactEncoding.writeString(out, mimeReported);
+        CompactEncoding.writeString(out, mimeDetected);
+        CompactEncoding.writeString(out, collection);
+        CompactEncoding.writeBytes(out, bytes);
+        CompactEncoding.writeString(out, thumbnailLocation);
+        WritableUtils.writeVInt(out, width);
+        WritableUtils.writeVInt(out, height);
+        WritableUtils.writeVInt(out, size);
+        CompactEncoding.writeString(out, oldestSurt);
+        CompactEncoding.writeTimestamp(out, oldestSurtDate);
+    }
+
+    /**
+     * Reads an object written by write
+     *
+     * @param in input to read from
+     * @return the image data
+     * @throws IOException error reading from the input
+     */
+    public static ImageData read(DataInput in) throws IOException {
+        ImageData imageData = new ImageData();
+        imageData.warc = CompactEncoding.readString(in);
+        imageData.warcOffset = WritableUtils.readVLong(in);
+        imageData.imageURLHash = CompactEncoding.readString(in);
+        imageData.contentHash = CompactEncoding.readString(in);
+        imageData.timestamps = new long[WritableUtils.readVInt(in)];
+        long previous = 0;
+        for (int i = 0; i < imageData.timestamps.length; i++)
+            previous = imageData.timestamps[i] = previous + WritableUtils.readVLong(in);
+        imageData.timestampOriginalFormat = CompactEncoding.readString(in);
+        imageData.url = CompactEncoding.readString(in);
+        imageData.surt = CompactEncoding.readString(in);
+        imageData.mimeReported = CompactEncoding.readString(in);
+        imageData.mimeDetected = CompactEncoding.readString(in);
+        imageData.collection = CompactEncoding.readString(in);
+        imageData.bytes = CompactEncoding.readBytes(in);
+        imageData.thumbnailLocation = CompactEncoding.readString(in);
+        imageData.width = WritableUtils.readVInt(in);
+        imageData.height = WritableUtils.readVInt(in);
+        imageData.size = WritableUtils.readVInt(in);
+        imageData.oldestSurt = CompactEncoding.readString(in);
+        imageData.oldestSurtDate = CompactEncoding.readTimestamp(in);
+        return imageData;
+    }
 }
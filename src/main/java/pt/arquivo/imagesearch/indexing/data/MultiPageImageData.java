@@ -167,8 +167,8 @@ public class MultiPageImageData implements Comparable<LocalDateTime>, Serializab
 
         this.collection = id.getCollection();
 
-        this.imgTimestamp = id.getTimestamp().get(0);
-        this.latestImgTimespan = id.getTimestamp().get(id.getTimestamp().size()-1);
+        this.imgTimestamp = id.getOldestTimestamp();
+        this.latestImgTimespan = id.getNewestTimestamp();
         this.imageDigest = id.getContentHash();
 
         this.imgId = id.getId();
@@ -1,16 +1,19 @@
 package pt.arquivo.imagesearch.indexing.data;
 
 
-import org.apache.commons.io.FilenameUtils;
+import org.apache.hadoop.io.WritableUtils;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.HashSet;
 import java.util.Set;
 
+import pt.arquivo.imagesearch.indexing.data.hadoop.CompactEncoding;
+import pt.arquivo.imagesearch.indexing.utils.ParsedURL;
 import pt.arquivo.imagesearch.indexing.utils.WARCInformationParser;
 
 import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
@@ -212,6 +215,22 @@ public class PageImageData implements Comparable<LocalDateTime>, Serializable {
      */
     private LocalDateTime oldestSurtDate;
 
+    /**
+     * MD5 of pageURL, computed when first needed
+     */
+    private transient String pageURLHash;
+
+    /**
+     * MD5 of imgURL, computed when first needed
+     */
+    private transient String imgURLHash;
+
+    /**
+     * Empty object, to be filled by read
+     */
+    private PageImageData() {
+    }
+
     /**
      * @param type always pare for this object
      * @param imgTitle Title of the image (if exists)
@@ -233,6 +252,29 @@ public class PageImageData implements Comparable<LocalDateTime>, Serializable {
      * @param collection Collection name
      */
     public PageImageData(String type, String imgTitle, String imgAlt, String imgURLTokens, String imgCaption, String pageTitle, String pageURLTokens, String imgURL, String imageSurt, int imagesInPage, String pageTimestampString, String pageURL, String pageHost, String pageProtocol, String tagType, String warc, long warcOffset, String collection) {
+        this(type, imgTitle, imgAlt, imgURLTokens, imgCaption, pageTitle, pageURLTokens, imgURL, imageSurt, imagesInPage, pageTimestampString, pageURL, pageHost, pageProtocol, tagType, warc, warcOffset, collection, imgURL.startsWith("hash:") ? null : ParsedURL.getFilename(imgURL));
+    }
+
+    /**
+     * @param type always pare for this object
+     * @param imgTitle Title of the image (if exists)
+     * @param imgAlt Image alt text (if exists)
+     * @param imgCaption Image caption extracted from HTML
+     * @param pageTitle HTML tage title
+     * @param img Image URL, with its tokens, SURT and filename
+     * @param imagesInPage Number of images in page
+     * @param pageTimestampString Page capture timestamp in the yyyyMMddHHmmss format
+     * @param page Page URL, with its tokens, host and protocol
+     * @param tagType Whether the image was found in a <a>, <img> or CSS tag
+     * @param warc WARC filename
+     * @param warcOffset WARC offset in bytes
+     * @param collection Collection name
+     */
+    public PageImageData(String type, String imgTitle, String imgAlt, String imgCaption, String pageTitle, ParsedURL img, int imagesInPage, String pageTimestampString, ParsedURL page, String tagType, String warc, long warcOffset, String collection) {
+        this(type, imgTitle, imgAlt, img.getTokens(), imgCaption, pageTitle, page.getTokens(), img.getURL(), img.getSurt(), imagesInPage, pageTimestampString, page.getURL(), page.getHost(), page.getProtocol(), tagType, warc, warcOffset, collection, img.getFilename());
+    }
+
+    private PageImageData(String type, String imgTitle, String imgAlt, String imgURLTokens, String imgCaption, String pageTitle, String pageURLTokens, String imgURL, String imageSurt, int imagesInPage, String pageTimestampString, String pageURL, String pageHost, String pageProtocol, String tagType, String warc, long warcOffset, String collection, String imgFilename) {
 
         this.type = type;
 
@@ -248,15 +290,7 @@ public class PageImageData implements Comparable<LocalDateTime>, Serializable {
 
         if (!inline) {
             this.imgURLTokens = imgURLTokens;
-            URL url = null;
-            try {
-                url = new URL(imgURL);
-                String filename = FilenameUtils.getBaseName(url.getPath());
-                if (!filename.isEmpty())
-                    this.imgFilename = ImageSearchIndexingUtil.cleanPunctuation(filename);
-            } catch (MalformedURLException ignored) {
-
-            }
+            this.imgFilename = imgFilename;
         }
 
         this.imgCaption = imgCaption;
@@ -412,6 +446,7 @@ public class PageImageData implements Comparable<LocalDateTime>, Serializable {
             pageTimestamp = pageImageData.getPageTimestamp();
             pageTimestampString = WARCInformationParser.getLocalDateTimeToTimestamp(pageTimestamp);
             pageURL = pageImageData.getPageURL();
+            pageURLHash = pageImageData.pageURLHash;
             pageURLTokens = pageImageData.getPageURLTokens();
             pageTitle = pageImageData.getPageTitle();
             pageHost = pageImageData.getPageHost();
@@ -429,11 +464,13 @@ public class PageImageData implements Comparable<LocalDateTime>, Serializable {
     }
 
     public String getId() {
-        return pageTimestampString + "/" + ImageSearchIndexingUtil.md5ofString(pageURL) + "/" + ImageSearchIndexingUtil.md5ofString(getImageMetadata()) + "/" + imageDigest;
+        return pageTimestampString + "/" + getPageURLHash() + "/" + ImageSearchIndexingUtil.md5ofString(getImageMetadata()) + "/" + imageDigest;
     }
 
     public String getPageURLHash() {
-        return ImageSearchIndexingUtil.md5ofString(pageURL);
+        if (pageURLHash == null)
+            pageURLHash = ImageSearchIndexingUtil.md5ofString(pageURL);
+        return pageURLHash;
     }
 
     public String getImgTimestampString() {
@@ -549,7 +586,9 @@ public class PageImageData implements Comparable<LocalDateTime>, Serializable {
     }
 
     public String getImgURLHash() {
-        return ImageSearchIndexingUtil.md5ofString(imgURL);
+        if (imgURLHash == null)
+            imgURLHash = ImageSearchIndexingUtil.md5ofString(imgURL);
+        return imgURLHash;
     }
 
     public String getCollection() {
@@ -591,5 +630,119 @@ public class PageImageData implements Comparable<LocalDateTime>, Serializable {
     public void setImageTimespan(long imageTimespan) {
         this.imgTimespan = imageTimespan;
     }
-}
 
+    /**
+     * Approximate number of bytes retained in memory by this object, used to bound the map entry buffers
+     *
+     * @return approximate size in bytes
+     */
+    public long getApproximateSize() {
+        long size = FullImageMetadata.OBJECT_SIZE_APPROXIMATION * (2L + tagFoundIn.size());
+        for (String tag : tagFoundIn)
+            size += FullImageMetadata.approximateSize(tag);
+        return size + FullImageMetadata.approximateSize(collection, warc, type, imgTitle, imgAlt, imgFilename, imgCaption,
+                pageTitle, pageURLTokens, imgId, imgURL, imgURLTokens, imgSurt, imgMimeType, imgWarc, pageTimestampString,
+                pageURL, pageHost, pageProtocol, imageDigest, oldestSurt);
+    }
+
+    /**
+     * Writes this object in the compact binary format of FullImageMetadata
+     *
+     * @param out output to write to
+     * @throws IOException error writing to the output
+     */
+    public void write(DataOutput out) throws IOException {
+        CompactEncoding.writeString(out, collection);
+        CompactEncoding.writeString(out, warc);
+        WritableUtils.writeVLong(out, warcOffset);
+        CompactEncoding.writeString(out, type);
+        CompactEncoding.writeString(out, imgTitle);
+        CompactEncoding.writeString(out, imgAlt);
+        CompactEncoding.writeString(out, imgFilename);
+        CompactEncoding.writeString(out, imgCaption);
+        CompactEncoding.writeTimestamp(out, imgTimestamp);
+        WritableUtils.writeVLong(out, imgTimespan);
+        CompactEncoding.writeString(out, pageTitle);
+        CompactEncoding.writeString(out, pageURLTokens);
+        CompactEncoding.writeString(out, imgId);
+        CompactEncoding.writeString(out, imgURL);
+        CompactEncoding.writeString(out, imgURLTokens);
+        CompactEncoding.writeString(out, imgSurt);
+        WritableUtils.writeVInt(out, imgHeight);
+        WritableUtils.writeVInt(out, imgWidth);
+        CompactEncoding.writeString(out, imgMimeType);
+        CompactEncoding.writeString(out, imgWarc);
+        WritableUtils.writeVLong(out, imgWarcOffset);
+        CompactEncoding.writeTimestamp(out, pageTimestamp);
+        CompactEncoding.writeTimestamp(out, pageTimestampNewest);
+        CompactEncoding.writeString(out, pageTimestampString);
+        CompactEncoding.writeString(out, pageURL);
+        CompactEncoding.writeString(out, pageHost);
+        CompactEncoding.writeString(out, pageProtocol);
+        WritableUtils.writeVInt(out, matchingImages);
+        WritableUtils.writeVInt(out, matchingPages);
+        WritableUtils.writeVInt(out, imageMetadataChanges);
+        WritableUtils.writeVInt(out, pageMetadataChanges);
+        WritableUtils.writeVInt(out, imagesInPage);
+        WritableUtils.writeVInt(out, uniqueDigestsOnURL);
+        out.writeBoolean(inline);
+        WritableUtils.writeVInt(out, tagFoundIn.size());
+        for (String tag : tagFoundIn)
+            CompactEncoding.writeString(out, tag);
+        CompactEncoding.writeString(out, imageDigest);
+        CompactEncoding.writeString(out, oldestSurt);
+        CompactEncoding.writeTimestamp(out, oldestSurtDate);
+    }
+
+    /**
+     * Reads an object written by write
+     *
+     * @param in input to read from
+     * @return the page image data
+     * @throws IOException error reading from the input
+     */
+    public static PageImageData read(DataInput in) throws IOException {
+        PageImageData pageImageData = new PageImageData();
+        pageImageData.collection = CompactEncoding.readString(in);
+        pageImageData.warc = CompactEncoding.readString(in);
+        pageImageData.warcOffset = WritableUtils.readVLong(in);
+        pageImageData.type = CompactEncoding.readString(in);
+        pageImageData.imgTitle = CompactEncoding.readString(in);
+        pageImageData.imgAlt = CompactEncoding.readString(in);
+        pageImageData.imgFilename = CompactEncoding.readString(in);
+        pageImageData.imgCaption = CompactEncoding.readString(in);
+        pageImageData.imgTimestamp = CompactEncoding.readTimestamp(in);
+        pageImageData.imgTimespan = WritableUtils.readVLong(in);
+        pageImageData.pageTitle = CompactEncoding.readString(in);
+        pageImageData.pageURLTokens = CompactEncoding.readString(in);
+        pageImageData.imgId = CompactEncoding.readString(in);
+        pageImageData.imgURL = CompactEncoding.readString(in);
+        pageImageData.imgURLTokens = CompactEncoding.readString(in);
+        pageImageData.imgSurt = CompactEncoding.readString(in);
+        pageImageData.imgHeight = WritableUtils.readVInt(in);
+        pageImageData.imgWidth = WritableUtils.readVInt(in);
+        pageImageData.imgMimeType = CompactEncoding.readString(in);
+        pageImageData.imgWarc = CompactEncoding.readString(in);
+        pageImageData.imgWarcOffset = WritableUtils.readVLong(in);
+        pageImageData.pageTimestamp = CompactEncoding.readTimestamp(in);
+        pageImageData.pageTimestampNewest = CompactEncoding.readTimestamp(in);
+        pageImageData.pageTimestampString = CompactEncoding.readString(in);
+        pageImageData.pageURL = CompactEncoding.readString(in);
+        pageImageData.pageHost = CompactEncoding.readString(in);
+        pageImageData.pageProtocol = CompactEncoding.readString(in);
+        pageImageData.matchingImages = WritableUtils.readVInt(in);
+        pageImageData.matchingPages = WritableUtils.readVInt(in);
+        pageImageData.imageMetadataChanges = WritableUtils.readVInt(in);
+        pageImageData.pageMetadataChanges = WritableUtils.readVInt(in);
+        pageImageData.imagesInPage = WritableUtils.readVInt(in);
+        pageImageData.uniqueDigestsOnURL = WritableUtils.readVInt(in);
+        pageImageData.inline = in.readBoolean();
+        pageImageData.tagFoundIn = new HashSet<>();
+        for (int i = WritableUtils.readVInt(in); i > 0; i--)
+            pageImageData.tagFoundIn.add(CompactEncoding.readString(in));
+        pageImageData.imageDigest = CompactEncoding.readString(in);
+        pageImageData.oldestSurt = CompactEncoding.readString(in);
+        pageImageData.oldestSurtDate = CompactEncoding.readTimestamp(in);
+        return pageImageData;
+    }
+}
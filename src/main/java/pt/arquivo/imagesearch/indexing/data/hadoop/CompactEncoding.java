@@ -0,0 +1,108 @@
+package pt.arquivo.imagesearch.indexing.data.hadoop;
+
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Field encoders for the compact binary format of the metadata objects.
+ * <p>
+ * Numbers are written as Hadoop variable length integers, strings as length-prefixed UTF-8 and timestamps as
+ * (UTC) epoch seconds. Strings, byte arrays and timestamps can be null.
+ */
+public final class CompactEncoding {
+
+    private CompactEncoding() {
+    }
+
+    /**
+     * Writes a nullable string as its UTF-8 length plus one (0 for null), followed by the UTF-8 bytes
+     *
+     * @param out    output to write to
+     * @param string string to write
+     * @throws IOException error writing to the output
+     */
+    public static void writeString(DataOutput out, String string) throws IOException {
+        writeBytes(out, string == null ? null : string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a string written by writeString
+     *
+     * @param in input to read from
+     * @return the string, or null
+     * @throws IOException error reading from the input
+     */
+    public static String readString(DataInput in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a nullable byte array as its length plus one (0 for null), followed by the bytes
+     *
+     * @param out   output to write to
+     * @param bytes bytes to write
+     * @throws IOException error writing to the output
+     */
+    public static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            WritableUtils.writeVInt(out, 0);
+        } else {
+            WritableUtils.writeVInt(out, bytes.length + 1);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a byte array written by writeBytes
+     *
+     * @param in input to read from
+     * @return the bytes, or null
+     * @throws IOException error reading from the input
+     */
+    public static byte[] readBytes(DataInput in) throws IOException {
+        int length = WritableUtils.readVInt(in) - 1;
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes a nullable timestamp as its nanoseconds (-1 for null) followed by its epoch seconds.
+     * Archive timestamps have no nanoseconds, so they take a single byte plus the seconds
+     *
+     * @param out       output to write to
+     * @param timestamp timestamp to write
+     * @throws IOException error writing to the output
+     */
+    public static void writeTimestamp(DataOutput out, LocalDateTime timestamp) throws IOException {
+        if (timestamp == null) {
+            WritableUtils.writeVInt(out, -1);
+        } else {
+            WritableUtils.writeVInt(out, timestamp.getNano());
+            WritableUtils.writeVLong(out, timestamp.toEpochSecond(ZoneOffset.UTC));
+        }
+    }
+
+    /**
+     * Reads a timestamp written by writeTimestamp
+     *
+     * @param in input to read from
+     * @return the timestamp, or null
+     * @throws IOException error reading from the input
+     */
+    public static LocalDateTime readTimestamp(DataInput in) throws IOException {
+        int nano = WritableUtils.readVInt(in);
+        if (nano < 0)
+            return null;
+        return LocalDateTime.ofEpochSecond(WritableUtils.readVLong(in), nano, ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,15 @@
+package pt.arquivo.imagesearch.indexing.data.hadoop;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Partitions records by image digest, using the first bytes of the digest (see DigestWritable.hashCode)
+ */
+public class DigestPartitioner extends Partitioner<DigestWritable, Writable> {
+
+    @Override
+    public int getPartition(DigestWritable key, Writable value, int numPartitions) {
+        return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+    }
+}
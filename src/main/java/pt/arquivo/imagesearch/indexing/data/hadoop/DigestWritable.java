@@ -0,0 +1,154 @@
+package pt.arquivo.imagesearch.indexing.data.hadoop;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Image digest (SHA-256) key for the records grouped by digest, kept as its 32 raw bytes instead of 64 hex characters.
+ * <p>
+ * Serialized keys are compared byte by byte, without being deserialized (see Comparator), and are partitioned by
+ * their first bytes (see DigestPartitioner). The hex form is only rebuilt when needed (toString).
+ */
+public class DigestWritable implements WritableComparable<DigestWritable> {
+
+    /**
+     * Digest length in bytes
+     */
+    public static final int LENGTH = 32;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    static {
+        WritableComparator.define(DigestWritable.class, new Comparator());
+    }
+
+    private final byte[] digest = new byte[LENGTH];
+
+    /**
+     * Empty digest, to be filled by readFields
+     */
+    public DigestWritable() {
+    }
+
+    /**
+     * Creates a key from a hex digest
+     *
+     * @param hexDigest digest as 64 hex characters
+     */
+    public DigestWritable(String hexDigest) {
+        set(hexDigest);
+    }
+
+    /**
+     * Sets the digest from its hex form
+     *
+     * @param hexDigest digest as 64 hex characters
+     * @throws IllegalArgumentException the string is not a hex digest of the expected length
+     */
+    public void set(String hexDigest) {
+        if (hexDigest == null || hexDigest.length() != LENGTH * 2)
+            throw new IllegalArgumentException("Invalid digest: " + hexDigest);
+        for (int i = 0; i < LENGTH; i++) {
+            int high = hexDigit(hexDigest.charAt(2 * i));
+            int low = hexDigit(hexDigest.charAt(2 * i + 1));
+            if (high < 0 || low < 0)
+                throw new IllegalArgumentException("Invalid digest: " + hexDigest);
+            digest[i] = (byte) ((high << 4) | low);
+        }
+    }
+
+    /**
+     * Value of an ASCII hex digit (Character.digit also accepts other Unicode digits, such as fullwidth ones)
+     *
+     * @param c character
+     * @return digit value, or -1 if the character is not a hex digit
+     */
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Digest bytes, not to be modified
+     *
+     * @return digest bytes
+     */
+    public byte[] getBytes() {
+        return digest;
+    }
+
+    /**
+     * Converts bytes to lower case hex, the format of the image digests in the metadata and JSON documents
+     *
+     * @param bytes bytes to convert
+     * @return hex string
+     */
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.write(digest);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        in.readFully(digest);
+    }
+
+    @Override
+    public int compareTo(DigestWritable other) {
+        return WritableComparator.compareBytes(digest, 0, LENGTH, other.digest, 0, LENGTH);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof DigestWritable && Arrays.equals(digest, ((DigestWritable) other).digest);
+    }
+
+    /**
+     * Digests are uniformly distributed, so their first bytes are already a good hash
+     *
+     * @return first four bytes of the digest
+     */
+    @Override
+    public int hashCode() {
+        return WritableComparator.readInt(digest, 0);
+    }
+
+    @Override
+    public String toString() {
+        return toHex(digest);
+    }
+
+    /**
+     * Compares serialized digests as unsigned bytes, matching compareTo
+     */
+    public static class Comparator extends WritableComparator {
+
+        public Comparator() {
+            super(DigestWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareBytes(b1, s1, LENGTH, b2, s2, LENGTH);
+        }
+    }
+}
@@ -5,9 +5,9 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 import pt.arquivo.imagesearch.indexing.data.ImageData;
-import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
 
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 
@@ -36,7 +36,10 @@ public class ImageDataSerializer implements JsonSerializer<ImageData> {
         //obj.addProperty("oldestSurtDate", src.getOldestSurtDate().toString());
 
         obj.addProperty("imgSrcURLDigest", src.getImageURLHash());
-        List<String> tss = ImageSearchIndexingUtil.getTimestampStandardFormat(src.getTimestamp());
+        // timestamps are stored as epoch seconds, only turned into LocalDateTime strings here
+        List<String> tss = new ArrayList<>(src.getTimestamps().length);
+        for (long timestamp : src.getTimestamps())
+            tss.add(ImageData.toLocalDateTime(timestamp).toString());
         obj.add("imgTstamps", context.serialize(tss));
         obj.addProperty("imgTimespan", src.getTimespan());
         obj.addProperty("imgSrc", src.getUrl());
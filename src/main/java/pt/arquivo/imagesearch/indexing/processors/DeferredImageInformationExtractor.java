@@ -0,0 +1,68 @@
+package pt.arquivo.imagesearch.indexing.processors;
+
+import org.apache.hadoop.mapreduce.Counter;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+import pt.arquivo.imagesearch.indexing.data.PageImageData;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extractor that parses records without changing any entries.
+ * The produced ImageData and PageImageData objects are kept, in the order they were produced, so that they can
+ * later be added to the parent extractor with indexAll (e.g. after other records parsed at the same time).
+ * Counters, the page cache and the image memo are shared with the parent extractor.
+ */
+public class DeferredImageInformationExtractor extends ImageInformationExtractor {
+
+    /**
+     * Extractor that owns the counters and that will index the results
+     */
+    private final ImageInformationExtractor parent;
+
+    /**
+     * Records produced since the last call to takeResults
+     */
+    private List<Object> results = new ArrayList<>();
+
+    /**
+     * Creates a deferred extractor for the given parent
+     *
+     * @param parent extractor that owns the counters and that will index the results
+     */
+    public DeferredImageInformationExtractor(ImageInformationExtractor parent) {
+        super(parent.collection);
+        this.parent = parent;
+        this.lazyThumbnails = parent.lazyThumbnails;
+        this.streamingBytes = parent.streamingBytes;
+        this.streamingElements = parent.streamingElements;
+        this.pageCache = parent.pageCache;
+        this.imageMemo = parent.imageMemo;
+    }
+
+    /**
+     * Returns the records produced so far and starts a new list
+     *
+     * @return ImageData and PageImageData objects, in the order they were produced
+     */
+    public List<Object> takeResults() {
+        List<Object> taken = results;
+        results = new ArrayList<>();
+        return taken;
+    }
+
+    @Override
+    protected Counter findCounter(Enum<?> counterName) {
+        return parent.getCounter(counterName);
+    }
+
+    @Override
+    protected void indexImageData(ImageData imageData) {
+        results.add(imageData);
+    }
+
+    @Override
+    protected void indexPageImageData(PageImageData pageImageData) {
+        results.add(pageImageData);
+    }
+}
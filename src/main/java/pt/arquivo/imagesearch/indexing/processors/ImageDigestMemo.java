@@ -0,0 +1,161 @@
+package pt.arquivo.imagesearch.indexing.processors;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of the image records already parsed, by payload, so that the records of the same image bytes (under other
+ * urls or capture times) are not sniffed, decoded, hashed and thumbnailed again (see ImageInformationExtractor.setImageMemoSize).
+ * <p>
+ * The least recently used images are evicted when the approximate size of the memo goes over its budget.
+ * The memo is shared by the worker extractors of a map, so its methods are synchronized.
+ */
+class ImageDigestMemo {
+
+    /**
+     * Approximate fixed size, in bytes, of a remembered image (key, map entry and values)
+     */
+    static final int ENTRY_SIZE_APPROXIMATION = 384;
+
+    /**
+     * Maximum approximate size of the remembered images, in bytes
+     */
+    private final long budget;
+
+    /**
+     * Approximate size of the remembered images, in bytes
+     */
+    private long size = 0;
+
+    /**
+     * Remembered images, from the least to the most recently used
+     */
+    private final LinkedHashMap<String, ParsedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param budget maximum approximate size of the remembered images, in bytes
+     */
+    ImageDigestMemo(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Key of an image record
+     *
+     * @param payloadDigest WARC-Payload-Digest of the record, or null to hash the image bytes
+     * @param contentBytes image bytes (only used without a payload digest)
+     * @return memo key
+     */
+    static String getKey(String payloadDigest, byte[] contentBytes) {
+        return payloadDigest != null && !payloadDigest.isEmpty() ? payloadDigest : "md5:" + DigestUtils.md5Hex(contentBytes);
+    }
+
+    /**
+     * Gets a remembered image
+     *
+     * @param key memo key (see getKey)
+     * @return parse results, or null if the image is not remembered
+     */
+    synchronized ParsedImage get(String key) {
+        return images.get(key);
+    }
+
+    /**
+     * Remembers an image, evicting the least recently used images if the memo goes over its budget
+     *
+     * @param key memo key (see getKey)
+     * @param image parse results
+     */
+    synchronized void put(String key, ParsedImage image) {
+        long imageSize = image.getApproximateSize() + 2L * key.length();
+        if (imageSize > budget)
+            return;
+        ParsedImage previous = images.put(key, image);
+        size += imageSize;
+        if (previous != null)
+            size -= previous.getApproximateSize() + 2L * key.length();
+        Iterator<Map.Entry<String, ParsedImage>> eldest = images.entrySet().iterator();
+        while (size > budget && eldest.hasNext()) {
+            Map.Entry<String, ParsedImage> entry = eldest.next();
+            eldest.remove();
+            size -= entry.getValue().getApproximateSize() + 2L * entry.getKey().length();
+        }
+    }
+
+    /**
+     * Values of an ImageData that only depend on the image bytes. They are copied when the image is parsed, as the
+     * indexed ImageData can later be changed by the merge of other captures
+     */
+    static class ParsedImage {
+
+        /**
+         * MIME type detected from the bytes ("" if it could not be detected)
+         */
+        final String mimeDetected;
+
+        /**
+         * Whether the MIME type detection failed (counted in IMAGES_IN_WARC_MIME_INVALID)
+         */
+        final boolean mimeInvalid;
+
+        /**
+         * Whether ImageParse.getPropImage failed (counted in IMAGES_IN_WARC_FAILED)
+         */
+        final boolean failed;
+
+        final int width;
+
+        final int height;
+
+        final String contentHash;
+
+        /**
+         * Thumbnail (or image) bytes, shared by the ImageData objects of all the records of the image
+         */
+        final byte[] bytes;
+
+        /**
+         * Size of the original image bytes
+         */
+        final int size;
+
+        /**
+         * (W)ARC of the parsed record, used by the revisits of the image, which have no bytes of their own
+         */
+        final String warcName;
+
+        /**
+         * Offset of the parsed record in its (W)ARC
+         */
+        final long warcOffset;
+
+        /**
+         * @param mimeDetected detected MIME type
+         * @param mimeInvalid whether the MIME type detection failed
+         * @param imageData result of ImageParse.getPropImage, or null if it failed
+         * @param size size of the original image bytes
+         * @param warcName (W)ARC of the parsed record
+         * @param warcOffset offset of the parsed record in its (W)ARC
+         */
+        ParsedImage(String mimeDetected, boolean mimeInvalid, ImageData imageData, int size, String warcName, long warcOffset) {
+            this.mimeDetected = mimeDetected;
+            this.mimeInvalid = mimeInvalid;
+            this.failed = imageData == null;
+            this.width = imageData == null ? 0 : imageData.getWidth();
+            this.height = imageData == null ? 0 : imageData.getHeight();
+            this.contentHash = imageData == null ? null : imageData.getContentHash();
+            this.bytes = imageData == null ? null : imageData.getBytes();
+            this.size = size;
+            this.warcName = warcName;
+            this.warcOffset = warcOffset;
+        }
+
+        long getApproximateSize() {
+            return ENTRY_SIZE_APPROXIMATION + (bytes == null ? 0 : bytes.length) + (warcName == null ? 0 : 2L * warcName.length());
+        }
+    }
+}
@@ -5,9 +5,16 @@ import org.archive.format.warc.WARCConstants;
 import org.archive.io.ArchiveRecord;
 import org.archive.io.warc.WARCRecord;
 import pt.arquivo.imagesearch.indexing.ImageIndexerWithDupsJob;
+import pt.arquivo.imagesearch.indexing.utils.CharsetResolver;
+import pt.arquivo.imagesearch.indexing.utils.ElementTextIndex;
+import pt.arquivo.imagesearch.indexing.utils.HtmlImagePrefilter;
+import pt.arquivo.imagesearch.indexing.utils.HtmlStreamTokenizer;
 import pt.arquivo.imagesearch.indexing.utils.ImageParse;
+import pt.arquivo.imagesearch.indexing.utils.ParsedURL;
 import pt.arquivo.imagesearch.indexing.data.*;
-import org.apache.commons.io.FilenameUtils;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.counters.GenericCounter;
@@ -16,10 +23,14 @@ import org.archive.io.arc.ARCRecord;
 import org.jsoup.Jsoup;
 import org.jsoup.helper.StringUtil;
 import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Attributes;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
 import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+import pt.arquivo.imagesearch.indexing.utils.ThumbnailStore;
 import pt.arquivo.imagesearch.indexing.utils.WARCInformationParser;
 import pt.arquivo.imagesearch.indexing.utils.WARCRecordResponseEncapsulated;
 
@@ -27,8 +38,8 @@ import javax.imageio.ImageIO;
 import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLDecoder;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,6 +53,11 @@ public class ImageInformationExtractor {
      */
     private static final Set<String> IMAGE_FILE_EXTENSIONS = new HashSet<>(Arrays.asList("jpg", "jpeg", "png", "tif", "tiff", "gif", "svg", "webp", "bmp", "ico"));
 
+    /**
+     * Finds the HTML records that cannot have image references, before they are decoded and parsed
+     */
+    private static final HtmlImagePrefilter HTML_IMAGE_PREFILTER = new HtmlImagePrefilter(IMAGE_FILE_EXTENSIONS);
+
 
     /**
      * Image atrributes to be included when parsing from <img> tags
@@ -63,6 +79,16 @@ public class ImageInformationExtractor {
      */
     public static final int MAX_IMAGE_FIELD_SIZE = 10000;
 
+    /**
+     * Maximum number of urls whose ParsedURL is kept, so that urls repeated across pages are only analysed once
+     */
+    public static final int MAX_PARSED_URLS = 4096;
+
+    /**
+     * Maximum number of resolved links kept for a page
+     */
+    public static final int MAX_RESOLVED_URLS = 64 * 1024;
+
     public static final String DATA_IMAGE_URL_PREFIX = "data:image";
 
     /**
@@ -76,6 +102,12 @@ public class ImageInformationExtractor {
      */
     public static final int EXTRACT_CAPTION_TIMEOUT_SECS = 60 * 2;
 
+    /**
+     * When the entry budget is exceeded, entries are written out until the buffer is down to this fraction of the budget,
+     * so that a flush is not triggered by every new record
+     */
+    public static final double ENTRY_FLUSH_TARGET = 0.75;
+
 
     private Logger logger = Logger.getLogger(ImageInformationExtractor.class);
 
@@ -92,7 +124,7 @@ public class ImageInformationExtractor {
     /**
      * Hadoop context
      */
-    private Mapper.Context context;
+    private Mapper<LongWritable, ?, Text, Writable>.Context context;
 
     /**
      * Stores the counters. This enables using this code both inside and outside Hadoop
@@ -100,10 +132,100 @@ public class ImageInformationExtractor {
     private HashMap<Enum<?>, Counter> localCounters;
 
     /**
-     * Used to store parent captions when transversing up the DOM tree for caption extraction
+     * Text of the elements of the page being parsed, used when transversing up the DOM tree for caption extraction
+     */
+    private ElementTextIndex captionIndex;
+
+    /**
+     * Captions already extracted from the page being parsed, by element
+     */
+    private IdentityHashMap<Element, String> captionCache;
+
+    /**
+     * Resolves the charset of the pages, keeping the last charset declared by each host
+     */
+    private final CharsetResolver charsetResolver = new CharsetResolver();
+
+    /**
+     * Base url the links of the page being parsed are resolved against
+     */
+    private String resolutionBaseURL;
+
+    /**
+     * Parsed resolutionBaseURL, or null if it is not a valid url
      */
-    private HashMap<String, String> captionCache;
+    private URL resolutionBase;
 
+    /**
+     * Whether resolutionBaseURL is a link to an image
+     */
+    private boolean resolutionBaseIsImage;
+
+    /**
+     * Links of the page being parsed, resolved against resolutionBaseURL, by their value in the page
+     */
+    private HashMap<String, String> resolvedURLs;
+
+    /**
+     * SURT, tokens, host and hashes of the most recently used page and image urls, in access order
+     */
+    private final Map<String, ParsedURL> parsedURLs = new LinkedHashMap<String, ParsedURL>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ParsedURL> eldest) {
+            return size() > MAX_PARSED_URLS;
+        }
+    };
+
+    /**
+     * Maximum approximate in-memory size of the entries, in bytes, before the coldest ones are written to the Hadoop
+     * context (0 keeps all entries until the end of the map)
+     */
+    protected long entryBudget = 0;
+
+    /**
+     * Approximate in-memory size of the entries, in bytes (only tracked with an entry budget)
+     */
+    protected final AtomicLong entryBytes = new AtomicLong();
+
+    /**
+     * Largest entry size seen so far, in bytes
+     */
+    private long peakEntryBytes = 0;
+
+    /**
+     * Store where the image bytes are written instead of the Hadoop context (null keeps them in the ImageData objects)
+     */
+    private ThumbnailStore thumbnailStore;
+
+    /**
+     * Whether thumbnails of images from image records are left to be created from the (W)ARC by DupDigestMergerJob
+     */
+    protected boolean lazyThumbnails = false;
+
+    /**
+     * Pages with more bytes than this are parsed with parseHTMLPageStreaming (0 to disable)
+     */
+    protected long streamingBytes = 0;
+
+    /**
+     * Pages with at least this number of tags are parsed with parseHTMLPageStreaming (0 to disable)
+     */
+    protected int streamingElements = 0;
+
+    /**
+     * Image references of the pages already parsed, by payload, replayed for identical captures (null to disable)
+     */
+    protected PageExtractionCache pageCache;
+
+    /**
+     * Results of the image records already parsed, by payload, reused for records of the same bytes (null to disable)
+     */
+    protected ImageDigestMemo imageMemo;
+
+    /**
+     * Page being parsed for the page cache, whose references and counters are being recorded (null otherwise)
+     */
+    private PageExtractionCache.PageExtraction recording;
 
     /**
      * Constructor used for Hadoop
@@ -111,7 +233,7 @@ public class ImageInformationExtractor {
      * @param collection collection name
      * @param context Hadoop context
      */
-    public ImageInformationExtractor(String collection, Mapper.Context context) {
+    public ImageInformationExtractor(String collection, Mapper<LongWritable, ?, Text, Writable>.Context context) {
         init(collection);
         this.context = context;
     }
@@ -134,23 +256,118 @@ public class ImageInformationExtractor {
     private void init(String collection) {
         this.collection = collection;
         entries = new HashMap<>();
-        captionCache = new HashMap<>();
         ImageIO.setUseCache(false);
     }
 
     /**
-     * Gets the desired counters from either Hadoop or local Counter cache
+     * Limits the memory taken by the entries. When their approximate size goes above the budget, the least recently
+     * updated entries are written to the Hadoop context, before the end of the map, and merged with the rest of their
+     * SURT by the reducer. Must be called before any record is parsed, and only with a Hadoop context
+     *
+     * @param entryBudget maximum approximate size of the entries in bytes (0 for no limit)
+     */
+    public void setEntryBudget(long entryBudget) {
+        this.entryBudget = entryBudget;
+        if (entryBudget > 0)
+            entries = createLruEntries(entries);
+    }
+
+    /**
+     * Copies entries into a map iterated from the least to the most recently updated entry
+     *
+     * @param entries entries to copy
+     * @return access-ordered entries map
+     */
+    protected static HashMap<String, FullImageMetadata> createLruEntries(Map<String, FullImageMetadata> entries) {
+        LinkedHashMap<String, FullImageMetadata> lruEntries = new LinkedHashMap<>(16, 0.75f, true);
+        lruEntries.putAll(entries);
+        return lruEntries;
+    }
+
+    /**
+     * Writes the image bytes to a thumbnail store, once per digest, instead of sending them with the entries to the
+     * Hadoop context. The written ImageData objects only keep the location of their bytes in the store
+     *
+     * @param thumbnailStore store open for writing, closed by writeEntries
+     */
+    public void setThumbnailStore(ThumbnailStore thumbnailStore) {
+        this.thumbnailStore = thumbnailStore;
+    }
+
+    /**
+     * Skips the thumbnails of the images read from image records: only their dimensions and digest are computed, and
+     * DupDigestMergerJob creates the thumbnails of the exported images from their (W)ARC records.
+     * Inline images are not in a record of their own, so their thumbnails are still created here
+     *
+     * @param lazyThumbnails whether to skip the thumbnails
+     */
+    public void setLazyThumbnails(boolean lazyThumbnails) {
+        this.lazyThumbnails = lazyThumbnails;
+    }
+
+    /**
+     * Parses the pages over a size or a number of tags with parseHTMLPageStreaming instead of a DOM, so that their
+     * memory is bounded. The number of tags is only counted for pages of at least 4 bytes per tag
+     *
+     * @param streamingBytes pages with more bytes are streamed (0 to disable)
+     * @param streamingElements pages with at least this number of tags are streamed (0 to disable)
+     */
+    public void setStreamingThresholds(long streamingBytes, int streamingElements) {
+        this.streamingBytes = streamingBytes;
+        this.streamingElements = streamingElements;
+    }
+
+    /**
+     * Caches the image references and counters of the parsed pages, by payload (WARC-Payload-Digest, or a hash of the
+     * page bytes for records without one), so that the captures of the same url with the same payload and Content-Type
+     * are replayed with their own timestamp and (W)ARC offset instead of being decoded and parsed again
+     *
+     * @param pageCacheBytes maximum approximate size of the cached references in bytes (0 to disable)
+     */
+    public void setPageCacheSize(long pageCacheBytes) {
+        this.pageCache = pageCacheBytes > 0 ? new PageExtractionCache(pageCacheBytes) : null;
+    }
+
+    /**
+     * Remembers the results of the parsed image records, by payload (WARC-Payload-Digest, or a hash of the image bytes
+     * for records without one), so that later records of the same bytes only create a new ImageData with their own
+     * url, timestamp and (W)ARC offset, sharing the thumbnail, instead of being sniffed, decoded and thumbnailed again.
+     * Inline images are not remembered
+     *
+     * @param imageMemoBytes maximum approximate size of the remembered images in bytes (0 to disable)
+     */
+    public void setImageMemoSize(long imageMemoBytes) {
+        this.imageMemo = imageMemoBytes > 0 ? new ImageDigestMemo(imageMemoBytes) : null;
+    }
+
+    /**
+     * Gets the desired counters from either Hadoop or local Counter cache.
+     * While a page is recorded for the page cache, the increments are also added to its counters
      *
      * @param counterName name of the counter
      * @return desired counter
      */
     public Counter getCounter(Enum<?> counterName) {
+        Counter counter = findCounter(counterName);
+        return recording == null ? counter : recording.record(counterName, counter);
+    }
+
+    /**
+     * Gets the desired counters from either Hadoop or local Counter cache
+     *
+     * @param counterName name of the counter
+     * @return desired counter
+     */
+    protected Counter findCounter(Enum<?> counterName) {
         if (context != null) {
             return context.getCounter(counterName);
         } else {
-            if (localCounters.get(counterName) == null)
-                localCounters.put(counterName, new GenericCounter(counterName.name(), counterName.name()));
-            return localCounters.get(counterName);
+            // counters may be shared by worker threads (see PipelinedImageInformationExtractor)
+            synchronized (localCounters) {
+                if (localCounters.get(counterName) == null)
+                    localCounters.put(counterName, new GenericCounter(counterName.name(), counterName.name()));
+                return localCounters.get(counterName);
+            }
         }
     }
 
@@ -178,6 +395,7 @@ public class ImageInformationExtractor {
     public void parseWarcEntryRecord(String warcName, String warcURL) {
         ImageSearchIndexingUtil.readWarcRecords(warcURL, this, (record) -> {
             parseWarcRecord(record, warcName);
+            flushEntries();
         });
 
     }
@@ -190,17 +408,69 @@ public class ImageInformationExtractor {
      */
     public void parseWarcRecord(WARCRecordResponseEncapsulated record, String warcName) {
         String mimetype = record.getContentMimetype();
+        if (record.isRevisit()) {
+            parseRevisit(record.getWARCRecord().getHeader().getUrl(), record.getTs(), mimetype, record.getPayloadDigest(), warcName, record.getWARCRecord().getHeader().getOffset());
+            return;
+        }
         if (mimetype != null) {
             if (mimetype.contains("image")) {
                 createImageDB(record, context, warcName, record.getWARCRecord().getHeader().getOffset());
             }
             if (mimetype.contains("html")) { /*only processing images*/
                 logger.debug("Searching images in html record");
-                parseImagesFromHtmlRecord(context, record.getContentBytes(), record.getWARCRecord().getHeader().getUrl(), record.getTs(), warcName, record.getWARCRecord().getHeader().getOffset());
+                parseImagesFromHtmlRecord(context, record.getContentBytes(), record.getContentMimetype(), record.getWARCRecord().getHeader().getUrl(), record.getTs(), warcName, record.getWARCRecord().getHeader().getOffset(), record.getPayloadDigest());
             }
         }
     }
 
+    /**
+     * Adds the capture of an identical payload digest revisit record to the image or page parsed earlier in the map
+     * with the same payload, without reading any content: images are taken from the image memo and pages replayed
+     * from the page cache (see setImageMemoSize and setPageCacheSize). Other revisits are only counted
+     *
+     * @param url target url of the revisit
+     * @param timestamp capture timestamp of the revisit
+     * @param mimetype HTTP Content-Type header of the revisit
+     * @param payloadDigest WARC-Payload-Digest of the revisit
+     * @param warcName WARC name
+     * @param warcOffset offset of the revisit record in the WARC
+     */
+    public void parseRevisit(String url, String timestamp, String mimetype, String payloadDigest, String warcName, long warcOffset) {
+        if (mimetype == null || !(mimetype.contains("image") || mimetype.contains("html")))
+            return;
+        this.getCounter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS).increment(1);
+
+        boolean resolved = false;
+        try {
+            if (payloadDigest != null && !payloadDigest.isEmpty()) {
+                if (mimetype.contains("image") && imageMemo != null) {
+                    ImageDigestMemo.ParsedImage parsed = imageMemo.get(payloadDigest);
+                    if (parsed != null) {
+                        this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_TOTAL).increment(1);
+                        // the revisit has no image bytes, so the image points to the record they were parsed from
+                        saveImageMetadata(url, ImageSearchIndexingUtil.md5ofString(url), timestamp, mimetype, parsed, parsed.warcName, parsed.warcOffset);
+                        resolved = true;
+                    }
+                }
+                if (mimetype.contains("html") && pageCache != null) {
+                    PageExtractionCache.PageExtraction cached = pageCache.get(PageExtractionCache.getKey(payloadDigest, null, mimetype, url));
+                    if (cached != null) {
+                        this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_CACHE_HIT).increment(1);
+                        replayPage(cached, timestamp == null ? "" : timestamp, warcName, warcOffset);
+                        resolved = true;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.error(String.format("Error resolving revisit url: %s/%s with error message %s", timestamp, url, e.getMessage()));
+        }
+
+        if (resolved)
+            this.getCounter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS_RESOLVED).increment(1);
+        else
+            this.getCounter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS_UNRESOLVED).increment(1);
+    }
+
     /**
      * Parse a ARC record
      *
@@ -210,6 +480,7 @@ public class ImageInformationExtractor {
     public void parseArcEntry(String arcName, String arcURL) {
         ImageSearchIndexingUtil.readArcRecords(arcURL, this, record -> {
             parseArcRecord(record, arcName);
+            flushEntries();
         });
     }
 
@@ -231,7 +502,7 @@ public class ImageInformationExtractor {
                 return;
             }
             logger.debug("Searching images in html record");
-            parseImagesFromHtmlRecord(context, recordContentBytes, record.getHeader().getUrl(), record.getMetaData().getDate(), arcName, record.getMetaData().getOffset());
+            parseImagesFromHtmlRecord(context, recordContentBytes, ImageSearchIndexingUtil.getHttpContentType(record), record.getHeader().getUrl(), record.getMetaData().getDate(), arcName, record.getMetaData().getOffset());
         }
     }
 
@@ -283,38 +554,117 @@ public class ImageInformationExtractor {
      * @return ImageData record for that image
      */
     public ImageData saveImageMetadata(String url, String imageURLHashKey, String timestamp, String reportedMimeType, byte[] contentBytes, String warcName, long warcOffset) {
+        return saveImageMetadata(url, imageURLHashKey, timestamp, reportedMimeType, contentBytes, warcName, warcOffset, null);
+    }
+
+    /**
+     * Create ImageData record for regular images, reusing the results of an earlier record with the same payload when
+     * the image memo is enabled (see setImageMemoSize)
+     *
+     * @param url iamge url
+     * @param imageURLHashKey iamge url hash key
+     * @param timestamp image capture timestamp
+     * @param reportedMimeType image mimetype reported by server
+     * @param contentBytes image bytes
+     * @param warcName name of the WARC
+     * @param warcOffset offset of the record in the WARC
+     * @param payloadDigest WARC-Payload-Digest of the record (null to hash the image bytes)
+     * @return ImageData record for that image
+     */
+    public ImageData saveImageMetadata(String url, String imageURLHashKey, String timestamp, String reportedMimeType, byte[] contentBytes, String warcName, long warcOffset, String payloadDigest) {
+
+        String memoKey = null;
+        if (imageMemo != null && !url.startsWith("hash:")) {
+            memoKey = ImageDigestMemo.getKey(payloadDigest, contentBytes);
+            ImageDigestMemo.ParsedImage parsed = imageMemo.get(memoKey);
+            if (parsed != null) {
+                this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MEMO_HIT).increment(1);
+                return saveImageMetadata(url, imageURLHashKey, timestamp, reportedMimeType, parsed, warcName, warcOffset);
+            }
+            this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MEMO_MISS).increment(1);
+        }
 
         String imgSurt = WARCInformationParser.toSURT(url);
 
 
         String detectedMimeType = "";
+        boolean mimeInvalid = false;
 
         try {
 
             detectedMimeType = WARCInformationParser.getMimeType(contentBytes);
 
             if (detectedMimeType == null) {
-                this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MIME_INVALID).increment(1);
+                mimeInvalid = true;
                 detectedMimeType = "";
-            } else if (!detectedMimeType.isEmpty() && !detectedMimeType.equals(reportedMimeType)) {
-                logger.debug(String.format("MimeType for http://arquivo.pt/wayback/%s/%s", timestamp, url));
-                logger.debug(String.format("reported: \"%s\" ; detected: \"%s\"", reportedMimeType, detectedMimeType));
-                this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MIME_WRONG).increment(1);
             }
         } catch (Exception e) {
-            this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MIME_INVALID).increment(1);
+            mimeInvalid = true;
         }
+        countMimeType(url, timestamp, reportedMimeType, detectedMimeType, mimeInvalid);
 
         ImageData imageData = new ImageData(imageURLHashKey, timestamp, url, imgSurt, reportedMimeType, detectedMimeType, this.collection, contentBytes, warcName, warcOffset);
 
         try {
-            imageData = ImageParse.getPropImage(imageData);
+            imageData = ImageParse.getPropImage(imageData, !lazyThumbnails || url.startsWith("hash:"));
         } catch (Exception | StackOverflowError e) {
-            this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_FAILED).increment(1);
-            return null;
+            imageData = null;
         }
 
+        if (memoKey != null)
+            imageMemo.put(memoKey, new ImageDigestMemo.ParsedImage(detectedMimeType, mimeInvalid, imageData, contentBytes.length, warcName, warcOffset));
+
+        return indexParsedImage(url, imageData);
+    }
+
+    /**
+     * Create ImageData record for an image whose bytes were already parsed from another record (see setImageMemoSize)
+     *
+     * @param url image url
+     * @param imageURLHashKey image url hash key
+     * @param timestamp image capture timestamp
+     * @param reportedMimeType image mimetype reported by server
+     * @param parsed results of the earlier record
+     * @param warcName name of the WARC
+     * @param warcOffset offset of the record in the WARC
+     * @return ImageData record for that image
+     */
+    private ImageData saveImageMetadata(String url, String imageURLHashKey, String timestamp, String reportedMimeType, ImageDigestMemo.ParsedImage parsed, String warcName, long warcOffset) {
+        countMimeType(url, timestamp, reportedMimeType, parsed.mimeDetected, parsed.mimeInvalid);
+        if (parsed.failed)
+            return indexParsedImage(url, null);
+        ImageData imageData = new ImageData(imageURLHashKey, timestamp, url, WARCInformationParser.toSURT(url), reportedMimeType, parsed.mimeDetected, this.collection,
+                parsed.bytes, parsed.size, parsed.width, parsed.height, parsed.contentHash, warcName, warcOffset);
+        return indexParsedImage(url, imageData);
+    }
 
+    /**
+     * Counts images whose MIME type could not be detected, or differs from the reported one
+     *
+     * @param url image url
+     * @param timestamp image capture timestamp
+     * @param reportedMimeType image mimetype reported by server
+     * @param detectedMimeType image mimetype detected from its bytes
+     * @param mimeInvalid whether the detection failed
+     */
+    private void countMimeType(String url, String timestamp, String reportedMimeType, String detectedMimeType, boolean mimeInvalid) {
+        if (mimeInvalid) {
+            this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MIME_INVALID).increment(1);
+        } else if (!detectedMimeType.isEmpty() && !detectedMimeType.equals(reportedMimeType)) {
+            logger.debug(String.format("MimeType for http://arquivo.pt/wayback/%s/%s", timestamp, url));
+            logger.debug(String.format("reported: \"%s\" ; detected: \"%s\"", reportedMimeType, detectedMimeType));
+            this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MIME_WRONG).increment(1);
+        }
+    }
+
+    /**
+     * Indexes a parsed image, unless it failed or is too small or too large
+     *
+     * @param url image url
+     * @param imageData parsed image, or null if the parsing failed
+     * @return the indexed image, or null if it was not indexed
+     */
+    private ImageData indexParsedImage(String url, ImageData imageData) {
         if (imageData == null) {
             this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_FAILED).increment(1);
         } else if (url.startsWith("hash:") && (imageData.getWidth() < ImageParse.MIN_WIDTH || imageData.getHeight() < ImageParse.MIN_HEIGHT)) {
@@ -326,14 +676,7 @@ public class ImageInformationExtractor {
         } else {
 
             this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_PARSED_DUP).increment(1);
-            FullImageMetadata fullImageMetadata = entries.get(imageData.getSurt());
-            if (fullImageMetadata == null) {
-                fullImageMetadata = new FullImageMetadata();
-                entries.put(imageData.getSurt(), fullImageMetadata);
-            }
-            boolean isNew = entries.get(imageData.getSurt()).addImageData(imageData);
-            if (isNew)
-                this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_PARSED).increment(1);
+            indexImageData(imageData);
 
             return imageData;
                 /*Gson gson = new Gson();
@@ -362,6 +705,17 @@ public class ImageInformationExtractor {
 
             this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_TOTAL).increment(1);
 
+            // images already parsed from a record with the same payload digest do not need their bytes
+            String payloadDigest = record.getPayloadDigest();
+            if (imageMemo != null && payloadDigest != null && !payloadDigest.isEmpty()) {
+                ImageDigestMemo.ParsedImage parsed = imageMemo.get(payloadDigest);
+                if (parsed != null) {
+                    this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MEMO_HIT).increment(1);
+                    saveImageMetadata(url, imageURLHashKey, timestamp, mime, parsed, warcName, warcOffset);
+                    return;
+                }
+            }
+
             try {
                 contentBytes = record.getContentBytes();
             } catch (RuntimeException e) {
@@ -370,7 +724,7 @@ public class ImageInformationExtractor {
                 return;
             }
 
-            saveImageMetadata(url, imageURLHashKey, timestamp, mime, contentBytes, warcName, warcOffset);
+            saveImageMetadata(url, imageURLHashKey, timestamp, mime, contentBytes, warcName, warcOffset, payloadDigest);
 
         } catch (Exception e) {
             logger.error(String.format("Error parsing image url: %s/%s with error message %s", timestamp, url, e.getMessage()));
@@ -399,22 +753,33 @@ public class ImageInformationExtractor {
         return saveImageMetadata(url, imageURLHashKey, timestamp, mime, contentBytes, warcName, warcOffset);
     }
 
-    public void parseImagesFromHtmlRecord(Mapper.Context context, byte[] arcRecordBytes, String pageURL, String
+    public void parseImagesFromHtmlRecord(Mapper<LongWritable, ?, Text, Writable>.Context context, byte[] arcRecordBytes, String contentType, String pageURL, String
             pageTstamp, String warcName, long warcOffset) {
-        try {
-
-            captionCache = new HashMap<>();
+        parseImagesFromHtmlRecord(context, arcRecordBytes, contentType, pageURL, pageTstamp, warcName, warcOffset, null);
+    }
 
+    /**
+     * Parses the images of an HTML record, or replays them from the page cache (see setPageCacheSize)
+     *
+     * @param context Hadoop context
+     * @param arcRecordBytes page bytes
+     * @param contentType HTTP Content-Type header of the page (may be null)
+     * @param pageURL page url
+     * @param pageTstamp page timestamp
+     * @param warcName name of the (W)ARC
+     * @param warcOffset offset of the page record in the (W)ARC
+     * @param payloadDigest WARC-Payload-Digest of the record (null to hash the page bytes)
+     */
+    public void parseImagesFromHtmlRecord(Mapper<LongWritable, ?, Text, Writable>.Context context, byte[] arcRecordBytes, String contentType, String pageURL, String
+            pageTstamp, String warcName, long warcOffset, String payloadDigest) {
+        String cacheKey = null;
+        try {
 
             logger.debug("Parsing Images from HTML in (W)ARCrecord");
             logger.debug("Read Content Bytes from (W)ARCrecord" + arcRecordBytes.length);
             logger.debug("URL: " + pageURL);
             logger.debug("Page TS: " + pageTstamp);
 
-
-
-            String html = ImageSearchIndexingUtil.decode(arcRecordBytes, this);
-
             if (pageTstamp == null || pageTstamp.equals("")) {
                 logger.debug("Null pageTstamp");
                 pageTstamp = "";
@@ -422,15 +787,72 @@ public class ImageInformationExtractor {
 
             logger.debug("pageTstamp:" + pageTstamp);
 
+            // pages skipped by the prefilter are cached too, so that their revisits are resolved
+            if (pageCache != null) {
+                cacheKey = PageExtractionCache.getKey(payloadDigest, arcRecordBytes, contentType, pageURL);
+                PageExtractionCache.PageExtraction cached = pageCache.get(cacheKey);
+                if (cached != null) {
+                    this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_CACHE_HIT).increment(1);
+                    replayPage(cached, pageTstamp, warcName, warcOffset);
+                    return;
+                }
+                this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_CACHE_MISS).increment(1);
+                recording = new PageExtractionCache.PageExtraction();
+            }
+
+            if (!mayContainImages(arcRecordBytes, pageURL)) {
+                logger.debug("No image references in page");
+                this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES).increment(1);
+                this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_SKIPPED_PREFILTER).increment(1);
+                return;
+            }
+
+            if (isStreamingPage(arcRecordBytes)) {
+                logger.debug("Streaming page of " + arcRecordBytes.length + " bytes");
+                Reader html = ImageSearchIndexingUtil.decodeReader(arcRecordBytes, contentType, pageURL, this);
+                parseHTMLPageStreaming(pageURL, pageTstamp, warcName, warcOffset, html);
+                return;
+            }
+
+            String html = ImageSearchIndexingUtil.decode(arcRecordBytes, contentType, pageURL, this);
+
             parseHTMLPage(pageURL, pageTstamp, warcName, warcOffset, html);
 
         } catch (Exception e) {
             logger.debug("Something failed JSOUP parsing " + e.getMessage());
+        } finally {
+            // pages that failed are cached too, as they fail the same way for every capture
+            if (recording != null) {
+                pageCache.put(cacheKey, recording);
+                recording = null;
+            }
         }
 
 
     }
 
+    /**
+     * Indexes the image references of a cached page for another capture, and increments the counters incremented
+     * when it was parsed. Inline images are saved again, as their records carry the capture timestamp
+     *
+     * @param page cached page
+     * @param pageTstamp capture timestamp
+     * @param warcName name of the (W)ARC
+     * @param warcOffset offset of the page record in the (W)ARC
+     */
+    private void replayPage(PageExtractionCache.PageExtraction page, String pageTstamp, String warcName, long warcOffset) {
+        for (Map.Entry<Enum<?>, Long> counter : page.counters.entrySet())
+            this.getCounter(counter.getKey()).increment(counter.getValue());
+        for (PageExtractionCache.ImageReference reference : page.references) {
+            if (reference.inlineURL != null) {
+                saveImageMetadataInline(reference.inlineURL, pageTstamp, warcName, warcOffset);
+            } else {
+                insertImageIndexes(getParsedURL(reference.imgURL), reference.imgTitle, reference.imgAlt, reference.imgCaption, reference.pageImages,
+                        pageTstamp, getParsedURL(reference.pageURL), reference.pageTitle, reference.foundInTag, warcName, warcOffset);
+            }
+        }
+    }
+
     public void parseHTMLPage(String pageURL, String pageTstamp, String warcName, long warcOffset, String html) throws MalformedURLException, UnsupportedEncodingException {
         boolean malformedPageForCaptions = false;
         long startTime = System.nanoTime();
@@ -440,10 +862,12 @@ public class ImageInformationExtractor {
         String pageTitle = doc.title(); /*returns empty string if no title in html document*/
 
         this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES).increment(1);
-        //Find all images in img tags
 
+        //Find all images in img tags, links and CSS in a single pass over the page
+        PageCandidates candidates = new PageCandidates();
+        NodeTraversor.traverse(candidates, doc);
 
-        Elements imgs = doc.getElementsByTag("img");
+        List<Element> imgs = candidates.imgs;
         int pageImages = imgs.size();
 
         //logger.debug("Page contains: " + pageImages + " images");
@@ -453,10 +877,9 @@ public class ImageInformationExtractor {
         if (!pageURL.startsWith("http"))
             pageURL = "http://" + pageURL;
 
-        URL uri = new URL(pageURL);
-        String pageHost = uri.getHost();
-        String pageProtocol = uri.getProtocol();
-        String pageURLTokens = getURLSrcTokens(pageURL);
+        ParsedURL page = getParsedURL(pageURL);
+        if (!page.isValid())
+            throw new MalformedURLException("Invalid page url: " + pageURL);
 
         Set<String> imgSrcParsed = new HashSet<>();
 
@@ -468,32 +891,12 @@ public class ImageInformationExtractor {
 
                 for (String imgRelSrc : imgSrcAtrToParse) {
 
-                    String imgSrc = StringUtil.resolve(pageURL, imgRelSrc);
-
                     imgSrcParsed.add(imgRelSrc);
 
-                    logger.debug("Getting information for: " + imgSrc);
-                    if (imgRelSrc.startsWith(DATA_IMAGE_URL_PREFIX)) {
-                        logger.debug("Inline image");
-                        ImageData acceptedRecord = saveImageMetadataInline(imgRelSrc, pageTstamp, warcName, warcOffset);
-                        this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_BASE64).increment(1);
-                        if (acceptedRecord == null)
-                            continue;
-                        imgSrc = acceptedRecord.getUrl();
-                    } else if (imgSrc.length() > MAX_IMAGE_FIELD_SIZE || pageURL.length() > MAX_IMAGE_FIELD_SIZE) {
-                        logger.debug("URL of image too big ");
-                        logger.debug(pageURL.substring(0, 500) + "...");
-                        this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_INVALID).increment(1);
+                    String imgSrc = acceptImgSrc(pageURL, imgRelSrc, pageTstamp, warcName, warcOffset);
+                    if (imgSrc == null)
                         continue;
-                    } else if (imgRelSrc.isEmpty()) {
-                        logger.debug("Null imgSrc");
-                        this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_INVALID).increment(1);
-                        continue;
-                    }
 
-                    this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_MATCHING).increment(1);
-
-                    String imgSrcTokens = getURLSrcTokens(imgSrc);
                     String imgTitle = getHTMLAttribute(el, "title");
                     String imgAlt = getHTMLAttribute(el, "alt");
 
@@ -521,7 +924,7 @@ public class ImageInformationExtractor {
 
                     }
 
-                    insertImageIndexes(imgSrc, imgSrcTokens, imgTitle, imgAlt, imgCaption, pageImages, pageTstamp, pageURL, pageHost, pageProtocol, pageTitle, pageURLTokens, "img", warcName, warcOffset);
+                    insertImageIndexes(getParsedURL(imgSrc), imgTitle, imgAlt, imgCaption, pageImages, pageTstamp, page, pageTitle, "img", warcName, warcOffset);
 
                     logger.debug("Written to file - successfully indexed image record");
                 }
@@ -540,7 +943,7 @@ public class ImageInformationExtractor {
         }
 
 
-        Elements links = doc.getElementsByTag("a");
+        List<Element> links = candidates.links;
 
         logger.debug("Page contains: " + links.size() + " links");
 
@@ -548,31 +951,15 @@ public class ImageInformationExtractor {
 
             for (Element el : links) {
 
-                String imgSrc = el.attr("abs:href");
-                String imgRelSrc = el.attr("href").trim();
-
-                imgSrcParsed.add(imgRelSrc);
-                if (!isLinkToImage(imgSrc))
-                    continue;
-
-                logger.debug("Getting information for: " + imgSrc);
+                String href = el.attr("href");
 
-                if (imgSrc.length() > MAX_IMAGE_FIELD_SIZE || pageURL.length() > MAX_IMAGE_FIELD_SIZE) {
-                    logger.debug("URL of image too big ");
-                    logger.debug(pageURL.substring(0, 500) + "...");
-                    this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_INVALID).increment(1);
+                imgSrcParsed.add(href.trim());
+                // as el.attr("abs:href"), which honours the <base> of the page
+                if (!el.hasAttr("href") || !isLinkToImage(el.baseUri(), href))
                     continue;
-                } else if (imgRelSrc.isEmpty()) {
-                    logger.debug("Null href");
-                    this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_INVALID).increment(1);
+                String imgSrc = acceptLinkHref(pageURL, el.baseUri(), href);
+                if (imgSrc == null)
                     continue;
-                }
-
-                this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_MATCHING).increment(1);
-                this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_MATCHING_LINK).increment(1);
-
-                String imgSrcTokens = getURLSrcTokens(imgSrc);
-
 
                 String imgCaption = el.text();
                 if (imgCaption.length() >= MAX_IMAGE_FIELD_SIZE) {
@@ -580,7 +967,7 @@ public class ImageInformationExtractor {
                 }
 
 
-                insertImageIndexes(imgSrc, imgSrcTokens, "", "", imgCaption, pageImages, pageTstamp, pageURL, pageHost, pageProtocol, pageTitle, pageURLTokens, "a", warcName, warcOffset);
+                insertImageIndexes(getParsedURL(imgSrc), "", "", imgCaption, pageImages, pageTstamp, page, pageTitle, "a", warcName, warcOffset);
 
                 logger.debug("Written to file - successfully indexed image record");
 
@@ -591,30 +978,228 @@ public class ImageInformationExtractor {
             this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_FAILED).increment(pageImages);
         }
 
+        indexCssImages(candidates.cssUrls, imgSrcParsed, pageURL, pageImages, pageTstamp, page, pageTitle, warcName, warcOffset);
+
+        if (imgs.size() > 0)
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_WITH_IMAGES).increment(1);
+
+        // do not keep the page DOM until the next page
+        captionIndex = null;
+        captionCache = null;
+        resolutionBaseURL = null;
+        resolvedURLs = null;
+    }
+
+    /**
+     * Parses a page with HtmlStreamTokenizer instead of a DOM, for the pages over the streaming thresholds (see
+     * setStreamingThresholds). The page is read once and never held whole in memory: the candidates are collected by
+     * StreamingHtmlPage, within the limits described there, and then indexed as in parseHTMLPage. Image captions only
+     * use the text of the enclosing elements
+     *
+     * @param pageURL page url
+     * @param pageTstamp page timestamp
+     * @param warcName name of the (W)ARC
+     * @param warcOffset offset of the page record in the (W)ARC
+     * @param html page contents
+     * @throws IOException if the page cannot be read, or its url is invalid
+     */
+    public void parseHTMLPageStreaming(String pageURL, String pageTstamp, String warcName, long warcOffset, Reader html) throws IOException {
+        String baseURL = pageURL;
+        if (!pageURL.startsWith("http"))
+            pageURL = "http://" + pageURL;
+
+        StreamingHtmlPage candidates = new StreamingHtmlPage(this, pageURL, baseURL);
+        new HtmlStreamTokenizer(html).tokenize(candidates);
+        candidates.finish();
+
+        int pageImages = candidates.imageCount;
+
+        this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES).increment(1);
+        this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_STREAMED).increment(1);
+        this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_TOTAL).increment(pageImages);
+
+        ParsedURL page = getParsedURL(pageURL);
+        if (!page.isValid())
+            throw new MalformedURLException("Invalid page url: " + pageURL);
+        String pageTitle = candidates.pageTitle;
+
+        try {
+            for (StreamingHtmlPage.ImageCandidate image : candidates.images) {
+                for (String imgRelSrc : image.srcs) {
+                    String imgSrc = acceptImgSrc(pageURL, imgRelSrc, pageTstamp, warcName, warcOffset);
+                    if (imgSrc == null)
+                        continue;
+                    insertImageIndexes(getParsedURL(imgSrc), image.title, image.alt, image.caption, pageImages, pageTstamp, page, pageTitle, "img", warcName, warcOffset);
+                }
+            }
+            if (pageImages >= MAX_IMAGE_IN_HTML) {
+                this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_EXCEDED).increment(1);
+                this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_NOT_PARSED).increment(pageImages - MAX_IMAGE_IN_HTML);
+            }
+        } catch (Exception e) {
+            logger.error(String.format("Error parsing HTML img record: %s", e.getMessage()));
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_FAILED).increment(pageImages);
+        }
+
+        try {
+            for (StreamingHtmlPage.LinkCandidate link : candidates.links) {
+                String imgSrc = acceptLinkHref(pageURL, link.baseURL, link.href);
+                if (imgSrc == null)
+                    continue;
+                insertImageIndexes(getParsedURL(imgSrc), "", "", link.caption, pageImages, pageTstamp, page, pageTitle, "a", warcName, warcOffset);
+            }
+        } catch (Exception e) {
+            logger.error(String.format("Error parsing HTML img record: %s", e.getMessage()));
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_FAILED).increment(pageImages);
+        }
+
+        indexCssImages(candidates.cssUrls, candidates.imgSrcParsed, pageURL, pageImages, pageTstamp, page, pageTitle, warcName, warcOffset);
+
+        if (candidates.notParsed > 0)
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_NOT_PARSED).increment(candidates.notParsed);
+        if (pageImages > 0)
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_WITH_IMAGES).increment(1);
+
+        resolutionBaseURL = null;
+        resolvedURLs = null;
+    }
+
+    /**
+     * Whether a page is over the streaming thresholds (see setStreamingThresholds)
+     *
+     * @param arcRecordBytes raw page bytes
+     * @return true if the page is to be parsed with parseHTMLPageStreaming
+     */
+    private boolean isStreamingPage(byte[] arcRecordBytes) {
+        if (streamingBytes > 0 && arcRecordBytes.length > streamingBytes)
+            return true;
+        if (streamingElements <= 0 || arcRecordBytes.length < 4L * streamingElements)
+            return false;
+        int tags = 0;
+        for (int i = 0; i < arcRecordBytes.length - 1; i++) {
+            if (arcRecordBytes[i] == '<' && Character.isLetter(arcRecordBytes[i + 1]) && ++tags >= streamingElements)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks an img url of a page, saving the image if it is inline
+     *
+     * @param pageURL page url
+     * @param imgRelSrc image url, as found in the page
+     * @param pageTstamp page timestamp
+     * @param warcName name of the (W)ARC
+     * @param warcOffset offset of the page record in the (W)ARC
+     * @return absolute url of the image (or the url given to an inline image), or null if it is not indexed
+     */
+    private String acceptImgSrc(String pageURL, String imgRelSrc, String pageTstamp, String warcName, long warcOffset) {
+        String imgSrc = resolveURL(pageURL, imgRelSrc);
+
+        logger.debug("Getting information for: " + imgSrc);
+        if (imgRelSrc.startsWith(DATA_IMAGE_URL_PREFIX)) {
+            logger.debug("Inline image");
+            ImageData acceptedRecord = saveInlineImage(imgRelSrc, pageTstamp, warcName, warcOffset);
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_BASE64).increment(1);
+            if (acceptedRecord == null)
+                return null;
+            imgSrc = acceptedRecord.getUrl();
+        } else if (imgSrc.length() > MAX_IMAGE_FIELD_SIZE || pageURL.length() > MAX_IMAGE_FIELD_SIZE) {
+            logger.debug("URL of image too big ");
+            logger.debug(pageURL.substring(0, 500) + "...");
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_INVALID).increment(1);
+            return null;
+        } else if (imgRelSrc.isEmpty()) {
+            logger.debug("Null imgSrc");
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_INVALID).increment(1);
+            return null;
+        }
+
+        this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_MATCHING).increment(1);
+        return imgSrc;
+    }
+
+    /**
+     * Saves an inline image of a page, as saveImageMetadataInline, adding it to the page being recorded for the page
+     * cache. The counters of the image are not recorded, as the image is saved again when the page is replayed
+     *
+     * @param url data url of the image
+     * @param timestamp page timestamp
+     * @param warcName name of the (W)ARC
+     * @param warcOffset offset of the page record in the (W)ARC
+     * @return ImageData record for the inline image, or null if it is not valid
+     */
+    private ImageData saveInlineImage(String url, String timestamp, String warcName, long warcOffset) {
+        PageExtractionCache.PageExtraction page = recording;
+        if (page == null)
+            return saveImageMetadataInline(url, timestamp, warcName, warcOffset);
+        page.addInlineImage(url);
+        recording = null;
+        try {
+            return saveImageMetadataInline(url, timestamp, warcName, warcOffset);
+        } finally {
+            recording = page;
+        }
+    }
+
+    /**
+     * Checks the href of a link to an image (see isLinkToImage)
+     *
+     * @param pageURL page url
+     * @param baseURL url the link is resolved against
+     * @param href link, as found in the page
+     * @return absolute url of the image, or null if it is not indexed
+     */
+    private String acceptLinkHref(String pageURL, String baseURL, String href) {
+        String imgSrc = resolveURL(baseURL, href);
+
+        logger.debug("Getting information for: " + imgSrc);
+
+        if (imgSrc.length() > MAX_IMAGE_FIELD_SIZE || pageURL.length() > MAX_IMAGE_FIELD_SIZE) {
+            logger.debug("URL of image too big ");
+            logger.debug(pageURL.substring(0, 500) + "...");
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_INVALID).increment(1);
+            return null;
+        } else if (href.trim().isEmpty()) {
+            logger.debug("Null href");
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_INVALID).increment(1);
+            return null;
+        }
+
+        this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_MATCHING).increment(1);
+        this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_MATCHING_LINK).increment(1);
+        return imgSrc;
+    }
+
+    /**
+     * Indexes the CSS url() references of a page that are images and were not already found in img or a elements
+     *
+     * @param candidateUrls url() values, as found in the page
+     * @param imgSrcParsed img and a urls of the page
+     * @param pageURL page url
+     * @param pageImages number of img elements in the page
+     * @param pageTstamp page timestamp
+     * @param page parsed page url
+     * @param pageTitle page title
+     * @param warcName name of the (W)ARC
+     * @param warcOffset offset of the page record in the (W)ARC
+     */
+    private void indexCssImages(List<String> candidateUrls, Set<String> imgSrcParsed, String pageURL, int pageImages, String pageTstamp,
+                                ParsedURL page, String pageTitle, String warcName, long warcOffset) {
         List<String> cssUrls = new LinkedList<>();
-        Matcher m = CSS_URLS.matcher(html);
-        while (m.find()) {
-            String imgRelSrc = m.group(1);
+        for (String imgRelSrc : candidateUrls) {
             if (!imgRelSrc.isEmpty() && !imgSrcParsed.contains(imgRelSrc)) {
                 if (imgRelSrc.startsWith(DATA_IMAGE_URL_PREFIX)) {
                     cssUrls.add(imgRelSrc);
-                } else {
-                    try {
-                        String imgSrc = StringUtil.resolve(pageURL, imgRelSrc);
-                        if (isLinkToImage(imgSrc)) {
-                            cssUrls.add(imgRelSrc);
-                        }
-
-                    } catch (Exception ignored) {
-
-                    }
+                } else if (isLinkToImage(pageURL, imgRelSrc)) {
+                    cssUrls.add(imgRelSrc);
                 }
             }
         }
 
         for (String imgRelSrc : cssUrls) {
 
-            String imgSrc = StringUtil.resolve(pageURL, imgRelSrc);
+            String imgSrc = resolveURL(pageURL, imgRelSrc);
 
             logger.debug("Getting information for: " + imgSrc);
 
@@ -632,17 +1217,25 @@ public class ImageInformationExtractor {
             this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_MATCHING).increment(1);
             this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_MATCHING_CSS).increment(1);
 
-            String imgSrcTokens = getURLSrcTokens(imgSrc);
-
-            insertImageIndexes(imgSrc, imgSrcTokens, "", "", "", pageImages, pageTstamp, pageURL, pageHost, pageProtocol, pageTitle, pageURLTokens, "css", warcName, warcOffset);
+            insertImageIndexes(getParsedURL(imgSrc), "", "", "", pageImages, pageTstamp, page, pageTitle, "css", warcName, warcOffset);
 
             logger.debug("Written to file - successfully indexed image record");
 
         }
+    }
 
-
-        if (imgs.size() > 0)
-            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_WITH_IMAGES).increment(1);
+    /**
+     * Whether an HTML record can have image references (see HtmlImagePrefilter). Links with no path of their own
+     * resolve to the page url, so pages with an image url are always parsed
+     *
+     * @param arcRecordBytes raw page bytes
+     * @param pageURL page url
+     * @return false if the page cannot yield any image
+     */
+    private boolean mayContainImages(byte[] arcRecordBytes, String pageURL) {
+        if (!pageURL.startsWith("http"))
+            pageURL = "http://" + pageURL;
+        return isLinkToImage(pageURL) || HTML_IMAGE_PREFILTER.mayContainImages(arcRecordBytes);
     }
 
     /**
@@ -651,27 +1244,84 @@ public class ImageInformationExtractor {
      * @return true if ti matches
      */
     public boolean isLinkToImage(String imgSrc) {
+        String extension = ImageSearchIndexingUtil.getURLPathExtension(imgSrc);
+        return extension != null && IMAGE_FILE_EXTENSIONS.contains(extension);
+    }
 
-        String extension = "";
-        try {
-            URL url = new URL(imgSrc);
-            extension = FilenameUtils.getExtension(url.getPath()).toLowerCase();
-        } catch (Exception ignored) {
+    /**
+     * Checks if a link of the page resolves to an image, as isLinkToImage(StringUtil.resolve(baseURL, relURL)).
+     * Unless the base url is itself an image, links without a '.' cannot resolve to a path with an extension, so
+     * they are not resolved
+     *
+     * @param baseURL base url of the page
+     * @param relURL link, as found in the page
+     * @return true if it matches
+     */
+    boolean isLinkToImage(String baseURL, String relURL) {
+        setResolutionBase(baseURL);
+        if (!resolutionBaseIsImage && relURL.indexOf('.') < 0)
             return false;
+        return isLinkToImage(resolveURL(baseURL, relURL));
+    }
+
+    /**
+     * Resolves a link of the page, as StringUtil.resolve(baseURL, relURL). The result is kept until the end of the
+     * page, as the same links are resolved by getImgURLToParse and by the img, a and css passes of parseHTMLPage
+     *
+     * @param baseURL base url of the page
+     * @param relURL link, as found in the page
+     * @return absolute url, or "" if the link cannot be resolved
+     */
+    private String resolveURL(String baseURL, String relURL) {
+        setResolutionBase(baseURL);
+        // links with a protocol that has no URL handler (data:, javascript:, ...) never resolve
+        String protocol = ImageSearchIndexingUtil.getURLProtocol(relURL);
+        if (protocol != null && !ImageSearchIndexingUtil.hasURLHandler(protocol))
+            return "";
+        String resolved = resolvedURLs.get(relURL);
+        if (resolved == null) {
+            try {
+                if (resolutionBase == null)
+                    resolved = new URL(relURL).toExternalForm();
+                else
+                    resolved = StringUtil.resolve(resolutionBase, relURL).toExternalForm();
+            } catch (MalformedURLException e) {
+                resolved = "";
+            }
+            if (resolvedURLs.size() < MAX_RESOLVED_URLS)
+                resolvedURLs.put(relURL, resolved);
         }
+        return resolved;
+    }
 
-        return IMAGE_FILE_EXTENSIONS.contains(extension);
+    /**
+     * Starts resolving links against a new base url, forgetting the links resolved against the previous one
+     */
+    private void setResolutionBase(String baseURL) {
+        if (baseURL.equals(resolutionBaseURL))
+            return;
+        resolutionBaseURL = baseURL;
+        resolvedURLs = new HashMap<>();
+        resolutionBaseIsImage = isLinkToImage(baseURL);
+        try {
+            resolutionBase = new URL(baseURL);
+        } catch (MalformedURLException e) {
+            resolutionBase = null;
+        }
     }
 
     /**
      * Extracts caption from HTML parent
      *
      * @param node node where to start from finding caption
-     * @return image caption
+     * @return image caption, or null if the page is too large to extract captions from
      */
     public String extractCaptionFromParent(Element node) {
         String imgCaption = "";
 
+        if (!indexCaptions(node))
+            return null;
+
         int maxChildLevel = getMaxChildLevel(node);
 
         Element previous = node;
@@ -679,18 +1329,16 @@ public class ImageInformationExtractor {
 
         int i = 0;
         // Go up the DOM tree until something is found or root is reached
-        while (current != null && (imgCaption = getCaption(current)) != null && imgCaption.isEmpty()) {
+        while (current != null && !hasCaption(current)) {
             previous = current;
             current = current.parent();
             i++;
         }
 
-        // recover from OOM error in the {@link #getCaption(Element current)} method.
-        if (previous == null || imgCaption == null)
-            return null;
-
         if (i >= maxChildLevel) {
             imgCaption = getImgCaptionSibling(previous);
+        } else if (current != null) {
+            imgCaption = getCaption(current);
         }
 
         // recover from OOM error in the {@link #getCaption(Element current)} method.
@@ -702,23 +1350,54 @@ public class ImageInformationExtractor {
         return imgCaption;
     }
 
+    /**
+     * Indexes the text of the DOM tree of the node, unless it is already indexed.
+     * This is done once per page, so that finding captions does not traverse the same subtrees for every image
+     *
+     * @param node node of the tree to index
+     * @return false if the tree is too large to index
+     */
+    private boolean indexCaptions(Element node) {
+        Node root = node.root();
+        if (captionIndex != null && captionIndex.getRoot() == root)
+            return true;
+        captionIndex = null;
+        captionCache = new IdentityHashMap<>();
+        try {
+            captionIndex = new ElementTextIndex(root);
+            return true;
+        } catch (OutOfMemoryError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether the current element has caption text
+     *
+     * @param current node to check
+     * @return true if the element has a non-empty caption
+     */
+    private boolean hasCaption(Element current) {
+        if (current.tagName().equalsIgnoreCase("html") || current.tagName().equalsIgnoreCase("#root"))
+            return false;
+        return captionIndex.hasText(current);
+    }
 
     /**
      * Get caption text for current element
      *
      * @param current node to parse
-     * @return children/caption text for the current element
+     * @return children/caption text for the current element, or null if it does not fit in memory
      */
     private String getCaption(Element current) {
-        String id = getNodeId(current);
         String caption;
-        if ((caption = captionCache.getOrDefault(id, null)) == null) {
+        if ((caption = captionCache.get(current)) == null) {
             try {
-                if (current.tagName().equalsIgnoreCase("html") || current.tagName().equalsIgnoreCase("#root"))
+                if (!hasCaption(current))
                     caption = "";
                 else
-                    caption = current.text().trim();
-                captionCache.put(id, caption);
+                    caption = captionIndex.text(current);
+                captionCache.put(current, caption);
             } catch (OutOfMemoryError e) {
                 captionCache.clear();
             }
@@ -727,21 +1406,6 @@ public class ImageInformationExtractor {
         return caption;
     }
 
-    /**
-     * Get current node id, according to its depth
-     *
-     * @param current current node
-     * @return node id
-     */
-    private String getNodeId(Element current) {
-        StringBuilder id = new StringBuilder();
-        while (current != null) {
-            id.insert(0, current.elementSiblingIndex() + "_");
-            current = current.parent();
-        }
-        return id.toString();
-    }
-
     /**
      * Extract caption from node siblings
      *
@@ -753,14 +1417,18 @@ public class ImageInformationExtractor {
         Element sibling = current.previousElementSibling();
         String imgCaptionPrev = "";
         String imgCaptionNext = "";
-        while (sibling != null && (imgCaptionPrev = getCaption(sibling)) != null && imgCaptionPrev.isEmpty()) {
+        while (sibling != null && !hasCaption(sibling)) {
             sibling = sibling.previousElementSibling();
         }
+        if (sibling != null)
+            imgCaptionPrev = getCaption(sibling);
 
         sibling = current.nextElementSibling();
-        while (sibling != null && (imgCaptionNext = getCaption(sibling)) != null && imgCaptionNext.isEmpty()) {
+        while (sibling != null && !hasCaption(sibling)) {
             sibling = sibling.nextElementSibling();
         }
+        if (sibling != null)
+            imgCaptionNext = getCaption(sibling);
 
         // recover from OOM error in the {@link #getCaption(Element current)} method.
         if (imgCaptionPrev == null || imgCaptionNext == null)
@@ -776,7 +1444,7 @@ public class ImageInformationExtractor {
      * @param imgCaption  caption to be trimmed
      * @return trimmed caption
      */
-    private String trimCaption(String imgCaption) {
+    static String trimCaption(String imgCaption) {
         if (imgCaption.length() > MAX_PARENT_CAPTION_SIZE) {
             // Crop until closest empty space near the chosen text border (MAX_PARENT_CAPTION_SIZE chars in the end of the caption)
             int lastSpace = imgCaption.substring(0, MAX_PARENT_CAPTION_SIZE / 2).lastIndexOf(" ");
@@ -822,7 +1490,17 @@ public class ImageInformationExtractor {
      * @return attribute value
      */
     public String getHTMLAttribute(Element el, String atr) {
-        String atrVal = el.attr(atr);
+        return getHTMLAttribute(el.attributes(), atr);
+    }
+
+    /**
+     * Get HTML attribute from the attributes of a tag
+     * @param attributes tag attributes
+     * @param atr attribute to extract
+     * @return attribute value
+     */
+    public String getHTMLAttribute(Attributes attributes, String atr) {
+        String atrVal = attributes.getIgnoreCase(atr);
         if (atrVal.length() >= MAX_IMAGE_FIELD_SIZE) {
             atrVal = atrVal.substring(0, MAX_IMAGE_FIELD_SIZE);
         }
@@ -837,11 +1515,22 @@ public class ImageInformationExtractor {
      * @return set of URLs to parse
      */
     public Set<String> getImgURLToParse(String pageURL, Element el) {
+        return getImgURLToParse(pageURL, el.attributes());
+    }
+
+    /**
+     * Find all potential image URLs in the attributes of an img tag
+     *
+     * @param pageURL base page URL
+     * @param attributes tag attributes
+     * @return set of URLs to parse
+     */
+    public Set<String> getImgURLToParse(String pageURL, Attributes attributes) {
         Set<String> imgSrcAtrToParse = new HashSet<>();
 
         //Find all images in normal img src attributes
         for (String tag : IMAGE_TAG_ATTRIBUTES_WITH_FILES) {
-            String imgRelSrc = el.attr(tag).trim();
+            String imgRelSrc = attributes.getIgnoreCase(tag).trim();
             if (!imgRelSrc.isEmpty())
                 imgSrcAtrToParse.add(imgRelSrc);
         }
@@ -849,17 +1538,14 @@ public class ImageInformationExtractor {
         int oldSize = imgSrcAtrToParse.size();
 
         //Find text that matches URLs in all other img src attributes
-        for (Attribute attribute : el.attributes()) {
+        for (Attribute attribute : attributes) {
             try {
                 String imgRelSrc = attribute.getValue();
                 if (imgRelSrc != null && !imgRelSrc.isEmpty()) {
                     if (imgRelSrc.startsWith(DATA_IMAGE_URL_PREFIX)) {
                         imgSrcAtrToParse.add(imgRelSrc);
-                    } else {
-                        String imgSrc = StringUtil.resolve(pageURL, imgRelSrc);
-                        if (isLinkToImage(imgSrc)) {
-                            imgSrcAtrToParse.add(imgRelSrc);
-                        }
+                    } else if (isLinkToImage(pageURL, imgRelSrc)) {
+                        imgSrcAtrToParse.add(imgRelSrc);
                     }
                 }
             } catch (Exception ignored) {
@@ -879,12 +1565,23 @@ public class ImageInformationExtractor {
      * @return URL tokens
      */
     public String getURLSrcTokens(String imgSrc)  {
-        try {
-            imgSrc = URLDecoder.decode(imgSrc, "UTF-8"); /*Escape imgSrc URL e.g %C3*/
-        } catch (Exception ignored) {
+        return ParsedURL.getTokens(imgSrc);
+    }
 
+    /**
+     * Analysis of a url (SURT, tokens, host, hashes), reused while the url is among the MAX_PARSED_URLS most recently
+     * used ones
+     *
+     * @param url url to analyse
+     * @return ParsedURL for the url
+     */
+    public ParsedURL getParsedURL(String url) {
+        ParsedURL parsedURL = parsedURLs.get(url);
+        if (parsedURL == null) {
+            parsedURL = new ParsedURL(url);
+            parsedURLs.put(url, parsedURL);
         }
-        return ImageSearchIndexingUtil.parseURL(imgSrc);
+        return parsedURL;
     }
 
     /**
@@ -915,18 +1612,246 @@ public class ImageInformationExtractor {
 
         this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_SENT_DUP).increment(1);
 
-        FullImageMetadata fullImageMetadata = entries.get(pageImageData.getImgSurt());
+        indexPageImageData(pageImageData);
+    }
+
+    /**
+     * Create an PageImageData entry from parsed data, taking the url values from their ParsedURL
+     *
+     * @param img image url
+     * @param imgTitle image title (is exists)
+     * @param imgAlt image alt text (is exists)
+     * @param imgCaption image caption
+     * @param pageImages number of images in the page
+     * @param pageTstamp page capture timestamp
+     * @param page page url
+     * @param pageTitle page title
+     * @param foundInTag found in which tags
+     * @param warc WARC name
+     * @param warcOffset Offset in WARC
+     */
+    public void insertImageIndexes(ParsedURL img, String imgTitle, String imgAlt, String imgCaption, int pageImages,
+                                   String pageTstamp, ParsedURL page, String pageTitle, String foundInTag, String warc, long warcOffset) {
+        // the counters incremented from here on are incremented again when a cached page is replayed
+        PageExtractionCache.PageExtraction recorded = recording;
+        if (recorded != null) {
+            recorded.addImage(img.getURL(), imgTitle, imgAlt, imgCaption, pageImages, page.getURL(), pageTitle, foundInTag);
+            recording = null;
+        }
+        try {
+            PageImageData pageImageData = new PageImageData("page", imgTitle, imgAlt, imgCaption, pageTitle, img, pageImages, pageTstamp, page, foundInTag, warc, warcOffset, collection);
+
+            this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_SENT_DUP).increment(1);
+
+            indexPageImageData(pageImageData);
+        } finally {
+            recording = recorded;
+        }
+    }
+
+    /**
+     * Adds a parsed image record to the entry matching its SURT
+     *
+     * @param imageData image metadata to index
+     */
+    protected void indexImageData(ImageData imageData) {
+        indexImageData(entries, imageData);
+    }
+
+    /**
+     * Adds a parsed page image record to the entry matching its SURT
+     *
+     * @param pageImageData page image metadata to index
+     */
+    protected void indexPageImageData(PageImageData pageImageData) {
+        indexPageImageData(entries, pageImageData);
+    }
+
+    /**
+     * Adds a parsed image record to the matching entry of the given entry map
+     *
+     * @param target entries, by SURT, where to add the record
+     * @param imageData image metadata to index
+     */
+    protected void indexImageData(Map<String, FullImageMetadata> target, ImageData imageData) {
+        FullImageMetadata fullImageMetadata = target.get(imageData.getSurt());
+        if (fullImageMetadata == null) {
+            fullImageMetadata = new FullImageMetadata();
+            target.put(imageData.getSurt(), fullImageMetadata);
+            addEntryBytes(FullImageMetadata.OBJECT_SIZE_APPROXIMATION);
+        }
+        boolean isNew = fullImageMetadata.addImageData(imageData);
+        if (isNew) {
+            this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_PARSED).increment(1);
+            if (entryBudget > 0)
+                addEntryBytes(FullImageMetadata.OBJECT_SIZE_APPROXIMATION + imageData.getApproximateSize());
+        }
+    }
+
+    /**
+     * Adds a parsed page image record to the matching entry of the given entry map
+     *
+     * @param target entries, by SURT, where to add the record
+     * @param pageImageData page image metadata to index
+     */
+    protected void indexPageImageData(Map<String, FullImageMetadata> target, PageImageData pageImageData) {
+        FullImageMetadata fullImageMetadata = target.get(pageImageData.getImgSurt());
         if (fullImageMetadata == null) {
             fullImageMetadata = new FullImageMetadata();
-            entries.put(pageImageData.getImgSurt(), fullImageMetadata);
+            target.put(pageImageData.getImgSurt(), fullImageMetadata);
+            addEntryBytes(FullImageMetadata.OBJECT_SIZE_APPROXIMATION);
         }
 
-        boolean isNew = entries.get(pageImageData.getImgSurt()).addPageImageData(pageImageData);
+        boolean isNew = fullImageMetadata.addPageImageData(pageImageData);
         if (isNew) {
             this.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.IMAGES_IN_HTML_SENT).increment(1);
+            if (entryBudget > 0)
+                addEntryBytes(FullImageMetadata.OBJECT_SIZE_APPROXIMATION + pageImageData.getApproximateSize());
         }
     }
 
+    /**
+     * Adds records parsed elsewhere (see DeferredImageInformationExtractor), in the given order
+     *
+     * @param records ImageData and PageImageData objects to index
+     */
+    public void indexAll(List<Object> records) {
+        for (Object record : records) {
+            if (record instanceof ImageData)
+                indexImageData((ImageData) record);
+            else
+                indexPageImageData((PageImageData) record);
+        }
+        flushEntries();
+    }
+
+    /**
+     * Adds to the approximate size of the entries, when it is being tracked
+     *
+     * @param bytes approximate number of bytes added
+     */
+    protected void addEntryBytes(long bytes) {
+        if (entryBudget > 0)
+            entryBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Checks the entry budget, called by the map thread between records.
+     * If the entries are above the budget, the least recently updated ones are written to the Hadoop context
+     */
+    protected void flushEntries() {
+        if (!startFlush())
+            return;
+        Iterator<Map.Entry<String, FullImageMetadata>> coldest = entries.entrySet().iterator();
+        while (entryBytes.get() > getFlushTarget() && coldest.hasNext()) {
+            Map.Entry<String, FullImageMetadata> entry = coldest.next();
+            coldest.remove();
+            writeEntry(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Updates the peak size counter and checks whether the entries are above the budget
+     *
+     * @return true if some entries must be written out
+     */
+    protected boolean startFlush() {
+        if (entryBudget <= 0)
+            return false;
+        long bytes = entryBytes.get();
+        if (bytes > peakEntryBytes) {
+            this.getCounter(ImageIndexerWithDupsJob.BUFFER_COUNTERS.BUFFER_PEAK_BYTES).increment(bytes - peakEntryBytes);
+            peakEntryBytes = bytes;
+        }
+        if (bytes <= entryBudget)
+            return false;
+        this.getCounter(ImageIndexerWithDupsJob.BUFFER_COUNTERS.BUFFER_FLUSHES).increment(1);
+        return true;
+    }
+
+    /**
+     * Size the entries are brought down to when flushing
+     *
+     * @return size in bytes
+     */
+    protected long getFlushTarget() {
+        return (long) (entryBudget * ENTRY_FLUSH_TARGET);
+    }
+
+    /**
+     * Writes an entry, already removed from the entries, to the Hadoop context
+     *
+     * @param surt     SURT of the entry
+     * @param metadata entry to write
+     */
+    protected void writeEntry(String surt, FullImageMetadata metadata) {
+        long bytes = metadata.getApproximateSize();
+        // sizes are approximate, do not let small differences accumulate below zero
+        entryBytes.accumulateAndGet(bytes, (current, removed) -> Math.max(0, current - removed));
+        this.getCounter(ImageIndexerWithDupsJob.BUFFER_COUNTERS.BUFFER_FLUSHED_SURTS).increment(1);
+        this.getCounter(ImageIndexerWithDupsJob.BUFFER_COUNTERS.BUFFER_FLUSHED_BYTES).increment(bytes);
+        try {
+            writeToContext(surt, metadata);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing buffered entry: " + surt, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted writing buffered entry: " + surt, e);
+        }
+    }
+
+    /**
+     * Writes all remaining entries to the Hadoop context, at the end of the map, and closes the thumbnail store
+     *
+     * @throws IOException          error writing to the Hadoop context or to the thumbnail store
+     * @throws InterruptedException interrupted writing to the Hadoop context
+     */
+    public void writeEntries() throws IOException, InterruptedException {
+        try {
+            for (Map.Entry<String, FullImageMetadata> entry : getEntries().entrySet())
+                writeToContext(entry.getKey(), entry.getValue());
+        } finally {
+            if (thumbnailStore != null)
+                thumbnailStore.close();
+        }
+    }
+
+    /**
+     * Writes an entry to the Hadoop context, moving the image bytes to the thumbnail store if there is one
+     *
+     * @param surt     SURT of the entry
+     * @param metadata entry to write
+     * @throws IOException          error writing to the Hadoop context or to the thumbnail store
+     * @throws InterruptedException interrupted writing to the Hadoop context
+     */
+    private void writeToContext(String surt, FullImageMetadata metadata) throws IOException, InterruptedException {
+        if (thumbnailStore != null) {
+            for (ImageData imageData : metadata.getImageDatasValues()) {
+                byte[] bytes = imageData.getBytes();
+                if (bytes == null)
+                    continue;
+                if (thumbnailStore.contains(imageData.getContentHash())) {
+                    this.getCounter(ImageIndexerWithDupsJob.THUMBNAIL_COUNTERS.THUMBNAILS_SHARED).increment(1);
+                } else {
+                    this.getCounter(ImageIndexerWithDupsJob.THUMBNAIL_COUNTERS.THUMBNAILS_STORED).increment(1);
+                    this.getCounter(ImageIndexerWithDupsJob.THUMBNAIL_COUNTERS.THUMBNAILS_STORED_BYTES).increment(bytes.length);
+                }
+                imageData.setThumbnailLocation(thumbnailStore.put(imageData.getContentHash(), bytes));
+                imageData.setBytes(null);
+            }
+        }
+        context.write(new Text(surt), metadata);
+    }
+
+    /**
+     * Get the charset resolver of the pages
+     *
+     * @return charset resolver
+     */
+    public CharsetResolver getCharsetResolver() {
+        return charsetResolver;
+    }
+
     /**
      * Get parsed metadatas
      *
@@ -954,6 +1879,61 @@ public class ImageInformationExtractor {
                 parseWarcRecord(warcRecord, warcName);
 
 
+        }
+        flushEntries();
+    }
+
+    /**
+     * Adds the url() values of CSS code to a list
+     *
+     * @param css CSS code
+     * @param cssUrls list the values are added to, as found in the code
+     */
+    static void findCssUrls(String css, List<String> cssUrls) {
+        if (css.indexOf("url(") < 0)
+            return;
+        Matcher m = CSS_URLS.matcher(css);
+        while (m.find())
+            cssUrls.add(m.group(1));
+    }
+
+    /**
+     * Image candidates of a page, in document order, collected in a single traversal: img elements, a elements and
+     * the url() references of style attributes and style elements. Script and text contents are not searched for CSS
+     */
+    private static class PageCandidates implements NodeVisitor {
+
+        private final List<Element> imgs = new ArrayList<>();
+
+        private final List<Element> links = new ArrayList<>();
+
+        /**
+         * CSS url() values, as in the page
+         */
+        private final List<String> cssUrls = new ArrayList<>();
+
+        @Override
+        public void head(Node node, int depth) {
+            if (!(node instanceof Element))
+                return;
+            Element el = (Element) node;
+            switch (el.tagName()) {
+                case "img":
+                    imgs.add(el);
+                    break;
+                case "a":
+                    links.add(el);
+                    break;
+                case "style":
+                    findCssUrls(el.data(), cssUrls);
+                    break;
+            }
+            if (el.hasAttr("style"))
+                findCssUrls(el.attr("style"), cssUrls);
+        }
+
+        @Override
+        public void tail(Node node, int depth) {
         }
     }
 }
@@ -0,0 +1,226 @@
+package pt.arquivo.imagesearch.indexing.processors;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.counters.GenericCounter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Image references extracted from HTML pages, by page payload, so that the captures of a page with the same payload
+ * are not decoded and parsed again (see ImageInformationExtractor.setPageCacheSize).
+ * <p>
+ * Each cached page keeps the arguments of its insertImageIndexes calls and inline images, in the order they were
+ * made, and the counters incremented while parsing it, so that both can be replayed for another capture.
+ * The least recently used pages are evicted when the approximate size of the cache goes over its budget.
+ * The cache is shared by the worker extractors of a map, so its methods are synchronized.
+ */
+class PageExtractionCache {
+
+    /**
+     * Approximate fixed size, in bytes, of a cached page (key, map entry and counters)
+     */
+    static final int PAGE_SIZE_APPROXIMATION = 512;
+
+    /**
+     * Approximate fixed size, in bytes, of a cached image reference
+     */
+    static final int REFERENCE_SIZE_APPROXIMATION = 96;
+
+    /**
+     * Pages over this fraction of the budget are not cached
+     */
+    static final int MAX_PAGE_FRACTION = 4;
+
+    /**
+     * Maximum approximate size of the cached pages, in bytes
+     */
+    private final long budget;
+
+    /**
+     * Approximate size of the cached pages, in bytes
+     */
+    private long size = 0;
+
+    /**
+     * Cached pages, from the least to the most recently used
+     */
+    private final LinkedHashMap<String, PageExtraction> pages = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param budget maximum approximate size of the cached pages, in bytes
+     */
+    PageExtractionCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Key of a page capture. Besides the payload, the references depend on the url the links are resolved against
+     * and on the Content-Type used to decode the page.
+     * Keys with a payload digest do not depend on the page bytes, so that revisit records can be looked up without them
+     *
+     * @param payloadDigest WARC-Payload-Digest of the record, or null to hash the page bytes
+     * @param arcRecordBytes page bytes (only used without a payload digest)
+     * @param contentType HTTP Content-Type header of the page (may be null)
+     * @param pageURL page url
+     * @return cache key
+     */
+    static String getKey(String payloadDigest, byte[] arcRecordBytes, String contentType, String pageURL) {
+        if (payloadDigest != null && !payloadDigest.isEmpty())
+            return payloadDigest + " " + contentType + " " + pageURL;
+        return "md5:" + DigestUtils.md5Hex(arcRecordBytes) + " " + arcRecordBytes.length + " " + contentType + " " + pageURL;
+    }
+
+    /**
+     * Gets a cached page
+     *
+     * @param key page key (see getKey)
+     * @return cached page, or null if it is not cached
+     */
+    synchronized PageExtraction get(String key) {
+        return pages.get(key);
+    }
+
+    /**
+     * Caches a page, evicting the least recently used pages if the cache goes over its budget
+     *
+     * @param key page key (see getKey)
+     * @param page page references, which must no longer be changed
+     */
+    synchronized void put(String key, PageExtraction page) {
+        long pageSize = page.size + 2L * key.length();
+        if (pageSize > budget / MAX_PAGE_FRACTION)
+            return;
+        PageExtraction previous = pages.put(key, page);
+        size += pageSize;
+        if (previous != null)
+            size -= previous.size + 2L * key.length();
+        Iterator<Map.Entry<String, PageExtraction>> eldest = pages.entrySet().iterator();
+        while (size > budget && eldest.hasNext()) {
+            Map.Entry<String, PageExtraction> entry = eldest.next();
+            eldest.remove();
+            size -= entry.getValue().size + 2L * entry.getKey().length();
+        }
+    }
+
+    /**
+     * Image references and counters of a parsed page
+     */
+    static class PageExtraction {
+
+        /**
+         * Inline images and insertImageIndexes calls, in the order they were made
+         */
+        final List<ImageReference> references = new ArrayList<>();
+
+        /**
+         * Counters incremented while parsing the page, excluding the ones incremented by the referenced records
+         */
+        final LinkedHashMap<Enum<?>, Long> counters = new LinkedHashMap<>();
+
+        /**
+         * Approximate size of the page, in bytes
+         */
+        long size = PAGE_SIZE_APPROXIMATION;
+
+        /**
+         * Adds an inline image of the page, saved again when the page is replayed
+         *
+         * @param url data url of the image
+         */
+        void addInlineImage(String url) {
+            references.add(new ImageReference(url, null, null, null, null, 0, null, null, null));
+            size += REFERENCE_SIZE_APPROXIMATION + 2L * url.length();
+        }
+
+        /**
+         * Adds an insertImageIndexes call of the page
+         */
+        void addImage(String imgURL, String imgTitle, String imgAlt, String imgCaption, int pageImages, String pageURL, String pageTitle, String foundInTag) {
+            references.add(new ImageReference(null, imgURL, imgTitle, imgAlt, imgCaption, pageImages, pageURL, pageTitle, foundInTag));
+            size += REFERENCE_SIZE_APPROXIMATION + 2L * (length(imgURL) + length(imgTitle) + length(imgAlt) + length(imgCaption));
+        }
+
+        private static int length(String value) {
+            return value == null ? 0 : value.length();
+        }
+
+        /**
+         * Wraps a counter so that its increments are also added to the page counters
+         *
+         * @param counterName name of the counter
+         * @param counter counter to wrap
+         * @return counter recording its increments
+         */
+        Counter record(Enum<?> counterName, Counter counter) {
+            return new RecordingCounter(counterName, counter, this);
+        }
+    }
+
+    /**
+     * Inline image (url set) or arguments of an insertImageIndexes call of a page. The urls are kept as Strings, as
+     * ParsedURL objects cannot be shared between worker threads
+     */
+    static class ImageReference {
+        final String inlineURL;
+        final String imgURL;
+        final String imgTitle;
+        final String imgAlt;
+        final String imgCaption;
+        final int pageImages;
+        final String pageURL;
+        final String pageTitle;
+        final String foundInTag;
+
+        private ImageReference(String inlineURL, String imgURL, String imgTitle, String imgAlt, String imgCaption, int pageImages, String pageURL, String pageTitle, String foundInTag) {
+            this.inlineURL = inlineURL;
+            this.imgURL = imgURL;
+            this.imgTitle = imgTitle;
+            this.imgAlt = imgAlt;
+            this.imgCaption = imgCaption;
+            this.pageImages = pageImages;
+            this.pageURL = pageURL;
+            this.pageTitle = pageTitle;
+            this.foundInTag = foundInTag;
+        }
+    }
+
+    /**
+     * Counter that increments another counter and the counters of the page being parsed
+     */
+    private static class RecordingCounter extends GenericCounter {
+
+        private final Enum<?> counterName;
+
+        private final Counter counter;
+
+        private final PageExtraction page;
+
+        private RecordingCounter(Enum<?> counterName, Counter counter, PageExtraction page) {
+            super(counterName.name(), counterName.name());
+            this.counterName = counterName;
+            this.counter = counter;
+            this.page = page;
+        }
+
+        @Override
+        public synchronized void increment(long incr) {
+            counter.increment(incr);
+            page.counters.merge(counterName, incr, Long::sum);
+        }
+
+        @Override
+        public synchronized long getValue() {
+            return counter.getValue();
+        }
+
+        @Override
+        public synchronized void setValue(long value) {
+            counter.setValue(value);
+        }
+    }
+}
@@ -0,0 +1,710 @@
+package pt.arquivo.imagesearch.indexing.processors;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.log4j.Logger;
+import org.archive.io.arc.ARCRecord;
+import pt.arquivo.imagesearch.indexing.ImageIndexerWithDupsJob;
+import pt.arquivo.imagesearch.indexing.data.FullImageMetadata;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+import pt.arquivo.imagesearch.indexing.data.PageImageData;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+import pt.arquivo.imagesearch.indexing.utils.WARCRecordResponseEncapsulated;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Staged, multi-threaded version of the ImageInformationExtractor.
+ * <p>
+ * The thread calling parseRecord (the reader) only inflates (W)ARC records into byte arrays.
+ * Page records are then parsed by a pool of HTML workers and image records by a pool of image workers,
+ * both fed by bounded queues so that the reader blocks when workers fall behind.
+ * <p>
+ * Each record is given a sequence number by the reader. Worker results are committed into a set of
+ * SURT-sharded entry maps strictly in that order, so each entry sees the same insertion order as in the serial
+ * extractor and the merged results are identical.
+ * <p>
+ * Revisit records are resolved by a worker once the record with the same payload digest, if still being parsed,
+ * has finished, so that its results are already in the page cache or image memo.
+ */
+public class PipelinedImageInformationExtractor extends ImageInformationExtractor {
+
+    /**
+     * Number of shards used for the entries map
+     */
+    public static final int ENTRY_SHARDS = 16;
+
+    /**
+     * Maximum time to wait for the workers to finish after the last record is read
+     */
+    public static final int SHUTDOWN_TIMEOUT_MINUTES = 60;
+
+    private final Logger logger = Logger.getLogger(PipelinedImageInformationExtractor.class);
+
+    /**
+     * Pool of threads parsing HTML records
+     */
+    private final ThreadPoolExecutor htmlWorkers;
+
+    /**
+     * Pool of threads parsing and thumbnailing image records
+     */
+    private final ThreadPoolExecutor imageWorkers;
+
+    /**
+     * Worker-side extractor for each pool thread, so that per-page state (e.g. the caption cache) is not shared
+     */
+    private final ThreadLocal<DeferredImageInformationExtractor> workers = ThreadLocal.withInitial(() -> new DeferredImageInformationExtractor(this));
+
+    /**
+     * Entries sharded by SURT hash, each one committed in record order
+     */
+    private final EntryShard[] shards;
+
+    /**
+     * Records submitted by each reader thread and not yet committed
+     */
+    private final ThreadLocal<RecordBatch> currentBatch = ThreadLocal.withInitial(RecordBatch::new);
+
+    /**
+     * Records with a payload digest that are being parsed, by digest, waited for by their revisits
+     * (only tracked when the page cache or image memo is enabled)
+     */
+    private final HashMap<String, RecordTask> inFlightDigests = new HashMap<>();
+
+    /**
+     * Next record sequence number
+     */
+    private long nextSequence = 0;
+
+    /**
+     * Whether the pools have already been shut down
+     */
+    private boolean closed = false;
+
+    /**
+     * Constructor used for Hadoop
+     *
+     * @param collection   collection name
+     * @param context      Hadoop context
+     * @param htmlThreads  number of threads parsing HTML records
+     * @param imageThreads number of threads parsing image records
+     * @param queueSize    maximum number of records waiting in each worker queue
+     */
+    public PipelinedImageInformationExtractor(String collection, Mapper<LongWritable, ?, Text, Writable>.Context context, int htmlThreads, int imageThreads, int queueSize) {
+        super(collection, context);
+        this.htmlWorkers = createPool("html-worker", htmlThreads, queueSize);
+        this.imageWorkers = createPool("image-worker", imageThreads, queueSize);
+        this.shards = createShards();
+    }
+
+    /**
+     * Constructor used for local parser
+     *
+     * @param collection   collection name
+     * @param htmlThreads  number of threads parsing HTML records
+     * @param imageThreads number of threads parsing image records
+     * @param queueSize    maximum number of records waiting in each worker queue
+     */
+    public PipelinedImageInformationExtractor(String collection, int htmlThreads, int imageThreads, int queueSize) {
+        super(collection);
+        this.htmlWorkers = createPool("html-worker", htmlThreads, queueSize);
+        this.imageWorkers = createPool("image-worker", imageThreads, queueSize);
+        this.shards = createShards();
+    }
+
+    private static EntryShard[] createShards() {
+        EntryShard[] shards = new EntryShard[ENTRY_SHARDS];
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new EntryShard();
+        return shards;
+    }
+
+    /**
+     * Creates a fixed size pool whose submissions block while the queue is full
+     *
+     * @param name      thread name prefix
+     * @param threads   number of threads
+     * @param queueSize maximum number of queued records
+     * @return the pool
+     */
+    private static ThreadPoolExecutor createPool(String name, int threads, int queueSize) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> {
+                    if (executor.isShutdown())
+                        throw new RejectedExecutionException("Pipeline already closed");
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+    }
+
+    /**
+     * Parses a whole (W)ARC and waits until all of its records are committed
+     *
+     * @param arcName name of the (W)ARCs
+     * @param arcURL  (W)ARCs url
+     */
+    @Override
+    public void parseRecord(String arcName, String arcURL) {
+        RecordBatch batch = new RecordBatch();
+        RecordBatch previous = currentBatch.get();
+        currentBatch.set(batch);
+        try {
+            super.parseRecord(arcName, arcURL);
+        } finally {
+            currentBatch.set(previous);
+            batch.await();
+        }
+        if (batch.failure != null) {
+            this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.RECORD_NEXT_FAILED).increment(1);
+            this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.WARCS_FAILED_STREAM).increment(1);
+            logger.error("Exception reading WARC bytes, WARCNAME: " + arcName + " " + batch.failure.getMessage());
+            throw batch.failure;
+        }
+    }
+
+    /**
+     * Reads the WARC record content and hands it to the workers
+     *
+     * @param record   WARC record object
+     * @param warcName WARC name
+     */
+    @Override
+    public void parseWarcRecord(WARCRecordResponseEncapsulated record, String warcName) {
+        // fail the WARC as soon as possible, as the serial extractor would
+        RecordBatch batch = currentBatch.get();
+        if (batch.failure != null)
+            throw batch.failure;
+
+        String mimetype = record.getContentMimetype();
+        if (mimetype == null)
+            return;
+
+        long warcOffset = record.getWARCRecord().getHeader().getOffset();
+        String url = record.getWARCRecord().getHeader().getUrl();
+        String payloadDigest = record.getPayloadDigest();
+
+        if (record.isRevisit()) {
+            if (mimetype.contains("image") || mimetype.contains("html")) {
+                RecordTask original = null;
+                if (payloadDigest != null) {
+                    synchronized (inFlightDigests) {
+                        original = inFlightDigests.get(payloadDigest);
+                    }
+                }
+                submit(new RevisitTask(url, record.getTs(), mimetype, payloadDigest, warcName, warcOffset, original));
+            }
+            return;
+        }
+
+        List<RecordTask> tasks = new ArrayList<>(2);
+        if (mimetype.contains("image")) {
+            String timestamp = "";
+            try {
+                timestamp = record.getTs();
+                String imageURLHashKey = ImageSearchIndexingUtil.md5ofString(url);
+
+                this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_TOTAL).increment(1);
+
+                byte[] contentBytes;
+                try {
+                    contentBytes = record.getContentBytes();
+                } catch (RuntimeException e) {
+                    logger.error(String.format("Error getting record content bytes for image url: %s/%s with error message %s", timestamp, url, e.getMessage()));
+                    this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_FAILED).increment(1);
+                    contentBytes = null;
+                }
+
+                if (contentBytes != null)
+                    tasks.add(new ImageTask(url, imageURLHashKey, timestamp, mimetype, contentBytes, warcName, warcOffset, payloadDigest, false));
+            } catch (Exception e) {
+                logger.error(String.format("Error parsing image url: %s/%s with error message %s", timestamp, url, e.getMessage()));
+                this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_FAILED).increment(1);
+            }
+        }
+        if (mimetype.contains("html")) {
+            byte[] contentBytes = record.getContentBytes();
+            tasks.add(new HtmlTask(contentBytes, mimetype, url, record.getTs(), warcName, warcOffset, payloadDigest, false));
+        }
+
+        for (RecordTask task : tasks) {
+            if (payloadDigest != null && (pageCache != null || imageMemo != null)) {
+                task.trackedDigest = payloadDigest;
+                synchronized (inFlightDigests) {
+                    inFlightDigests.put(payloadDigest, task);
+                }
+            }
+            submit(task);
+        }
+    }
+
+    /**
+     * Reads the ARC record content and hands it to the workers
+     *
+     * @param record  ARC record object
+     * @param arcName ARC url
+     */
+    @Override
+    public void parseArcRecord(ARCRecord record, String arcName) {
+        String mimetype = record.getMetaData().getMimetype();
+        long arcOffset = record.getMetaData().getOffset();
+        if (mimetype.contains("image")) {
+            String url = record.getHeader().getUrl();
+            String timestamp = record.getMetaData().getDate();
+            String imageURLHashKey = ImageSearchIndexingUtil.md5ofString(url);
+
+            this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_TOTAL).increment(1);
+
+            byte[] contentBytes;
+            try {
+                contentBytes = ImageSearchIndexingUtil.getRecordContentBytes(record);
+            } catch (IOException e) {
+                logger.error(String.format("Error getting record content bytes for image url: %s/%s on offset %d with error message %s", timestamp, url, record.getBodyOffset(), e.getMessage()));
+                this.getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_FAILED).increment(1);
+                return;
+            }
+            submit(new ImageTask(url, imageURLHashKey, timestamp, mimetype, contentBytes, arcName, arcOffset, null, true));
+        } else if (mimetype.contains("html")) {
+            byte[] recordContentBytes;
+            try {
+                recordContentBytes = ImageSearchIndexingUtil.getRecordContentBytes(record);
+            } catch (IOException e) {
+                logger.error(String.format("Error getting record content bytes for (w)arc: %s on offset %d with error message %s", arcName, record.getBodyOffset(), e.getMessage()));
+                return;
+            }
+            submit(new HtmlTask(recordContentBytes, ImageSearchIndexingUtil.getHttpContentType(record), record.getHeader().getUrl(), record.getMetaData().getDate(), arcName, arcOffset, null, true));
+        }
+    }
+
+    /**
+     * Assigns the next sequence number to a task and queues it in the matching pool
+     *
+     * @param task task to run
+     */
+    private void submit(RecordTask task) {
+        synchronized (this) {
+            task.sequence = nextSequence++;
+        }
+        task.batch = currentBatch.get();
+        task.batch.begin();
+        try {
+            if (task.parsesHtml())
+                htmlWorkers.execute(task);
+            else
+                imageWorkers.execute(task);
+        } catch (RejectedExecutionException e) {
+            // keep the commit order consistent even if the record never runs
+            commit(task.sequence, Collections.emptyList());
+            task.release();
+            task.batch.end(null);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds records parsed elsewhere, after all records submitted so far
+     *
+     * @param records ImageData and PageImageData objects to index
+     */
+    @Override
+    public void indexAll(List<Object> records) {
+        long sequence;
+        synchronized (this) {
+            sequence = nextSequence++;
+        }
+        commit(sequence, records);
+        flushEntries();
+    }
+
+    @Override
+    public void setEntryBudget(long entryBudget) {
+        super.setEntryBudget(entryBudget);
+        if (entryBudget > 0) {
+            for (EntryShard shard : shards) {
+                synchronized (shard) {
+                    shard.entries = createLruEntries(shard.entries);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the entry budget, called by the reader between records.
+     * The shards are still being updated by the workers, so the coldest entry of each shard is written out in turn
+     * until the entries are back under the flush target
+     */
+    @Override
+    protected void flushEntries() {
+        if (!startFlush())
+            return;
+        boolean flushed = true;
+        while (flushed && entryBytes.get() > getFlushTarget()) {
+            flushed = false;
+            for (EntryShard shard : shards) {
+                Map.Entry<String, FullImageMetadata> coldest;
+                synchronized (shard) {
+                    Iterator<Map.Entry<String, FullImageMetadata>> iterator = shard.entries.entrySet().iterator();
+                    if (!iterator.hasNext())
+                        continue;
+                    coldest = iterator.next();
+                    iterator.remove();
+                }
+                // written outside the lock, so that workers are not blocked by the Hadoop context
+                writeEntry(coldest.getKey(), coldest.getValue());
+                flushed = true;
+            }
+        }
+    }
+
+    /**
+     * Adds the results of a record to the entry shards, in record order
+     *
+     * @param sequence record sequence number
+     * @param results  ImageData and PageImageData objects produced by the record, in the order they were produced
+     */
+    private void commit(long sequence, List<Object> results) {
+        List<List<Object>> shardResults = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++)
+            shardResults.add(Collections.emptyList());
+
+        for (Object result : results) {
+            String surt = result instanceof ImageData ? ((ImageData) result).getSurt() : ((PageImageData) result).getImgSurt();
+            int shard = (surt.hashCode() & Integer.MAX_VALUE) % shards.length;
+            if (shardResults.get(shard).isEmpty())
+                shardResults.set(shard, new ArrayList<>());
+            shardResults.get(shard).add(result);
+        }
+
+        for (int i = 0; i < shards.length; i++) {
+            EntryShard shard = shards[i];
+            synchronized (shard) {
+                shard.pending.put(sequence, shardResults.get(i));
+                Map.Entry<Long, List<Object>> next;
+                while ((next = shard.pending.firstEntry()) != null && next.getKey() == shard.nextSequence) {
+                    shard.pending.pollFirstEntry();
+                    for (Object result : next.getValue()) {
+                        if (result instanceof ImageData)
+                            indexImageData(shard.entries, (ImageData) result);
+                        else
+                            indexPageImageData(shard.entries, (PageImageData) result);
+                    }
+                    shard.nextSequence++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for all workers to finish and returns the merged entries.
+     * No more records can be parsed after this method is called.
+     *
+     * @return parsed metadatas
+     */
+    @Override
+    public HashMap<String, FullImageMetadata> getEntries() {
+        close();
+        if (entries.isEmpty()) {
+            for (EntryShard shard : shards) {
+                synchronized (shard) {
+                    entries.putAll(shard.entries);
+                    shard.entries.clear();
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Shuts down the worker pools, waiting for all queued records to be committed
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        htmlWorkers.shutdown();
+        imageWorkers.shutdown();
+        try {
+            if (!htmlWorkers.awaitTermination(SHUTDOWN_TIMEOUT_MINUTES, TimeUnit.MINUTES) || !imageWorkers.awaitTermination(SHUTDOWN_TIMEOUT_MINUTES, TimeUnit.MINUTES))
+                logger.error("Timeout waiting for pipeline workers to finish");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted waiting for pipeline workers to finish");
+        }
+        RecordBatch batch = currentBatch.get();
+        batch.await();
+        if (batch.failure != null)
+            throw batch.failure;
+    }
+
+    /**
+     * Part of the entries map, guarded by its own lock
+     */
+    private static class EntryShard {
+
+        /**
+         * Entries for the SURTs that belong to this shard
+         */
+        private HashMap<String, FullImageMetadata> entries = new HashMap<>();
+
+        /**
+         * Results that finished before some earlier record, by sequence number
+         */
+        private final TreeMap<Long, List<Object>> pending = new TreeMap<>();
+
+        /**
+         * Sequence number of the next record to commit into this shard
+         */
+        private long nextSequence = 0;
+    }
+
+    /**
+     * Tracks the records submitted for one (W)ARC (or for the whole task, for HDFS records)
+     */
+    private static class RecordBatch {
+
+        private int inFlight = 0;
+
+        /**
+         * First unexpected failure from a worker, rethrown to the reader
+         */
+        private volatile RuntimeException failure;
+
+        private synchronized void begin() {
+            inFlight++;
+        }
+
+        private synchronized void end(RuntimeException e) {
+            if (e != null && failure == null)
+                failure = e;
+            inFlight--;
+            notifyAll();
+        }
+
+        private synchronized void await() {
+            boolean interrupted = false;
+            while (inFlight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Unit of work for a single record, run in a worker thread
+     */
+    private abstract class RecordTask implements Runnable {
+
+        private long sequence;
+
+        private RecordBatch batch;
+
+        /**
+         * Whether the record comes from an ARC, whose reader counts failures per record instead of failing the file
+         */
+        private final boolean arc;
+
+        /**
+         * Payload digest under which the record is tracked in inFlightDigests (null if it is not tracked)
+         */
+        private String trackedDigest;
+
+        /**
+         * Released once the record is committed
+         */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        RecordTask(boolean arc) {
+            this.arc = arc;
+        }
+
+        abstract void process(DeferredImageInformationExtractor worker);
+
+        /**
+         * Whether the task runs in the HTML pool (image pool otherwise)
+         */
+        boolean parsesHtml() {
+            return false;
+        }
+
+        /**
+         * Wakes up the revisits waiting for this record and stops tracking it
+         */
+        private void release() {
+            done.countDown();
+            if (trackedDigest != null) {
+                synchronized (inFlightDigests) {
+                    inFlightDigests.remove(trackedDigest, this);
+                }
+            }
+        }
+
+        /**
+         * Waits until this record is committed. Only revisit tasks wait, and only for records submitted before them,
+         * which never wait themselves, so the pools cannot deadlock
+         */
+        private void awaitDone() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        @Override
+        public void run() {
+            DeferredImageInformationExtractor worker = workers.get();
+            RuntimeException failure = null;
+            try {
+                process(worker);
+            } catch (RuntimeException e) {
+                if (arc) {
+                    // the reader already counted this record as read
+                    getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.RECORDS_READ).increment(-1);
+                    getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.RECORDS_FAILED).increment(1);
+                    logger.error("Exception reading (W)ARC record", e);
+                } else {
+                    failure = e;
+                }
+            } finally {
+                List<Object> results = worker.takeResults();
+                commit(sequence, failure == null ? results : Collections.emptyList());
+                release();
+                batch.end(failure);
+            }
+        }
+    }
+
+    private class ImageTask extends RecordTask {
+        private final String url;
+        private final String imageURLHashKey;
+        private final String timestamp;
+        private final String mime;
+        private final byte[] contentBytes;
+        private final String warcName;
+        private final long warcOffset;
+        private final String payloadDigest;
+
+        ImageTask(String url, String imageURLHashKey, String timestamp, String mime, byte[] contentBytes, String warcName, long warcOffset, String payloadDigest, boolean arc) {
+            super(arc);
+            this.url = url;
+            this.imageURLHashKey = imageURLHashKey;
+            this.timestamp = timestamp;
+            this.mime = mime;
+            this.contentBytes = contentBytes;
+            this.warcName = warcName;
+            this.warcOffset = warcOffset;
+            this.payloadDigest = payloadDigest;
+        }
+
+        @Override
+        void process(DeferredImageInformationExtractor worker) {
+            if (super.arc) {
+                worker.saveImageMetadata(url, imageURLHashKey, timestamp, mime, contentBytes, warcName, warcOffset, payloadDigest);
+                return;
+            }
+            try {
+                worker.saveImageMetadata(url, imageURLHashKey, timestamp, mime, contentBytes, warcName, warcOffset, payloadDigest);
+            } catch (Exception e) {
+                logger.error(String.format("Error parsing image url: %s/%s with error message %s", timestamp, url, e.getMessage()));
+                getCounter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_FAILED).increment(1);
+            }
+        }
+    }
+
+    private class HtmlTask extends RecordTask {
+        private final byte[] contentBytes;
+        private final String contentType;
+        private final String pageURL;
+        private final String pageTstamp;
+        private final String warcName;
+        private final long warcOffset;
+        private final String payloadDigest;
+
+        HtmlTask(byte[] contentBytes, String contentType, String pageURL, String pageTstamp, String warcName, long warcOffset, String payloadDigest, boolean arc) {
+            super(arc);
+            this.contentBytes = contentBytes;
+            this.contentType = contentType;
+            this.pageURL = pageURL;
+            this.pageTstamp = pageTstamp;
+            this.warcName = warcName;
+            this.warcOffset = warcOffset;
+            this.payloadDigest = payloadDigest;
+        }
+
+        @Override
+        boolean parsesHtml() {
+            return true;
+        }
+
+        @Override
+        void process(DeferredImageInformationExtractor worker) {
+            worker.parseImagesFromHtmlRecord(null, contentBytes, contentType, pageURL, pageTstamp, warcName, warcOffset, payloadDigest);
+        }
+    }
+
+    private class RevisitTask extends RecordTask {
+        private final String url;
+        private final String timestamp;
+        private final String mime;
+        private final String payloadDigest;
+        private final String warcName;
+        private final long warcOffset;
+
+        /**
+         * Record with the same payload digest that was still being parsed when the revisit was read (may be null)
+         */
+        private final RecordTask original;
+
+        RevisitTask(String url, String timestamp, String mime, String payloadDigest, String warcName, long warcOffset, RecordTask original) {
+            super(false);
+            this.url = url;
+            this.timestamp = timestamp;
+            this.mime = mime;
+            this.payloadDigest = payloadDigest;
+            this.warcName = warcName;
+            this.warcOffset = warcOffset;
+            this.original = original;
+        }
+
+        @Override
+        boolean parsesHtml() {
+            return mime.contains("html");
+        }
+
+        @Override
+        void process(DeferredImageInformationExtractor worker) {
+            if (original != null)
+                original.awaitDone();
+            worker.parseRevisit(url, timestamp, mime, payloadDigest, warcName, warcOffset);
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package pt.arquivo.imagesearch.indexing.processors;
+
+import org.jsoup.helper.StringUtil;
+import org.jsoup.nodes.Attributes;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.Tag;
+import pt.arquivo.imagesearch.indexing.utils.HtmlStreamTokenizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Image candidates of a page read with HtmlStreamTokenizer, for pages too large to be parsed into a DOM
+ * (see ImageInformationExtractor.parseHTMLPageStreaming).
+ * <p>
+ * The img, a and CSS candidates are collected as with the DOM. Captions follow extractCaptionFromParent, choosing
+ * between the text of the closest enclosing element that has any and the text of the closest sibling elements, but
+ * without a tree: both captions are kept until the elements that decide between them are closed, and the text of each
+ * element is only kept as a sample of its first and last chars (see getSample), which is all that trimCaption keeps
+ * of longer captions. Comments are not counted as child nodes, and elements implied by the DOM are not created.
+ * <p>
+ * Memory is bounded: at most MAX_DEPTH elements are open, and the candidates are limited in number (MAX_IMAGE_IN_HTML
+ * of each kind) and in total size (MAX_CANDIDATE_CHARS). Candidates over these limits are counted in notParsed.
+ */
+class StreamingHtmlPage implements HtmlStreamTokenizer.Handler {
+
+    /**
+     * Maximum number of open elements, deeper elements are taken as part of the deepest open one
+     */
+    static final int MAX_DEPTH = 256;
+
+    /**
+     * Maximum number of chars kept by the candidates of a page
+     */
+    static final int MAX_CANDIDATE_CHARS = 16 * 1024 * 1024;
+
+    /**
+     * Maximum number of chars of a style element searched for url() references
+     */
+    static final int MAX_STYLE_CHARS = 1024 * 1024;
+
+    /**
+     * Chars kept from the start and end of the text of each element, for captions
+     */
+    private static final int CAPTION_HALF = ImageInformationExtractor.MAX_PARENT_CAPTION_SIZE / 2;
+
+    /**
+     * Maximum length of a text sample (see getSample)
+     */
+    private static final int MAX_SAMPLE_CHARS = 2 * CAPTION_HALF + 1;
+
+    /**
+     * Elements that are implicitly closed by a start tag of the same element
+     */
+    private static final Set<String> SELF_NESTING_TAGS = new HashSet<>(Arrays.asList("li", "dt", "dd", "option", "tr", "td", "th"));
+
+    /**
+     * Elements whose start tag closes an open p element, as in the HTML tree construction
+     */
+    private static final Set<String> CLOSING_P_TAGS = new HashSet<>(Arrays.asList("address", "article", "aside",
+            "blockquote", "center", "details", "dialog", "dir", "div", "dl", "fieldset", "figcaption", "figure", "footer",
+            "form", "header", "hgroup", "hr", "menu", "nav", "ol", "p", "pre", "listing", "section", "summary", "ul",
+            "h1", "h2", "h3", "h4", "h5", "h6"));
+
+    /**
+     * Elements that limit the search for the open p element to close
+     */
+    private static final Set<String> SCOPE_TAGS = new HashSet<>(Arrays.asList("html", "table", "td", "th", "caption",
+            "button", "applet", "marquee", "object", "template"));
+
+    private static final Set<String> HEADING_TAGS = new HashSet<>(Arrays.asList("h1", "h2", "h3", "h4", "h5", "h6"));
+
+    /**
+     * Candidate from an img element
+     */
+    static class ImageCandidate {
+        final Set<String> srcs;
+        final String title;
+        final String alt;
+        String caption = "";
+
+        /**
+         * Text sample of the closest previous sibling element with text (of the img, or of the element with no text
+         * that contains it)
+         */
+        private String previousText;
+
+        /**
+         * Text sample of the closest next sibling element with text
+         */
+        private String nextText;
+
+        /**
+         * Largest number of child nodes of the img and of its ancestors up to the closest one with text
+         */
+        private int maxChildren = 0;
+
+        /**
+         * Caption from the closest ancestor with text, used instead of the sibling caption if an ancestor above it has
+         * at least maxChildren child nodes
+         */
+        private String parentCaption;
+
+        ImageCandidate(Set<String> srcs, String title, String alt) {
+            this.srcs = srcs;
+            this.title = title;
+            this.alt = alt;
+        }
+    }
+
+    /**
+     * Candidate from an a element linking to an image
+     */
+    static class LinkCandidate {
+        final String baseURL;
+        final String href;
+        String caption = "";
+
+        LinkCandidate(String baseURL, String href) {
+            this.baseURL = baseURL;
+            this.href = href;
+        }
+    }
+
+    /**
+     * Open element. Frames are reused for the following elements once they are closed
+     */
+    private static class Frame {
+        private String name;
+
+        /**
+         * Position of the first char of the element text in the page text
+         */
+        private long start;
+
+        /**
+         * First CAPTION_HALF chars of the element text
+         */
+        private final StringBuilder head = new StringBuilder(CAPTION_HALF);
+
+        /**
+         * Number of child nodes
+         */
+        private int children;
+
+        /**
+         * Text sample of the last child element with text
+         */
+        private final char[] lastText = new char[MAX_SAMPLE_CHARS];
+
+        /**
+         * Length of lastText, or -1 if no child element has text
+         */
+        private int lastTextLength;
+
+        /**
+         * Images in this element, or in its children without text, whose caption is not chosen yet
+         */
+        private List<ImageCandidate> images;
+
+        /**
+         * Images of this element still waiting for a next sibling with text
+         */
+        private List<ImageCandidate> awaitingNext;
+
+        /**
+         * Images of descendants with a sibling caption, until an ancestor with at least their maxChildren child nodes
+         * is found
+         */
+        private List<ImageCandidate> undecided;
+
+        private LinkCandidate link;
+
+        /**
+         * Text of the link, up to MAX_IMAGE_FIELD_SIZE chars
+         */
+        private StringBuilder linkText;
+
+        private void reset(String name, long start) {
+            this.name = name;
+            this.start = start;
+            head.setLength(0);
+            children = 0;
+            lastTextLength = -1;
+            images = null;
+            awaitingNext = null;
+            undecided = null;
+            link = null;
+            linkText = null;
+        }
+
+        /**
+         * @return text sample of the last child element with text, or null if there is none
+         */
+        private String getLastText() {
+            return lastTextLength < 0 ? null : new String(lastText, 0, lastTextLength);
+        }
+    }
+
+    private final ImageInformationExtractor extractor;
+
+    /**
+     * Page url, which img and CSS urls are resolved against
+     */
+    private final String pageURL;
+
+    /**
+     * Url links are resolved against: the page url, or the first base element of the page
+     */
+    private String baseURL;
+
+    private boolean baseSet = false;
+
+    final List<ImageCandidate> images = new ArrayList<>();
+
+    final List<LinkCandidate> links = new ArrayList<>();
+
+    /**
+     * CSS url() values, as in the page
+     */
+    final List<String> cssUrls = new ArrayList<>();
+
+    /**
+     * Values of the img and a urls, to skip CSS references to them
+     */
+    final Set<String> imgSrcParsed = new HashSet<>();
+
+    /**
+     * Number of img elements in the page
+     */
+    int imageCount = 0;
+
+    /**
+     * Number of candidates dropped by the limits
+     */
+    int notParsed = 0;
+
+    String pageTitle = "";
+
+    private StringBuilder title;
+
+    private boolean titleDone = false;
+
+    private StringBuilder style;
+
+    private long candidateChars = 0;
+
+    private final List<Frame> stack = new ArrayList<>();
+
+    /**
+     * Closed frames, to be reused
+     */
+    private final List<Frame> freeFrames = new ArrayList<>();
+
+    /**
+     * Open elements still collecting text for their head or link text
+     */
+    private final List<Frame> collecting = new ArrayList<>();
+
+    /**
+     * Last chars of the page text, by position
+     */
+    private final char[] window = new char[CAPTION_HALF + 1];
+
+    /**
+     * Buffer for the text samples of the elements with images
+     */
+    private final char[] sample = new char[MAX_SAMPLE_CHARS];
+
+    /**
+     * Length of the page text, with whitespace runs collapsed into a single space
+     */
+    private long textLength = 0;
+
+    private boolean pendingSpace = false;
+
+    /**
+     * Whether the last token closed a block element, which is followed by a space if text comes next
+     */
+    private boolean afterBlock = false;
+
+    /**
+     * Whether the last token was text, so that a text chunk is not counted as a new child node
+     */
+    private boolean inText = false;
+
+    /**
+     * @param extractor extractor of the page, used to find the image urls
+     * @param pageURL page url, with protocol
+     * @param baseURL url the links are resolved against until a base element is found
+     */
+    StreamingHtmlPage(ImageInformationExtractor extractor, String pageURL, String baseURL) {
+        this.extractor = extractor;
+        this.pageURL = pageURL;
+        this.baseURL = baseURL;
+    }
+
+    @Override
+    public void startTag(String name, Attributes attributes) {
+        LinkCandidate link = null;
+        switch (name) {
+            case "img":
+                imageCount++;
+                if (images.size() >= ImageInformationExtractor.MAX_IMAGE_IN_HTML)
+                    break;
+                Set<String> srcs = extractor.getImgURLToParse(pageURL, attributes);
+                ImageCandidate image = new ImageCandidate(srcs, extractor.getHTMLAttribute(attributes, "title"), extractor.getHTMLAttribute(attributes, "alt"));
+                long chars = image.title.length() + image.alt.length() + 2 * ImageInformationExtractor.MAX_PARENT_CAPTION_SIZE;
+                for (String src : srcs)
+                    chars += src.length();
+                if (!reserve(chars))
+                    break;
+                for (String src : srcs)
+                    addParsedSrc(src);
+                images.add(image);
+                if (!stack.isEmpty()) {
+                    Frame parent = stack.get(stack.size() - 1);
+                    image.previousText = parent.getLastText();
+                    addImages(parent, Collections.singletonList(image));
+                }
+                break;
+            case "a":
+                if (!attributes.hasKey("href"))
+                    break;
+                String href = attributes.get("href");
+                addParsedSrc(href.trim());
+                if (!extractor.isLinkToImage(baseURL, href))
+                    break;
+                if (links.size() >= ImageInformationExtractor.MAX_IMAGE_IN_HTML || !reserve(href.length()))
+                    break;
+                link = new LinkCandidate(baseURL, href);
+                links.add(link);
+                break;
+            case "base":
+                if (!baseSet && attributes.hasKey("href")) {
+                    String base = StringUtil.resolve(baseURL, attributes.get("href"));
+                    if (!base.isEmpty()) {
+                        baseURL = base;
+                        baseSet = true;
+                    }
+                }
+                break;
+            case "style":
+                style = new StringBuilder();
+                break;
+        }
+        if (attributes.hasKey("style"))
+            addCssUrls(attributes.get("style"));
+
+        inText = false;
+        afterBlock = false;
+        Tag tag = Tag.valueOf(name);
+        if (tag.isBlock() || name.equals("br"))
+            boundary();
+        closeImplied(name);
+        if (!stack.isEmpty())
+            stack.get(stack.size() - 1).children++;
+        if (tag.isEmpty() || stack.size() >= MAX_DEPTH)
+            return;
+
+        Frame frame = freeFrames.isEmpty() ? new Frame() : freeFrames.remove(freeFrames.size() - 1);
+        frame.reset(name, textLength);
+        if (link != null) {
+            frame.link = link;
+            frame.linkText = new StringBuilder();
+        }
+        stack.add(frame);
+        collecting.add(frame);
+    }
+
+    /**
+     * Closes the elements that a start tag implicitly closes: an open p before a block, a heading before another one
+     * and the previous item of a list or table
+     */
+    private void closeImplied(String name) {
+        if (stack.isEmpty())
+            return;
+        if (CLOSING_P_TAGS.contains(name)) {
+            for (int i = stack.size() - 1; i >= 0 && !SCOPE_TAGS.contains(stack.get(i).name); i--) {
+                if (stack.get(i).name.equals("p")) {
+                    while (stack.size() > i)
+                        close(stack.remove(stack.size() - 1));
+                    break;
+                }
+            }
+        }
+        if (stack.isEmpty())
+            return;
+        String current = stack.get(stack.size() - 1).name;
+        if ((HEADING_TAGS.contains(name) && HEADING_TAGS.contains(current)) || (SELF_NESTING_TAGS.contains(name) && current.equals(name)))
+            close(stack.remove(stack.size() - 1));
+    }
+
+    @Override
+    public void endTag(String name) {
+        inText = false;
+        switch (name) {
+            case "title":
+                titleDone |= title != null;
+                break;
+            case "style":
+                if (style != null)
+                    addCssUrls(style.toString());
+                style = null;
+                break;
+        }
+        if (name.equals("br"))
+            boundary();
+        afterBlock = Tag.valueOf(name).isBlock();
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            if (stack.get(i).name.equals(name)) {
+                while (stack.size() > i)
+                    close(stack.remove(stack.size() - 1));
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void text(String text) {
+        if (!inText && !stack.isEmpty())
+            stack.get(stack.size() - 1).children++;
+        inText = true;
+        if (afterBlock)
+            boundary();
+        afterBlock = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (StringUtil.isActuallyWhitespace(c)) {
+                boundary();
+            } else {
+                if (pendingSpace) {
+                    append(' ');
+                    pendingSpace = false;
+                }
+                append(c);
+            }
+        }
+    }
+
+    @Override
+    public void rawText(String name, String text) {
+        if (name.equals("title") && !titleDone) {
+            if (title == null)
+                title = new StringBuilder();
+            if (title.length() < ImageInformationExtractor.MAX_IMAGE_FIELD_SIZE)
+                title.append(text, 0, Math.min(text.length(), ImageInformationExtractor.MAX_IMAGE_FIELD_SIZE - title.length()));
+        } else if (name.equals("style") && style != null && style.length() < MAX_STYLE_CHARS) {
+            style.append(text, 0, Math.min(text.length(), MAX_STYLE_CHARS - style.length()));
+        }
+    }
+
+    /**
+     * Closes the elements left open at the end of the page, assigning their captions
+     */
+    void finish() {
+        if (style != null)
+            addCssUrls(style.toString());
+        style = null;
+        while (!stack.isEmpty())
+            close(stack.remove(stack.size() - 1));
+        if (title != null)
+            pageTitle = StringUtil.normaliseWhitespace(Parser.unescapeEntities(title.toString(), false)).trim();
+    }
+
+    /**
+     * Whitespace or an element boundary: a single space is added before the next char of text
+     */
+    private void boundary() {
+        if (textLength > 0)
+            pendingSpace = true;
+    }
+
+    private void append(char c) {
+        long position = textLength++;
+        window[(int) (position % window.length)] = c;
+        for (int i = collecting.size() - 1; i >= 0; i--) {
+            Frame frame = collecting.get(i);
+            if (position < frame.start)
+                continue;
+            if (c == ' ' && position == frame.start) {
+                // the element text is trimmed
+                frame.start++;
+                continue;
+            }
+            if (frame.head.length() < CAPTION_HALF)
+                frame.head.append(c);
+            boolean linkTextDone = frame.linkText == null || frame.linkText.length() >= ImageInformationExtractor.MAX_IMAGE_FIELD_SIZE;
+            if (!linkTextDone && candidateChars < MAX_CANDIDATE_CHARS) {
+                frame.linkText.append(c);
+                candidateChars++;
+            }
+            if (frame.head.length() >= CAPTION_HALF && linkTextDone)
+                collecting.remove(i);
+        }
+    }
+
+    private void close(Frame frame) {
+        collecting.remove(frame);
+        long length = textLength - frame.start;
+        if (frame.link != null)
+            frame.link.caption = frame.linkText.toString();
+        Frame parent = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+
+        if (frame.undecided != null) {
+            for (ImageCandidate image : frame.undecided) {
+                if (frame.children >= image.maxChildren)
+                    image.caption = image.parentCaption;
+                else if (parent != null)
+                    addUndecided(parent, image);
+            }
+        }
+
+        if (frame.images != null) {
+            if (length > 0 && !frame.name.equals("html")) {
+                String parentCaption = ImageInformationExtractor.trimCaption(new String(sample, 0, getSample(frame, length, sample)));
+                for (ImageCandidate image : frame.images) {
+                    image.maxChildren = Math.max(image.maxChildren, frame.children);
+                    image.parentCaption = parentCaption;
+                    String previous = image.previousText == null ? "" : image.previousText;
+                    String next = image.nextText == null ? "" : image.nextText;
+                    image.caption = ImageInformationExtractor.trimCaption((previous + "\n" + next).trim());
+                    if (parent != null)
+                        addUndecided(parent, image);
+                }
+            } else if (parent != null) {
+                // no text: the caption is chosen by the parent element, with the siblings of this element (the last
+                // text child of the parent cannot change while this element is open)
+                String previous = parent.getLastText();
+                for (ImageCandidate image : frame.images) {
+                    image.maxChildren = Math.max(image.maxChildren, frame.children);
+                    image.previousText = previous;
+                    image.nextText = null;
+                }
+                addImages(parent, frame.images);
+            }
+        }
+
+        if (length > 0 && parent != null) {
+            parent.lastTextLength = getSample(frame, length, parent.lastText);
+            if (parent.awaitingNext != null) {
+                String next = parent.getLastText();
+                for (ImageCandidate image : parent.awaitingNext)
+                    image.nextText = next;
+                parent.awaitingNext = null;
+            }
+        }
+
+        if (freeFrames.size() < MAX_DEPTH) {
+            frame.reset(null, 0);
+            freeFrames.add(frame);
+        }
+    }
+
+    private static void addImages(Frame frame, List<ImageCandidate> images) {
+        if (frame.images == null)
+            frame.images = new ArrayList<>();
+        frame.images.addAll(images);
+        if (frame.awaitingNext == null)
+            frame.awaitingNext = new ArrayList<>();
+        frame.awaitingNext.addAll(images);
+    }
+
+    private static void addUndecided(Frame frame, ImageCandidate image) {
+        if (frame.undecided == null)
+            frame.undecided = new ArrayList<>();
+        frame.undecided.add(image);
+    }
+
+    /**
+     * Sample of the text of an element: the whole text when it is short, and otherwise its first
+     * MAX_PARENT_CAPTION_SIZE / 2 and last MAX_PARENT_CAPTION_SIZE / 2 + 1 chars, which give the same trimCaption
+     *
+     * @param frame element
+     * @param length length of the element text
+     * @param target array of at least MAX_SAMPLE_CHARS the sample is written to
+     * @return length of the sample
+     */
+    private int getSample(Frame frame, long length, char[] target) {
+        int sampleLength = frame.head.length();
+        frame.head.getChars(0, sampleLength, target, 0);
+        if (length <= CAPTION_HALF)
+            return sampleLength;
+        int tailLength = (int) Math.min(length - CAPTION_HALF, CAPTION_HALF + 1);
+        for (long position = textLength - tailLength; position < textLength; position++)
+            target[sampleLength++] = window[(int) (position % window.length)];
+        return sampleLength;
+    }
+
+    private void addCssUrls(String css) {
+        int urls = cssUrls.size();
+        ImageInformationExtractor.findCssUrls(css, cssUrls);
+        for (int i = cssUrls.size() - 1; i >= urls; i--) {
+            if (cssUrls.size() > ImageInformationExtractor.MAX_IMAGE_IN_HTML || !reserve(cssUrls.get(i).length())) {
+                cssUrls.remove(i);
+                notParsed++;
+            }
+        }
+    }
+
+    private void addParsedSrc(String src) {
+        if (src.length() <= ImageInformationExtractor.MAX_IMAGE_FIELD_SIZE && imgSrcParsed.size() < 4 * ImageInformationExtractor.MAX_IMAGE_IN_HTML)
+            imgSrcParsed.add(src);
+    }
+
+    /**
+     * Reserves space for a candidate
+     *
+     * @return false, counting the candidate as not parsed, if the page candidates are over MAX_CANDIDATE_CHARS
+     */
+    private boolean reserve(long chars) {
+        if (candidateChars + chars > MAX_CANDIDATE_CHARS) {
+            notParsed++;
+            return false;
+        }
+        candidateChars += chars;
+        return true;
+    }
+}
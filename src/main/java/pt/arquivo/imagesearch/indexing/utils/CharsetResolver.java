@@ -0,0 +1,222 @@
+package pt.arquivo.imagesearch.indexing.utils;
+
+import org.mozilla.universalchardet.UniversalDetector;
+import pt.arquivo.imagesearch.indexing.ImageIndexerWithDupsJob;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the charset of an HTML page, trying the cheap and reliable sources before the statistical detector.
+ * <p>
+ * The sources are tried in this order, as browsers do: a byte order mark, the charset of the HTTP Content-Type header,
+ * and a meta charset (or http-equiv Content-Type) declaration in the first META_SNIFF_BYTES of the page. Only when none
+ * of them names a supported charset is juniversalchardet run, over at most DETECTOR_MAX_BYTES and stopping as soon as
+ * it is sure. If the detector finds nothing, the last charset declared by a page of the same host is used, and UTF-8
+ * otherwise. The source used for each page is counted in ImageIndexerWithDupsJob.CHARSET_COUNTERS.
+ * <p>
+ * Instances keep the detector and the host cache, so they are not thread safe: each extractor has its own.
+ */
+public class CharsetResolver {
+
+    /**
+     * Charset used when no source resolves the page
+     */
+    public static final String DEFAULT_CHARSET = "UTF-8";
+
+    /**
+     * Number of bytes at the start of the page where the meta charset declaration is looked for
+     */
+    public static final int META_SNIFF_BYTES = 4 * 1024;
+
+    /**
+     * Maximum number of bytes given to the detector
+     */
+    public static final int DETECTOR_MAX_BYTES = 64 * 1024;
+
+    /**
+     * Number of bytes given to the detector at a time, before checking if it is done
+     */
+    private static final int DETECTOR_CHUNK_BYTES = 4 * 1024;
+
+    /**
+     * Maximum number of hosts whose last declared charset is kept
+     */
+    public static final int MAX_CACHED_HOSTS = 1024;
+
+    private static final Pattern HEADER_CHARSET = Pattern.compile("charset\\s*=\\s*[\"']?([^\\s;\"']+)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Matched against the lower case page start, so it covers both &lt;meta charset="..."&gt; and
+     * &lt;meta http-equiv="Content-Type" content="text/html; charset=..."&gt;
+     */
+    private static final Pattern META_CHARSET = Pattern.compile("<meta[^>]+charset\\s*=\\s*[\"']?\\s*([a-z0-9_:.\\-]+)");
+
+    private final UniversalDetector detector = new UniversalDetector(null);
+
+    /**
+     * Last charset declared by a page of each host, in access order
+     */
+    private final Map<String, String> hostCharsets = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_HOSTS;
+        }
+    };
+
+    /**
+     * Resolves the charset of a page
+     *
+     * @param bytes page bytes
+     * @param contentType HTTP Content-Type header of the page (may be null)
+     * @param pageURL page url, for the host cache (may be null)
+     * @param context context used to increment counters
+     * @return name of a supported charset
+     */
+    public String resolve(byte[] bytes, String contentType, String pageURL, ImageInformationExtractor context) {
+        String charset = getBOMCharset(bytes);
+        if (charset != null) {
+            context.getCounter(ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_BOM).increment(1);
+            return charset;
+        }
+
+        String host = getHost(pageURL);
+        charset = getHeaderCharset(contentType);
+        if (charset != null) {
+            context.getCounter(ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_HTTP_HEADER).increment(1);
+            if (host != null)
+                hostCharsets.put(host, charset);
+            return charset;
+        }
+
+        charset = getMetaCharset(bytes);
+        if (charset != null) {
+            context.getCounter(ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_META).increment(1);
+            if (host != null)
+                hostCharsets.put(host, charset);
+            return charset;
+        }
+
+        charset = detect(bytes);
+        if (charset != null) {
+            context.getCounter(ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_DETECTOR).increment(1);
+            return charset;
+        }
+
+        charset = host == null ? null : hostCharsets.get(host);
+        if (charset != null) {
+            context.getCounter(ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_HOST_HINT).increment(1);
+            return charset;
+        }
+
+        context.getCounter(ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_DEFAULT).increment(1);
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * Charset of a UTF-8 or UTF-16 byte order mark
+     *
+     * @param bytes page bytes
+     * @return charset name, or null if the page does not start with a byte order mark
+     */
+    public static String getBOMCharset(byte[] bytes) {
+        if (bytes.length >= 3 && (bytes[0] & 0xff) == 0xef && (bytes[1] & 0xff) == 0xbb && (bytes[2] & 0xff) == 0xbf)
+            return "UTF-8";
+        if (bytes.length >= 2 && (bytes[0] & 0xff) == 0xfe && (bytes[1] & 0xff) == 0xff)
+            return "UTF-16BE";
+        if (bytes.length >= 2 && (bytes[0] & 0xff) == 0xff && (bytes[1] & 0xff) == 0xfe)
+            return "UTF-16LE";
+        return null;
+    }
+
+    /**
+     * Charset parameter of an HTTP Content-Type header
+     *
+     * @param contentType header value (may be null)
+     * @return supported charset name, or null if there is none
+     */
+    public static String getHeaderCharset(String contentType) {
+        if (contentType == null)
+            return null;
+        Matcher matcher = HEADER_CHARSET.matcher(contentType);
+        if (!matcher.find())
+            return null;
+        return toSupportedCharset(matcher.group(1));
+    }
+
+    /**
+     * Charset declared in a meta tag in the first META_SNIFF_BYTES of the page
+     *
+     * @param bytes page bytes
+     * @return supported charset name, or null if there is none
+     */
+    public static String getMetaCharset(byte[] bytes) {
+        String start = new String(bytes, 0, Math.min(bytes.length, META_SNIFF_BYTES), StandardCharsets.ISO_8859_1).toLowerCase();
+        Matcher matcher = META_CHARSET.matcher(start);
+        while (matcher.find()) {
+            String label = matcher.group(1);
+            // a page that can be read as ASCII to find its meta tag is not UTF-16, browsers use UTF-8 instead
+            if (label.startsWith("utf-16"))
+                return "UTF-8";
+            String charset = toSupportedCharset(label);
+            if (charset != null)
+                return charset;
+        }
+        return null;
+    }
+
+    /**
+     * Maps a charset label to a charset Java can decode. ISO-8859-1 and US-ASCII labels (and their aliases) are read
+     * as windows-1252, as browsers do, since pages labelled with them often use its extra characters in 0x80-0x9f,
+     * which ISO-8859-1 decodes as control characters
+     *
+     * @param label charset label
+     * @return charset name, or null if the label is not supported
+     */
+    public static String toSupportedCharset(String label) {
+        String charset = label.trim().toLowerCase();
+        try {
+            if (!Charset.isSupported(charset))
+                return null;
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        }
+        String name = Charset.forName(charset).name();
+        if (name.equals("ISO-8859-1") || name.equals("US-ASCII"))
+            return "windows-1252";
+        return charset;
+    }
+
+    /**
+     * Runs the detector over the start of the page, until it is sure or DETECTOR_MAX_BYTES were read
+     */
+    private String detect(byte[] bytes) {
+        int length = Math.min(bytes.length, DETECTOR_MAX_BYTES);
+        for (int offset = 0; offset < length && !detector.isDone(); offset += DETECTOR_CHUNK_BYTES)
+            detector.handleData(bytes, offset, Math.min(DETECTOR_CHUNK_BYTES, length - offset));
+        detector.dataEnd();
+        String charset = detector.getDetectedCharset();
+        detector.reset();
+        return charset == null ? null : toSupportedCharset(charset);
+    }
+
+    /**
+     * Host of a page url, in lower case, without parsing the whole url
+     */
+    private static String getHost(String pageURL) {
+        if (pageURL == null)
+            return null;
+        int start = pageURL.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while (end < pageURL.length() && "/:?#".indexOf(pageURL.charAt(end)) < 0)
+            end++;
+        return end > start ? pageURL.substring(start, end).toLowerCase() : null;
+    }
+}
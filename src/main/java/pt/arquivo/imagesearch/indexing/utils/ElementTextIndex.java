@@ -0,0 +1,139 @@
+package pt.arquivo.imagesearch.indexing.utils;
+
+import org.jsoup.helper.StringUtil;
+import org.jsoup.nodes.CDataNode;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Text of every element of a DOM tree, computed in a single pass over the tree.
+ * <p>
+ * The text of the whole tree is built once, with the same rules as Element.text(), and each element keeps the range of
+ * its own (trimmed) text in it. Element.text() only differs from the text appended while its subtree is traversed in the
+ * whitespace at both ends, which the trimmed range leaves out, so text(element) is equal to element.text() without
+ * traversing the subtree again.
+ */
+public class ElementTextIndex {
+
+    /**
+     * Root of the indexed tree
+     */
+    private final Node root;
+
+    /**
+     * Text of the whole tree
+     */
+    private final String text;
+
+    /**
+     * Start and end of the trimmed text of each element, by element identity
+     */
+    private final IdentityHashMap<Element, int[]> ranges = new IdentityHashMap<>();
+
+    /**
+     * Indexes a DOM tree
+     *
+     * @param root root of the tree, usually the Document
+     */
+    public ElementTextIndex(Node root) {
+        this.root = root;
+        StringBuilder accum = new StringBuilder();
+        NodeTraversor.traverse(new NodeVisitor() {
+            @Override
+            public void head(Node node, int depth) {
+                if (node instanceof TextNode) {
+                    TextNode textNode = (TextNode) node;
+                    if (textNode instanceof CDataNode || preserveWhitespace(textNode.parent()))
+                        accum.append(textNode.getWholeText());
+                    else
+                        StringUtil.appendNormalisedWhitespace(accum, textNode.getWholeText(), lastCharIsWhitespace(accum));
+                } else if (node instanceof Element) {
+                    Element element = (Element) node;
+                    ranges.put(element, new int[]{accum.length(), 0});
+                    if (accum.length() > 0 && (element.isBlock() || element.tagName().equals("br")) && !lastCharIsWhitespace(accum))
+                        accum.append(' ');
+                }
+            }
+
+            @Override
+            public void tail(Node node, int depth) {
+                if (node instanceof Element) {
+                    Element element = (Element) node;
+                    if (element.isBlock() && node.nextSibling() instanceof TextNode && !lastCharIsWhitespace(accum))
+                        accum.append(' ');
+                    int[] range = ranges.get(element);
+                    int start = range[0];
+                    int end = accum.length();
+                    while (start < end && accum.charAt(start) <= ' ')
+                        start++;
+                    while (end > start && accum.charAt(end - 1) <= ' ')
+                        end--;
+                    range[0] = start;
+                    range[1] = end;
+                }
+            }
+        }, root);
+        this.text = accum.toString();
+    }
+
+    /**
+     * Root of the indexed tree
+     *
+     * @return root node
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Whether an element has any text, as !element.text().isEmpty()
+     *
+     * @param element element of the indexed tree
+     * @return true if the element has text
+     */
+    public boolean hasText(Element element) {
+        int[] range = ranges.get(element);
+        if (range == null)
+            return !element.text().isEmpty();
+        return range[1] > range[0];
+    }
+
+    /**
+     * Text of an element, as element.text()
+     *
+     * @param element element of the indexed tree
+     * @return element text, trimmed
+     */
+    public String text(Element element) {
+        int[] range = ranges.get(element);
+        if (range == null)
+            return element.text();
+        return text.substring(range[0], range[1]);
+    }
+
+    /**
+     * Whether the text of this node is kept as is, as in Element.preserveWhitespace (the node and five levels up)
+     */
+    private static boolean preserveWhitespace(Node node) {
+        if (node instanceof Element) {
+            Element element = (Element) node;
+            int i = 0;
+            do {
+                if (element.tag().preserveWhitespace())
+                    return true;
+                element = element.parent();
+                i++;
+            } while (i < 6 && element != null);
+        }
+        return false;
+    }
+
+    private static boolean lastCharIsWhitespace(StringBuilder accum) {
+        return accum.length() != 0 && accum.charAt(accum.length() - 1) == ' ';
+    }
+}
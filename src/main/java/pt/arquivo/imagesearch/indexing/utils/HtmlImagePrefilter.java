@@ -0,0 +1,144 @@
+package pt.arquivo.imagesearch.indexing.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Scans the raw bytes of an HTML record for anything that can become an image reference, so that pages without any
+ * are not decoded nor parsed.
+ * <p>
+ * Images are only found in img tags (written as &lt;img or &lt;image), in links and CSS urls with an image file
+ * extension, and in data:image urls, so a page can only have images if its bytes contain one of these patterns
+ * (ignoring case, except for data:image, which is matched as is). Extensions are looked for after any '.', or after an
+ * HTML character reference to '.', as links are compared after being resolved and unescaped.
+ * <p>
+ * The scan is conservative: it may accept pages without images, but never rejects a page with images. Pages that
+ * are not in an ASCII compatible encoding (a zero byte was found, as in UTF-16) are always accepted.
+ */
+public class HtmlImagePrefilter {
+
+    private static final byte[][] TAGS = {bytes("img"), bytes("image")};
+
+    private static final byte[] DATA_IMAGE = bytes("data:image");
+
+    private static final byte[] PERIOD_ENTITY = bytes("period");
+
+    /**
+     * Image file extensions, in lower case
+     */
+    private final byte[][] extensions;
+
+    /**
+     * Whether a byte can start a pattern, so that other bytes are skipped with a single lookup
+     */
+    private final boolean[] triggers = new boolean[256];
+
+    /**
+     * Creates a prefilter for links to the given image file extensions
+     *
+     * @param extensions image file extensions, without the '.'
+     */
+    public HtmlImagePrefilter(Collection<String> extensions) {
+        this.extensions = new byte[extensions.size()][];
+        int i = 0;
+        for (String extension : extensions)
+            this.extensions[i++] = bytes(extension.toLowerCase());
+        for (char trigger : new char[]{'<', '.', '&', 'd', 0})
+            triggers[trigger] = true;
+    }
+
+    /**
+     * Whether the page may have image references
+     *
+     * @param content raw page bytes
+     * @return false only if the page cannot have image references
+     */
+    public boolean mayContainImages(byte[] content) {
+        for (int i = 0; i < content.length; i++) {
+            int b = content[i] & 0xff;
+            if (!triggers[b])
+                continue;
+            switch (b) {
+                case 0:
+                    return true;
+                case '<':
+                    for (byte[] tag : TAGS)
+                        if (matchesIgnoreCase(content, i + 1, tag))
+                            return true;
+                    break;
+                case '.':
+                    if (i + 1 < content.length && content[i + 1] == '&')
+                        return true;
+                    for (byte[] extension : extensions)
+                        if (matchesIgnoreCase(content, i + 1, extension))
+                            return true;
+                    break;
+                case '&':
+                    if (isPeriodReference(content, i + 1))
+                        return true;
+                    break;
+                case 'd':
+                    if (matches(content, i, DATA_IMAGE))
+                        return true;
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the bytes after an '&amp;' are a character reference to '.', such as &amp;#46; &amp;#x2E; or &amp;period;
+     */
+    private static boolean isPeriodReference(byte[] content, int start) {
+        if (matches(content, start, PERIOD_ENTITY))
+            return true;
+        if (start >= content.length || content[start] != '#')
+            return false;
+        int i = start + 1;
+        int radix = 10;
+        if (i < content.length && (content[i] == 'x' || content[i] == 'X')) {
+            radix = 16;
+            i++;
+        }
+        int value = 0;
+        int digits = 0;
+        while (i < content.length && value <= '.') {
+            int digit = Character.digit(content[i], radix);
+            if (digit < 0)
+                break;
+            value = value * radix + digit;
+            digits++;
+            i++;
+        }
+        return digits > 0 && value == '.';
+    }
+
+    private static boolean matches(byte[] content, int start, byte[] pattern) {
+        if (start + pattern.length > content.length)
+            return false;
+        for (int i = 0; i < pattern.length; i++)
+            if (content[start + i] != pattern[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Matches an ASCII lower case pattern, ignoring the case of the content
+     */
+    private static boolean matchesIgnoreCase(byte[] content, int start, byte[] pattern) {
+        if (start + pattern.length > content.length)
+            return false;
+        for (int i = 0; i < pattern.length; i++) {
+            byte b = content[start + i];
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+            if (b != pattern[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] bytes(String pattern) {
+        return pattern.getBytes(StandardCharsets.US_ASCII);
+    }
+}
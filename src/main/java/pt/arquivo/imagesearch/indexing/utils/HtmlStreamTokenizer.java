@@ -0,0 +1,467 @@
+package pt.arquivo.imagesearch.indexing.utils;
+
+import org.jsoup.nodes.Attributes;
+import org.jsoup.nodes.Entities;
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits an HTML page read from a Reader into start tags, end tags and text, without building a DOM or holding the
+ * page in memory.
+ * <p>
+ * Only the tokens are produced: there is no tree construction, so misnested or implied tags are reported as they are
+ * written. Comments, doctypes and processing instructions are skipped, as are the contents of script and the other
+ * raw text elements, except style and title, whose contents are reported with rawText. Text and attribute values have
+ * their entities unescaped. Tag and attribute names are in lower case, and only the first of repeated attributes is
+ * kept, as in jsoup.
+ * <p>
+ * Memory is bounded by the size of the chunks: text is reported in chunks of about TEXT_CHUNK_CHARS, tag and attribute
+ * names are cut at MAX_NAME_CHARS and attribute values longer than MAX_ATTRIBUTE_CHARS are dropped.
+ */
+public class HtmlStreamTokenizer {
+
+    /**
+     * Receives the tokens of a page, in page order
+     */
+    public interface Handler {
+
+        /**
+         * @param name tag name, in lower case
+         * @param attributes tag attributes
+         */
+        void startTag(String name, Attributes attributes);
+
+        /**
+         * @param name tag name, in lower case
+         */
+        void endTag(String name);
+
+        /**
+         * @param text text between tags, with entities unescaped (a text run can be reported in several chunks)
+         */
+        void text(String text);
+
+        /**
+         * @param name name of the raw text element (style or title)
+         * @param text contents of the element (which can be reported in several chunks)
+         */
+        void rawText(String name, String text);
+    }
+
+    /**
+     * Approximate size of the text chunks
+     */
+    public static final int TEXT_CHUNK_CHARS = 8 * 1024;
+
+    /**
+     * Maximum length of tag and attribute names, longer names are cut
+     */
+    public static final int MAX_NAME_CHARS = 128;
+
+    /**
+     * Maximum length of attribute values, longer values are dropped (inline base64 images are kept up to this size)
+     */
+    public static final int MAX_ATTRIBUTE_CHARS = 1024 * 1024;
+
+    /**
+     * Longest entity reference, so that a text chunk is not cut inside one
+     */
+    private static final int MAX_ENTITY_CHARS = 32;
+
+    private static final int EOF = -1;
+
+    private final Reader reader;
+
+    private final char[] buffer = new char[8 * 1024];
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    private final StringBuilder text = new StringBuilder();
+
+    private final StringBuilder name = new StringBuilder();
+
+    private final StringBuilder value = new StringBuilder();
+
+    /**
+     * @param reader page contents
+     */
+    public HtmlStreamTokenizer(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the whole page, reporting its tokens to the handler
+     *
+     * @param handler receives the tokens
+     * @throws IOException if the page cannot be read
+     */
+    public void tokenize(Handler handler) throws IOException {
+        int c;
+        while ((c = read()) != EOF) {
+            if (c != '<') {
+                appendText(handler, (char) c);
+                continue;
+            }
+            int next = peek();
+            if (isLetter(next)) {
+                flushText(handler, true);
+                String tagName = readStartTag(handler);
+                if (isRawText(tagName))
+                    readRawText(handler, tagName);
+            } else if (next == '/') {
+                read();
+                if (isLetter(peek())) {
+                    flushText(handler, true);
+                    readName(name);
+                    skipPast('>');
+                    handler.endTag(name.toString());
+                } else {
+                    // </ not followed by a tag name is a bogus comment
+                    flushText(handler, true);
+                    skipPast('>');
+                }
+            } else if (next == '!' || next == '?') {
+                flushText(handler, true);
+                read();
+                if (next == '!' && peek() == '-') {
+                    read();
+                    if (peek() == '-') {
+                        read();
+                        skipComment();
+                        continue;
+                    }
+                }
+                skipPast('>');
+            } else {
+                appendText(handler, '<');
+            }
+        }
+        flushText(handler, true);
+    }
+
+    /**
+     * Reads a start tag, after its '&lt;', and reports it
+     *
+     * @return tag name
+     */
+    private String readStartTag(Handler handler) throws IOException {
+        readName(name);
+        String tagName = name.toString();
+        Attributes attributes = new Attributes();
+        while (true) {
+            int c = peek();
+            while (c != EOF && (isWhitespace(c) || c == '/')) {
+                read();
+                c = peek();
+            }
+            if (c == EOF)
+                break;
+            if (c == '>') {
+                read();
+                break;
+            }
+
+            // attribute name
+            name.setLength(0);
+            do {
+                read();
+                if (name.length() < MAX_NAME_CHARS)
+                    name.append(Character.toLowerCase((char) c));
+                c = peek();
+            } while (c != EOF && !isWhitespace(c) && c != '/' && c != '>' && c != '=');
+            while (c != EOF && isWhitespace(c)) {
+                read();
+                c = peek();
+            }
+
+            // attribute value
+            value.setLength(0);
+            boolean dropped = false;
+            if (c == '=') {
+                read();
+                c = peek();
+                while (c != EOF && isWhitespace(c)) {
+                    read();
+                    c = peek();
+                }
+                if (c == '"' || c == '\'') {
+                    int quote = read();
+                    while ((c = read()) != EOF && c != quote)
+                        dropped |= !appendValue((char) c);
+                } else {
+                    while (c != EOF && !isWhitespace(c) && c != '>') {
+                        dropped |= !appendValue((char) read());
+                        c = peek();
+                    }
+                }
+            }
+
+            String attributeName = name.toString();
+            if (!dropped && !attributes.hasKey(attributeName)) {
+                String attributeValue = value.toString();
+                if (attributeValue.indexOf('&') >= 0)
+                    attributeValue = unescape(attributeValue, true);
+                attributes.put(attributeName, attributeValue);
+            }
+        }
+        handler.startTag(tagName, attributes);
+        return tagName;
+    }
+
+    private boolean appendValue(char c) {
+        if (value.length() >= MAX_ATTRIBUTE_CHARS)
+            return false;
+        value.append(c);
+        return true;
+    }
+
+    /**
+     * Reads the contents of a raw text element up to its end tag, reporting them for style and title
+     */
+    private void readRawText(Handler handler, String tagName) throws IOException {
+        boolean report = tagName.equals("style") || tagName.equals("title");
+        String endTag = "</" + tagName;
+        int matched = 0;
+        int c;
+        while ((c = read()) != EOF) {
+            if (Character.toLowerCase((char) c) == endTag.charAt(matched)) {
+                matched++;
+                if (matched < endTag.length())
+                    continue;
+                int next = peek();
+                if (next == EOF || isWhitespace(next) || next == '/' || next == '>') {
+                    if (report)
+                        flushRawText(handler, tagName);
+                    skipPast('>');
+                    handler.endTag(tagName);
+                    return;
+                }
+                // a longer tag name, such as </styles, is part of the contents
+                if (report)
+                    text.append(endTag);
+                matched = 0;
+                continue;
+            }
+            if (matched > 0) {
+                // the chars held while matching the end tag are part of the contents
+                if (report)
+                    text.append(endTag, 0, matched);
+                matched = 0;
+                if (c == '<') {
+                    matched = 1;
+                    continue;
+                }
+            }
+            if (report) {
+                text.append((char) c);
+                if (text.length() >= TEXT_CHUNK_CHARS)
+                    flushRawText(handler, tagName);
+            }
+        }
+        if (report)
+            flushRawText(handler, tagName);
+    }
+
+    private void flushRawText(Handler handler, String tagName) {
+        if (text.length() > 0)
+            handler.rawText(tagName, text.toString());
+        text.setLength(0);
+    }
+
+    private void appendText(Handler handler, char c) {
+        text.append(c);
+        if (text.length() >= TEXT_CHUNK_CHARS)
+            flushText(handler, false);
+    }
+
+    /**
+     * Reports the text read so far. Unless the text run is over, an entity reference at its end is kept for the next
+     * chunk, so that it is not unescaped in two halves
+     */
+    private void flushText(Handler handler, boolean end) {
+        if (text.length() == 0)
+            return;
+        int length = text.length();
+        if (!end) {
+            int ampersand = text.lastIndexOf("&");
+            if (ampersand >= 0 && length - ampersand < MAX_ENTITY_CHARS)
+                length = ampersand;
+        }
+        String chunk = text.substring(0, length);
+        text.delete(0, length);
+        if (chunk.indexOf('&') >= 0)
+            chunk = unescape(chunk, false);
+        if (!chunk.isEmpty())
+            handler.text(chunk);
+    }
+
+    /**
+     * Unescapes the entities of text or of an attribute value, as Parser.unescapeEntities. That method sets up a
+     * whole tokenizer for every call, so the usual references, terminated by ';', are decoded here, and the string is
+     * only handed to it if it has other references
+     *
+     * @param text text with entities
+     * @param inAttribute whether the text is an attribute value
+     * @return unescaped text
+     */
+    public static String unescape(String text, boolean inAttribute) {
+        StringBuilder unescaped = new StringBuilder(text.length());
+        int[] codepoints = new int[2];
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i++);
+            if (c != '&' || i == length || isReferenceEnd(text.charAt(i))) {
+                unescaped.append(c);
+                continue;
+            }
+            int end = text.indexOf(';', i);
+            if (end < 0)
+                return Parser.unescapeEntities(text, inAttribute);
+            if (text.charAt(i) == '#') {
+                int codepoint = parseCodepoint(text, i + 1, end);
+                if (codepoint < 0)
+                    return Parser.unescapeEntities(text, inAttribute);
+                unescaped.appendCodePoint(codepoint);
+            } else {
+                String name = text.substring(i, end);
+                if (!isEntityName(name) || !Entities.isNamedEntity(name))
+                    return Parser.unescapeEntities(text, inAttribute);
+                int count = Entities.codepointsForName(name, codepoints);
+                for (int j = 0; j < count; j++)
+                    unescaped.appendCodePoint(codepoints[j]);
+            }
+            i = end + 1;
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * Chars that cannot start a reference after '&amp;', which is then kept as is
+     */
+    private static boolean isReferenceEnd(char c) {
+        return isWhitespace(c) || c == '<' || c == '&';
+    }
+
+    /**
+     * Value of a numeric reference, between "&amp;#" and ';'
+     *
+     * @return code point, or -1 if it is not a plain printable code point, which the tokenizer may remap
+     */
+    private static int parseCodepoint(String text, int start, int end) {
+        int radix = 10;
+        if (start < end && (text.charAt(start) == 'x' || text.charAt(start) == 'X')) {
+            radix = 16;
+            start++;
+        }
+        if (start == end || end - start > 6)
+            return -1;
+        int codepoint = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            int digit = c < 128 ? Character.digit(c, radix) : -1;
+            if (digit < 0)
+                return -1;
+            codepoint = codepoint * radix + digit;
+        }
+        if ((codepoint >= 0x20 && codepoint < 0x7f) || (codepoint >= 0xa0 && codepoint < 0xd800) || (codepoint > 0xdfff && codepoint <= 0x10ffff))
+            return codepoint;
+        return -1;
+    }
+
+    /**
+     * Whether a name is made of ASCII letters followed by digits, as read by the tokenizer
+     */
+    private static boolean isEntityName(String name) {
+        int i = 0;
+        while (i < name.length() && isLetter(name.charAt(i)))
+            i++;
+        if (i == 0)
+            return false;
+        while (i < name.length() && name.charAt(i) >= '0' && name.charAt(i) <= '9')
+            i++;
+        return i == name.length();
+    }
+
+    /**
+     * Reads a tag name into the builder, in lower case, up to whitespace, '/' or '&gt;'
+     */
+    private void readName(StringBuilder builder) throws IOException {
+        builder.setLength(0);
+        int c = peek();
+        while (c != EOF && !isWhitespace(c) && c != '/' && c != '>') {
+            read();
+            if (builder.length() < MAX_NAME_CHARS)
+                builder.append(Character.toLowerCase((char) c));
+            c = peek();
+        }
+    }
+
+    private void skipPast(char end) throws IOException {
+        int c;
+        while ((c = read()) != EOF && c != end) {
+        }
+    }
+
+    /**
+     * Skips a comment, after its '&lt;!--', up to '--&gt;'
+     */
+    private void skipComment() throws IOException {
+        int dashes = 0;
+        int c;
+        while ((c = read()) != EOF) {
+            if (c == '>' && dashes >= 2)
+                return;
+            dashes = c == '-' ? dashes + 1 : 0;
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill())
+            return EOF;
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill())
+            return EOF;
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int read = reader.read(buffer, 0, buffer.length);
+        if (read <= 0)
+            return false;
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private static boolean isRawText(String tagName) {
+        switch (tagName) {
+            case "script":
+            case "style":
+            case "title":
+            case "textarea":
+            case "xmp":
+            case "iframe":
+            case "noembed":
+            case "noframes":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+}
@@ -13,6 +13,7 @@ import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 
 import pt.arquivo.imagesearch.indexing.data.ImageData;
+import pt.arquivo.imagesearch.indexing.data.hadoop.DigestWritable;
 import org.apache.log4j.Logger;
 import org.imgscalr.Scalr;
 import org.imgscalr.Scalr.Method;
@@ -69,14 +70,30 @@ public class ImageParse {
      * @return
      */
     private static String convertByteArrayToHexString(byte[] byteData) {
-        StringBuffer hexString = new StringBuffer();
-        for (int i = 0; i < byteData.length; i++) {
-            String hex = Integer.toHexString(0xff & byteData[i]);
-            if (hex.length() == 1) hexString.append('0');
-            hexString.append(hex);
-        }
+        return DigestWritable.toHex(byteData);
+    }
 
-        return hexString.toString();
+    /**
+     * Thumbnail dimensions for an image at least as large as the thumbnail, keeping its aspect ratio
+     *
+     * @param width image width
+     * @param height image height
+     * @return thumbnail dimensions
+     */
+    public static Dimension getThumbnailDimensions(int width, int height) {
+        int thumbWidth = THUMB_WIDTH, thumbHeight = THUMB_HEIGHT;
+        double thumbRatio = (double) thumbWidth / (double) thumbHeight;
+        double imageRatio = (double) width / (double) height;
+        if (thumbRatio < imageRatio)
+            thumbHeight = (int) (thumbWidth / imageRatio);
+        else
+            thumbWidth = (int) (thumbHeight * imageRatio);
+
+        if (width < thumbWidth)
+            thumbWidth = width;
+        else if (height < thumbHeight)
+            thumbHeight = height;
+        return new Dimension(thumbWidth, thumbHeight);
     }
 
     /**
@@ -87,6 +104,19 @@ public class ImageParse {
      * @return the parsed image or null if parsing fails
      */
     public static ImageData getPropImage(ImageData img) {
+        return getPropImage(img, true);
+    }
+
+    /**
+     * Run image parsing process, excluding too large and too small images
+     * Without the thumbnail, only the dimensions and the digest are computed, and the image bytes are dropped:
+     * the thumbnail can be created later from the original (W)ARC record (see LazyThumbnailGenerator)
+     *
+     * @param img image to be parsed
+     * @param createThumbnail whether to compute the image thumbnail and assign it to the current img object
+     * @return the parsed image or null if parsing fails
+     */
+    public static ImageData getPropImage(ImageData img, boolean createThumbnail) {
 
         try {
             MessageDigest digest = null;
@@ -128,6 +158,12 @@ public class ImageParse {
                 img.setSurt(stringDigest);
             }
 
+            if (!createThumbnail) {
+                reader.dispose();
+                img.setBytes(null);
+                return img;
+            }
+
             // avoid reading gifs or svgs, as they do not need be resized
             if (img.getMimeDetected().equals("image/gif") || img.getMimeDetected().contains("svg")) {
                 img.setBytes(bytesImgOriginal);
@@ -148,24 +184,13 @@ public class ImageParse {
                 scaledImg = bimg;
             } else {
 
-                int thumbWidth = THUMB_WIDTH, thumbHeight = THUMB_HEIGHT;
-                double thumbRatio = (double) thumbWidth / (double) thumbHeight;
-                double imageRatio = (double) width / (double) height;
-                if (thumbRatio < imageRatio)
-                    thumbHeight = (int) (thumbWidth / imageRatio);
-                else
-                    thumbWidth = (int) (thumbHeight * imageRatio);
-
-                if (width < thumbWidth)
-                    thumbWidth = width;
-                else if (height < thumbHeight)
-                    thumbHeight = height;
+                Dimension thumbDimensions = getThumbnailDimensions(width, height);
 
                 scaledImg = Scalr.resize(bimg,
                         Method.AUTOMATIC,
                         Scalr.Mode.AUTOMATIC,
-                        thumbWidth,
-                        thumbHeight,
+                        thumbDimensions.width,
+                        thumbDimensions.height,
                         Scalr.OP_ANTIALIAS); //create thumbnail
             }
 
@@ -2,19 +2,19 @@ package pt.arquivo.imagesearch.indexing.utils;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
-import java.time.LocalDateTime;
 import java.util.*;
 import java.util.function.Consumer;
-import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FilenameUtils;
 import pt.arquivo.imagesearch.indexing.ImageIndexerWithDupsJob;
 import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.httpclient.Header;
 import org.apache.log4j.Logger;
 import org.archive.format.warc.WARCConstants;
 import org.archive.io.ArchiveReader;
@@ -35,15 +35,31 @@ public class ImageSearchIndexingUtil {
 
 
     /**
-     * Pattern to find pages that are in UTF_8 but encoded in ISO_8859_1
+     * Characters that follow 'Ã' in pages that are in UTF_8 but encoded in ISO_8859_1 (Ã©, Ã¡, Ã£, ...)
      */
-    static Pattern UTF8_MISMATCH = Pattern.compile("Ã©|Ã¡|Ã£|Ã§|Ã°|Ãµ|Ã´|Ã³|Â®|Ã‡|ÃŠ|Ã•|Ã¨|Ãª|Ã«|Ã±|Ã¹|Ãº|Ã»|Â£");
+    static final String UTF8_MISMATCH_AFTER_A_TILDE = "©¡£§°µ´³‡Š•¨ª«±¹º»";
 
+    /**
+     * Characters that follow 'Â' in pages that are in UTF_8 but encoded in ISO_8859_1 (Â® and Â£)
+     */
+    static final String UTF8_MISMATCH_AFTER_A_CIRCUMFLEX = "®£";
+
+
+    /**
+     * Tokenizer used to generate URL tokens, one per thread as it reuses its buffers
+     */
+    private static final ThreadLocal<URLTokenizer> URL_TOKENIZERS = ThreadLocal.withInitial(URLTokenizer::new);
+
+    /**
+     * Protocols whose urls are parsed by the default URLStreamHandler.parseURL, so that getURLPathExtension can find
+     * their path without building the URL
+     */
+    private static final Set<String> PLAIN_URL_PROTOCOLS = new HashSet<>(Arrays.asList("http", "https", "ftp"));
 
     /**
-     * URL split pattern to generate URL tokens
+     * Protocols of the JDK with a URL handler in this JVM, the only ones new URL accepts
      */
-    private static final String SPLIT_PATTERN = "[\\p{Punct}\b]+";
+    private static final Set<String> URL_PROTOCOLS = getURLProtocols("http", "https", "ftp", "file", "jar", "mailto", "jrt", "jmod", "netdoc");
 
 
     /**
@@ -129,6 +145,22 @@ public class ImageSearchIndexingUtil {
     }
 
 
+    /**
+     * Get the HTTP Content-Type header of an ARC record, after its HTTP headers were read (see getRecordContentBytes)
+     *
+     * @param record ARC record obbject
+     * @return header value, or null if the record has none
+     */
+    public static String getHttpContentType(ARCRecord record) {
+        Header[] headers = record.getHttpHeaders();
+        if (headers == null)
+            return null;
+        for (Header header : headers)
+            if (header.getName().equalsIgnoreCase(WARCConstants.CONTENT_TYPE))
+                return header.getValue();
+        return null;
+    }
+
     /**
      * Get ARC record content bytes to be used to convert to HTML or image
      *
@@ -267,17 +299,29 @@ public class ImageSearchIndexingUtil {
      * @throws IOException if page is malformed
      */
     public static String decode(byte[] arcRecordBytes, ImageInformationExtractor context) throws IOException {
-        String recordEncoding = ImageSearchIndexingUtil.guessEncoding(arcRecordBytes);
-        InputStream is = new ByteArrayInputStream(arcRecordBytes);
-        String html = IOUtils.toString(is, recordEncoding);
-        //if the chars in UTF8_MISMATCH were detected, this means that the page is in UTF_8 but encoded in ISO_8859_1
+        return decode(arcRecordBytes, null, null, context);
+    }
+
+    /**
+     * Decode page from the encoding resolved by the context CharsetResolver. Tries to reencode UTF-8/ISO_8859_1 mismatches
+     *
+     * @param arcRecordBytes page HTML bytes
+     * @param contentType HTTP Content-Type header of the page (may be null)
+     * @param pageURL page url (may be null)
+     * @param context context used to resolve the encoding and to increment counters
+     * @return page HTML as String
+     * @throws IOException if page is malformed
+     */
+    public static String decode(byte[] arcRecordBytes, String contentType, String pageURL, ImageInformationExtractor context) throws IOException {
+        String recordEncoding = context.getCharsetResolver().resolve(arcRecordBytes, contentType, pageURL, context);
+        String html = new String(arcRecordBytes, recordEncoding);
+        //if a UTF8 mismatch pair was detected, this means that the page is in UTF_8 but encoded in ISO_8859_1
         //if we re-encode the string, the accented chars will be correctly represented
-        if (ImageSearchIndexingUtil.UTF8_MISMATCH.matcher(html).find()){
+        if (hasUTF8Mismatch(html)) {
             context.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGE_UTF8_MISMATCH).increment(1);
-            byte[] b = html.getBytes(StandardCharsets.ISO_8859_1);
-            String newHtml = new String(b, StandardCharsets.UTF_8);
+            String newHtml = repairUTF8Mismatch(html);
             //if the chars are detected again, the page is beyond repair and the initial encoding is used
-            if (!ImageSearchIndexingUtil.UTF8_MISMATCH.matcher(newHtml).find()){
+            if (newHtml != null) {
                 context.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGE_UTF8_MISMATCH_DOUBLE).increment(1);
                 html = newHtml;
             }
@@ -286,6 +330,333 @@ public class ImageSearchIndexingUtil {
         return html;
     }
 
+    /**
+     * Reader over a page decoded as with decode, for pages too large to be held as a String. The page is read with
+     * the encoding resolved by the context CharsetResolver and, if it has UTF-8/ISO_8859_1 mismatch pairs, read again
+     * as UTF_8, as repairUTF8Mismatch. Finding the mismatches takes a pass over the page, and another one over the
+     * repaired page if there are any
+     *
+     * @param arcRecordBytes page HTML bytes
+     * @param contentType HTTP Content-Type header of the page (may be null)
+     * @param pageURL page url (may be null)
+     * @param context context used to resolve the encoding and to increment counters
+     * @return reader over the page HTML
+     * @throws IOException if page is malformed
+     */
+    public static Reader decodeReader(byte[] arcRecordBytes, String contentType, String pageURL, ImageInformationExtractor context) throws IOException {
+        String recordEncoding = context.getCharsetResolver().resolve(arcRecordBytes, contentType, pageURL, context);
+        if (hasUTF8Mismatch(new InputStreamReader(new ByteArrayInputStream(arcRecordBytes), recordEncoding))) {
+            context.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGE_UTF8_MISMATCH).increment(1);
+            if (!hasUTF8Mismatch(getRepairedReader(arcRecordBytes, recordEncoding))) {
+                context.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGE_UTF8_MISMATCH_DOUBLE).increment(1);
+                return getRepairedReader(arcRecordBytes, recordEncoding);
+            }
+        }
+        return new InputStreamReader(new ByteArrayInputStream(arcRecordBytes), recordEncoding);
+    }
+
+    /**
+     * Reader over a page read as new String(new String(arcRecordBytes, encoding).getBytes(ISO_8859_1), UTF_8)
+     */
+    private static Reader getRepairedReader(byte[] arcRecordBytes, String encoding) throws IOException {
+        Reader decoded = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(arcRecordBytes), encoding));
+        return new InputStreamReader(new ISO88591InputStream(decoded), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether a page read from a reader has any of the character pairs that UTF_8 accented chars become when encoded
+     * in ISO_8859_1 (see hasUTF8Mismatch)
+     *
+     * @param reader decoded page
+     * @return true if a mismatch pair was found
+     * @throws IOException if the page cannot be read
+     */
+    static boolean hasUTF8Mismatch(Reader reader) throws IOException {
+        char[] buffer = new char[8 * 1024];
+        char previous = 0;
+        int read;
+        while ((read = reader.read(buffer)) > 0) {
+            for (int i = 0; i < read; i++) {
+                if (isUTF8Mismatch(previous, buffer[i]))
+                    return true;
+                previous = buffer[i];
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bytes of the chars of a reader, as String.getBytes(ISO_8859_1): chars outside ISO_8859_1 are read as '?', and
+     * surrogate pairs as a single '?'
+     */
+    private static class ISO88591InputStream extends InputStream {
+
+        private final Reader reader;
+
+        /**
+         * Char read after a high surrogate that is not part of its pair, or NONE
+         */
+        private int pending = NONE;
+
+        private static final int NONE = -2;
+
+        private ISO88591InputStream(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = pending != NONE ? pending : reader.read();
+            pending = NONE;
+            if (c < 0)
+                return -1;
+            if (Character.isHighSurrogate((char) c)) {
+                int next = reader.read();
+                if (next < 0 || !Character.isLowSurrogate((char) next))
+                    pending = next;
+                return '?';
+            }
+            return toISO88591Byte((char) c);
+        }
+    }
+
+    /**
+     * Whether a page has any of the character pairs that UTF_8 accented chars become when encoded in ISO_8859_1
+     *
+     * @param html decoded page
+     * @return true if a mismatch pair was found
+     */
+    static boolean hasUTF8Mismatch(String html) {
+        for (int i = 1; i < html.length(); i++)
+            if (isUTF8Mismatch(html.charAt(i - 1), html.charAt(i)))
+                return true;
+        return false;
+    }
+
+    private static boolean isUTF8Mismatch(char first, char second) {
+        if (first == 'Ã')
+            return UTF8_MISMATCH_AFTER_A_TILDE.indexOf(second) >= 0;
+        if (first == 'Â')
+            return UTF8_MISMATCH_AFTER_A_CIRCUMFLEX.indexOf(second) >= 0;
+        return false;
+    }
+
+    /**
+     * Reads a page again as UTF_8, as new String(html.getBytes(ISO_8859_1), UTF_8), in a single pass that also looks
+     * for mismatch pairs in the result. Chars outside ISO_8859_1 are read as '?', as getBytes does. If the page bytes
+     * are not valid UTF_8, the replacement chars are left to the JDK decoder
+     *
+     * @param html decoded page
+     * @return page read as UTF_8, or null if it still has mismatch pairs
+     */
+    static String repairUTF8Mismatch(String html) {
+        int length = html.length();
+        // UTF_8 sequences never take more chars than bytes
+        char[] repaired = new char[length];
+        int n = 0;
+        int i = 0;
+        while (i < length) {
+            int b = toISO88591Byte(html.charAt(i));
+            int extra;
+            int codePoint;
+            int min = 0x80;
+            int max = 0xBF;
+            if (b < 0x80) {
+                extra = 0;
+                codePoint = b;
+                // getBytes writes a single '?' for a surrogate pair
+                if (Character.isHighSurrogate(html.charAt(i)) && i + 1 < length && Character.isLowSurrogate(html.charAt(i + 1)))
+                    i++;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                extra = 2;
+                codePoint = b & 0x0F;
+                if (b == 0xE0)
+                    min = 0xA0;
+                else if (b == 0xED)
+                    max = 0x9F;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                extra = 3;
+                codePoint = b & 0x07;
+                if (b == 0xF0)
+                    min = 0x90;
+                else if (b == 0xF4)
+                    max = 0x8F;
+            } else {
+                return repairMalformedUTF8Mismatch(html);
+            }
+            if (i + extra >= length)
+                return repairMalformedUTF8Mismatch(html);
+            for (int k = 1; k <= extra; k++) {
+                int next = toISO88591Byte(html.charAt(i + k));
+                if (next < min || next > max)
+                    return repairMalformedUTF8Mismatch(html);
+                codePoint = (codePoint << 6) | (next & 0x3F);
+                min = 0x80;
+                max = 0xBF;
+            }
+            i += extra + 1;
+
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                repaired[n] = (char) codePoint;
+                if (n > 0 && isUTF8Mismatch(repaired[n - 1], repaired[n]))
+                    return null;
+                n++;
+            } else {
+                n += Character.toChars(codePoint, repaired, n);
+            }
+        }
+        return new String(repaired, 0, n);
+    }
+
+    /**
+     * Reads a page that is not valid UTF_8 again with the JDK decoder, for its handling of malformed sequences
+     */
+    private static String repairMalformedUTF8Mismatch(String html) {
+        String newHtml = new String(html.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        return hasUTF8Mismatch(newHtml) ? null : newHtml;
+    }
+
+    private static int toISO88591Byte(char c) {
+        return c <= 0xFF ? c : '?';
+    }
+
+
+    /**
+     * Lower case extension of the path of a url, as FilenameUtils.getExtension(new URL(url).getPath()).toLowerCase().
+     * http, https and ftp urls are parsed in place, as URLStreamHandler.parseURL, without building the URL, and urls
+     * new URL does not accept are found without throwing an exception. Only urls with a port, an IPv6 host or another
+     * known protocol are built
+     *
+     * @param url url to parse
+     * @return path extension, "" if there is none, or null if the url is not valid
+     */
+    public static String getURLPathExtension(String url) {
+        int limit = url.length();
+        while (limit > 0 && url.charAt(limit - 1) <= ' ')
+            limit--;
+        int start = 0;
+        while (start < limit && url.charAt(start) <= ' ')
+            start++;
+        if (url.regionMatches(true, start, "url:", 0, 4))
+            start += 4;
+
+        int protocolEnd = getURLProtocolEnd(url, start, limit);
+        if (protocolEnd < 0)
+            return null;
+        String protocol = url.substring(start, protocolEnd).toLowerCase(Locale.ROOT);
+        if (!URL_PROTOCOLS.contains(protocol))
+            return null;
+        if (!PLAIN_URL_PROTOCOLS.contains(protocol))
+            return getBuiltURLPathExtension(url);
+        start = protocolEnd + 1;
+
+        int ref = url.indexOf('#', start);
+        if (ref >= 0)
+            limit = ref;
+        int query = url.indexOf('?', start);
+        if (query >= 0 && query < limit)
+            limit = query;
+
+        boolean isUNCName = url.startsWith("////", start) && start <= limit - 4;
+        if (!isUNCName && url.startsWith("//", start) && start <= limit - 2) {
+            start += 2;
+            int authorityEnd = url.indexOf('/', start);
+            if (authorityEnd < 0 || authorityEnd > limit)
+                authorityEnd = limit;
+            // ports and IPv6 hosts are validated by the URL
+            for (int i = start; i < authorityEnd; i++)
+                if (url.charAt(i) == ':' || url.charAt(i) == '[')
+                    return getBuiltURLPathExtension(url);
+            start = authorityEnd;
+        }
+
+        // FilenameUtils.getExtension: the text after the last '.' of the last path segment
+        for (int i = limit - 1; i >= start; i--) {
+            char c = url.charAt(i);
+            if (c == '/' || c == '\\')
+                break;
+            if (c == '.')
+                return url.substring(i + 1, limit).toLowerCase();
+        }
+        return "";
+    }
+
+    /**
+     * Protocol of a url, as found by new URL
+     *
+     * @param url url or relative link
+     * @return lower case protocol, or null if the url has none (it is relative)
+     */
+    public static String getURLProtocol(String url) {
+        int start = 0;
+        while (start < url.length() && url.charAt(start) <= ' ')
+            start++;
+        if (url.regionMatches(true, start, "url:", 0, 4))
+            start += 4;
+        int protocolEnd = getURLProtocolEnd(url, start, url.length());
+        return protocolEnd < 0 ? null : url.substring(start, protocolEnd).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Whether new URL accepts urls with this protocol
+     *
+     * @param protocol lower case protocol
+     * @return true if there is a URL handler for the protocol
+     */
+    public static boolean hasURLHandler(String protocol) {
+        return URL_PROTOCOLS.contains(protocol);
+    }
+
+    /**
+     * Position of the ':' after a valid protocol, as in the URL constructor, or -1 if there is no protocol
+     */
+    private static int getURLProtocolEnd(String url, int start, int limit) {
+        if (start < url.length() && url.charAt(start) == '#')
+            return -1;
+        for (int i = start; i < limit; i++) {
+            char c = url.charAt(i);
+            if (c == '/')
+                return -1;
+            if (c == ':')
+                return isValidURLProtocol(url, start, i) ? i : -1;
+        }
+        return -1;
+    }
+
+    private static boolean isValidURLProtocol(String url, int start, int end) {
+        if (start >= end || !Character.isLetter(url.charAt(start)))
+            return false;
+        for (int i = start + 1; i < end; i++) {
+            char c = url.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '.' && c != '+' && c != '-')
+                return false;
+        }
+        return true;
+    }
+
+    private static String getBuiltURLPathExtension(String url) {
+        try {
+            return FilenameUtils.getExtension(new URL(url).getPath()).toLowerCase();
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+    private static Set<String> getURLProtocols(String... protocols) {
+        Set<String> supported = new HashSet<>();
+        for (String protocol : protocols) {
+            try {
+                new URL(protocol, "", "");
+                supported.add(protocol);
+            } catch (MalformedURLException ignored) {
+                // no handler in this JVM
+            }
+        }
+        return supported;
+    }
 
     /**
      * Remove symbols from URL to transform into tokens
@@ -306,20 +677,18 @@ public class ImageSearchIndexingUtil {
      * @return string without punctuation
      */
     public static String cleanPunctuation(String toParse) {
-        return String.join(" ", toParse.split(SPLIT_PATTERN));
+        return URL_TOKENIZERS.get().cleanPunctuation(toParse);
     }
 
     /**
-     * Transform DateTime objects into String dates in the form yyyyMMddHHmmss
+     * Unescape url and split it into tokens, as parseURL(URLDecoder.decode(url, "UTF-8")) (the url is split as is if
+     * it cannot be unescaped)
      *
-     * @param timestamps Array of timestamp objects
-     * @return Array of yyyyMMddHHmmss strings
+     * @param url url to parse
+     * @return url tokens
      */
-    public static List<String> getTimestampStandardFormat(List<LocalDateTime> timestamps) {
-        List<String> output = new LinkedList<>();
-        for (LocalDateTime l : timestamps)
-            output.add(l.toString());
-        return output;
+    public static String getURLTokens(String url) {
+        return URL_TOKENIZERS.get().tokenizeURL(url);
     }
 
     /**
@@ -346,4 +715,27 @@ public class ImageSearchIndexingUtil {
         }
     }
 
+    /**
+     * Downloads a remote (W)ARC into a local file and checks that it was downloaded fully
+     *
+     * @param url      remote (W)ARC URL
+     * @param dest     local file
+     * @param fileSize remote file size, as returned by getFileSize
+     * @throws IOException error downloading or incomplete file (the local file is deleted in both cases)
+     */
+    public static void downloadWarc(URL url, File dest, long fileSize) throws IOException {
+        try {
+            // download and parse WARC locally to avoid problems when streaming from remote server
+            AlternativeFileUtils.copyURLToFile(url, dest, 1000 * 60, 1000 * 30);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(dest);
+            throw e;
+        }
+        if (fileSize != dest.length()) {
+            long localFileSize = dest.length();
+            FileUtils.deleteQuietly(dest);
+            throw new IOException("Incomplete file: Local file and remote file have different sizes. Remote URL: " + url + " Remote file size: " + fileSize + " Local file name: " + dest.getPath() + " Local file size: " + localFileSize);
+        }
+    }
+
 }
@@ -0,0 +1,168 @@
+package pt.arquivo.imagesearch.indexing.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.log4j.Logger;
+import org.archive.io.ArchiveReader;
+import org.archive.io.ArchiveReaderFactory;
+import org.archive.io.ArchiveRecord;
+import org.archive.io.arc.ARCRecord;
+import org.archive.io.warc.WARCRecord;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Creates the thumbnails left out by the first stage (see ImageInformationExtractor.setLazyThumbnails), by reading
+ * each image record back from its (W)ARC at the stored offset.
+ * <p>
+ * The (W)ARC names stored in the ImageData objects are resolved from the same input given to the first stage:
+ * either (W)ARC url lists (one url per line) or, for (W)ARCs in HDFS, the directory with the (W)ARC files.
+ * Records are read with HTTP range requests, or by seeking the (W)ARC file with the Hadoop FileSystem.
+ */
+public class LazyThumbnailGenerator {
+
+    private static final Logger logger = Logger.getLogger(LazyThumbnailGenerator.class);
+
+    private final Configuration conf;
+
+    /**
+     * (W)ARC urls or paths, by (W)ARC name
+     */
+    private final HashMap<String, String> warcs = new HashMap<>();
+
+    /**
+     * Extractor used to decode WARC records (and count their errors) outside the first stage
+     */
+    private final ImageInformationExtractor extractor;
+
+    /**
+     * Loads the (W)ARC locations from the first stage input
+     *
+     * @param conf       Hadoop config
+     * @param warcsPath  (W)ARC url list, directory of url lists, or directory of (W)ARC files
+     * @param collection collection name
+     * @throws IOException error reading the (W)ARC locations
+     */
+    public LazyThumbnailGenerator(Configuration conf, Path warcsPath, String collection) throws IOException {
+        this.conf = conf;
+        this.extractor = new ImageInformationExtractor(collection);
+
+        FileSystem fs = warcsPath.getFileSystem(conf);
+        WarcPathFilter warcPathFilter = new WarcPathFilter();
+        RemoteIterator<LocatedFileStatus> fileIterator = fs.listFiles(warcsPath, true);
+        while (fileIterator.hasNext()) {
+            FileStatus fileStatus = fileIterator.next();
+            if (!fileStatus.isFile())
+                continue;
+            if (warcPathFilter.accept(fileStatus.getPath()))
+                warcs.put(fileStatus.getPath().getName(), fileStatus.getPath().toString());
+            else
+                readWarcList(fs, fileStatus.getPath());
+        }
+        logger.info("(W)ARCs available for thumbnails: " + warcs.size());
+    }
+
+    /**
+     * Adds the (W)ARC urls of a list, named as in ImageIndexerWithDupsJob.Map
+     */
+    private void readWarcList(FileSystem fs, Path list) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(list), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String arcURL = line.trim();
+                if (arcURL.isEmpty())
+                    continue;
+                String[] surl = new URL(arcURL).getPath().split("/");
+                warcs.put(surl[surl.length - 1], arcURL);
+            }
+        }
+    }
+
+    /**
+     * Creates the thumbnail of an image from its (W)ARC record, as the first stage would have
+     *
+     * @param imageData image without bytes, with its (W)ARC name, offset and digest
+     * @return the image, with its thumbnail
+     * @throws IOException error reading the record, or the record does not match the image digest
+     */
+    public ImageData createThumbnail(ImageData imageData) throws IOException {
+        String expectedHash = imageData.getContentHash();
+        imageData.setBytes(readRecord(imageData.getWarc(), imageData.getWarcOffset()));
+        ImageData parsed = ImageParse.getPropImage(imageData);
+        if (parsed == null || !expectedHash.equals(imageData.getContentHash())) {
+            imageData.setBytes(null);
+            imageData.setContentHash(expectedHash);
+            throw new IOException(String.format("Record at %s:%d does not match image %s", imageData.getWarc(), imageData.getWarcOffset(), expectedHash));
+        }
+        return imageData;
+    }
+
+    /**
+     * Reads the content bytes of a (W)ARC record
+     *
+     * @param warcName (W)ARC name
+     * @param offset   record offset
+     * @return record content, without the HTTP headers
+     * @throws IOException error reading the record
+     */
+    private byte[] readRecord(String warcName, long offset) throws IOException {
+        String location = warcs.get(warcName);
+        if (location == null)
+            throw new IOException("Unknown (W)ARC: " + warcName);
+
+        ArchiveReader reader = ArchiveReaderFactory.get(warcName, new BufferedInputStream(open(location, offset)), false);
+        try {
+            ArchiveRecord record = reader.get();
+            if (record instanceof ARCRecord)
+                return ImageSearchIndexingUtil.getRecordContentBytes((ARCRecord) record);
+            WARCRecordResponseEncapsulated warcRecord = ImageSearchIndexingUtil.parseWarcRecord((WARCRecord) record, extractor);
+            if (warcRecord == null)
+                throw new IOException(String.format("Invalid WARC record at %s:%d", warcName, offset));
+            return warcRecord.getContentBytes();
+        } catch (RuntimeException e) {
+            throw new IOException(String.format("Error reading record at %s:%d", warcName, offset), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Opens a (W)ARC at the given offset
+     *
+     * @param location (W)ARC url or path
+     * @param offset   offset to start reading from
+     * @return stream starting at the offset
+     * @throws IOException error opening the (W)ARC
+     */
+    private InputStream open(String location, long offset) throws IOException {
+        if (location.startsWith("http://") || location.startsWith("https://")) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(location).openConnection();
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            InputStream in = connection.getInputStream();
+            // servers without range support send the whole file
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+                IOUtils.skipFully(in, offset);
+            return in;
+        }
+        Path path = new Path(location);
+        FSDataInputStream in = path.getFileSystem(conf).open(path);
+        in.seek(offset);
+        return in;
+    }
+}
@@ -0,0 +1,173 @@
+package pt.arquivo.imagesearch.indexing.utils;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * Values derived from a url for each reference to it: SURT, host, protocol, word tokens, file name tokens and MD5.
+ * <p>
+ * Each value is computed the first time it is needed and then kept, so that urls referenced many times (logos and menu
+ * images repeat on every page of a site) are only analysed once when their ParsedURL is cached (see
+ * ImageInformationExtractor.getParsedURL). Instances are not thread safe.
+ */
+public class ParsedURL {
+
+    /**
+     * Original url
+     */
+    private final String url;
+
+    /**
+     * Whether the url was parsed by java.net.URL, setting host, protocol and filename
+     */
+    private boolean parsed;
+
+    /**
+     * Host, or null if the url is not valid
+     */
+    private String host;
+
+    /**
+     * Protocol, or null if the url is not valid
+     */
+    private String protocol;
+
+    /**
+     * File name (without extension) split into tokens, or null if there is none
+     */
+    private String filename;
+
+    private String surt;
+
+    private String tokens;
+
+    private String hash;
+
+    /**
+     * @param url url to analyse
+     */
+    public ParsedURL(String url) {
+        this.url = url;
+    }
+
+    public String getURL() {
+        return url;
+    }
+
+    /**
+     * SURT, as WARCInformationParser.toSURT
+     *
+     * @return url SURT
+     */
+    public String getSurt() {
+        if (surt == null)
+            surt = WARCInformationParser.toSURT(url);
+        return surt;
+    }
+
+    /**
+     * Url split into word tokens, after unescaping it
+     *
+     * @return url tokens
+     */
+    public String getTokens() {
+        if (tokens == null)
+            tokens = getTokens(url);
+        return tokens;
+    }
+
+    /**
+     * MD5 hash, as ImageSearchIndexingUtil.md5ofString
+     *
+     * @return url hash
+     */
+    public String getHash() {
+        if (hash == null)
+            hash = ImageSearchIndexingUtil.md5ofString(url);
+        return hash;
+    }
+
+    /**
+     * Host of the url
+     *
+     * @return host, or null if the url is not valid
+     */
+    public String getHost() {
+        parse();
+        return host;
+    }
+
+    /**
+     * Protocol of the url
+     *
+     * @return protocol, or null if the url is not valid
+     */
+    public String getProtocol() {
+        parse();
+        return protocol;
+    }
+
+    /**
+     * File name of the url path, without extension, split into tokens
+     *
+     * @return file name tokens, or null if the url is not valid or has no file name
+     */
+    public String getFilename() {
+        parse();
+        return filename;
+    }
+
+    /**
+     * Whether java.net.URL accepts the url
+     *
+     * @return true if the url is valid
+     */
+    public boolean isValid() {
+        parse();
+        return protocol != null;
+    }
+
+    private void parse() {
+        if (parsed)
+            return;
+        parsed = true;
+        try {
+            URL parsedURL = new URL(url);
+            host = parsedURL.getHost();
+            protocol = parsedURL.getProtocol();
+            filename = getFilename(parsedURL);
+        } catch (MalformedURLException ignored) {
+        }
+    }
+
+    /**
+     * Url split into word tokens, after unescaping it
+     *
+     * @param url url to split
+     * @return url tokens
+     */
+    public static String getTokens(String url) {
+        return ImageSearchIndexingUtil.getURLTokens(url);
+    }
+
+    /**
+     * File name of a url path, without extension, split into tokens
+     *
+     * @param url url to parse
+     * @return file name tokens, or null if the url is not valid or has no file name
+     */
+    public static String getFilename(String url) {
+        try {
+            return getFilename(new URL(url));
+        } catch (MalformedURLException ignored) {
+            return null;
+        }
+    }
+
+    private static String getFilename(URL url) {
+        String filename = FilenameUtils.getBaseName(url.getPath());
+        return filename.isEmpty() ? null : ImageSearchIndexingUtil.cleanPunctuation(filename);
+    }
+}
@@ -0,0 +1,175 @@
+package pt.arquivo.imagesearch.indexing.utils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Digest-addressed store for image thumbnails, kept out of the map outputs.
+ * <p>
+ * Each map task appends the thumbnails it writes to its own uncompressed SequenceFile (digest to bytes) in the store
+ * directory, once per digest, and the ImageData objects only carry the location of their thumbnail, as
+ * "file name:offset". The thumbnails of the exported images are then read back by DupDigestMergerJob.
+ */
+public class ThumbnailStore implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ThumbnailStore.class);
+
+    /**
+     * Maximum number of store files kept open for reading
+     */
+    public static final int MAX_OPEN_READERS = 16;
+
+    private final Configuration conf;
+
+    /**
+     * Store directory
+     */
+    private final Path dir;
+
+    /**
+     * Name of the file written by this store (null for a read-only store)
+     */
+    private final String fileName;
+
+    private SequenceFile.Writer writer;
+
+    /**
+     * Locations of the thumbnails already written, by digest
+     */
+    private final HashMap<String, String> written = new HashMap<>();
+
+    /**
+     * Open readers, from the least to the most recently used
+     */
+    private final LinkedHashMap<String, SequenceFile.Reader> readers = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Opens a store for reading
+     *
+     * @param conf Hadoop config
+     * @param dir  store directory
+     */
+    public ThumbnailStore(Configuration conf, Path dir) {
+        this(conf, dir, null);
+    }
+
+    /**
+     * Opens a store for writing (and reading). The file is only created when the first thumbnail is written
+     *
+     * @param conf     Hadoop config
+     * @param dir      store directory
+     * @param fileName name of the file to write, unique for each task attempt
+     */
+    public ThumbnailStore(Configuration conf, Path dir, String fileName) {
+        this.conf = conf;
+        this.dir = dir;
+        this.fileName = fileName;
+    }
+
+    /**
+     * Whether a thumbnail was already written by this store
+     *
+     * @param digest image digest
+     * @return true if the thumbnail is already in the store
+     */
+    public boolean contains(String digest) {
+        return written.containsKey(digest);
+    }
+
+    /**
+     * Writes a thumbnail, unless one with the same digest was already written
+     *
+     * @param digest image digest
+     * @param bytes  thumbnail bytes
+     * @return location of the thumbnail in the store
+     * @throws IOException error writing to the store
+     */
+    public String put(String digest, byte[] bytes) throws IOException {
+        String location = written.get(digest);
+        if (location != null)
+            return location;
+        if (writer == null) {
+            writer = SequenceFile.createWriter(conf,
+                    SequenceFile.Writer.file(new Path(dir, fileName)),
+                    SequenceFile.Writer.keyClass(Text.class),
+                    SequenceFile.Writer.valueClass(BytesWritable.class),
+                    SequenceFile.Writer.compression(SequenceFile.CompressionType.NONE));
+        }
+        // positions returned by getLength can be used by SequenceFile.Reader.seek
+        location = fileName + ":" + writer.getLength();
+        writer.append(new Text(digest), new BytesWritable(bytes));
+        written.put(digest, location);
+        return location;
+    }
+
+    /**
+     * Reads a thumbnail. The file written by this store can only be read once the store is closed
+     *
+     * @param digest   image digest
+     * @param location location of the thumbnail, as returned by put
+     * @return thumbnail bytes
+     * @throws IOException error reading the store, or no thumbnail for this digest at that location
+     */
+    public byte[] get(String digest, String location) throws IOException {
+        int separator = location.lastIndexOf(':');
+        if (separator < 0)
+            throw new IOException("Invalid thumbnail location: " + location);
+        String name = location.substring(0, separator);
+        long offset = Long.parseLong(location.substring(separator + 1));
+
+        SequenceFile.Reader reader = getReader(name);
+        Text key = new Text();
+        BytesWritable value = new BytesWritable();
+        reader.seek(offset);
+        if (!reader.next(key, value) || !key.toString().equals(digest))
+            throw new IOException("Thumbnail not found: " + digest + " at " + location);
+        return Arrays.copyOf(value.getBytes(), value.getLength());
+    }
+
+    private SequenceFile.Reader getReader(String name) throws IOException {
+        SequenceFile.Reader reader = readers.get(name);
+        if (reader != null)
+            return reader;
+        // a file being written is not readable on every file system (the local one only writes checksums on close)
+        if (name.equals(fileName) && writer != null)
+            throw new IOException("Thumbnail store file still being written: " + name);
+        reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(new Path(dir, name)));
+        readers.put(name, reader);
+        if (readers.size() > MAX_OPEN_READERS) {
+            Iterator<Map.Entry<String, SequenceFile.Reader>> eldest = readers.entrySet().iterator();
+            IOUtils.closeStream(eldest.next().getValue());
+            eldest.remove();
+        }
+        return reader;
+    }
+
+    /**
+     * Closes the written file and all readers
+     *
+     * @throws IOException error closing the written file
+     */
+    @Override
+    public void close() throws IOException {
+        for (SequenceFile.Reader reader : readers.values())
+            IOUtils.closeStream(reader);
+        readers.clear();
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            logger.info("Thumbnails written: " + written.size());
+        }
+    }
+}
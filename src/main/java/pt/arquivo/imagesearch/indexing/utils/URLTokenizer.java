@@ -0,0 +1,177 @@
+package pt.arquivo.imagesearch.indexing.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits urls and file names into word tokens in a single pass over their characters.
+ * <p>
+ * The tokens are the same as String.join(" ", s.split("[\\p{Punct}\b]+")): runs of ASCII punctuation (and backspace)
+ * become a single space, a leading run becomes a leading space and a trailing run is dropped. tokenizeURL also
+ * unescapes the url on the way, as URLDecoder.decode(url, "UTF-8"), keeping the url as is if it has an invalid escape.
+ * <p>
+ * The tokens are written into a StringBuilder kept between calls, so instances are not thread safe
+ * (see ImageSearchIndexingUtil.cleanPunctuation for a shared per thread instance).
+ */
+public class URLTokenizer {
+
+    /**
+     * Prefix of the urls of inline images, which have no tokens
+     */
+    private static final String INLINE_PREFIX = "hash:";
+
+    /**
+     * Builders grown over this capacity by a very long url are not kept for the next call
+     */
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private StringBuilder tokens = new StringBuilder(256);
+
+    /**
+     * Bytes of the escape sequence being decoded
+     */
+    private byte[] escaped = new byte[64];
+
+    /**
+     * Whether the last character was a separator
+     */
+    private boolean afterSeparator;
+
+    /**
+     * Number of leading unescaped characters matching INLINE_PREFIX
+     */
+    private int inlinePrefix;
+
+    /**
+     * Number of unescaped characters
+     */
+    private int length;
+
+    /**
+     * Splits a string into tokens, as String.join(" ", toParse.split("[\\p{Punct}\b]+"))
+     *
+     * @param toParse string to split
+     * @return tokens separated by spaces
+     */
+    public String cleanPunctuation(String toParse) {
+        reset();
+        for (int i = 0; i < toParse.length(); i++)
+            append(toParse.charAt(i));
+        return tokens.toString();
+    }
+
+    /**
+     * Unescapes a url and splits it into tokens, as ImageSearchIndexingUtil.parseURL(URLDecoder.decode(url, "UTF-8"))
+     *
+     * @param url url to split
+     * @return tokens separated by spaces, or an empty string for inline images
+     */
+    public String tokenizeURL(String url) {
+        if (url.startsWith(INLINE_PREFIX))
+            return "";
+        reset();
+        if (!appendUnescaped(url)) {
+            // invalid escape: URLDecoder throws and the url is split as is
+            reset();
+            for (int i = 0; i < url.length(); i++)
+                append(url.charAt(i));
+        }
+        return inlinePrefix == INLINE_PREFIX.length() ? "" : tokens.toString();
+    }
+
+    private void reset() {
+        if (tokens.capacity() > MAX_RETAINED_CAPACITY)
+            tokens = new StringBuilder(256);
+        tokens.setLength(0);
+        afterSeparator = false;
+        inlinePrefix = 0;
+        length = 0;
+    }
+
+    /**
+     * Appends the unescaped characters of the url, following URLDecoder.decode
+     *
+     * @return false if the url has an invalid escape sequence
+     */
+    private boolean appendUnescaped(String url) {
+        int numChars = url.length();
+        int i = 0;
+        while (i < numChars) {
+            char c = url.charAt(i);
+            if (c == '+') {
+                append(' ');
+                i++;
+            } else if (c == '%') {
+                if (escaped.length < (numChars - i) / 3)
+                    escaped = new byte[(numChars - i) / 3];
+                int pos = 0;
+                boolean ascii = true;
+                while (i + 2 < numChars && c == '%') {
+                    int v = parseEscape(url.charAt(i + 1), url.charAt(i + 2));
+                    if (v < 0)
+                        return false;
+                    escaped[pos++] = (byte) v;
+                    ascii &= v < 0x80;
+                    i += 3;
+                    if (i < numChars)
+                        c = url.charAt(i);
+                }
+                if (i < numChars && c == '%')
+                    return false;
+                if (ascii) {
+                    for (int j = 0; j < pos; j++)
+                        append((char) escaped[j]);
+                } else {
+                    String decoded = new String(escaped, 0, pos, StandardCharsets.UTF_8);
+                    for (int j = 0; j < decoded.length(); j++)
+                        append(decoded.charAt(j));
+                }
+            } else {
+                append(c);
+                i++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Value of an escape sequence, as Integer.parseInt(..., 16) in URLDecoder, which also takes a sign and any
+     * Unicode digit
+     *
+     * @return byte value, or -1 if it is invalid or negative
+     */
+    private static int parseEscape(char first, char second) {
+        if (first == '+' || first == '-') {
+            int digit = Character.digit(second, 16);
+            if (digit < 0 || (first == '-' && digit != 0))
+                return -1;
+            return digit;
+        }
+        int high = Character.digit(first, 16);
+        int low = Character.digit(second, 16);
+        if (high < 0 || low < 0)
+            return -1;
+        return high * 16 + low;
+    }
+
+    private void append(char c) {
+        if (inlinePrefix == length && length < INLINE_PREFIX.length() && c == INLINE_PREFIX.charAt(length))
+            inlinePrefix++;
+        length++;
+
+        if (isSeparator(c)) {
+            afterSeparator = true;
+            return;
+        }
+        if (afterSeparator)
+            tokens.append(' ');
+        afterSeparator = false;
+        tokens.append(c);
+    }
+
+    /**
+     * Whether the character matches [\p{Punct}\b]: ASCII punctuation or backspace
+     */
+    private static boolean isSeparator(char c) {
+        return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~') || c == '\b';
+    }
+}
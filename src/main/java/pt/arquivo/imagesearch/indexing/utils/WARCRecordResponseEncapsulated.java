@@ -36,6 +36,12 @@ public class WARCRecordResponseEncapsulated {
     private static final String DEFLATE = "deflate";
     private static final String BROTLI = "br";
 
+    /**
+     * Suffix of the WARC-Profile of the revisit records whose payload is identical to the one of an earlier record
+     * (the profile urls differ between WARC versions)
+     */
+    private static final String IDENTICAL_PAYLOAD_PROFILE_SUFFIX = "/revisit/identical-payload-digest";
+
 
     private ArchiveRecord warcrecord;
     /**
@@ -74,9 +80,14 @@ public class WARCRecordResponseEncapsulated {
      */
     protected Map<String, Object> headerFields = null;
 
+    /**
+     * Whether this is a revisit record, whose block only has the HTTP headers
+     */
+    private boolean revisit = false;
+
 
     /**
-     * Creates WARCRecordResponse from WARCRecord
+     * Creates WARCRecordResponse from a response or identical payload revisit WARCRecord
      *
      * @param warcrecord base WARC record
      * @param warcURL WARC URL
@@ -87,7 +98,13 @@ public class WARCRecordResponseEncapsulated {
         this.warcURL = warcURL;
         this.warcrecord = warcrecord;
 
-        if (!isWARCResponseRecord()) {
+        if (isWARCRevisitRecord()) {
+            // revisits are allowed to omit the HTTP headers, there is nothing to index in those
+            if (warcrecord.getHeader().getContentLength() <= 0)
+                throw new InvalidWARCResponseIOException("WARC revisit record without HTTP headers");
+            this.revisit = true;
+            readHttpHeader();
+        } else if (!isWARCResponseRecord()) {
             throw new InvalidWARCResponseIOException("Invalid WARCRecordResponse record");
         } else {
             readHttpHeader();
@@ -110,6 +127,8 @@ public class WARCRecordResponseEncapsulated {
 
     private void readHttpHeader() throws IOException {
         String statusLinestr = LaxHttpParser.readLine(warcrecord, WARCRecord.WARC_HEADER_ENCODING);
+        if (revisit && (statusLinestr == null || statusLinestr.trim().isEmpty()))
+            throw new InvalidWARCResponseIOException("WARC revisit record without HTTP status line");
 
         try {
             this.httpStatus = new StatusLine(statusLinestr);
@@ -143,9 +162,36 @@ public class WARCRecordResponseEncapsulated {
     public boolean isWARCResponseRecord() {
         String warcRecordMimetype = warcrecord.getHeader().getMimetype();
         String warcRecordType = (String) warcrecord.getHeader().getHeaderValue(WARCConstants.HEADER_KEY_TYPE);
-        return warcRecordType != null && warcRecordMimetype != null && WARCConstants.WARCRecordType.response.toString().equals(warcRecordType.trim()) &&
-                (warcRecordMimetype.trim().equals(WARCConstants.HTTP_RESPONSE_MIMETYPE) ||
-                        warcRecordMimetype.trim().equals(WARCConstants.HTTP_RESPONSE_MIMETYPE.replaceAll("\\s", "")));
+        return warcRecordType != null && WARCConstants.WARCRecordType.response.toString().equals(warcRecordType.trim()) &&
+                isHttpResponseMimetype(warcRecordMimetype);
+    }
+
+    /**
+     * Check if record is a revisit of an earlier record with the same payload digest
+     *
+     * @return true if it is an identical payload digest revisit
+     */
+    public boolean isWARCRevisitRecord() {
+        String warcRecordType = (String) warcrecord.getHeader().getHeaderValue(WARCConstants.HEADER_KEY_TYPE);
+        Object warcRecordProfile = warcrecord.getHeader().getHeaderValue(WARCConstants.HEADER_KEY_PROFILE);
+        return warcRecordType != null && warcRecordProfile != null && WARCConstants.WARCRecordType.revisit.toString().equals(warcRecordType.trim()) &&
+                warcRecordProfile.toString().trim().endsWith(IDENTICAL_PAYLOAD_PROFILE_SUFFIX) &&
+                isHttpResponseMimetype(warcrecord.getHeader().getMimetype());
+    }
+
+    private static boolean isHttpResponseMimetype(String warcRecordMimetype) {
+        return warcRecordMimetype != null && (warcRecordMimetype.trim().equals(WARCConstants.HTTP_RESPONSE_MIMETYPE) ||
+                warcRecordMimetype.trim().equals(WARCConstants.HTTP_RESPONSE_MIMETYPE.replaceAll("\\s", "")));
+    }
+
+    /**
+     * Whether this is a revisit record. Its content is the one of the earlier record with the same payload digest,
+     * so getContentBytes must not be called
+     *
+     * @return true for identical payload digest revisits
+     */
+    public boolean isRevisit() {
+        return revisit;
     }
 
 
@@ -226,6 +272,16 @@ public class WARCRecordResponseEncapsulated {
         }
     }
 
+    /**
+     * Gets the WARC-Payload-Digest of the record
+     *
+     * @return payload digest (e.g. sha1:...), or null if the record has none
+     */
+    public String getPayloadDigest() {
+        Object digest = warcrecord.getHeader().getHeaderValue(WARCConstants.HEADER_KEY_PAYLOAD_DIGEST);
+        return digest == null ? null : digest.toString();
+    }
+
     /**
      * Gets WARC timestamp in Archive format
      *
@@ -0,0 +1,256 @@
+package pt.arquivo.imagesearch.indexing.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downloads a list of (W)ARCs in the background, in order, so that the next ones are already local
+ * while the current one is being parsed.
+ * <p>
+ * At most prefetchCount (W)ARCs are downloaded ahead of the ones being used, and the local files never take more
+ * than maxDiskBytes (a single (W)ARC larger than that is still downloaded, but only when no other file is on disk).
+ * Each (W)ARC must be given back with release, which deletes the local file.
+ */
+public class WarcPrefetcher implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(WarcPrefetcher.class);
+
+    /**
+     * A (W)ARC downloaded (or that failed downloading) by the prefetcher
+     */
+    public static class PrefetchedWarc {
+
+        /**
+         * (W)ARC url, as in the (W)ARC list
+         */
+        private final String arcURL;
+
+        /**
+         * (W)ARC file name
+         */
+        private final String arcName;
+
+        /**
+         * Local copy of the (W)ARC
+         */
+        private File file;
+
+        /**
+         * Bytes reserved in the disk budget for this (W)ARC
+         */
+        private long reservedBytes = 0;
+
+        /**
+         * Download error, if any
+         */
+        private IOException error;
+
+        private PrefetchedWarc(String arcURL, String arcName) {
+            this.arcURL = arcURL;
+            this.arcName = arcName;
+        }
+
+        public String getArcURL() {
+            return arcURL;
+        }
+
+        public String getArcName() {
+            return arcName;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public IOException getError() {
+            return error;
+        }
+    }
+
+    /**
+     * (W)ARCs to download, in order
+     */
+    private final List<String> arcURLs;
+
+    /**
+     * Directory where the (W)ARCs are downloaded to
+     */
+    private final String tempDir;
+
+    /**
+     * Maximum number of bytes on disk at the same time
+     */
+    private final long maxDiskBytes;
+
+    /**
+     * Download results, in the same order as arcURLs
+     */
+    private final List<CompletableFuture<PrefetchedWarc>> downloads = new ArrayList<>();
+
+    /**
+     * Limits the number of (W)ARCs that are downloaded but not yet released
+     */
+    private final Semaphore slots;
+
+    /**
+     * Bytes currently reserved by downloaded or downloading (W)ARCs
+     */
+    private long diskBytes = 0;
+
+    private volatile boolean closed = false;
+
+    private final Thread downloader;
+
+    /**
+     * Starts downloading the (W)ARCs in the background
+     *
+     * @param arcURLs       (W)ARC urls, in the order in which they will be used
+     * @param tempDir       local directory for the downloaded files
+     * @param prefetchCount number of (W)ARCs that can be downloaded ahead of the ones in use
+     * @param inUseCount    number of (W)ARCs that can be in use (i.e. downloaded and not released) at the same time
+     * @param maxDiskBytes  maximum number of bytes used by local files
+     */
+    public WarcPrefetcher(List<String> arcURLs, String tempDir, int prefetchCount, int inUseCount, long maxDiskBytes) {
+        this.arcURLs = arcURLs;
+        this.tempDir = tempDir;
+        this.maxDiskBytes = maxDiskBytes;
+        this.slots = new Semaphore(prefetchCount + inUseCount);
+        for (int i = 0; i < arcURLs.size(); i++)
+            downloads.add(new CompletableFuture<>());
+        this.downloader = new Thread(this::downloadAll, "warc-prefetcher");
+        this.downloader.setDaemon(true);
+        this.downloader.start();
+    }
+
+    /**
+     * Waits for the download of a (W)ARC
+     *
+     * @param index position of the (W)ARC in the list
+     * @return the downloaded (W)ARC, or the download error
+     * @throws InterruptedException interrupted while waiting for the download
+     */
+    public PrefetchedWarc get(int index) throws InterruptedException {
+        try {
+            return downloads.get(index).get();
+        } catch (ExecutionException e) {
+            // downloads are always completed normally
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Deletes the local file of a (W)ARC, allowing more (W)ARCs to be downloaded.
+     * Must be called once for each (W)ARC returned by get
+     *
+     * @param warc (W)ARC to release
+     */
+    public void release(PrefetchedWarc warc) {
+        if (warc.file != null)
+            FileUtils.deleteQuietly(warc.file);
+        releaseDisk(warc.reservedBytes);
+        warc.reservedBytes = 0;
+        slots.release();
+    }
+
+    /**
+     * Stops downloading and deletes (W)ARCs that were downloaded but not used
+     */
+    @Override
+    public void close() {
+        closed = true;
+        downloader.interrupt();
+        try {
+            downloader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (CompletableFuture<PrefetchedWarc> download : downloads) {
+            PrefetchedWarc warc = download.getNow(null);
+            if (warc != null && warc.file != null)
+                FileUtils.deleteQuietly(warc.file);
+        }
+    }
+
+    private void downloadAll() {
+        for (int i = 0; i < arcURLs.size(); i++) {
+            String arcURL = arcURLs.get(i);
+            PrefetchedWarc warc = null;
+            try {
+                slots.acquire();
+                URL url = new URL(arcURL);
+                String[] surl = url.getPath().split("/");
+                warc = new PrefetchedWarc(arcURL, surl[surl.length - 1]);
+                download(url, warc);
+            } catch (InterruptedException e) {
+                if (warc != null)
+                    FileUtils.deleteQuietly(warc.file);
+                return;
+            } catch (MalformedURLException e) {
+                warc = new PrefetchedWarc(arcURL, arcURL);
+                warc.error = e;
+            } catch (RuntimeException e) {
+                // never leave the consumer waiting; reserved bytes are freed by release
+                if (warc == null) {
+                    warc = new PrefetchedWarc(arcURL, arcURL);
+                } else if (warc.file != null) {
+                    FileUtils.deleteQuietly(warc.file);
+                    warc.file = null;
+                }
+                warc.error = new IOException(e);
+            }
+            downloads.get(i).complete(warc);
+        }
+    }
+
+    /**
+     * Downloads a single (W)ARC, waiting for enough disk budget first
+     *
+     * @param url  remote (W)ARC url
+     * @param warc download result to fill
+     * @throws InterruptedException prefetcher closed while waiting
+     */
+    private void download(URL url, PrefetchedWarc warc) throws InterruptedException {
+        warc.file = new File(tempDir + "/" + System.currentTimeMillis() + "_" + warc.arcName);
+        try {
+            long fileSize;
+            try {
+                fileSize = ImageSearchIndexingUtil.getFileSize(url);
+            } catch (RuntimeException e) {
+                throw new IOException("Error getting file size: " + url, e);
+            }
+            warc.reservedBytes = Math.max(fileSize, 0);
+            reserveDisk(warc.reservedBytes);
+            ImageSearchIndexingUtil.downloadWarc(url, warc.file, fileSize);
+            logger.info("(W)ARC prefetched: " + warc.file.getAbsolutePath());
+        } catch (IOException e) {
+            if (closed)
+                throw new InterruptedException();
+            warc.error = e;
+            warc.file = null;
+            releaseDisk(warc.reservedBytes);
+            warc.reservedBytes = 0;
+        }
+    }
+
+    private synchronized void reserveDisk(long bytes) throws InterruptedException {
+        while (diskBytes > 0 && diskBytes + bytes > maxDiskBytes)
+            wait();
+        diskBytes += bytes;
+    }
+
+    private synchronized void releaseDisk(long bytes) {
+        diskBytes -= bytes;
+        notifyAll();
+    }
+}
@@ -0,0 +1,128 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.junit.Test;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+import pt.arquivo.imagesearch.indexing.utils.CharsetResolver;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CharsetResolverTest {
+
+    private static final byte[] UTF8_BOM = {(byte) 0xef, (byte) 0xbb, (byte) 0xbf};
+
+    private static final String RUSSIAN = "Москва является столицей Российской Федерации, крупнейшим по численности населения городом страны. ";
+
+    private final ImageInformationExtractor extractor = new ImageInformationExtractor("Teste");
+
+    private final CharsetResolver resolver = extractor.getCharsetResolver();
+
+    @Test
+    public void latin1AndAsciiLabelsAreReadAsWindows1252() {
+        for (String label : new String[]{"iso-8859-1", "ISO-8859-1", " iso8859-1 ", "iso_8859-1", "latin1", "l1", "cp819", "us-ascii", "ascii", "US-ASCII"})
+            assertEquals(label, "windows-1252", CharsetResolver.toSupportedCharset(label));
+        assertEquals("windows-1252", CharsetResolver.toSupportedCharset("windows-1252"));
+        assertEquals("utf-8", CharsetResolver.toSupportedCharset("UTF-8"));
+        assertEquals("iso-8859-15", CharsetResolver.toSupportedCharset("ISO-8859-15"));
+
+        // the characters of windows-1252 in 0x80-0x9f, which ISO-8859-1 decodes as control characters
+        byte[] bytes = {(byte) 0x87, (byte) 0x8a, (byte) 0x95, (byte) 0x93, (byte) 0x94, (byte) 0xe7};
+        String charset = resolver.resolve(bytes, "text/html; charset=iso-8859-1", null, extractor);
+        assertEquals("‡Š•“”ç", new String(bytes, Charset.forName(charset)));
+        assertEquals("windows-1252", CharsetResolver.getMetaCharset(bytes("<meta charset=\"latin1\">")));
+    }
+
+    @Test
+    public void unsupportedLabelsAreIgnored() {
+        for (String label : new String[]{"", "x-no-such-charset", "utf 8", "utf-8;", "\"utf-8\"", "../../etc", "ünïcödé"})
+            assertNull(label, CharsetResolver.toSupportedCharset(label));
+        assertNull(CharsetResolver.getHeaderCharset(null));
+        assertNull(CharsetResolver.getHeaderCharset("text/html"));
+        assertNull(CharsetResolver.getHeaderCharset("text/html; charset=x-garbage"));
+        assertNull(CharsetResolver.getMetaCharset(bytes("<meta charset=\"x-garbage\">")));
+        // the first supported declaration is used
+        assertEquals("koi8-r", CharsetResolver.getMetaCharset(bytes("<meta charset=\"x-garbage\"><meta charset=\"koi8-r\">")));
+    }
+
+    @Test
+    public void headerAndMetaDeclarations() {
+        assertEquals("utf-8", CharsetResolver.getHeaderCharset("text/html;charset=UTF-8"));
+        assertEquals("koi8-r", CharsetResolver.getHeaderCharset("text/html; CHARSET = \"koi8-r\"; foo=bar"));
+        assertEquals("windows-1250", CharsetResolver.getMetaCharset(bytes("<META HTTP-EQUIV=\"Content-Type\" CONTENT=\"text/html; charset=windows-1250\">")));
+        assertEquals("windows-1250", CharsetResolver.getMetaCharset(bytes("<meta charset='windows-1250'/>")));
+        // a page whose meta tag can be read as ASCII is not UTF-16
+        assertEquals("UTF-8", CharsetResolver.getMetaCharset(bytes("<meta charset=\"utf-16le\">")));
+        assertNull(CharsetResolver.getMetaCharset(bytes("<p>charset=koi8-r</p>")));
+    }
+
+    @Test
+    public void sourcesAreTriedInOrder() {
+        byte[] meta = bytes("<html><head><meta charset=\"windows-1250\"></head><body>" + RUSSIAN + "</body></html>");
+
+        // byte order mark, over the header and meta tag
+        assertResolved("UTF-8", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_BOM, concat(UTF8_BOM, meta), "text/html; charset=koi8-r", "http://a.pt/");
+        assertResolved("UTF-16BE", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_BOM, "<p>x</p>".getBytes(StandardCharsets.UTF_16), "text/html; charset=koi8-r", "http://a.pt/");
+
+        // header, over the meta tag
+        assertResolved("koi8-r", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_HTTP_HEADER, meta, "text/html; charset=koi8-r", "http://a.pt/");
+
+        // meta tag, when the header has none or an unsupported one
+        assertResolved("windows-1250", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_META, meta, "text/html", "http://b.pt/");
+        assertResolved("windows-1250", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_META, meta, "text/html; charset=x-garbage", "http://b.pt/");
+
+        // only in the first META_SNIFF_BYTES
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < CharsetResolver.META_SNIFF_BYTES - 50)
+            padding.append("<p>padding</p>");
+        assertEquals("windows-1250", CharsetResolver.getMetaCharset(bytes(padding + "<meta charset=\"windows-1250\">")));
+        while (padding.length() < CharsetResolver.META_SNIFF_BYTES)
+            padding.append(' ');
+        assertNull(CharsetResolver.getMetaCharset(bytes(padding + "<meta charset=\"windows-1250\">")));
+
+        // detector, when nothing is declared
+        StringBuilder russian = new StringBuilder("<html><body>");
+        for (int i = 0; i < 20; i++)
+            russian.append("<p>").append(RUSSIAN).append("</p>");
+        byte[] undeclared = russian.append("</body></html>").toString().getBytes(Charset.forName("windows-1251"));
+        assertResolved("windows-1251", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_DETECTOR, undeclared, null, "http://c.pt/");
+
+        // host hint, when the detector finds nothing: the last charset declared by a page of the same host
+        byte[] ascii = bytes("<html><body><p>nothing to detect</p></body></html>");
+        assertResolved("koi8-r", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_HOST_HINT, ascii, null, "http://A.pt/other");
+        assertResolved("windows-1250", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_HOST_HINT, ascii, null, "https://b.pt:8080/x");
+
+        // UTF-8 otherwise
+        assertResolved("UTF-8", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_DEFAULT, ascii, null, "http://d.pt/");
+        assertResolved("UTF-8", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_DEFAULT, ascii, "text/html; charset=x-garbage", null);
+        assertResolved("UTF-8", ImageIndexerWithDupsJob.CHARSET_COUNTERS.PAGES_CHARSET_DEFAULT, new byte[0], null, "");
+    }
+
+    private void assertResolved(String expected, ImageIndexerWithDupsJob.CHARSET_COUNTERS counter, byte[] bytes, String contentType, String pageURL) {
+        long before = extractor.getCounter(counter).getValue();
+        long total = total();
+        assertEquals(expected, resolver.resolve(bytes, contentType, pageURL, extractor));
+        assertEquals(counter.name(), before + 1, extractor.getCounter(counter).getValue());
+        assertEquals(total + 1, total());
+    }
+
+    private long total() {
+        long total = 0;
+        for (ImageIndexerWithDupsJob.CHARSET_COUNTERS counter : ImageIndexerWithDupsJob.CHARSET_COUNTERS.values())
+            total += extractor.getCounter(counter).getValue();
+        return total;
+    }
+
+    private static byte[] bytes(String ascii) {
+        return ascii.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,87 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CombinerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Configuration conf;
+
+    private TreeMap<Text, List<Writable>> mapOutput;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        conf = new Configuration();
+        conf.set("collection", "Teste");
+        conf.set("warcFileTempBaseDir", folder.newFolder("tmp").getPath());
+        List<String> warcs = SyntheticWARCs.write(folder.newFolder("warcs"), 4, 24);
+        // one map task per WARC, so that most SURTs get records from several maps
+        mapOutput = HadoopContexts.runMap(conf, warcs, new Counters()).grouped();
+    }
+
+    @Test
+    public void combinerDoesNotChangeReduceOutput() throws IOException, InterruptedException {
+        List<String> expected = reduce(mapOutput);
+        assertTrue(mapOutput.values().stream().anyMatch(values -> values.size() > 1));
+
+        // Hadoop may run the combiner on each spill, and again when merging the spills
+        Counters counters = new Counters();
+        assertEquals("once", expected, reduce(combine(mapOutput, Integer.MAX_VALUE, counters)));
+        assertEquals("in pairs", expected, reduce(combine(mapOutput, 2, counters)));
+        assertEquals("many times", expected, reduce(combine(combine(combine(mapOutput, 2, counters), 3, counters), Integer.MAX_VALUE, counters)));
+        assertTrue(counters.findCounter(ImageIndexerWithDupsJob.COMBINE_COUNTERS.COMBINED_RECORDS_SAVED).getValue() > 0);
+    }
+
+    private List<String> reduce(TreeMap<Text, List<Writable>> input) throws IOException {
+        return HadoopContexts.runReduce(conf, copy(input), new Counters()).serialized();
+    }
+
+    /**
+     * Runs the Combine over consecutive groups of at most spillSize records of each SURT
+     */
+    private TreeMap<Text, List<Writable>> combine(TreeMap<Text, List<Writable>> input, int spillSize, Counters counters) throws IOException, InterruptedException {
+        HadoopContexts.Output<Text, Writable> output = new HadoopContexts.Output<>(conf);
+        Reducer<Text, Writable, Text, Writable>.Context context = HadoopContexts.reduceContext(conf, Text.class, Writable.class, output, counters);
+        ImageIndexerWithDupsJob.Combine combine = new ImageIndexerWithDupsJob.Combine();
+        for (Map.Entry<Text, List<Writable>> entry : copy(input).entrySet()) {
+            List<Writable> values = entry.getValue();
+            for (int from = 0; from < values.size(); from += spillSize)
+                combine.reduce(entry.getKey(), values.subList(from, (int) Math.min(values.size(), (long) from + spillSize)), context);
+        }
+        return output.grouped();
+    }
+
+    /**
+     * Copies the records, as merging changes them
+     */
+    private TreeMap<Text, List<Writable>> copy(TreeMap<Text, List<Writable>> input) {
+        TreeMap<Text, List<Writable>> copy = new TreeMap<>();
+        for (Map.Entry<Text, List<Writable>> entry : input.entrySet()) {
+            List<Writable> values = new ArrayList<>();
+            for (Writable value : entry.getValue())
+                values.add(WritableUtils.clone(value, conf));
+            copy.put(entry.getKey(), values);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,265 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.junit.Test;
+import pt.arquivo.imagesearch.indexing.data.FullImageMetadata;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+import pt.arquivo.imagesearch.indexing.data.PageImageData;
+import pt.arquivo.imagesearch.indexing.data.hadoop.CompactEncoding;
+
+import java.io.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactEncodingTest {
+
+    // Hadoop variable length integers take a single byte from -112 to 127
+    private static final int[] VINT_BOUNDARIES = {0, 1, 127, 128, 255, 256, 65536, Integer.MAX_VALUE, -1, -112, -113, -256, Integer.MIN_VALUE};
+    private static final long[] VLONG_BOUNDARIES = {0, 127, 128, Integer.MAX_VALUE, Integer.MAX_VALUE + 1L, Long.MAX_VALUE, -1, -112, -113, Long.MIN_VALUE};
+
+    private static ImageData imageCapture(String contentHash, String timestamp, String mimeDetected, String collection) {
+        ImageData imageData = new ImageData("urlhash-" + contentHash, timestamp, "http://x.pt/" + contentHash + ".png",
+                "pt,x)/" + contentHash + ".png", "image/png", mimeDetected, collection, new byte[]{1, 2, 3}, "x.warc.gz", 42);
+        imageData.setContentHash(contentHash);
+        imageData.setWidth(10);
+        imageData.setHeight(20);
+        return imageData;
+    }
+
+    private static PageImageData pageReference(String imgTitle, String imgAlt, String imgCaption, String imgURL,
+                                               String pageTimestamp, String warc, String collection) {
+        return new PageImageData("page", imgTitle, imgAlt, "x pt img", imgCaption, "page title", "x pt page", imgURL,
+                "pt,x)/img.png", 3, pageTimestamp, "http://x.pt/page.html", "x.pt", "http", "img", warc, 7, collection);
+    }
+
+    /**
+     * Two digests, one of them captured three times, referenced by three pages (one with an inline image)
+     */
+    private static FullImageMetadata entryWithImagesAndPages() {
+        FullImageMetadata metadata = new FullImageMetadata();
+
+        metadata.addImageData(imageCapture("aaa", "20100101000000", "image/png", "col"));
+        metadata.addImageData(imageCapture("aaa", "20120101000000", "image/png", "col"));
+        metadata.addImageData(imageCapture("aaa", "20080101000000", "image/png", "col"));
+        metadata.addImageData(imageCapture("bbb", "20110101000000", null, null));
+
+        metadata.addPageImageData(pageReference("title", "alt", "caption", "http://x.pt/aaa.png", "20100101000000", "x.warc.gz", "col"));
+        metadata.addPageImageData(pageReference("", "", "", "http://x.pt/bbb.png", "20110101000000", null, null));
+        metadata.addPageImageData(pageReference("inline", "", "", "hash:abcdef", "20090101000000", "x.warc.gz", "col"));
+        return metadata;
+    }
+
+    private static byte[] serialize(FullImageMetadata metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        metadata.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static FullImageMetadata deserialize(byte[] bytes) throws IOException {
+        FullImageMetadata metadata = new FullImageMetadata();
+        metadata.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+        return metadata;
+    }
+
+    private static ImageData roundTrip(ImageData imageData) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        imageData.write(new DataOutputStream(bytes));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        ImageData copy = ImageData.read(in);
+        assertEquals(-1, in.read());
+        return copy;
+    }
+
+    private static PageImageData roundTrip(PageImageData pageImageData) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        pageImageData.write(new DataOutputStream(bytes));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        PageImageData copy = PageImageData.read(in);
+        assertEquals(-1, in.read());
+        return copy;
+    }
+
+    @Test
+    public void fullImageMetadataRoundTrip() throws IOException {
+        FullImageMetadata original = entryWithImagesAndPages();
+        byte[] bytes = serialize(original);
+        FullImageMetadata copy = deserialize(bytes);
+
+        assertArrayEquals(bytes, serialize(copy));
+        assertEquals(original.getMatchingImages(), copy.getMatchingImages());
+        assertEquals(original.getMatchingPages(), copy.getMatchingPages());
+        assertEquals(original.getImageMetadataChanges(), copy.getImageMetadataChanges());
+        assertEquals(original.getPageMetadataChanges(), copy.getPageMetadataChanges());
+        assertEquals(original.getUniqueDigestsOnURL(), copy.getUniqueDigestsOnURL());
+        assertEquals("pt,x)/aaa.png", copy.getOldestSurt());
+        assertEquals(LocalDateTime.of(2008, 1, 1, 0, 0), copy.getOldestSurtDate());
+
+        List<ImageData> images = new ArrayList<>(copy.getImageDatasValues());
+        assertEquals(2, images.size());
+        ImageData aaa = images.get(0);
+        assertEquals("aaa", aaa.getContentHash());
+        assertArrayEquals(new ArrayList<>(original.getImageDatasValues()).get(0).getTimestamps(), aaa.getTimestamps());
+        assertEquals(3, aaa.getTimestamps().length);
+        assertEquals(LocalDateTime.of(2008, 1, 1, 0, 0), aaa.getOldestTimestamp());
+        assertEquals(LocalDateTime.of(2012, 1, 1, 0, 0), aaa.getNewestTimestamp());
+        assertTrue(aaa.hasTimestamp(LocalDateTime.of(2010, 1, 1, 0, 0)));
+        assertEquals(new ArrayList<>(original.getImageDatasValues()).get(0).getId(), aaa.getId());
+        assertArrayEquals(new byte[]{1, 2, 3}, aaa.getBytes());
+        assertEquals(10, aaa.getWidth());
+        assertEquals(20, aaa.getHeight());
+
+        ImageData bbb = images.get(1);
+        assertEquals("bbb", bbb.getContentHash());
+        assertNull(bbb.getMimeDetected());
+        assertNull(bbb.getCollection());
+        assertNull(bbb.getThumbnailLocation());
+
+        List<PageImageData> pages = new ArrayList<>(copy.getPageImageDatasValues());
+        List<PageImageData> originalPages = new ArrayList<>(original.getPageImageDatasValues());
+        assertEquals(3, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            PageImageData expected = originalPages.get(i);
+            PageImageData actual = pages.get(i);
+            assertEquals(expected.getImageMetadata(), actual.getImageMetadata());
+            assertEquals(expected.getImgURL(), actual.getImgURL());
+            assertEquals(expected.getImgFilename(), actual.getImgFilename());
+            assertEquals(expected.getInline(), actual.getInline());
+            assertEquals(expected.getPageTimestamp(), actual.getPageTimestamp());
+            assertEquals(expected.getImgTimestamp(), actual.getImgTimestamp());
+            assertEquals(expected.getTagFoundIn(), actual.getTagFoundIn());
+            assertEquals(expected.getWarc(), actual.getWarc());
+            assertEquals(expected.getCollection(), actual.getCollection());
+        }
+        assertTrue(pages.stream().anyMatch(p -> p.getImgFilename() == null));
+        assertTrue(pages.stream().anyMatch(p -> p.getWarc() == null));
+    }
+
+    @Test
+    public void pagesOnlyEntryHasNullOldestSurt() throws IOException {
+        FullImageMetadata original = new FullImageMetadata();
+        original.addPageImageData(pageReference("title", "alt", "caption", "http://x.pt/aaa.png", "20100101000000", "x.warc.gz", "col"));
+        original.addPageImageData(pageReference("other", "", "", "http://x.pt/aaa.png", "20110101000000", "x.warc.gz", "col"));
+
+        byte[] bytes = serialize(original);
+        FullImageMetadata copy = deserialize(bytes);
+
+        assertArrayEquals(bytes, serialize(copy));
+        assertNull(copy.getOldestSurt());
+        assertNull(copy.getOldestSurtDate());
+        assertTrue(copy.getImageDatasValues().isEmpty());
+        assertEquals(2, copy.getPageImageDatasValues().size());
+    }
+
+    @Test
+    public void imageAndPageRecordsRoundTrip() throws IOException {
+        ImageData image = imageCapture("ccc", "20150505101010", null, "col");
+        image.addTimestamp(imageCapture("ccc", "20160606111111", null, "col"));
+        image.setThumbnailLocation("attempt_m_000001_0:1234");
+        PageImageData page = pageReference("", "alt", "", "hash:0123", "20150505101010", null, null);
+
+        ImageData imageCopy = roundTrip(image);
+        PageImageData pageCopy = roundTrip(page);
+
+        assertArrayEquals(image.getTimestamps(), imageCopy.getTimestamps());
+        assertEquals(image.getId(), imageCopy.getId());
+        assertNull(imageCopy.getMimeDetected());
+        assertEquals("attempt_m_000001_0:1234", imageCopy.getThumbnailLocation());
+        assertEquals(image.getUrl(), imageCopy.getUrl());
+        assertEquals(page.getImgURL(), pageCopy.getImgURL());
+        assertNull(pageCopy.getImgFilename());
+        assertNull(pageCopy.getWarc());
+        assertNull(pageCopy.getCollection());
+        assertEquals(page.getPageTimestamp(), pageCopy.getPageTimestamp());
+    }
+
+    @Test
+    public void varintBoundariesRoundTrip() throws IOException {
+        for (int value : VINT_BOUNDARIES) {
+            ImageData image = imageCapture("ddd", "20150505101010", "image/png", "col");
+            image.setWidth(value);
+            image.setHeight(value);
+            ImageData imageCopy = roundTrip(image);
+            assertEquals(value, imageCopy.getWidth());
+            assertEquals(value, imageCopy.getHeight());
+
+            PageImageData page = new PageImageData("page", "t", "a", "x pt img", "c", "page title", "x pt page", "http://x.pt/d.png",
+                    "pt,x)/d.png", value, "20150505101010", "http://x.pt/page.html", "x.pt", "http", "img", "x.warc.gz", 7, "col");
+            assertEquals(value, roundTrip(page).getImagesInPage());
+
+            FullImageMetadata metadata = entryWithImagesAndPages();
+            metadata.setUniqueDigestsOnURL(value);
+            assertEquals(value, deserialize(serialize(metadata)).getUniqueDigestsOnURL());
+        }
+        for (long value : VLONG_BOUNDARIES) {
+            ImageData image = new ImageData("urlhash", "20150505101010", "http://x.pt/e.png", "pt,x)/e.png", "image/png",
+                    "image/png", "col", new byte[0], "x.warc.gz", value);
+            assertEquals(value, roundTrip(image).getWarcOffset());
+
+            PageImageData page = new PageImageData("page", "t", "a", "x pt img", "c", "page title", "x pt page", "http://x.pt/e.png",
+                    "pt,x)/e.png", 1, "20150505101010", "http://x.pt/page.html", "x.pt", "http", "img", "x.warc.gz", value, "col");
+            assertEquals(value, roundTrip(page).getWarcOffset());
+        }
+    }
+
+    @Test
+    public void fieldEncodersRoundTrip() throws IOException {
+        LocalDateTime withNanos = LocalDateTime.of(1999, 12, 31, 23, 59, 59, 123456789);
+        LocalDateTime beforeEpoch = LocalDateTime.of(1965, 3, 1, 12, 0);
+        // the length prefix (length + 1) crosses the single byte varint boundary at 127
+        List<String> strings = Arrays.asList(null, "", "a", "ação 😀", repeat("x", 126), repeat("x", 127), repeat("x", 128), repeat("ç", 64), repeat("ç", 70000));
+        List<byte[]> byteArrays = Arrays.asList(null, new byte[0], new byte[]{-1, 0, 127}, new byte[126], new byte[127], new byte[128]);
+        List<LocalDateTime> timestamps = Arrays.asList(null, LocalDateTime.of(1970, 1, 1, 0, 0), withNanos, beforeEpoch,
+                LocalDateTime.of(2020, 2, 29, 12, 0, 0, 127), LocalDateTime.of(2020, 2, 29, 12, 0, 0, 128));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String string : strings)
+            CompactEncoding.writeString(out, string);
+        for (byte[] byteArray : byteArrays)
+            CompactEncoding.writeBytes(out, byteArray);
+        for (LocalDateTime timestamp : timestamps)
+            CompactEncoding.writeTimestamp(out, timestamp);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (String string : strings)
+            assertEquals(string, CompactEncoding.readString(in));
+        for (byte[] byteArray : byteArrays)
+            assertArrayEquals(byteArray, CompactEncoding.readBytes(in));
+        for (LocalDateTime timestamp : timestamps)
+            assertEquals(timestamp, CompactEncoding.readTimestamp(in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void wrongFormatVersionIsRejected() throws IOException {
+        byte[] bytes = serialize(entryWithImagesAndPages());
+        assertEquals(FullImageMetadata.FORMAT_VERSION, bytes[0]);
+        for (int version : new int[]{0, FullImageMetadata.FORMAT_VERSION - 1, FullImageMetadata.FORMAT_VERSION + 1, 0xff}) {
+            if (version == FullImageMetadata.FORMAT_VERSION)
+                continue;
+            bytes[0] = (byte) version;
+            try {
+                deserialize(bytes);
+                fail("Format version " + version + " was accepted");
+            } catch (IOException e) {
+                assertEquals("Unknown FullImageMetadata format version: " + (byte) version, e.getMessage());
+            }
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedRecordIsRejected() throws IOException {
+        byte[] bytes = serialize(entryWithImagesAndPages());
+        deserialize(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    private static String repeat(String string, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            builder.append(string);
+        return builder.toString();
+    }
+}
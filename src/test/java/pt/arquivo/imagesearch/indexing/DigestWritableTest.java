@@ -0,0 +1,151 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+import pt.arquivo.imagesearch.indexing.data.hadoop.DigestPartitioner;
+import pt.arquivo.imagesearch.indexing.data.hadoop.DigestWritable;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DigestWritableTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void rawComparatorMatchesCompareTo() throws IOException {
+        WritableComparator comparator = WritableComparator.get(DigestWritable.class);
+        for (int i = 0; i < 10000; i++) {
+            DigestWritable a = randomDigest();
+            // also digests sharing a prefix, so that the bytes after it decide
+            DigestWritable b = i % 2 == 0 ? randomDigest() : withPrefix(a, random.nextInt(DigestWritable.LENGTH + 1));
+
+            // serialized at different offsets of a larger buffer, as in the sort buffers
+            DataOutputBuffer first = serialize(a, random.nextInt(8));
+            DataOutputBuffer second = serialize(b, random.nextInt(8));
+            int firstStart = first.getLength() - DigestWritable.LENGTH;
+            int secondStart = second.getLength() - DigestWritable.LENGTH;
+            int raw = comparator.compare(first.getData(), firstStart, DigestWritable.LENGTH, second.getData(), secondStart, DigestWritable.LENGTH);
+
+            assertEquals(a + " " + b, Integer.signum(a.compareTo(b)), Integer.signum(raw));
+            assertEquals(a + " " + b, Integer.signum(a.toString().compareTo(b.toString())), Integer.signum(raw));
+            assertEquals(raw == 0, a.equals(b));
+        }
+    }
+
+    @Test
+    public void hexRoundTrip() throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            byte[] bytes = new byte[DigestWritable.LENGTH];
+            random.nextBytes(bytes);
+            String hex = DigestWritable.toHex(bytes);
+            assertEquals(2 * DigestWritable.LENGTH, hex.length());
+            assertTrue(hex.matches("[0-9a-f]+"));
+
+            DigestWritable digest = new DigestWritable(hex);
+            assertArrayEquals(bytes, digest.getBytes());
+            assertEquals(hex, digest.toString());
+            // the hex digests are written in lower case, but are read in either case
+            assertEquals(digest, new DigestWritable(hex.toUpperCase()));
+
+            DigestWritable read = new DigestWritable();
+            DataOutputBuffer out = serialize(digest, 0);
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(out.getData(), out.getLength());
+            read.readFields(in);
+            assertEquals(digest, read);
+            assertEquals(digest.hashCode(), read.hashCode());
+        }
+        assertEquals("00ff7f80", DigestWritable.toHex(new byte[]{0, -1, 127, -128}));
+    }
+
+    @Test
+    public void invalidHexIsRejected() {
+        String valid = DigestWritable.toHex(new byte[DigestWritable.LENGTH]);
+        assertInvalid(null);
+        assertInvalid("");
+        assertInvalid(valid.substring(1));
+        assertInvalid(valid + "0");
+        assertInvalid(valid.substring(2));
+        assertInvalid(valid + "00");
+        assertInvalid("g" + valid.substring(1));
+        assertInvalid(valid.substring(1) + " ");
+        assertInvalid("-" + valid.substring(1));
+        assertInvalid("0x" + valid.substring(2));
+        // Unicode digits that are not ASCII hex: Arabic-Indic one, fullwidth 'a'
+        assertInvalid("١" + valid.substring(1));
+        assertInvalid(valid.substring(1) + "ａ");
+    }
+
+    @Test
+    public void partitionIsStableAndNonNegative() {
+        DigestPartitioner partitioner = new DigestPartitioner();
+        int[] partitionCounts = {1, 2, 3, 7, 64, 1000, Integer.MAX_VALUE};
+        for (int i = 0; i < 1000; i++) {
+            DigestWritable digest = randomDigest();
+            DigestWritable copy = new DigestWritable(digest.toString());
+            for (int partitions : partitionCounts) {
+                int partition = partitioner.getPartition(digest, null, partitions);
+                assertTrue(partition >= 0 && partition < partitions);
+                assertEquals(partition, new DigestPartitioner().getPartition(copy, null, partitions));
+            }
+        }
+
+        // first four bytes read as Integer.MIN_VALUE and -1
+        String min = "80000000" + DigestWritable.toHex(new byte[DigestWritable.LENGTH - 4]);
+        String minusOne = "ffffffff" + DigestWritable.toHex(new byte[DigestWritable.LENGTH - 4]);
+        for (int partitions : partitionCounts) {
+            assertTrue(partitioner.getPartition(new DigestWritable(min), null, partitions) >= 0);
+            assertTrue(partitioner.getPartition(new DigestWritable(minusOne), null, partitions) >= 0);
+        }
+        assertEquals(Integer.MAX_VALUE % 7, partitioner.getPartition(new DigestWritable(minusOne), null, 7));
+    }
+
+    @Test
+    public void partitionsAreBalanced() {
+        DigestPartitioner partitioner = new DigestPartitioner();
+        int[] counts = new int[16];
+        for (int i = 0; i < 16000; i++)
+            counts[partitioner.getPartition(randomDigest(), null, counts.length)]++;
+        for (int count : counts)
+            assertTrue(count > 800 && count < 1200);
+    }
+
+    private DigestWritable randomDigest() {
+        byte[] bytes = new byte[DigestWritable.LENGTH];
+        random.nextBytes(bytes);
+        return new DigestWritable(DigestWritable.toHex(bytes));
+    }
+
+    /**
+     * Random digest with the first bytes of another one
+     */
+    private DigestWritable withPrefix(DigestWritable digest, int prefixLength) {
+        byte[] bytes = randomDigest().getBytes().clone();
+        System.arraycopy(digest.getBytes(), 0, bytes, 0, prefixLength);
+        return new DigestWritable(DigestWritable.toHex(bytes));
+    }
+
+    private DataOutputBuffer serialize(DigestWritable digest, int offset) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        for (int i = 0; i < offset; i++)
+            out.writeByte(random.nextInt());
+        digest.write(out);
+        return out;
+    }
+
+    private static void assertInvalid(String hex) {
+        try {
+            new DigestWritable(hex);
+            fail("Accepted invalid digest: " + hex);
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.commons.io.FileUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.junit.Test;
+import pt.arquivo.imagesearch.indexing.utils.ElementTextIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ElementTextIndexTest {
+
+    private static final String[] PAGES = {"pageCaptionParent.html", "pageCaptionSiblings.html", "pageCaptionTooLarge.html"};
+
+    private static final String[] SNIPPETS = {
+            "",
+            "   ",
+            "<p>  a  </p>  b <div> c </div>d",
+            "<div><p>one</p><p>two</p>three<span> four </span><br>five<br><br> six</div>",
+            "<ul><li>a<li> b <li><ul><li>c</li></ul>d</ul>text after",
+            "x<br>y<br/> <br>z<div></div><div> </div><p>\n\t</p>end",
+            "<table><tr><td>a</td><td> b </td></tr><tr><th>c</th></tr></table>after",
+            "<pre>  keep\n   this  </pre> and <pre><b>  nested\n</b></pre>",
+            "<pre><div><div><div><div><div><div><span>  too   deep </span></div></div></div></div></div></div></pre>",
+            "<div><div><div><div><pre><div>  not too  deep </div></pre></div></div></div></div>",
+            "<textarea>  text\n area  </textarea><script> var a = 1; </script><style> .x {} </style>after",
+            "<p>a&nbsp;</p>&nbsp;<p>&nbsp; b &nbsp;</p><span>\u00a0</span><span>\u2003c\u2003</span>",
+            "<figure><img src=\"a.png\"><figcaption>  Legenda  <em>da</em>\nimagem </figcaption></figure>",
+            "<div>a</div>b<div>c</div> <div>d</div>\ne<span>f</span><div></div>g",
+            "<svg><![CDATA[  cdata  text ]]></svg><math><mi> x </mi></math>",
+            "<p>unclosed <b>bold <i>italic</p> rest </b> end",
+    };
+
+    @Test
+    public void textMatchesElementTextOnTestPages() throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        for (String page : PAGES) {
+            URL url = classLoader.getResource("pages/" + page);
+            assertNotNull(url);
+            String html = FileUtils.readFileToString(new File(url.getPath()), StandardCharsets.UTF_8);
+            assertIndexMatches(page, Jsoup.parse(html, "https://example.com/"));
+        }
+    }
+
+    @Test
+    public void textMatchesElementTextOnSnippets() {
+        for (String snippet : SNIPPETS)
+            assertIndexMatches(snippet, Jsoup.parse("<html><body>" + snippet + "</body></html>"));
+    }
+
+    @Test
+    public void textMatchesElementTextOnXml() {
+        Document document = Jsoup.parse("<root> <a> x <![CDATA[  y  ]]> </a><b/><c>  z  </c></root>", "", Parser.xmlParser());
+        assertIndexMatches("xml", document);
+    }
+
+    @Test
+    public void subtreeIndexMatchesElementText() {
+        Document document = Jsoup.parse("<div id=\"a\"> one <p> two </p></div><div> three </div>");
+        Element div = document.getElementById("a");
+        ElementTextIndex index = new ElementTextIndex(div);
+        for (Element element : div.getAllElements())
+            assertEquals(element.text(), index.text(element));
+    }
+
+    @Test
+    public void elementsOutsideTheIndexFallBackToElementText() {
+        Document document = Jsoup.parse("<p> indexed </p>");
+        ElementTextIndex index = new ElementTextIndex(document);
+        Element added = document.body().appendElement("span").text(" added ");
+        assertEquals("added", index.text(added));
+        assertTrue(index.hasText(added));
+        // the indexed text is not updated
+        assertEquals("indexed", index.text(document.body()));
+    }
+
+    @Test
+    public void nonBreakingSpacesAreNotText() {
+        Document document = Jsoup.parse("<p>&nbsp;</p><p>\u2003</p>");
+        ElementTextIndex index = new ElementTextIndex(document);
+        Element nbsp = document.body().child(0);
+        // as the captions were extracted with text(), an element with only non-breaking spaces has no caption
+        assertEquals("", index.text(nbsp));
+        assertFalse(index.hasText(nbsp));
+        assertTrue(nbsp.hasText());
+        assertEquals("\u2003", index.text(document.body().child(1)));
+        assertTrue(index.hasText(document.body().child(1)));
+    }
+
+    private static void assertIndexMatches(String name, Document document) {
+        ElementTextIndex index = new ElementTextIndex(document);
+        int elements = 0;
+        for (Element element : document.getAllElements()) {
+            assertEquals(name + ": " + element.cssSelector(), element.text(), index.text(element));
+            assertEquals(name + ": " + element.cssSelector(), !element.text().isEmpty(), index.hasText(element));
+            // Element.hasText() takes non-breaking spaces as text, although text() drops them
+            if (!element.text().isEmpty() || !element.hasText())
+                assertEquals(name + ": " + element.cssSelector(), element.hasText(), index.hasText(element));
+            elements++;
+        }
+        assertTrue(elements > 0);
+    }
+}
@@ -0,0 +1,61 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EntryBudgetTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Configuration conf = new Configuration();
+
+    @Test
+    public void tinyBudgetGivesTheSameReduceOutput() throws IOException, InterruptedException {
+        List<String> warcs = SyntheticWARCs.write(folder.getRoot(), 3, 30);
+
+        Counters unlimitedCounters = new Counters();
+        HadoopContexts.Output<Text, Writable> unlimited = map(warcs, 0, unlimitedCounters);
+        Counters tinyCounters = new Counters();
+        HadoopContexts.Output<Text, Writable> tiny = map(warcs, 1, tinyCounters);
+
+        // every record flushes its entry, so the SURTs are split over many map output records
+        assertEquals(0, unlimitedCounters.findCounter(ImageIndexerWithDupsJob.BUFFER_COUNTERS.BUFFER_FLUSHES).getValue());
+        assertTrue(tinyCounters.findCounter(ImageIndexerWithDupsJob.BUFFER_COUNTERS.BUFFER_FLUSHES).getValue() > 0);
+        assertTrue(tiny.keys.size() > unlimited.keys.size());
+
+        assertEquals(reduce(unlimited), reduce(tiny));
+    }
+
+    private HadoopContexts.Output<Text, Writable> map(List<String> warcs, long entryBudget, Counters counters) throws IOException, InterruptedException {
+        HadoopContexts.Output<Text, Writable> output = new HadoopContexts.Output<>(conf);
+        Mapper<LongWritable, Text, Text, Writable>.Context context = HadoopContexts.mapContext(conf, 0, output, counters);
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Teste", context);
+        extractor.setEntryBudget(entryBudget);
+        for (String warc : warcs) {
+            String path = new URL(warc).getPath();
+            extractor.parseRecord(path.substring(path.lastIndexOf('/') + 1), path);
+        }
+        extractor.writeEntries();
+        return output;
+    }
+
+    private List<String> reduce(HadoopContexts.Output<Text, Writable> mapOutput) throws IOException {
+        return HadoopContexts.runReduce(conf, mapOutput.grouped(), new Counters()).serialized();
+    }
+}
@@ -0,0 +1,214 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.junit.Test;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExtractionCacheTest {
+
+    private static final String[] TIMESTAMPS = {"20190301100000", "20220101000000", "20230202000000"};
+
+    private final Configuration conf = new Configuration();
+
+    @Test
+    public void replayedPagesMatchParsedPages() throws IOException, InterruptedException {
+        List<String> pages = new ArrayList<>(SyntheticWARCs.pages(60));
+        // skipped by the prefilter, and failing to parse
+        pages.add("<html><body><p>sem imagens</p></body></html>");
+        pages.add("");
+
+        Run cached = new Run(1024 * 1024, 0);
+        Run uncached = new Run(0, 0);
+        for (Run run : new Run[]{cached, uncached}) {
+            for (int p = 0; p < pages.size(); p++) {
+                byte[] html = pages.get(p).getBytes(StandardCharsets.UTF_8);
+                String pageURL = "http://www.example.pt/section" + p + "/page.html";
+                // the first two captures have the payload digest, the third one is only hashed
+                for (int capture = 0; capture < TIMESTAMPS.length; capture++)
+                    run.extractor.parseImagesFromHtmlRecord(run.context, html, "text/html", pageURL, TIMESTAMPS[capture], "capture-" + capture + ".warc",
+                            100 * p + capture, capture == 2 ? null : "sha1:PAGE" + p);
+            }
+        }
+
+        assertEquals(uncached.output(), cached.output());
+        assertSameCounters(uncached, cached);
+        assertEquals(2 * pages.size(), cached.counter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_CACHE_MISS));
+        assertEquals(pages.size(), cached.counter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_CACHE_HIT));
+    }
+
+    @Test
+    public void pagesWithTheSameDigestDoNotCollide() throws IOException, InterruptedException {
+        // relative links resolve against the page url, and the bytes are decoded as the Content-Type says
+        byte[] html = "<html><head><title>Página</title></head><body><img src=\"/img/foto.png\" alt=\"Legenda ção\"><a href=\"photo.jpg\">foto</a></body></html>"
+                .getBytes(StandardCharsets.UTF_8);
+        String[][] captures = {
+                {"http://a.pt/x/index.html", "text/html"},
+                {"http://b.pt/y/index.html", "text/html"},
+                {"http://a.pt/z/index.html", "text/html"},
+                {"http://a.pt/x/index.html", "text/html; charset=iso-8859-1"},
+                {"http://a.pt/x/index.html", "text/html; charset=utf-8"},
+        };
+
+        Run cached = new Run(1024 * 1024, 0);
+        Run uncached = new Run(0, 0);
+        for (Run run : new Run[]{cached, uncached}) {
+            for (int c = 0; c < captures.length; c++)
+                run.extractor.parseImagesFromHtmlRecord(run.context, html, captures[c][1], captures[c][0], TIMESTAMPS[0], "same.warc", c, "sha1:SAME");
+        }
+
+        assertEquals(uncached.output(), cached.output());
+        assertEquals(0, cached.counter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_CACHE_HIT));
+        assertEquals(captures.length, cached.counter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_CACHE_MISS));
+    }
+
+    @Test
+    public void pagesOverTheCacheBudgetAreParsedAgain() throws IOException, InterruptedException {
+        List<String> pages = SyntheticWARCs.pages(40);
+        // room for a few pages only, so that most of them are evicted before their next capture
+        Run cached = new Run(8 * 1024, 0);
+        Run uncached = new Run(0, 0);
+        for (Run run : new Run[]{cached, uncached}) {
+            // the page captured again is further back every two pages
+            for (int p = 0; p < pages.size(); p++) {
+                parse(run, pages, p, 0);
+                parse(run, pages, p / 2, 1);
+            }
+        }
+
+        assertEquals(uncached.output(), cached.output());
+        assertSameCounters(uncached, cached);
+        long hits = cached.counter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_CACHE_HIT);
+        assertEquals(2 * pages.size(), hits + cached.counter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_CACHE_MISS));
+        assertTrue(hits > 0 && hits < pages.size());
+    }
+
+    @Test
+    public void rememberedImagesMatchParsedImages() throws IOException, InterruptedException {
+        List<byte[]> images = images();
+        Run memo = new Run(0, 1024 * 1024);
+        Run parsed = new Run(0, 0);
+        for (Run run : new Run[]{memo, parsed}) {
+            for (int i = 0; i < images.size(); i++) {
+                // the same bytes under other urls, capture times and reported types, with and without a payload digest
+                save(run, "http://www.example.pt/img/photo" + i + ".png", TIMESTAMPS[0], "image/png", images.get(i), 10 * i, "sha1:IMAGE" + i);
+                save(run, "http://static.example.com/copy/photo" + i + ".jpg", TIMESTAMPS[1], "image/jpeg", images.get(i), 10 * i + 1, "sha1:IMAGE" + i);
+                save(run, "http://www.example.pt/img/photo" + i + ".png", TIMESTAMPS[2], "image/png", images.get(i), 10 * i + 2, null);
+                save(run, "http://example.org/other" + i + ".gif", TIMESTAMPS[2], "image/gif", images.get(i).clone(), 10 * i + 3, null);
+            }
+        }
+
+        assertEquals(parsed.output(), memo.output());
+        assertSameCounters(parsed, memo);
+        assertEquals(2 * images.size(), memo.counter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MEMO_MISS));
+        assertEquals(2 * images.size(), memo.counter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MEMO_HIT));
+    }
+
+    @Test
+    public void imagesOverTheMemoBudgetAreParsedAgain() throws IOException, InterruptedException {
+        List<byte[]> images = images();
+        // room for a few images only
+        Run memo = new Run(0, 3 * 1024);
+        Run parsed = new Run(0, 0);
+        for (Run run : new Run[]{memo, parsed}) {
+            for (int i = 0; i < images.size(); i++) {
+                save(run, "http://www.example.pt/img/photo" + i + ".png", TIMESTAMPS[0], "image/png", images.get(i), 10 * i, "sha1:IMAGE" + i);
+                save(run, "http://www.example.pt/copy/photo" + i / 2 + ".png", TIMESTAMPS[1], "image/png", images.get(i / 2), 10 * i + 1, "sha1:IMAGE" + i / 2);
+            }
+        }
+
+        assertEquals(parsed.output(), memo.output());
+        assertSameCounters(parsed, memo);
+        long hits = memo.counter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MEMO_HIT);
+        assertEquals(2 * images.size(), hits + memo.counter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_MEMO_MISS));
+        assertTrue(hits > 0 && hits < images.size());
+    }
+
+    private static void save(Run run, String url, String timestamp, String mime, byte[] bytes, long offset, String payloadDigest) {
+        run.extractor.saveImageMetadata(url, ImageSearchIndexingUtil.md5ofString(url), timestamp, mime, bytes, "images.warc", offset, payloadDigest);
+    }
+
+    /**
+     * Images of several formats and sizes, and bytes that are not an image
+     */
+    private static List<byte[]> images() throws IOException {
+        List<byte[]> images = new ArrayList<>();
+        String[] formats = {"png", "jpg", "gif", "bmp"};
+        int[][] sizes = {{30, 30}, {120, 80}, {400, 300}, {64, 250}, {10, 10}};
+        for (int i = 0; i < 10; i++) {
+            BufferedImage image = new BufferedImage(sizes[i % sizes.length][0], sizes[i % sizes.length][1], BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, 0x10203 * i);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, formats[i % formats.length], out);
+            images.add(out.toByteArray());
+        }
+        images.add("<html>not an image</html>".getBytes(StandardCharsets.UTF_8));
+        images.add(Arrays.copyOf(images.get(0), images.get(0).length / 2));
+        return images;
+    }
+
+    private static void parse(Run run, List<String> pages, int p, int capture) {
+        run.extractor.parseImagesFromHtmlRecord(run.context, pages.get(p).getBytes(StandardCharsets.UTF_8), "text/html",
+                "http://www.example.pt/page" + p + ".html", TIMESTAMPS[capture], "evicted.warc", 100 * p + capture, "sha1:PAGE" + p);
+    }
+
+    private static void assertSameCounters(Run expected, Run actual) {
+        for (Enum<?>[] group : new Enum<?>[][]{ImageIndexerWithDupsJob.PAGE_COUNTERS.values(), ImageIndexerWithDupsJob.IMAGE_COUNTERS.values(),
+                ImageIndexerWithDupsJob.CHARSET_COUNTERS.values()}) {
+            for (Enum<?> counter : group) {
+                if (counter.name().contains("_CACHE_") || counter.name().contains("_MEMO_"))
+                    continue;
+                assertEquals(counter.name(), expected.counter(counter), actual.counter(counter));
+            }
+        }
+    }
+
+    /**
+     * Extractor writing its entries to an in memory context, with the page cache and image memo of the given sizes
+     */
+    private final class Run {
+
+        private final Counters counters = new Counters();
+
+        private final HadoopContexts.Output<Text, Writable> output = new HadoopContexts.Output<>(conf);
+
+        private final Mapper<LongWritable, Text, Text, Writable>.Context context = HadoopContexts.mapContext(conf, 0, output, counters);
+
+        private final ImageInformationExtractor extractor = new ImageInformationExtractor("Teste", context);
+
+        private Run(long pageCacheBytes, long imageMemoBytes) {
+            extractor.setPageCacheSize(pageCacheBytes);
+            extractor.setImageMemoSize(imageMemoBytes);
+        }
+
+        private List<String> output() throws IOException, InterruptedException {
+            extractor.writeEntries();
+            List<String> records = output.serialized();
+            Collections.sort(records);
+            assertTrue(records.size() > 0);
+            return records;
+        }
+
+        private long counter(Enum<?> counter) {
+            return counters.findCounter(counter).getValue();
+        }
+    }
+}
@@ -4,7 +4,7 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.mapreduce.Counter;
+import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import pt.arquivo.imagesearch.indexing.data.FullImageMetadata;
@@ -12,50 +12,140 @@ import pt.arquivo.imagesearch.indexing.data.ImageData;
 import pt.arquivo.imagesearch.indexing.data.MultiPageImageData;
 import pt.arquivo.imagesearch.indexing.data.serializers.ImageDataSerializer;
 import pt.arquivo.imagesearch.indexing.data.serializers.MultiPageImageDataSerializer;
+import pt.arquivo.imagesearch.indexing.processors.PipelinedImageInformationExtractor;
 
 import java.io.*;
 import java.net.URL;
 import java.util.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 
 public class FullPipelineTest {
 
+    private static final String[][] PIPELINE_CONFIGS = {{"1", "1", "1"}, {"4", "2", "8"}, {"8", "8", "1"}};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void pipelineTestWARC() throws IOException {
-        String logLevel = System.getenv("INDEXING_LOG_LEVEL");
-        if (logLevel != null) {
-            org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.toLevel(logLevel));
-        } else {
-            org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.ERROR);
+        assertEquals(expectedOutput(), runPipeline(new LocalFullImageIndexer.Map("Teste"), testWARCs()));
+    }
+
+    @Test
+    public void pipelineTestWARCPipelined() throws IOException {
+        // the pipelined extractor must produce exactly the same output as the serial one
+        assertEquals(expectedOutput(), runPipeline(new LocalFullImageIndexer.Map("Teste", new PipelinedImageInformationExtractor("Teste", 4, 2, 8)), testWARCs()));
+    }
+
+    @Test
+    public void pipelineTestWARCParallel() throws IOException {
+        // the parallel indexer must produce exactly the same output as the single threaded one
+        List<String> warcs = testWARCs();
+        String parallel = runParallel(4, warcs);
+        assertEquals(runPipeline(new LocalFullImageIndexer.Map("Teste"), warcs), parallel);
+        assertEquals(expectedOutput(), parallel);
+    }
+
+    @Test
+    public void pipelinedMatchesSerialOnSyntheticWARCs() throws IOException {
+        List<String> warcs = SyntheticWARCs.write(folder.getRoot(), 2, 40);
+        String serial = runPipeline(new LocalFullImageIndexer.Map("Teste"), warcs);
+        assertFalse(serial.isEmpty());
+
+        // records finish in a different order on every run, the output must not depend on it
+        for (int run = 0; run < 3; run++) {
+            for (String[] config : PIPELINE_CONFIGS) {
+                PipelinedImageInformationExtractor extractor = new PipelinedImageInformationExtractor("Teste",
+                        Integer.parseInt(config[0]), Integer.parseInt(config[1]), Integer.parseInt(config[2]));
+                assertEquals(Arrays.toString(config), serial, runPipeline(new LocalFullImageIndexer.Map("Teste", extractor), warcs));
+            }
         }
-        
+    }
+
+    @Test
+    public void parallelMatchesSerialOnSyntheticWARCs() throws IOException {
+        List<String> warcs = SyntheticWARCs.write(folder.getRoot(), 5, 24);
+        String serial = runPipeline(new LocalFullImageIndexer.Map("Teste"), warcs);
+        assertFalse(serial.isEmpty());
+
+        for (int threads : new int[]{1, 2, 4, 8})
+            assertEquals("threads: " + threads, serial, runParallel(threads, warcs));
+    }
+
+    /**
+     * Output of the test WARCs, in COMPACT mode
+     */
+    private String expectedOutput() throws IOException {
+        URL warcURL = getClass().getClassLoader().getResource("outputs/FullPipelineTest.jsonl");
+        assertNotNull(warcURL);
+        return FileUtils.readFileToString(new File(warcURL.getPath()));
+    }
+
+    /**
+     * Urls of the WARCs listed in FullOfflinePipelineTestWARCS.txt
+     */
+    private List<String> testWARCs() throws IOException {
         ClassLoader classLoader = getClass().getClassLoader();
 
         URL hdfsArcsPath = classLoader.getResource("FullOfflinePipelineTestWARCS.txt");
-
         assertNotNull(hdfsArcsPath);
 
-        String path = hdfsArcsPath.getPath();
-        String collection = "Teste";
+        List<String> warcPaths = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(hdfsArcsPath.getPath()))) {
+            for (String line; (line = br.readLine()) != null; ) {
+                if (!line.trim().isEmpty()) {
+                    URL warcURL = classLoader.getResource(line.trim());
+                    assertNotNull(warcURL);
+                    warcPaths.add("file://" + warcURL.getPath());
+                }
+            }
+        }
+        return warcPaths;
+    }
 
-        Gson gson = new GsonBuilder()
+    private static Gson createGson() {
+        return new GsonBuilder()
                 .registerTypeAdapter(MultiPageImageData.class, new MultiPageImageDataSerializer())
                 .registerTypeAdapter(ImageData.class, new ImageDataSerializer())
                 .create();
+    }
 
-        LocalFullImageIndexer.Map map = new LocalFullImageIndexer.Map(collection);
-
-        BufferedReader br = new BufferedReader(new FileReader(path));
-        for (String line; (line = br.readLine()) != null; ) {
-            if (!line.trim().isEmpty()) {
-                URL warcURL = classLoader.getResource(line.trim());
-                assertNotNull(warcURL);
-                String warcPath = "file://" + warcURL.getPath();
-                map.map(warcPath);
-            }
+    private static void setLogLevel() {
+        String logLevel = System.getenv("INDEXING_LOG_LEVEL");
+        if (logLevel != null) {
+            org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.toLevel(logLevel));
+        } else {
+            org.apache.log4j.Logger.getRootLogger().setLevel(org.apache.log4j.Level.ERROR);
         }
+    }
+
+    /**
+     * Runs the ParallelLocalFullImageIndexer over the given WARCs
+     *
+     * @return the COMPACT output
+     */
+    static String runParallel(int threads, List<String> warcPaths) throws IOException {
+        setLogLevel();
+        StringWriter out = new StringWriter();
+        ParallelLocalFullImageIndexer indexer = new ParallelLocalFullImageIndexer("Teste", threads);
+        indexer.run(warcPaths, new PrintWriter(out), createGson(), DupDigestMergerJob.OUTPUT_MODE.COMPACT);
+        return out.toString();
+    }
+
+    /**
+     * Runs the map, reduce and digest reduce stages of LocalFullImageIndexer over the given WARCs
+     *
+     * @return the COMPACT output
+     */
+    static String runPipeline(LocalFullImageIndexer.Map map, List<String> warcPaths) throws IOException {
+        setLogLevel();
+        Gson gson = createGson();
+
+        for (String warcPath : warcPaths)
+            map.map(warcPath);
 
         HashMap<String, List<Object>> mapResults = map.cleanup();
         HashMap<String, List<FullImageMetadata>> reduceResults = new HashMap<>();
@@ -96,12 +186,6 @@ public class FullPipelineTest {
                 }
             }
         }
-
-
-        URL warcURL = classLoader.getResource("outputs/FullPipelineTest.jsonl");
-        assertNotNull(warcURL);
-        final File expected = new File(warcURL.getPath());
-        assertEquals(FileUtils.readFileToString(expected), out.toString());
+        return out.toString();
     }
 }
-
@@ -0,0 +1,234 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.util.Progress;
+import pt.arquivo.imagesearch.indexing.data.hadoop.DigestWritable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs the map, combine and reduce stages of the jobs in the test JVM, through Hadoop contexts that keep their
+ * output and counters in memory, so that the stages can be called directly and in any combination.
+ */
+final class HadoopContexts {
+
+    private HadoopContexts() {
+    }
+
+    /**
+     * Key and value pairs written to a context, copied as they would be by the shuffle
+     */
+    static class Output<K extends Writable, V extends Writable> extends RecordWriter<K, V> {
+
+        private final Configuration conf;
+
+        final List<K> keys = new ArrayList<>();
+
+        final List<V> values = new ArrayList<>();
+
+        Output(Configuration conf) {
+            this.conf = conf;
+        }
+
+        @Override
+        public void write(K key, V value) {
+            keys.add(WritableUtils.clone(key, conf));
+            values.add(WritableUtils.clone(value, conf));
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+
+        /**
+         * Groups the values by key, in key order, as the reducer receives them
+         *
+         * @return values of each key
+         */
+        TreeMap<K, List<V>> grouped() {
+            TreeMap<K, List<V>> grouped = new TreeMap<>();
+            for (int i = 0; i < keys.size(); i++)
+                grouped.computeIfAbsent(keys.get(i), key -> new ArrayList<>()).add(values.get(i));
+            return grouped;
+        }
+
+        /**
+         * Serialized form of the records, to compare the output of two runs
+         *
+         * @return one "key value" line per record, with the value bytes in Base64
+         */
+        List<String> serialized() throws IOException {
+            List<String> records = new ArrayList<>();
+            DataOutputBuffer buffer = new DataOutputBuffer();
+            for (int i = 0; i < keys.size(); i++) {
+                buffer.reset();
+                values.get(i).write(buffer);
+                records.add(keys.get(i) + " " + Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.getData(), buffer.getLength())));
+            }
+            return records;
+        }
+    }
+
+    private static class Reporter extends StatusReporter {
+
+        private final Counters counters;
+
+        Reporter(Counters counters) {
+            this.counters = counters;
+        }
+
+        @Override
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+    }
+
+    private static final RawKeyValueIterator NO_INPUT = new RawKeyValueIterator() {
+        @Override
+        public DataInputBuffer getKey() {
+            return null;
+        }
+
+        @Override
+        public DataInputBuffer getValue() {
+            return null;
+        }
+
+        @Override
+        public boolean next() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public Progress getProgress() {
+            return new Progress();
+        }
+    };
+
+    static <KI, VI, KO extends Writable, VO extends Writable> Mapper<KI, VI, KO, VO>.Context mapContext(Configuration conf, int task, Output<KO, VO> output, Counters counters) {
+        TaskAttemptID id = new TaskAttemptID("test", 1, TaskType.MAP, task, 0);
+        return new WrappedMapper<KI, VI, KO, VO>().getMapContext(new MapContextImpl<>(conf, id, null, output, null, new Reporter(counters), null));
+    }
+
+    /**
+     * Creates a reducer context without input: the reducer is called with reduce(key, values, context)
+     */
+    static <KI, VI, KO extends Writable, VO extends Writable> Reducer<KI, VI, KO, VO>.Context reduceContext(Configuration conf, Class<KI> keyClass, Class<VI> valueClass,
+                                                                                                                  Output<KO, VO> output, Counters counters) throws IOException {
+        TaskAttemptID id = new TaskAttemptID("test", 1, TaskType.REDUCE, 0, 0);
+        Counter inputCounter = counters.findCounter("test", "input");
+        try {
+            return new WrappedReducer<KI, VI, KO, VO>().getReducerContext(new ReduceContextImpl<>(conf, id, NO_INPUT, inputCounter, inputCounter, output, null,
+                    new Reporter(counters), null, keyClass, valueClass));
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Runs the ImageIndexerWithDupsJob map over the given (W)ARCs, one map task per (W)ARC
+     *
+     * @param conf     job config, with the collection and warcFileTempBaseDir
+     * @param warcURLs (W)ARC urls
+     * @param counters where the counters are added
+     * @return map output records
+     */
+    static Output<Text, Writable> runMap(Configuration conf, List<String> warcURLs, Counters counters) throws IOException, InterruptedException {
+        Output<Text, Writable> output = new Output<>(conf);
+        for (int task = 0; task < warcURLs.size(); task++) {
+            String warcURL = warcURLs.get(task);
+            Mapper<LongWritable, Text, Text, Writable>.Context context = mapContext(conf, task, output, counters);
+            ImageIndexerWithDupsJob.Map map = new ImageIndexerWithDupsJob.Map();
+            map.setup(context);
+            map.map(new LongWritable(0), new Text(warcURL), context);
+            map.cleanup(context);
+        }
+        return output;
+    }
+
+    /**
+     * Runs the ImageIndexerWithDupsJob reduce over records grouped by SURT
+     *
+     * @param conf     job config
+     * @param input    records of each SURT
+     * @param counters where the counters are added
+     * @return reduce output records
+     */
+    static Output<DigestWritable, Writable> runReduce(Configuration conf, Map<Text, List<Writable>> input, Counters counters) throws IOException {
+        Output<DigestWritable, Writable> output = new Output<>(conf);
+        Reducer<Text, Writable, DigestWritable, Writable>.Context context = reduceContext(conf, Text.class, Writable.class, output, counters);
+        ImageIndexerWithDupsJob.Reduce reduce = new ImageIndexerWithDupsJob.Reduce();
+        reduce.setup(context);
+        for (Map.Entry<Text, List<Writable>> entry : input.entrySet())
+            reduce.reduce(entry.getKey(), entry.getValue(), context);
+        return output;
+    }
+
+    /**
+     * Runs the DupDigestMergerJob reduce over the ImageIndexerWithDupsJob output grouped by digest
+     *
+     * @param conf     job config, with the output mode
+     * @param input    records of each digest
+     * @param counters where the counters are added
+     * @return exported JSON lines
+     */
+    static Output<NullWritable, Text> runDigestMerge(Configuration conf, Map<DigestWritable, List<Writable>> input, Counters counters) throws IOException, InterruptedException {
+        Output<NullWritable, Text> output = new Output<>(conf);
+        Reducer<DigestWritable, Writable, NullWritable, Text>.Context context = reduceContext(conf, DigestWritable.class, Writable.class, output, counters);
+        DupDigestMergerJob.Reduce reduce = new DupDigestMergerJob.Reduce();
+        reduce.setup(context);
+        for (Map.Entry<DigestWritable, List<Writable>> entry : input.entrySet())
+            reduce.reduce(entry.getKey(), entry.getValue(), context);
+        reduce.cleanup(context);
+        return output;
+    }
+}
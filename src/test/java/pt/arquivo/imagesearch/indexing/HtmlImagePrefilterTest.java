@@ -0,0 +1,179 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+import pt.arquivo.imagesearch.indexing.utils.HtmlImagePrefilter;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class HtmlImagePrefilterTest {
+
+    private static final String[] PAGES = {"pages/pageCaptionParent.html", "pages/pageCaptionSiblings.html", "pages/pageCaptionTooLarge.html"};
+
+    private static final String PAGE_URL = "https://andremourao.com/static/pages";
+
+    private static final String[] WITH_IMAGES = {
+            "<IMG SRC=\"/a.png\">",
+            "<Img Src=\"photo\">",
+            "<image src=\"/b.gif\">",
+            "<img srcset=\"/c.png 1x, /c2.png 2x\" src=\"/c.png\">",
+            "<a href=\"/photo&#46;jpg\">photo</a>",
+            "<a href=\"/photo&#x2e;JPEG\">photo</a>",
+            "<a href=\"/photo&period;png\">photo</a>",
+            "<a href=\"/PHOTO.JPG\">photo</a>",
+            "<div style=\"background: url(/bg.webp)\">bg</div>",
+            "<style>.x { background-image: url('/sprites/all.svg') }</style>",
+    };
+
+    private static final String[] WITHOUT_IMAGES = {
+            "",
+            "<html><head><title>Sem imagens</title></head><body><p>Hello world</p></body></html>",
+            "<p><a href=\"/about\">about</a> <a href=\"/docs/report.pdf\">pdf</a> <a href=\"index.html\">home</a></p>",
+            "<p>Imaginary images, imagine &amp; &#47; &#x2F; &nbsp; data:text/plain,img</p><iframe src=\"/frame.html\"></iframe>",
+            "<script>var images = [];</script><p>pngs jpgs gifs</p><!-- no img here -->",
+            "<a href=\"/gifts.html\">gifts</a> <a href=\"/guides/png-files/\">guide</a>",
+    };
+
+    @Test
+    public void pagesWithImagesAreAccepted() throws IOException {
+        int pagesWithImages = 0;
+        for (String page : PAGES) {
+            URL pageFile = getClass().getClassLoader().getResource(page);
+            assertNotNull(pageFile);
+            byte[] htmlBytes = FileUtils.readFileToByteArray(new File(pageFile.getPath()));
+            if (yieldsImages(htmlBytes, "text/html", PAGE_URL)) {
+                assertTrue(page, accepted(htmlBytes, "text/html", PAGE_URL));
+                pagesWithImages++;
+            }
+        }
+        for (String page : SyntheticWARCs.pages(60)) {
+            byte[] htmlBytes = page.getBytes(StandardCharsets.UTF_8);
+            if (yieldsImages(htmlBytes, "text/html", PAGE_URL)) {
+                assertTrue(page, accepted(htmlBytes, "text/html", PAGE_URL));
+                pagesWithImages++;
+            }
+        }
+        assertTrue(pagesWithImages > 60);
+    }
+
+    @Test
+    public void imageReferencesAreAccepted() throws IOException {
+        for (String snippet : WITH_IMAGES)
+            assertAcceptedWithImages(snippet, html(snippet).getBytes(StandardCharsets.UTF_8), "text/html", PAGE_URL);
+
+        String inline = "<img src=\"data:image/png;base64," + Base64.getEncoder().encodeToString(png()) + "\" alt=\"inline\">";
+        assertAcceptedWithImages("data:image", html(inline).getBytes(StandardCharsets.UTF_8), "text/html", PAGE_URL);
+    }
+
+    @Test
+    public void pagesNotInAnAsciiCompatibleEncodingAreAccepted() throws IOException {
+        String html = html("<img src=\"/a.png\">");
+        byte[] utf16 = html.getBytes(StandardCharsets.UTF_16);
+        assertAcceptedWithImages("UTF-16", utf16, "text/html; charset=utf-16", PAGE_URL);
+        assertAcceptedWithImages("UTF-16LE", html.getBytes(StandardCharsets.UTF_16LE), "text/html; charset=utf-16le", PAGE_URL);
+
+        // accepted even without images, as the patterns cannot be matched byte by byte
+        assertTrue(accepted(html("<p>texto</p>").getBytes(StandardCharsets.UTF_16BE), "text/html; charset=utf-16be", PAGE_URL));
+        byte[] withNul = html("<p>texto\0</p>").getBytes(StandardCharsets.UTF_8);
+        assertTrue(accepted(withNul, "text/html", PAGE_URL));
+    }
+
+    @Test
+    public void pagesWithAnImageURLAreAccepted() throws IOException {
+        // links without a path of their own resolve to the page url
+        byte[] html = html("<a href=\"?page=2\">next</a>").getBytes(StandardCharsets.UTF_8);
+        assertAcceptedWithImages("image page url", html, "text/html", "http://example.com/gallery/photo.jpg");
+        assertTrue(accepted(html, "text/html", "example.com/gallery/photo.jpg"));
+        assertFalse(accepted(html, "text/html", "http://example.com/gallery/photo.html"));
+    }
+
+    @Test
+    public void pagesWithoutImagesAreRejected() throws IOException {
+        for (String snippet : WITHOUT_IMAGES) {
+            byte[] htmlBytes = html(snippet).getBytes(StandardCharsets.UTF_8);
+            assertFalse(snippet, yieldsImages(htmlBytes, "text/html", PAGE_URL));
+            assertFalse(snippet, accepted(htmlBytes, "text/html", PAGE_URL));
+        }
+        byte[] latin1 = html("<p>Não há imagens aqui, só texto: ‡ Š •</p>").getBytes("windows-1252");
+        assertFalse(accepted(latin1, "text/html; charset=windows-1252", PAGE_URL));
+    }
+
+    @Test
+    public void prefilterPatterns() {
+        HtmlImagePrefilter prefilter = new HtmlImagePrefilter(Arrays.asList("jpg", "PNG"));
+        assertTrue(prefilter.mayContainImages(bytes("x.JPG")));
+        assertTrue(prefilter.mayContainImages(bytes("x.png")));
+        assertTrue(prefilter.mayContainImages(bytes("x&#0046;png")));
+        assertTrue(prefilter.mayContainImages(bytes("x&#X2E;png")));
+        // a reference to any character could be a '.', once unescaped
+        assertTrue(prefilter.mayContainImages(bytes("x.&#112;ng")));
+        assertTrue(prefilter.mayContainImages(bytes("data:image")));
+        assertTrue(prefilter.mayContainImages(bytes("<image")));
+        // conservative: any extension starting with an image one
+        assertTrue(prefilter.mayContainImages(bytes("x.jpgx")));
+
+        assertFalse(prefilter.mayContainImages(bytes("x.gif")));
+        assertFalse(prefilter.mayContainImages(bytes("x.jp")));
+        assertFalse(prefilter.mayContainImages(bytes("x&#47;png")));
+        assertFalse(prefilter.mayContainImages(bytes("x&#x2f;png")));
+        assertFalse(prefilter.mayContainImages(bytes("x&#;png")));
+        assertFalse(prefilter.mayContainImages(bytes("x&#")));
+        assertFalse(prefilter.mayContainImages(bytes("DATA:IMAGE")));
+        assertFalse(prefilter.mayContainImages(bytes("<im")));
+        assertFalse(prefilter.mayContainImages(bytes("< img")));
+        assertFalse(prefilter.mayContainImages(new byte[0]));
+    }
+
+    /**
+     * Whether the extractor parses the page, or skips it because of the prefilter
+     */
+    private static boolean accepted(byte[] htmlBytes, String contentType, String pageURL) {
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Teste");
+        extractor.parseImagesFromHtmlRecord(null, htmlBytes, contentType, pageURL, "20200101000000", "test.warc", 0);
+        assertEquals(1, extractor.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES).getValue());
+        return extractor.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES_SKIPPED_PREFILTER).getValue() == 0;
+    }
+
+    /**
+     * Whether parsing the page, without the prefilter, finds any image
+     */
+    private static boolean yieldsImages(byte[] htmlBytes, String contentType, String pageURL) throws IOException {
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Teste");
+        extractor.parseHTMLPage(pageURL, "20200101000000", "test.warc", 0, ImageSearchIndexingUtil.decode(htmlBytes, contentType, pageURL, extractor));
+        return !extractor.getEntries().isEmpty();
+    }
+
+    private static void assertAcceptedWithImages(String name, byte[] htmlBytes, String contentType, String pageURL) throws IOException {
+        assertTrue(name, yieldsImages(htmlBytes, contentType, pageURL));
+        assertTrue(name, accepted(htmlBytes, contentType, pageURL));
+    }
+
+    private static String html(String body) {
+        return "<html><head><title>Teste</title></head><body>" + body + "</body></html>";
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] png() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(60, 60, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,241 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+import pt.arquivo.imagesearch.indexing.utils.WARCInformationParser;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ImageDataTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void idsMatchTheTimestampStrings() throws IOException {
+        for (int i = 0; i < 2000; i++) {
+            // captures of the same image under a few urls and url hashes, merged in a random order
+            int captures = 1 + random.nextInt(8);
+            List<ImageData> images = new ArrayList<>();
+            List<StringTimestamps> expected = new ArrayList<>();
+            for (int c = 0; c < captures; c++) {
+                String timestamp = randomTimestamp();
+                String url = "http://a.pt/" + (char) ('a' + random.nextInt(3)) + (random.nextInt(4) == 0 ? "/longer" : "") + ".png";
+                String hash = "hash" + random.nextInt(3);
+                images.add(imageData(hash, timestamp, url));
+                expected.add(new StringTimestamps(hash, timestamp, url));
+            }
+            while (images.size() > 1) {
+                int from = random.nextInt(images.size());
+                ImageData merged = images.remove(from);
+                StringTimestamps expectedMerged = expected.remove(from);
+                int into = random.nextInt(images.size());
+                images.get(into).addTimestamp(roundTrip(merged));
+                expected.get(into).addTimestamp(expectedMerged);
+                if (random.nextBoolean())
+                    images.set(into, roundTrip(images.get(into)));
+            }
+            assertSameId(expected.get(0), images.get(0));
+        }
+    }
+
+    @Test
+    public void idsOfArchiveTimestampFormats() throws IOException {
+        // 14 digit timestamps, as read from the WARCs, are written as they are
+        assertEquals("20190301100000/hash", imageData("hash", "20190301100000", "http://a.pt/a.png").getId());
+        assertEquals("20190301100000/http://a.pt/a.png", imageData("hash", "20190301100000", "http://a.pt/a.png").getURLWithTimestamp());
+
+        // 12 and 16 digit ARC dates too, while they are the oldest timestamp
+        ImageData minutes = imageData("hash", "201903011000", "http://a.pt/a.png");
+        assertEquals("201903011000/hash", minutes.getId());
+        minutes.addTimestamp(imageData("hash", "20200101000000", "http://a.pt/a.png"));
+        assertEquals("201903011000/hash", roundTrip(minutes).getId());
+        minutes.addTimestamp(imageData("other", "20180101000000", "http://a.pt/b.png"));
+        assertEquals("20180101000000/other", minutes.getId());
+
+        ImageData millis = imageData("hash", "2019030110000012", "http://a.pt/a.png");
+        assertEquals("2019030110000012/hash", roundTrip(millis).getId());
+        // only the format of the object that is merged into is kept
+        ImageData sameTime = imageData("hash", "20190301100000", "http://a.pt/a.png");
+        sameTime.addTimestamp(millis);
+        assertEquals("20190301100000/hash", sameTime.getId());
+        millis.addTimestamp(imageData("hash", "20190301100000", "http://a.pt/a.png"));
+        assertEquals("2019030110000012/hash", millis.getId());
+    }
+
+    @Test
+    public void timestampsAreMergedSortedWithoutDuplicates() {
+        long[][] cases = {
+                {50}, {10}, {30}, {70}, {100},
+                {10, 30, 50, 70}, {10, 50}, {50, 70}, {20, 40, 60, 80}, {5, 100},
+                {30, 50}, {10, 20, 30, 40, 50, 60, 70, 80}, {1, 2, 3}, {80, 90, 100},
+        };
+        for (long[] existing : cases) {
+            for (long[] added : cases) {
+                ImageData imageData = imageData("hash", existing);
+                long[] before = imageData.getTimestamps();
+                imageData.addTimestamp(imageData("hash", added));
+
+                long[] timestamps = imageData.getTimestamps();
+                List<Long> expected = new ArrayList<>();
+                for (long[] values : new long[][]{existing, added})
+                    for (long value : values)
+                        if (!expected.contains(value))
+                            expected.add(value);
+                Collections.sort(expected);
+                assertEquals(expected.size(), timestamps.length);
+                for (int k = 0; k < timestamps.length; k++)
+                    assertEquals((long) expected.get(k), timestamps[k] - epoch(0));
+                if (expected.size() == existing.length)
+                    assertSame(before, timestamps);
+                assertEquals(expected.size(), imageData.getMatchingImages());
+                assertEquals(WARCInformationParser.getLocalDateTimeToTimestamp(ImageData.toLocalDateTime(timestamps[0])), imageData.getId().split("/")[0]);
+                assertEquals(timestamps[timestamps.length - 1] - timestamps[0], imageData.getTimespan());
+            }
+        }
+    }
+
+    @Test
+    public void oldestCaptureIsKept() {
+        ImageData imageData = imageData("bbb", "20190301100000", "http://a.pt/bb.png");
+
+        // newer captures only add their timestamps
+        imageData.addTimestamp(imageData("aaa", "20200101000000", "http://a.pt/a.png"));
+        assertCapture("bbb", "http://a.pt/bb.png", imageData);
+
+        // on the same oldest timestamp, the shortest url wins, and then the smallest url hash
+        imageData.addTimestamp(imageData("ccc", "20190301100000", "http://a.pt/cc.png"));
+        assertCapture("bbb", "http://a.pt/bb.png", imageData);
+        imageData.addTimestamp(imageData("ccc", "20190301100000", "http://a.pt/cccc.png"));
+        assertCapture("bbb", "http://a.pt/bb.png", imageData);
+        imageData.addTimestamp(imageData("bbb", "20190301100000", "http://a.pt/dd.png"));
+        assertCapture("bbb", "http://a.pt/bb.png", imageData);
+        imageData.addTimestamp(imageData("aab", "20190301100000", "http://a.pt/ee.png"));
+        assertCapture("aab", "http://a.pt/ee.png", imageData);
+        imageData.addTimestamp(imageData("zzz", "20190301100000", "http://a.pt/f.png"));
+        assertCapture("zzz", "http://a.pt/f.png", imageData);
+        assertEquals(2, imageData.getMatchingImages());
+
+        // an older capture wins, even if it brings newer timestamps with it
+        ImageData older = imageData("yyy", "20180101000000", "http://a.pt/older/y.png");
+        older.addTimestamp(imageData("yyy", "20250101000000", "http://a.pt/older/y.png"));
+        imageData.addTimestamp(older);
+        assertCapture("yyy", "http://a.pt/older/y.png", imageData);
+        assertEquals(4, imageData.getMatchingImages());
+        assertEquals("20180101000000/yyy", imageData.getId());
+    }
+
+    private static void assertCapture(String hash, String url, ImageData imageData) {
+        assertEquals(hash, imageData.getImageURLHash());
+        assertEquals(url, imageData.getUrl());
+        assertEquals(url + ".warc", imageData.getWarc());
+    }
+
+    private String randomTimestamp() {
+        // a few distinct seconds, so that captures share timestamps
+        LocalDateTime time = LocalDateTime.of(2019 + random.nextInt(2), 3, 1, 10, random.nextInt(2), random.nextInt(3));
+        String timestamp = WARCInformationParser.getLocalDateTimeToTimestamp(time);
+        switch (random.nextInt(5)) {
+            case 0:
+                // 12 digit ARC dates have no seconds
+                return time.getSecond() == 0 ? timestamp.substring(0, 12) : timestamp;
+            case 1:
+                return timestamp + String.format("%02d", random.nextInt(100));
+            default:
+                return timestamp;
+        }
+    }
+
+    private static ImageData imageData(String hash, String timestamp, String url) {
+        return new ImageData(hash, timestamp, url, url, "image/png", "image/png", "Teste", new byte[]{1, 2, 3}, url + ".warc", 0);
+    }
+
+    private static ImageData imageData(String hash, long[] seconds) {
+        ImageData imageData = imageData(hash, WARCInformationParser.getLocalDateTimeToTimestamp(ImageData.toLocalDateTime(epoch(seconds[0]))), "http://a.pt/a.png");
+        for (int i = 1; i < seconds.length; i++)
+            imageData.addTimestamp(imageData(hash, WARCInformationParser.getLocalDateTimeToTimestamp(ImageData.toLocalDateTime(epoch(seconds[i]))), "http://a.pt/a.png"));
+        return imageData;
+    }
+
+    private static long epoch(long seconds) {
+        return LocalDateTime.of(2019, 3, 1, 10, 0).toEpochSecond(ZoneOffset.UTC) + seconds;
+    }
+
+    /**
+     * Writes and reads an ImageData, as between the map and the reduce
+     */
+    private static ImageData roundTrip(ImageData imageData) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        imageData.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        return ImageData.read(in);
+    }
+
+    private static void assertSameId(StringTimestamps expected, ImageData actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.timestampOriginalFormat.get(0) + "/" + expected.url, actual.getURLWithTimestamp());
+        assertEquals(expected.imageURLHash, actual.getImageURLHash());
+        assertEquals(expected.url, actual.getUrl());
+        long[] timestamps = new long[expected.timestamp.size()];
+        for (int i = 0; i < timestamps.length; i++)
+            timestamps[i] = expected.timestamp.get(i).toEpochSecond(ZoneOffset.UTC);
+        assertArrayEquals(timestamps, actual.getTimestamps());
+    }
+
+    /**
+     * The capture timestamps as they were kept before they were stored as epoch seconds: as LocalDateTime and archive
+     * string lists, sorted on each merge, and the id taken from the first string
+     */
+    private static final class StringTimestamps {
+
+        private String imageURLHash;
+
+        private String url;
+
+        private final List<LocalDateTime> timestamp = new LinkedList<>();
+
+        private final List<String> timestampOriginalFormat = new LinkedList<>();
+
+        private StringTimestamps(String imageURLHash, String timestamp, String url) {
+            this.imageURLHash = imageURLHash;
+            this.url = url;
+            this.timestampOriginalFormat.add(timestamp);
+            this.timestamp.add(WARCInformationParser.parseLocalDateTime(timestamp));
+        }
+
+        private void addTimestamp(StringTimestamps imageData) {
+            for (LocalDateTime localDT : imageData.timestamp) {
+                int compare = localDT.compareTo(timestamp.get(0));
+                if (compare < 0 || (compare == 0 && imageData.url.length() < this.url.length()) || (compare == 0 && imageData.url.length() == this.url.length() && imageData.imageURLHash.compareTo(this.imageURLHash) < 0)) {
+                    imageURLHash = imageData.imageURLHash;
+                    url = imageData.url;
+                }
+                if (!timestamp.contains(localDT)) {
+                    this.timestamp.add(localDT);
+                    this.timestampOriginalFormat.add(WARCInformationParser.getLocalDateTimeToTimestamp(localDT));
+                    Collections.sort(timestamp);
+                    Collections.sort(timestampOriginalFormat);
+                }
+            }
+            Collections.sort(timestamp);
+            Collections.sort(timestampOriginalFormat);
+        }
+
+        private String getId() {
+            return timestampOriginalFormat.get(0) + "/" + imageURLHash;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package pt.arquivo.imagesearch.indexing;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pt.arquivo.imagesearch.indexing.data.hadoop.DigestWritable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LazyThumbnailTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Configuration conf;
+
+    private List<String> warcs;
+
+    private File warcDir;
+
+    private HttpServer server;
+
+    private final List<String> ranges = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        conf = new Configuration();
+        conf.set("collection", "Teste");
+        conf.set("warcFileTempBaseDir", folder.newFolder("tmp").getPath());
+        conf.set(DupDigestMergerJob.OUTPUT_MODE_NAME, DupDigestMergerJob.OUTPUT_MODE.FULL.name());
+        warcDir = folder.newFolder("warcs");
+        warcs = SyntheticWARCs.write(warcDir, 2, 20);
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null)
+            server.stop(0);
+    }
+
+    @Test
+    public void thumbnailsAreCreatedFromTheLocalWARCs() throws IOException, InterruptedException {
+        Counters counters = new Counters();
+        assertEquals(run(conf, new Counters()), run(lazy(warcDir.toURI().toString()), counters));
+        assertTrue(counters.findCounter(DupDigestMergerJob.COUNTERS.THUMBNAILS_GENERATED).getValue() > 0);
+        assertEquals(0, counters.findCounter(DupDigestMergerJob.COUNTERS.THUMBNAILS_FAILED).getValue());
+    }
+
+    @Test
+    public void thumbnailsAreCreatedWithHTTPRangeRequests() throws IOException, InterruptedException {
+        Counters counters = new Counters();
+        assertEquals(run(conf, new Counters()), run(lazy(serve(true)), counters));
+        assertTrue(counters.findCounter(DupDigestMergerJob.COUNTERS.THUMBNAILS_GENERATED).getValue() > 0);
+        assertEquals(0, counters.findCounter(DupDigestMergerJob.COUNTERS.THUMBNAILS_FAILED).getValue());
+        assertTrue(ranges.stream().anyMatch(range -> !range.equals("bytes=0-")));
+    }
+
+    @Test
+    public void thumbnailsAreCreatedWithoutHTTPRangeSupport() throws IOException, InterruptedException {
+        assertEquals(run(conf, new Counters()), run(lazy(serve(false)), new Counters()));
+    }
+
+    @Test
+    public void failedThumbnailSkipsTheImage() throws IOException, InterruptedException {
+        // the first (W)ARC name now points to the second (W)ARC, so its offsets are wrong
+        File wrongDir = folder.newFolder("wrong");
+        FileUtils.copyFile(new File(warcDir, "synthetic-1.warc.gz"), new File(wrongDir, "synthetic-0.warc.gz"));
+        FileUtils.copyFile(new File(warcDir, "synthetic-1.warc.gz"), new File(wrongDir, "synthetic-1.warc.gz"));
+
+        List<String> expected = run(conf, new Counters());
+        Counters counters = new Counters();
+        List<String> output = run(lazy(wrongDir.toURI().toString()), counters);
+
+        long failed = counters.findCounter(DupDigestMergerJob.COUNTERS.THUMBNAILS_FAILED).getValue();
+        assertTrue(failed > 0);
+        assertTrue(counters.findCounter(DupDigestMergerJob.COUNTERS.THUMBNAILS_GENERATED).getValue() > 0);
+        assertEquals(expected.size() - failed, output.size());
+        assertTrue(expected.containsAll(output));
+    }
+
+    private Configuration lazy(String warcsPath) {
+        Configuration lazy = new Configuration(conf);
+        lazy.setBoolean(ImageIndexerWithDupsJob.LAZY_THUMBNAILS_NAME, true);
+        lazy.set(ImageIndexerWithDupsJob.LAZY_THUMBNAILS_WARCS_NAME, warcsPath);
+        return lazy;
+    }
+
+    /**
+     * Runs both stages over the WARCs
+     *
+     * @return exported JSON lines
+     */
+    private List<String> run(Configuration conf, Counters counters) throws IOException, InterruptedException {
+        HadoopContexts.Output<Text, Writable> mapOutput = HadoopContexts.runMap(conf, warcs, counters);
+        HadoopContexts.Output<DigestWritable, Writable> reduceOutput = HadoopContexts.runReduce(conf, mapOutput.grouped(), counters);
+        List<String> lines = new ArrayList<>();
+        for (Text line : HadoopContexts.runDigestMerge(conf, reduceOutput.grouped(), counters).values)
+            lines.add(line.toString());
+        return lines;
+    }
+
+    /**
+     * Serves the WARCs over HTTP
+     *
+     * @param rangeSupport whether range requests are answered with partial content, or with the whole file
+     * @return path of the url list of the served WARCs
+     */
+    private String serve(boolean rangeSupport) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> sendWarc(exchange, rangeSupport));
+        server.start();
+        List<String> urls = new ArrayList<>();
+        for (String warc : warcs) {
+            String path = new URL(warc).getPath();
+            urls.add("http://127.0.0.1:" + server.getAddress().getPort() + "/warcs" + path.substring(path.lastIndexOf('/')));
+        }
+        File list = folder.newFile("warcs.txt");
+        Files.write(list.toPath(), urls, StandardCharsets.UTF_8);
+        return list.toURI().toString();
+    }
+
+    private void sendWarc(HttpExchange exchange, boolean rangeSupport) throws IOException {
+        String name = exchange.getRequestURI().getPath().substring("/warcs/".length());
+        byte[] warc = Files.readAllBytes(new File(warcDir, name).toPath());
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int from = 0;
+        if (range != null && rangeSupport) {
+            synchronized (ranges) {
+                ranges.add(range);
+            }
+            from = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + (warc.length - 1) + "/" + warc.length);
+            exchange.sendResponseHeaders(206, warc.length - from);
+        } else {
+            exchange.sendResponseHeaders(200, warc.length);
+        }
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(Arrays.copyOfRange(warc, from, warc.length));
+        }
+    }
+}
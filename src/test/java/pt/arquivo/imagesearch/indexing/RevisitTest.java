@@ -0,0 +1,250 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.archive.io.warc.WARCRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+import pt.arquivo.imagesearch.indexing.utils.InvalidWARCResponseIOException;
+import pt.arquivo.imagesearch.indexing.utils.WARCRecordResponseEncapsulated;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RevisitTest {
+
+    private static final String PROFILE = "http://netpreserve.org/warc/1.0/revisit/identical-payload-digest";
+
+    private static final String HTML = "<html><head><title>Página</title></head><body><img src=\"/img/foto.png\" alt=\"Legenda\"><a href=\"foto.jpg\">foto</a></body></html>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Configuration conf = new Configuration();
+
+    @Test
+    public void revisitsCarryingHeadersAreRead() throws IOException {
+        WARCRecordResponseEncapsulated record = record("revisit", PROFILE, "application/http; msgtype=response", httpHeader("text/html; charset=utf-8"));
+        assertTrue(record.isRevisit());
+        assertEquals("text/html; charset=utf-8", record.getContentMimetype());
+        assertEquals("sha1:PAGE", record.getPayloadDigest());
+        assertEquals("20230202000000", record.getTs());
+
+        assertTrue(record("revisit", PROFILE, "application/http;msgtype=response", httpHeader("image/png")).isRevisit());
+        assertFalse(record("response", null, "application/http; msgtype=response", (httpHeader("text/html") + HTML).getBytes(StandardCharsets.UTF_8)).isRevisit());
+    }
+
+    @Test
+    public void revisitsWithoutHeadersAreRejected() throws IOException {
+        // the block of a revisit must be an HTTP response
+        assertInvalid("revisit", PROFILE, "text/html", httpHeader("text/html"));
+        assertInvalid("revisit", PROFILE, "application/http; msgtype=request", httpHeader("text/html"));
+        assertInvalid("revisit", PROFILE, null, httpHeader("text/html"));
+        // and have a status line
+        assertInvalid("revisit", PROFILE, "application/http; msgtype=response", new byte[0]);
+        assertInvalid("revisit", PROFILE, "application/http; msgtype=response", "\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        assertInvalid("revisit", PROFILE, "application/http; msgtype=response", "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        // only identical payload revisits are read
+        assertInvalid("revisit", "http://netpreserve.org/warc/1.0/revisit/server-not-modified", "application/http; msgtype=response", httpHeader("text/html"));
+        assertInvalid("revisit", null, "application/http; msgtype=response", httpHeader("text/html"));
+    }
+
+    @Test
+    public void revisitsAreResolvedAsTheCapturesTheyRevisit() throws IOException, InterruptedException {
+        byte[] png = png();
+        Run resolving = new Run(1024 * 1024, 1024 * 1024);
+        resolving.parse(record("response", null, "20190301100000", "http://a.pt/", "sha1:PAGE", (httpHeader("text/html") + HTML).getBytes(StandardCharsets.UTF_8)));
+        resolving.parse(record("response", null, "20190301100000", "http://a.pt/img/foto.png", "sha1:IMAGE", concat(httpHeader("image/png"), png)));
+        resolving.parse(record("revisit", PROFILE, "20230202000000", "http://a.pt/", "sha1:PAGE", httpHeader("text/html").getBytes(StandardCharsets.ISO_8859_1)));
+        resolving.parse(record("revisit", PROFILE, "20230202000000", "http://a.pt/img/foto.png", "sha1:IMAGE", httpHeader("image/png").getBytes(StandardCharsets.ISO_8859_1)));
+
+        // the same captures, with the content of the records they revisit; the revisited image is read from its record
+        Run expected = new Run(0, 0);
+        expected.extractor.parseImagesFromHtmlRecord(expected.context, HTML.getBytes(StandardCharsets.UTF_8), "text/html", "http://a.pt/", "20190301100000", "test.warc", 0, null);
+        expected.extractor.saveImageMetadata("http://a.pt/img/foto.png", md5("http://a.pt/img/foto.png"), "20190301100000", "image/png", png, "test.warc", 0, null);
+        expected.extractor.parseImagesFromHtmlRecord(expected.context, HTML.getBytes(StandardCharsets.UTF_8), "text/html", "http://a.pt/", "20230202000000", "test.warc", 0, null);
+        expected.extractor.saveImageMetadata("http://a.pt/img/foto.png", md5("http://a.pt/img/foto.png"), "20230202000000", "image/png", png, "test.warc", 0, null);
+
+        assertEquals(expected.output(), resolving.output());
+        assertEquals(2, resolving.counter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS));
+        assertEquals(2, resolving.counter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS_RESOLVED));
+        assertEquals(0, resolving.counter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS_UNRESOLVED));
+        assertEquals(2, resolving.counter(ImageIndexerWithDupsJob.IMAGE_COUNTERS.IMAGES_IN_WARC_TOTAL));
+        assertEquals(expected.counter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES), resolving.counter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGES));
+    }
+
+    @Test
+    public void revisitsWithoutAnEarlierCaptureAreOnlyCounted() throws IOException, InterruptedException {
+        Run run = new Run(1024 * 1024, 1024 * 1024);
+        run.parse(record("response", null, "20190301100000", "http://a.pt/", "sha1:PAGE", (httpHeader("text/html") + HTML).getBytes(StandardCharsets.UTF_8)));
+        List<String> parsed = run.output();
+
+        // another payload, url or Content-Type, no payload digest, and an image with the payload of the page
+        run.parse(record("revisit", PROFILE, "20230202000000", "http://a.pt/", "sha1:OTHER", httpHeader("text/html").getBytes(StandardCharsets.ISO_8859_1)));
+        run.parse(record("revisit", PROFILE, "20230202000000", "http://b.pt/", "sha1:PAGE", httpHeader("text/html").getBytes(StandardCharsets.ISO_8859_1)));
+        run.parse(record("revisit", PROFILE, "20230202000000", "http://a.pt/", "sha1:PAGE", httpHeader("text/html; charset=utf-8").getBytes(StandardCharsets.ISO_8859_1)));
+        run.parse(record("revisit", PROFILE, "20230202000000", "http://a.pt/", null, httpHeader("text/html").getBytes(StandardCharsets.ISO_8859_1)));
+        run.parse(record("revisit", PROFILE, "20230202000000", "http://a.pt/img/foto.png", "sha1:PAGE", httpHeader("image/png").getBytes(StandardCharsets.ISO_8859_1)));
+        // neither an image nor a page, so not counted
+        run.parse(record("revisit", PROFILE, "20230202000000", "http://a.pt/style.css", "sha1:PAGE", httpHeader("text/css").getBytes(StandardCharsets.ISO_8859_1)));
+
+        assertEquals(parsed, run.output());
+        assertEquals(5, run.counter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS));
+        assertEquals(0, run.counter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS_RESOLVED));
+        assertEquals(5, run.counter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS_UNRESOLVED));
+
+        // without the page cache and image memo, no revisit is resolved
+        Run uncached = new Run(0, 0);
+        uncached.parse(record("response", null, "20190301100000", "http://a.pt/", "sha1:PAGE", (httpHeader("text/html") + HTML).getBytes(StandardCharsets.UTF_8)));
+        uncached.parse(record("revisit", PROFILE, "20230202000000", "http://a.pt/", "sha1:PAGE", httpHeader("text/html").getBytes(StandardCharsets.ISO_8859_1)));
+        assertEquals(parsed, uncached.output());
+        assertEquals(1, uncached.counter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS_UNRESOLVED));
+    }
+
+    @Test
+    public void mapResolvesRevisitsWithTheCaches() throws IOException, InterruptedException {
+        conf.set("collection", "Teste");
+        conf.set("warcFileTempBaseDir", folder.newFolder("tmp").getPath());
+        List<String> warcs = SyntheticWARCs.write(folder.newFolder("warcs"), 2, 30);
+
+        Counters uncached = new Counters();
+        HadoopContexts.runMap(conf, warcs, uncached);
+        conf.setLong(ImageIndexerWithDupsJob.PAGE_CACHE_MB_NAME, 16);
+        conf.setLong(ImageIndexerWithDupsJob.IMAGE_MEMO_MB_NAME, 16);
+        Counters cached = new Counters();
+        HadoopContexts.runMap(conf, warcs, cached);
+
+        long revisits = uncached.findCounter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS).getValue();
+        assertTrue(revisits > 0);
+        assertEquals(revisits, uncached.findCounter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS_UNRESOLVED).getValue());
+        // every revisit in the synthetic WARCs follows a capture of the same payload, url and Content-Type
+        assertEquals(revisits, cached.findCounter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS).getValue());
+        assertEquals(revisits, cached.findCounter(ImageIndexerWithDupsJob.REVISIT_COUNTERS.REVISITS_RESOLVED).getValue());
+    }
+
+    private static void assertInvalid(String type, String profile, String contentType, String block) {
+        assertInvalid(type, profile, contentType, block.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void assertInvalid(String type, String profile, String contentType, byte[] block) {
+        try {
+            record(type, profile, contentType, block);
+            fail("Accepted " + type + " record " + profile + " " + contentType + ": " + new String(block, StandardCharsets.ISO_8859_1));
+        } catch (InvalidWARCResponseIOException ignored) {
+        } catch (IOException e) {
+            fail("Not rejected as an invalid response: " + e);
+        }
+    }
+
+    private static WARCRecordResponseEncapsulated record(String type, String profile, String contentType, String block) throws IOException {
+        return record(type, profile, contentType, block.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static WARCRecordResponseEncapsulated record(String type, String profile, String contentType, byte[] block) throws IOException {
+        return record(type, profile, "20230202000000", "http://a.pt/", "sha1:PAGE", block, contentType);
+    }
+
+    private static WARCRecordResponseEncapsulated record(String type, String profile, String date, String uri, String payloadDigest, byte[] block) throws IOException {
+        return record(type, profile, date, uri, payloadDigest, block, "application/http; msgtype=response");
+    }
+
+    /**
+     * Reads a WARC record with the given fields and block
+     */
+    private static WARCRecordResponseEncapsulated record(String type, String profile, String date, String uri, String payloadDigest, byte[] block, String contentType) throws IOException {
+        StringBuilder header = new StringBuilder("WARC/1.0\r\n");
+        header.append("WARC-Type: ").append(type).append("\r\n");
+        header.append("WARC-Target-URI: ").append(uri).append("\r\n");
+        header.append("WARC-Date: ").append(date, 0, 4).append('-').append(date, 4, 6).append('-').append(date, 6, 8).append('T')
+                .append(date, 8, 10).append(':').append(date, 10, 12).append(':').append(date, 12, 14).append("Z\r\n");
+        header.append("WARC-Record-ID: <urn:uuid:00000000-0000-0000-0000-000000000000>\r\n");
+        if (payloadDigest != null)
+            header.append("WARC-Payload-Digest: ").append(payloadDigest).append("\r\n");
+        if (profile != null)
+            header.append("WARC-Profile: ").append(profile).append("\r\n");
+        if (contentType != null)
+            header.append("Content-Type: ").append(contentType).append("\r\n");
+        header.append("Content-Length: ").append(block.length).append("\r\n\r\n");
+        byte[] record = concat(header.toString(), concat(block, "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+        return new WARCRecordResponseEncapsulated(new WARCRecord(new ByteArrayInputStream(record), "test.warc", 0), "test.warc");
+    }
+
+    private static String httpHeader(String mime) {
+        return "HTTP/1.1 200 OK\r\nContent-Type: " + mime + "\r\n\r\n";
+    }
+
+    private static byte[] concat(String first, byte[] second) {
+        return concat(first.getBytes(StandardCharsets.ISO_8859_1), second);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = new byte[first.length + second.length];
+        System.arraycopy(first, 0, bytes, 0, first.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static String md5(String url) {
+        return ImageSearchIndexingUtil.md5ofString(url);
+    }
+
+    private static byte[] png() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(60, 60, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Extractor writing its entries to an in memory context, with the page cache and image memo of the given sizes
+     */
+    private final class Run {
+
+        private final Counters counters = new Counters();
+
+        private final HadoopContexts.Output<Text, Writable> output = new HadoopContexts.Output<>(conf);
+
+        private final Mapper<LongWritable, Text, Text, Writable>.Context context = HadoopContexts.mapContext(conf, 0, output, counters);
+
+        private final ImageInformationExtractor extractor = new ImageInformationExtractor("Teste", context);
+
+        private Run(long pageCacheBytes, long imageMemoBytes) {
+            extractor.setPageCacheSize(pageCacheBytes);
+            extractor.setImageMemoSize(imageMemoBytes);
+        }
+
+        private void parse(WARCRecordResponseEncapsulated record) {
+            extractor.parseWarcRecord(record, "test.warc");
+        }
+
+        private List<String> output() throws IOException, InterruptedException {
+            extractor.writeEntries();
+            List<String> records = output.serialized();
+            output.keys.clear();
+            output.values.clear();
+            Collections.sort(records);
+            return records;
+        }
+
+        private long counter(Enum<?> counter) {
+            return counters.findCounter(counter).getValue();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import pt.arquivo.imagesearch.indexing.data.FullImageMetadata;
+import pt.arquivo.imagesearch.indexing.data.PageImageData;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class StreamingHtmlTest {
+
+    private static final String[] PAGES = {"pages/pageCaptionParent.html", "pages/pageCaptionSiblings.html", "pages/pageCaptionTooLarge.html"};
+
+    @Test
+    public void streamingMatchesParseHTMLPage() throws IOException {
+        String pageURL = "https://andremourao.com/static/pages";
+        String pageTstamp = "20200101000000";
+
+        for (String page : PAGES) {
+            URL pageFile = getClass().getClassLoader().getResource(page);
+            assertNotNull(pageFile);
+            byte[] htmlBytes = FileUtils.readFileToByteArray(new File(pageFile.getPath()));
+
+            ImageInformationExtractor dom = new ImageInformationExtractor("Teste");
+            dom.parseHTMLPage(pageURL, pageTstamp, "", 0, ImageSearchIndexingUtil.decode(htmlBytes, dom));
+
+            ImageInformationExtractor streaming = new ImageInformationExtractor("Teste");
+            String html = ImageSearchIndexingUtil.decode(htmlBytes, streaming);
+            streaming.parseHTMLPageStreaming(pageURL, pageTstamp, "", 0, new StringReader(html));
+
+            assertEquals(page, dom.getEntries().keySet(), streaming.getEntries().keySet());
+            for (Map.Entry<String, FullImageMetadata> entry : dom.getEntries().entrySet()) {
+                PageImageData expected = entry.getValue().getPageImageDatas().firstKey();
+                PageImageData actual = streaming.getEntries().get(entry.getKey()).getPageImageDatas().firstKey();
+                assertEquals(entry.getKey(), expected.getImgCaption(), actual.getImgCaption());
+                assertEquals(entry.getKey(), expected.getImgAlt(), actual.getImgAlt());
+                assertEquals(entry.getKey(), expected.getImgTitle(), actual.getImgTitle());
+                assertEquals(entry.getKey(), expected.getPageTitle(), actual.getPageTitle());
+            }
+        }
+    }
+
+    @Test
+    public void upperCaseAttributesAreRead() throws IOException {
+        String pageURL = "https://andremourao.com/static/pages";
+        String html = "<html><head><title>Teste</title></head><body><IMG SRC=\"photo\" ALT=\"Alt\" Title=\"Title\"></body></html>";
+
+        ImageInformationExtractor dom = new ImageInformationExtractor("Teste");
+        dom.parseHTMLPage(pageURL, "20200101000000", "", 0, html);
+        ImageInformationExtractor streaming = new ImageInformationExtractor("Teste");
+        streaming.parseHTMLPageStreaming(pageURL, "20200101000000", "", 0, new StringReader(html));
+
+        for (ImageInformationExtractor extractor : new ImageInformationExtractor[]{dom, streaming}) {
+            FullImageMetadata metadata = extractor.getEntries().get("(com,andremourao,)/static/photo");
+            assertNotNull(metadata);
+            PageImageData pageImageData = metadata.getPageImageDatas().firstKey();
+            assertEquals("Alt", pageImageData.getImgAlt());
+            assertEquals("Title", pageImageData.getImgTitle());
+        }
+    }
+}
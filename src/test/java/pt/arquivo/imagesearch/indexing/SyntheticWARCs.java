@@ -0,0 +1,243 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.commons.codec.binary.Base32;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes small deterministic WARCs for the tests that compare two ways of running the pipeline.
+ * <p>
+ * Each WARC holds pages that reference images through img, a, figure/figcaption, CSS url() and inline data: urls,
+ * latin1 and mojibake pages, identical re-captures and identical-payload-digest revisits of pages and images.
+ */
+final class SyntheticWARCs {
+
+    private static final String[] FORMATS = {"png", "jpg", "gif", "bmp"};
+
+    private static final int[][] SIZES = {{30, 30}, {120, 80}, {400, 300}, {64, 250}};
+
+    private static final String[] DATES = {"2019-03-01T10:00:00Z", "2019-03-01T10:00:00Z", "2020-05-02T11:30:00Z", "2021-07-03T12:45:10Z"};
+
+    private static final String REVISIT_PROFILE = "http://netpreserve.org/warc/1.0/revisit/identical-payload-digest";
+
+    private final Random random = new Random(42);
+
+    private final List<String> imageURLs = new ArrayList<>();
+
+    private final List<byte[]> imageBytes = new ArrayList<>();
+
+    private final List<String> imageMimes = new ArrayList<>();
+
+    private SyntheticWARCs(int images) throws IOException {
+        for (int i = 0; i < images; i++) {
+            String format = FORMATS[i % FORMATS.length];
+            int[] size = SIZES[i % SIZES.length];
+            String host = i % 3 == 0 ? "http://www.example.pt" : (i % 3 == 1 ? "https://static.example.com" : "http://example.org");
+            imageURLs.add(host + "/img/dir" + (i % 5) + "/photo_" + i + "-Caf%C3%A9." + format);
+            imageBytes.add(image(size[0], size[1], format, i));
+            imageMimes.add("image/" + (format.equals("jpg") ? "jpeg" : format));
+        }
+        // declared as jpeg, but it is a png
+        imageURLs.add("http://www.example.pt/img/lies.jpg");
+        imageBytes.add(image(300, 300, "png", 99));
+        imageMimes.add("image/jpeg");
+    }
+
+    /**
+     * Writes the WARCs into the given directory
+     *
+     * @param dir          directory where the WARCs are written
+     * @param warcs        number of WARCs
+     * @param pagesPerWarc number of HTML pages in each WARC
+     * @return file:// urls of the written WARCs
+     * @throws IOException if the WARCs cannot be written
+     */
+    static List<String> write(File dir, int warcs, int pagesPerWarc) throws IOException {
+        SyntheticWARCs generator = new SyntheticWARCs(16);
+        List<String> urls = new ArrayList<>();
+        for (int w = 0; w < warcs; w++) {
+            File warc = new File(dir, "synthetic-" + w + ".warc.gz");
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(warc))) {
+                generator.writeWarc(out, w, pagesPerWarc);
+            }
+            urls.add("file://" + warc.getAbsolutePath());
+        }
+        return urls;
+    }
+
+    /**
+     * Page bodies as written to the WARCs, without the latin1 and mojibake encodings
+     *
+     * @param pages number of pages
+     * @return html of each page
+     * @throws IOException if the images cannot be created
+     */
+    static List<String> pages(int pages) throws IOException {
+        SyntheticWARCs generator = new SyntheticWARCs(16);
+        String inline = "data:image/png;base64," + Base64.getEncoder().encodeToString(image(60, 60, "png", 7));
+        List<String> html = new ArrayList<>();
+        for (int p = 0; p < pages; p++)
+            html.add(generator.page(p, p % 11 == 3, inline));
+        return html;
+    }
+
+    private void writeWarc(OutputStream out, int w, int pages) throws IOException {
+        record(out, "warcinfo", null, "2019-01-01T00:00:00Z", "application/warc-fields", "software: test\r\n".getBytes(StandardCharsets.UTF_8), new LinkedHashMap<String, String>());
+        String inline = "data:image/png;base64," + Base64.getEncoder().encodeToString(image(60, 60, "png", 7));
+        for (int p = 0; p < pages; p++) {
+            String date = DATES[(p + w) % DATES.length];
+            String pageURL = "http://www.example.pt/section" + (p % 7) + "/page" + (p % 23) + ".html";
+            boolean latin = p % 11 == 3;
+            String html = page(p, latin, inline);
+            byte[] body;
+            if (latin)
+                body = html.getBytes(StandardCharsets.ISO_8859_1);
+            else if (p % 13 == 5)
+                body = new String(html.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1).getBytes(StandardCharsets.UTF_8);
+            else
+                body = html.getBytes(StandardCharsets.UTF_8);
+            response(out, pageURL, date, latin ? "text/html; charset=iso-8859-1" : "text/html", body);
+            if (p % 8 == 1)
+                response(out, pageURL, "2022-01-01T00:00:00Z", "text/html", body);
+            if (p % 10 == 2)
+                revisit(out, pageURL, "2023-02-02T00:00:00Z", "text/html", body, date);
+        }
+        for (int i = 0; i < imageURLs.size(); i++) {
+            String url = imageURLs.get(i);
+            String mime = imageMimes.get(i);
+            byte[] bytes = imageBytes.get(i);
+            String date = DATES[(i + w) % DATES.length];
+            response(out, url, date, mime, bytes);
+            if (i % 4 == 0)
+                response(out, url, "2022-06-06T06:06:06Z", mime, bytes);
+            if (i % 5 == 0)
+                response(out, url.replace("/img/", "/copy/"), "2018-01-01T00:00:00Z", mime, bytes);
+            if (i % 7 == 0)
+                response(out, url, "2023-03-03T03:03:03Z", mime, image(200, 150, "png", 1000 + i));
+            if (i % 6 == 0)
+                revisit(out, url, "2024-04-04T04:04:04Z", mime, bytes, date);
+        }
+    }
+
+    private String page(int p, boolean latin, String inline) {
+        StringBuilder html = new StringBuilder();
+        html.append("<html><head>").append(latin ? "<meta charset=\"iso-8859-1\">" : "<meta charset=\"utf-8\">")
+                .append("<title>Página ").append(p % 23).append(p % 5 == 0 ? " nova" : "").append("</title>")
+                .append("<style>.hero{background:url('").append(relative(imageURLs.get(p % imageURLs.size()))).append("')}</style></head><body>")
+                .append("<script>var x = \"url('/img/fake.png')\";</script>");
+        int n = 1 + random.nextInt(6);
+        for (int k = 0; k < n; k++) {
+            String url = imageURLs.get(random.nextInt(imageURLs.size()));
+            String src = random.nextBoolean() ? url : relative(url);
+            switch (k % 4) {
+                case 0:
+                    html.append("<figure><img src=\"").append(src).append("\" alt=\"alt ").append(k).append(" ção\" title=\"t").append(p % 3)
+                            .append("\"><figcaption>Legenda ").append(k).append(" da imagem</figcaption></figure>");
+                    break;
+                case 1:
+                    html.append("<div><p>Texto anterior ").append(k).append("</p><div><span><img data-src=\"").append(src).append("\" src=\"").append(src)
+                            .append("\"></span></div><p>Texto seguinte ").append(k).append("</p></div>");
+                    break;
+                case 2:
+                    html.append("<ul><li><a href=\"").append(src).append("\">Link para imagem ").append(k).append("</a></li></ul>");
+                    break;
+                default:
+                    html.append("<div style=\"background-image: url(&quot;").append(src).append("&quot;)\">bg</div><img lowsrc=\"").append(src).append("\">");
+            }
+        }
+        if (p % 6 == 0)
+            html.append("<p>inline</p><img src=\"").append(inline).append("\" alt=\"inline\">");
+        if (p % 9 == 0)
+            html.append("<a href=\"/docs/file.pdf\">pdf</a><a href=\"mailto:x@y\">mail</a><img src=\"\"><img src=\"http://[bad\">");
+        return html.append("</body></html>").toString();
+    }
+
+    private static String relative(String url) {
+        return url.replaceFirst("^https?://[^/]+", "");
+    }
+
+    private static byte[] image(int width, int height, String format, int seed) throws IOException {
+        int type = format.equals("jpg") || format.equals("bmp") ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D g = image.createGraphics();
+        Random r = new Random(seed);
+        g.setColor(new Color(r.nextInt(255), r.nextInt(255), r.nextInt(255)));
+        g.fillRect(0, 0, width, height);
+        for (int i = 0; i < 6; i++) {
+            g.setColor(new Color(r.nextInt(255), r.nextInt(255), r.nextInt(255)));
+            g.fillOval(r.nextInt(width), r.nextInt(height), 1 + r.nextInt(width), 1 + r.nextInt(height));
+        }
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format.equals("jpg") ? "jpeg" : format, out);
+        return out.toByteArray();
+    }
+
+    private static String payloadDigest(byte[] body) {
+        return "sha1:" + new Base32().encodeAsString(DigestUtils.sha1(body));
+    }
+
+    private static byte[] httpHeader(String mime, byte[] body) {
+        return ("HTTP/1.1 200 OK\r\nContent-Type: " + mime + "\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private void response(OutputStream out, String uri, String date, String mime, byte[] body) throws IOException {
+        byte[] header = httpHeader(mime, body);
+        byte[] block = new byte[header.length + body.length];
+        System.arraycopy(header, 0, block, 0, header.length);
+        System.arraycopy(body, 0, block, header.length, body.length);
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("WARC-Payload-Digest", payloadDigest(body));
+        record(out, "response", uri, date, "application/http; msgtype=response", block, fields);
+    }
+
+    private void revisit(OutputStream out, String uri, String date, String mime, byte[] body, String refersToDate) throws IOException {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("WARC-Payload-Digest", payloadDigest(body));
+        fields.put("WARC-Profile", REVISIT_PROFILE);
+        fields.put("WARC-Refers-To-Target-URI", uri);
+        fields.put("WARC-Refers-To-Date", refersToDate);
+        record(out, "revisit", uri, date, "application/http; msgtype=response", httpHeader(mime, body), fields);
+    }
+
+    private void record(OutputStream out, String type, String uri, String date, String contentType, byte[] block, Map<String, String> fields) throws IOException {
+        StringBuilder header = new StringBuilder("WARC/1.0\r\n");
+        header.append("WARC-Type: ").append(type).append("\r\n");
+        if (uri != null)
+            header.append("WARC-Target-URI: ").append(uri).append("\r\n");
+        header.append("WARC-Date: ").append(date).append("\r\n");
+        header.append("WARC-Record-ID: <urn:uuid:").append(new UUID(random.nextLong(), random.nextLong())).append(">\r\n");
+        for (Map.Entry<String, String> field : fields.entrySet())
+            header.append(field.getKey()).append(": ").append(field.getValue()).append("\r\n");
+        header.append("Content-Type: ").append(contentType).append("\r\n");
+        header.append("Content-Length: ").append(block.length).append("\r\n\r\n");
+
+        // one gzip member per record, as written by crawlers
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(header.toString().getBytes(StandardCharsets.UTF_8));
+            gzip.write(block);
+            gzip.write("\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(compressed.toByteArray());
+    }
+}
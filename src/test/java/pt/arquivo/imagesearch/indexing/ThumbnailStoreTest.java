@@ -0,0 +1,111 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Counters;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pt.arquivo.imagesearch.indexing.data.FullImageMetadata;
+import pt.arquivo.imagesearch.indexing.data.ImageData;
+import pt.arquivo.imagesearch.indexing.utils.ThumbnailStore;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ThumbnailStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Configuration conf = new Configuration();
+
+    @Test
+    public void putGetRoundTrip() throws IOException {
+        Path dir = new Path(folder.newFolder("store").toURI());
+        byte[] first = {1, 2, 3};
+        byte[] second = new byte[70000];
+        for (int i = 0; i < second.length; i++)
+            second[i] = (byte) i;
+
+        String firstLocation;
+        String secondLocation;
+        String otherLocation;
+        try (ThumbnailStore attempt0 = new ThumbnailStore(conf, dir, "attempt_m_000000_0");
+             ThumbnailStore attempt1 = new ThumbnailStore(conf, dir, "attempt_m_000001_0")) {
+            assertFalse(attempt0.contains("aaa"));
+            firstLocation = attempt0.put("aaa", first);
+            secondLocation = attempt0.put("bbb", second);
+            assertTrue(attempt0.contains("aaa"));
+            // written once per digest
+            assertEquals(firstLocation, attempt0.put("aaa", new byte[]{9}));
+            assertTrue(firstLocation.startsWith("attempt_m_000000_0:"));
+            assertNotEquals(firstLocation, secondLocation);
+
+            otherLocation = attempt1.put("aaa", new byte[]{4, 5});
+            assertTrue(otherLocation.startsWith("attempt_m_000001_0:"));
+
+            // only readable once closed
+            assertGetFails(attempt0, "bbb", secondLocation);
+        }
+
+        try (ThumbnailStore reader = new ThumbnailStore(conf, dir)) {
+            assertArrayEquals(second, reader.get("bbb", secondLocation));
+            assertArrayEquals(first, reader.get("aaa", firstLocation));
+            assertArrayEquals(new byte[]{4, 5}, reader.get("aaa", otherLocation));
+            assertGetFails(reader, "bbb", firstLocation);
+            assertGetFails(reader, "aaa", "attempt_m_000000_0");
+        }
+    }
+
+    @Test
+    public void mapOutputThumbnailsAreReadBackFromTheStore() throws IOException, InterruptedException {
+        List<String> warcs = SyntheticWARCs.write(folder.newFolder("warcs"), 2, 20);
+        Configuration inline = new Configuration(conf);
+        inline.set("collection", "Teste");
+        inline.set("warcFileTempBaseDir", folder.newFolder("tmp").getPath());
+        Configuration stored = new Configuration(inline);
+        String storeDir = folder.newFolder("thumbnails").toURI().toString();
+        stored.set(ImageIndexerWithDupsJob.THUMBNAIL_STORE_DIR_NAME, storeDir);
+
+        HadoopContexts.Output<Text, Writable> expected = HadoopContexts.runMap(inline, warcs, new Counters());
+        Counters counters = new Counters();
+        HadoopContexts.Output<Text, Writable> output = HadoopContexts.runMap(stored, warcs, counters);
+        assertTrue(counters.findCounter(ImageIndexerWithDupsJob.THUMBNAIL_COUNTERS.THUMBNAILS_STORED).getValue() > 0);
+        assertTrue(counters.findCounter(ImageIndexerWithDupsJob.THUMBNAIL_COUNTERS.THUMBNAILS_SHARED).getValue() > 0);
+
+        int loaded = 0;
+        try (ThumbnailStore store = new ThumbnailStore(stored, new Path(storeDir))) {
+            for (Writable value : output.values) {
+                for (ImageData imageData : ((FullImageMetadata) value).getImageDatasValues()) {
+                    if (imageData.getThumbnailLocation() == null)
+                        continue;
+                    assertNull(imageData.getBytes());
+                    imageData.setBytes(store.get(imageData.getContentHash(), imageData.getThumbnailLocation()));
+                    imageData.setThumbnailLocation(null);
+                    loaded++;
+                }
+            }
+        }
+        assertTrue(loaded > 0);
+        assertEquals(expected.serialized(), output.serialized());
+    }
+
+    private static void assertGetFails(ThumbnailStore store, String digest, String location) {
+        try {
+            store.get(digest, location);
+            fail("Expected an IOException for " + digest + " at " + location);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.junit.Test;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+import pt.arquivo.imagesearch.indexing.utils.URLTokenizer;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class URLTokenizerTest {
+
+    private static final List<String> EDGE_CASES = Arrays.asList("", "/", "///", "a", "/a", "a/", "//a//b//", "hash:abc",
+            "hash%3Aabc", "http://x.pt/a+b.jpg", "http://x.pt/%", "http://x.pt/%4", "http://x.pt/%41", "http://x.pt/%zz",
+            "http://x.pt/%+1%-0", "http://x.pt/%-1", "http://x.pt/%C3%A7%C3", "http://x.pt/%C3%A7%2F%41.png",
+            "http://x.pt/\b١Ａ", "http://x.pt/%١Ａ", "http://x.pt/imagem%20com%20espa%C3%A7os.jpg",
+            "ftp://a_b-c.d~e/f{g}h|i.gif?j=k&l#m", "http://x.pt/😀%F0%9F%98%80");
+
+    @Test
+    public void tokensMatchSplitAndURLDecoder() throws IOException {
+        Set<String> urls = new LinkedHashSet<>(EDGE_CASES);
+        urls.addAll(getTestWARCURLs());
+
+        // every url is also tokenized after others, so that state left in the reused buffers would show up
+        URLTokenizer tokenizer = new URLTokenizer();
+        for (String url : urls) {
+            assertEquals(url, referenceURLTokens(url), tokenizer.tokenizeURL(url));
+            assertEquals(url, referenceURLTokens(url), ImageSearchIndexingUtil.getURLTokens(url));
+            assertEquals(url, referenceCleanPunctuation(url), tokenizer.cleanPunctuation(url));
+            assertEquals(url, referenceCleanPunctuation(url), ImageSearchIndexingUtil.cleanPunctuation(url));
+        }
+
+        Random random = new Random(42);
+        char[] alphabet = "aZ09%+-/._:\b hsAç١Ａ😀".toCharArray();
+        for (int i = 0; i < 100000; i++) {
+            char[] chars = new char[random.nextInt(12)];
+            for (int j = 0; j < chars.length; j++)
+                chars[j] = alphabet[random.nextInt(alphabet.length)];
+            String url = new String(chars);
+            assertEquals(url, referenceURLTokens(url), tokenizer.tokenizeURL(url));
+            assertEquals(url, referenceCleanPunctuation(url), tokenizer.cleanPunctuation(url));
+        }
+    }
+
+    /**
+     * Record urls and links of the HTML records of the test (W)ARCs
+     */
+    private List<String> getTestWARCURLs() throws IOException {
+        ClassLoader classLoader = getClass().getClassLoader();
+        URL warcList = classLoader.getResource("FullOfflinePipelineTestWARCS.txt");
+        assertNotNull(warcList);
+
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Teste");
+        List<String> urls = new ArrayList<>();
+        BufferedReader br = new BufferedReader(new FileReader(warcList.getPath()));
+        for (String line; (line = br.readLine()) != null; ) {
+            if (line.trim().isEmpty())
+                continue;
+            URL warcURL = classLoader.getResource(line.trim());
+            assertNotNull(warcURL);
+            String warcPath = "file://" + warcURL.getPath();
+            if (warcPath.endsWith("warc.gz") || warcPath.endsWith("warc")) {
+                ImageSearchIndexingUtil.readWarcRecords(warcPath, extractor, record -> {
+                    String url = record.getWARCRecord().getHeader().getUrl();
+                    urls.add(url);
+                    String mimetype = record.getContentMimetype();
+                    if (mimetype != null && mimetype.contains("html")) {
+                        try {
+                            addLinks(urls, url, ImageSearchIndexingUtil.decode(record.getContentBytes(), extractor));
+                        } catch (IOException ignored) {
+                        }
+                    }
+                });
+            } else {
+                ImageSearchIndexingUtil.readArcRecords(warcPath, extractor, record -> urls.add(record.getHeader().getUrl()));
+            }
+        }
+        return urls;
+    }
+
+    private static void addLinks(List<String> urls, String pageURL, String html) {
+        for (Element el : Jsoup.parse(html, pageURL).select("[src], [href]")) {
+            urls.add(el.hasAttr("src") ? el.attr("src") : el.attr("href"));
+            urls.add(el.hasAttr("src") ? el.absUrl("src") : el.absUrl("href"));
+        }
+    }
+
+    private static String referenceCleanPunctuation(String toParse) {
+        return String.join(" ", toParse.split("[\\p{Punct}\b]+"));
+    }
+
+    private static String referenceURLTokens(String url) {
+        try {
+            url = URLDecoder.decode(url, "UTF-8");
+        } catch (Exception ignored) {
+
+        }
+        return url.startsWith("hash:") ? "" : referenceCleanPunctuation(url);
+    }
+}
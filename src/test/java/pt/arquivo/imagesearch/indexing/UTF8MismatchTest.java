@@ -0,0 +1,175 @@
+package pt.arquivo.imagesearch.indexing;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import pt.arquivo.imagesearch.indexing.processors.ImageInformationExtractor;
+import pt.arquivo.imagesearch.indexing.utils.ImageSearchIndexingUtil;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class UTF8MismatchTest {
+
+    /**
+     * Mismatch pairs, as they were matched before the repair was done in a single pass
+     */
+    private static final Pattern UTF8_MISMATCH = Pattern.compile("Ã©|Ã¡|Ã£|Ã§|Ã°|Ãµ|Ã´|Ã³|Â®|Ã‡|ÃŠ|Ã•|Ã¨|Ãª|Ã«|Ã±|Ã¹|Ãº|Ã»|Â£");
+
+    private static final String[] PAGES = {
+            "",
+            "pure ascii page <p>hello</p>",
+            "Ã",
+            "Ã©",
+            // 2, 3 and 4 byte sequences read as ISO-8859-1
+            "cafÃ© e pÃ£o, SÃ£o JoÃ£o",
+            "Ã§ â‚¬ 100",
+            "Ã© emoji ð\u009f\u0098\u0080 end",
+            "Ã© emoji at the end ð\u009f\u0098\u0080",
+            // surrogate pairs and chars above U+00FF, written as '?' by getBytes
+            "Ã© real emoji 😀 and 中文",
+            "😀Ã©😀",
+            // truncated and malformed sequences
+            "Ã© truncated â‚",
+            "Ã© truncated ð\u009f\u0098",
+            "Ã© lone continuation \u0080 and lead Ã(",
+            "Ã© overlong À¯ and à\u0080¯, surrogate í \u0080, too large ô\u0090\u0080\u0080 õ\u0080",
+            // mismatch pairs whose second char is a windows-1252 char in 0x80-0x9f, above U+00FF
+            "Ã‡ ÃŠ Ã•",
+            "Ã© ‡ Š •",
+            "Â®Â£",
+            // still mismatched once repaired (encoded twice)
+            "cafÃ\u0083Â© Ã©",
+            "Ã© and Ã\u0083Â©",
+            // repaired into a mismatch pair
+            "Ã©Ã\u0083Â£",
+            // ƒ is 0x83 in windows-1252, but is above U+00FF
+            "cafÃƒÂ© Ã©",
+            // no mismatch pair
+            "Ã Â Ãa Â© ©Ã",
+    };
+
+    private static final String ALPHABET = "aZ <>/é©¡£§°µ´³®¨ª«±¹º»ÃÂƒð‚¬\u0080\u0083\u0087\u008a\u0095\u009f Ààâíðôõÿ‡Š•中😀";
+
+    @Test
+    public void pagesMatchTheRegexRepair() throws IOException {
+        for (String page : PAGES)
+            assertSameAsRegexRepair(page);
+    }
+
+    @Test
+    public void randomPagesMatchTheRegexRepair() throws IOException {
+        Random random = new Random(42);
+        int[] codePoints = ALPHABET.codePoints().toArray();
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder page = new StringBuilder();
+            int length = random.nextInt(30);
+            for (int k = 0; k < length; k++)
+                page.appendCodePoint(codePoints[random.nextInt(codePoints.length)]);
+            // most pages need a mismatch pair to be repaired
+            if (random.nextInt(4) > 0)
+                page.insert(random.nextInt(page.length() + 1), "Ã©");
+            assertSameAsRegexRepair(page.toString());
+        }
+    }
+
+    @Test
+    public void randomBytesMatchTheRegexRepair() throws IOException {
+        Random random = new Random(7);
+        for (String charset : new String[]{"utf-8", "windows-1252", "iso-8859-1"}) {
+            for (int i = 0; i < 2000; i++) {
+                byte[] bytes = new byte[random.nextInt(40)];
+                for (int k = 0; k < bytes.length; k++)
+                    bytes[k] = (byte) (random.nextBoolean() ? 0xC2 + random.nextInt(4) : 0x80 + random.nextInt(128));
+                assertSameAsRegexRepair(bytes, "text/html; charset=" + charset);
+            }
+        }
+    }
+
+    @Test
+    public void mismatchesAcrossReaderBuffers() throws IOException {
+        // the Reader versions read 8 KB of chars at a time
+        for (int offset = 8 * 1024 - 3; offset <= 8 * 1024 + 1; offset++) {
+            StringBuilder page = new StringBuilder();
+            while (page.length() < offset)
+                page.append('a');
+            assertSameAsRegexRepair(page + "Ã©" + " end");
+            assertSameAsRegexRepair(page + "Ã© 😀 ð\u009f\u0098\u0080");
+            page.setLength(offset - 1);
+            assertSameAsRegexRepair(page + "😀Ã©");
+        }
+    }
+
+    @Test
+    public void countersMatchTheRegexRepair() throws IOException {
+        assertCounters("pure ascii", 0, 0);
+        assertCounters("cafÃ©", 1, 1);
+        assertCounters("cafÃ\u0083Â© Ã©", 1, 0);
+    }
+
+    private static void assertCounters(String page, long mismatches, long repaired) throws IOException {
+        byte[] bytes = page.getBytes(StandardCharsets.UTF_8);
+        ImageInformationExtractor extractor = new ImageInformationExtractor("Teste");
+        ImageSearchIndexingUtil.decode(bytes, "text/html; charset=utf-8", null, extractor);
+        IOUtils.toString(ImageSearchIndexingUtil.decodeReader(bytes, "text/html; charset=utf-8", null, extractor));
+        assertEquals(2 * mismatches, extractor.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGE_UTF8_MISMATCH).getValue());
+        assertEquals(2 * repaired, extractor.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGE_UTF8_MISMATCH_DOUBLE).getValue());
+    }
+
+    /**
+     * Checks a page, served as UTF-8 so that it is decoded to the same String
+     */
+    private static void assertSameAsRegexRepair(String page) throws IOException {
+        assertSameAsRegexRepair(page.getBytes(StandardCharsets.UTF_8), "text/html; charset=utf-8");
+    }
+
+    private static void assertSameAsRegexRepair(byte[] bytes, String contentType) throws IOException {
+        ImageInformationExtractor expectedCounters = new ImageInformationExtractor("Teste");
+        String charset = expectedCounters.getCharsetResolver().resolve(bytes, contentType, null, expectedCounters);
+        String expected = regexRepair(new String(bytes, Charset.forName(charset)), expectedCounters);
+
+        ImageInformationExtractor decodeCounters = new ImageInformationExtractor("Teste");
+        String decoded = ImageSearchIndexingUtil.decode(bytes, contentType, null, decodeCounters);
+        ImageInformationExtractor readerCounters = new ImageInformationExtractor("Teste");
+        String read = IOUtils.toString(ImageSearchIndexingUtil.decodeReader(bytes, contentType, null, readerCounters));
+
+        String name = escape(new String(bytes, Charset.forName(charset)));
+        assertEquals(name, escape(expected), escape(decoded));
+        assertEquals(name, escape(expected), escape(read));
+        for (ImageInformationExtractor counters : new ImageInformationExtractor[]{decodeCounters, readerCounters}) {
+            for (ImageIndexerWithDupsJob.PAGE_COUNTERS counter : new ImageIndexerWithDupsJob.PAGE_COUNTERS[]{
+                    ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGE_UTF8_MISMATCH, ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGE_UTF8_MISMATCH_DOUBLE})
+                assertEquals(name + " " + counter, expectedCounters.getCounter(counter).getValue(), counters.getCounter(counter).getValue());
+        }
+    }
+
+    /**
+     * The repair as it was done before: a regex to find the mismatch pairs, and getBytes to read the page again
+     */
+    private static String regexRepair(String html, ImageInformationExtractor context) {
+        if (UTF8_MISMATCH.matcher(html).find()) {
+            context.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGE_UTF8_MISMATCH).increment(1);
+            String newHtml = new String(html.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+            if (!UTF8_MISMATCH.matcher(newHtml).find()) {
+                context.getCounter(ImageIndexerWithDupsJob.PAGE_COUNTERS.PAGE_UTF8_MISMATCH_DOUBLE).increment(1);
+                html = newHtml;
+            }
+        }
+        return html;
+    }
+
+    private static String escape(String s) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            if (c >= ' ' && c < 0x7f)
+                escaped.append(c);
+            else
+                escaped.append(String.format("\\u%04x", (int) c));
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,107 @@
+package pt.arquivo.imagesearch.indexing.processors;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ImageDigestMemoTest {
+
+    /**
+     * Approximate size of a failed image from a one character (W)ARC, under a two character key
+     */
+    private static final long IMAGE_SIZE = ImageDigestMemo.ENTRY_SIZE_APPROXIMATION + 2 + 2 * 2;
+
+    @Test
+    public void leastRecentlyUsedImagesAreEvictedAtTheBudget() {
+        ImageDigestMemo memo = new ImageDigestMemo(3 * IMAGE_SIZE);
+        ImageDigestMemo.ParsedImage[] images = new ImageDigestMemo.ParsedImage[5];
+        for (int i = 0; i < 3; i++) {
+            images[i] = failed();
+            memo.put("k" + i, images[i]);
+        }
+        // exactly at the budget
+        for (int i = 0; i < 3; i++)
+            assertSame(images[i], memo.get("k" + i));
+
+        // k0 is the least recently used, unless it is read again
+        assertNotNull(memo.get("k0"));
+        images[3] = failed();
+        memo.put("k3", images[3]);
+        assertNull(memo.get("k1"));
+        for (int i : new int[]{2, 0, 3})
+            assertSame(images[i], memo.get("k" + i));
+
+        images[4] = failed();
+        memo.put("k4", images[4]);
+        assertNull(memo.get("k2"));
+        for (int i : new int[]{0, 3, 4})
+            assertSame(images[i], memo.get("k" + i));
+    }
+
+    @Test
+    public void imagesOverTheBudgetAreNotRemembered() {
+        ImageDigestMemo memo = new ImageDigestMemo(4 * IMAGE_SIZE);
+        ImageDigestMemo.ParsedImage kept = failed();
+        memo.put("k0", kept);
+
+        // a (W)ARC name as large as three failed images, so that the image fills the budget and evicts k0
+        ImageDigestMemo.ParsedImage fits = new ImageDigestMemo.ParsedImage("", true, null, 0, chars((4 * IMAGE_SIZE - ImageDigestMemo.ENTRY_SIZE_APPROXIMATION - 2 * 2) / 2), 0);
+        assertEquals(4 * IMAGE_SIZE, fits.getApproximateSize() + 2 * 2);
+        memo.put("k1", fits);
+        assertSame(fits, memo.get("k1"));
+        assertNull(memo.get("k0"));
+
+        memo.put("k0", kept);
+        assertSame(kept, memo.get("k0"));
+        assertNull(memo.get("k1"));
+        ImageDigestMemo.ParsedImage tooLarge = new ImageDigestMemo.ParsedImage("", true, null, 0, chars((4 * IMAGE_SIZE - ImageDigestMemo.ENTRY_SIZE_APPROXIMATION - 2 * 2) / 2 + 1), 0);
+        memo.put("k2", tooLarge);
+        assertNull(memo.get("k2"));
+        // and nothing was evicted for it
+        assertSame(kept, memo.get("k0"));
+    }
+
+    @Test
+    public void replacedImagesAreNotCountedTwice() {
+        ImageDigestMemo memo = new ImageDigestMemo(3 * IMAGE_SIZE);
+        ImageDigestMemo.ParsedImage first = failed();
+        memo.put("k0", first);
+        memo.put("k1", failed());
+        ImageDigestMemo.ParsedImage replaced = null;
+        for (int i = 0; i < 10; i++) {
+            replaced = failed();
+            memo.put("kr", replaced);
+        }
+        assertSame(first, memo.get("k0"));
+        assertNotNull(memo.get("k1"));
+        assertSame(replaced, memo.get("kr"));
+    }
+
+    @Test
+    public void keysArePayloadDigestsOrHashes() {
+        byte[] bytes = "GIF89a".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("sha1:A", ImageDigestMemo.getKey("sha1:A", bytes));
+        assertEquals("sha1:A", ImageDigestMemo.getKey("sha1:A", null));
+        String hashed = ImageDigestMemo.getKey(null, bytes);
+        assertEquals(hashed, ImageDigestMemo.getKey("", bytes.clone()));
+        assertNotEquals(hashed, ImageDigestMemo.getKey(null, "GIF87a".getBytes(StandardCharsets.US_ASCII)));
+        assertNotEquals(hashed, ImageDigestMemo.getKey("sha1:A", bytes));
+    }
+
+    private static ImageDigestMemo.ParsedImage failed() {
+        return new ImageDigestMemo.ParsedImage("", true, null, 0, "w", 0);
+    }
+
+    private static String chars(long length) {
+        StringBuilder chars = new StringBuilder();
+        while (chars.length() < length)
+            chars.append('x');
+        return chars.toString();
+    }
+}
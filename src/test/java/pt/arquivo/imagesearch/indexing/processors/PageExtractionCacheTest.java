@@ -0,0 +1,132 @@
+package pt.arquivo.imagesearch.indexing.processors;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PageExtractionCacheTest {
+
+    /**
+     * Approximate size of an empty page under a two character key
+     */
+    private static final long PAGE_SIZE = PageExtractionCache.PAGE_SIZE_APPROXIMATION + 2 * 2;
+
+    @Test
+    public void leastRecentlyUsedPagesAreEvictedAtTheBudget() {
+        PageExtractionCache cache = new PageExtractionCache(5 * PAGE_SIZE);
+        PageExtractionCache.PageExtraction[] pages = new PageExtractionCache.PageExtraction[7];
+        for (int i = 0; i < 5; i++) {
+            pages[i] = new PageExtractionCache.PageExtraction();
+            cache.put("k" + i, pages[i]);
+        }
+        // exactly at the budget
+        for (int i = 0; i < 5; i++)
+            assertSame(pages[i], cache.get("k" + i));
+
+        // k0 is the least recently used, unless it is read again
+        assertNotNull(cache.get("k0"));
+        pages[5] = new PageExtractionCache.PageExtraction();
+        cache.put("k5", pages[5]);
+        assertNull(cache.get("k1"));
+        assertSame(pages[0], cache.get("k0"));
+        assertSame(pages[5], cache.get("k5"));
+
+        pages[6] = new PageExtractionCache.PageExtraction();
+        cache.put("k6", pages[6]);
+        assertNull(cache.get("k2"));
+        for (int i : new int[]{0, 3, 4, 5, 6})
+            assertSame(pages[i], cache.get("k" + i));
+    }
+
+    @Test
+    public void largerPagesEvictSeveralPages() {
+        PageExtractionCache cache = new PageExtractionCache(8 * PAGE_SIZE);
+        for (int i = 0; i < 8; i++)
+            cache.put("k" + i, new PageExtractionCache.PageExtraction());
+
+        // an image and an inline image, so that the page is as large as two empty ones
+        PageExtractionCache.PageExtraction large = new PageExtractionCache.PageExtraction();
+        large.addImage(chars((PAGE_SIZE - 2 * PageExtractionCache.REFERENCE_SIZE_APPROXIMATION) / 4), null, null, null, 1, "http://a.pt/", "", "img");
+        large.addInlineImage(chars((PAGE_SIZE - 2 * PageExtractionCache.REFERENCE_SIZE_APPROXIMATION) / 4));
+        assertEquals(2 * PAGE_SIZE - 2 * 2, large.size);
+        cache.put("kl", large);
+
+        assertNull(cache.get("k0"));
+        assertNull(cache.get("k1"));
+        for (int i = 2; i < 8; i++)
+            assertNotNull(cache.get("k" + i));
+        assertSame(large, cache.get("kl"));
+    }
+
+    @Test
+    public void pagesOverAFractionOfTheBudgetAreNotCached() {
+        long budget = PageExtractionCache.MAX_PAGE_FRACTION * 2 * PAGE_SIZE;
+        PageExtractionCache cache = new PageExtractionCache(budget);
+        PageExtractionCache.PageExtraction kept = new PageExtractionCache.PageExtraction();
+        cache.put("k0", kept);
+
+        PageExtractionCache.PageExtraction fits = new PageExtractionCache.PageExtraction();
+        fits.addInlineImage(chars((PAGE_SIZE - PageExtractionCache.REFERENCE_SIZE_APPROXIMATION) / 2));
+        assertEquals(budget / PageExtractionCache.MAX_PAGE_FRACTION, fits.size + 2 * 2);
+        cache.put("k1", fits);
+        assertSame(fits, cache.get("k1"));
+
+        PageExtractionCache.PageExtraction tooLarge = new PageExtractionCache.PageExtraction();
+        tooLarge.addInlineImage(chars((PAGE_SIZE - PageExtractionCache.REFERENCE_SIZE_APPROXIMATION) / 2 + 1));
+        cache.put("k2", tooLarge);
+        assertNull(cache.get("k2"));
+        // and nothing was evicted for it
+        assertSame(kept, cache.get("k0"));
+        assertSame(fits, cache.get("k1"));
+    }
+
+    @Test
+    public void replacedPagesAreNotCountedTwice() {
+        PageExtractionCache cache = new PageExtractionCache(PageExtractionCache.MAX_PAGE_FRACTION * PAGE_SIZE);
+        PageExtractionCache.PageExtraction first = new PageExtractionCache.PageExtraction();
+        cache.put("k0", first);
+        for (int i = 1; i < PageExtractionCache.MAX_PAGE_FRACTION - 1; i++)
+            cache.put("k" + i, new PageExtractionCache.PageExtraction());
+        PageExtractionCache.PageExtraction replaced = null;
+        for (int i = 0; i < 10; i++) {
+            replaced = new PageExtractionCache.PageExtraction();
+            cache.put("kr", replaced);
+        }
+        assertSame(first, cache.get("k0"));
+        for (int i = 1; i < PageExtractionCache.MAX_PAGE_FRACTION - 1; i++)
+            assertNotNull(cache.get("k" + i));
+        assertSame(replaced, cache.get("kr"));
+    }
+
+    @Test
+    public void keysDependOnThePayloadContentTypeAndURL() {
+        byte[] html = "<img src=\"a.png\">".getBytes(StandardCharsets.UTF_8);
+        String key = PageExtractionCache.getKey("sha1:A", html, "text/html", "http://a.pt/");
+        // revisits are looked up without the page bytes
+        assertEquals(key, PageExtractionCache.getKey("sha1:A", null, "text/html", "http://a.pt/"));
+        assertNotEquals(key, PageExtractionCache.getKey("sha1:B", html, "text/html", "http://a.pt/"));
+        assertNotEquals(key, PageExtractionCache.getKey("sha1:A", html, "text/html", "http://b.pt/"));
+        assertNotEquals(key, PageExtractionCache.getKey("sha1:A", html, "text/html; charset=utf-8", "http://a.pt/"));
+        assertNotEquals(key, PageExtractionCache.getKey("sha1:A", html, null, "http://a.pt/"));
+
+        // without a payload digest, the bytes are hashed
+        String hashed = PageExtractionCache.getKey(null, html, "text/html", "http://a.pt/");
+        assertEquals(hashed, PageExtractionCache.getKey("", html.clone(), "text/html", "http://a.pt/"));
+        assertNotEquals(hashed, PageExtractionCache.getKey(null, "<img src=\"b.png\">".getBytes(StandardCharsets.UTF_8), "text/html", "http://a.pt/"));
+        assertNotEquals(hashed, PageExtractionCache.getKey(null, html, "text/html", "http://b.pt/"));
+        assertNotEquals(hashed, key);
+    }
+
+    private static String chars(long length) {
+        StringBuilder chars = new StringBuilder();
+        while (chars.length() < length)
+            chars.append('x');
+        return chars.toString();
+    }
+}